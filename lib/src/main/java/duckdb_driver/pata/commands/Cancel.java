@@ -0,0 +1,106 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.commands;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Interrupts the running statement of a connection. Sent on the control port,
+ * because the connection itself is blocked while the statement runs.
+ */
+public class Cancel implements PataCommand
+{
+	public static final String op = "Cancel";
+	
+	public final UUID connectionID;
+	public final UUID statementID;
+	
+	public Cancel(JsonParser jsonParser) throws Exception
+	{
+		UUID tmpConnectionId = null;
+		UUID tmpStatementId = null;
+		
+		// Process Command
+		while(!jsonParser.isClosed())
+		{
+		    JsonToken jsonToken = jsonParser.nextToken();
+
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("connectionId"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpConnectionId = UUID.fromString(jsonParser.getValueAsString());
+		    }
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("statementID"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpStatementId = UUID.fromString(jsonParser.getValueAsString());
+		    }
+		    
+		    if (JsonToken.END_OBJECT.equals(jsonToken))
+		    {
+		    	break;
+		    }
+		}
+		
+		connectionID = tmpConnectionId;
+		statementID = tmpStatementId;
+		
+		// We need both Ids
+		if (tmpConnectionId == null || tmpStatementId == null)
+		{
+			throw new Exception();
+		}
+	}
+	
+	public Cancel(UUID connectionID, UUID statementID)
+	{
+		this.connectionID = connectionID;
+		this.statementID = statementID;
+	}
+	
+	@Override
+	public String getOp()
+	{
+		return op;
+	}
+
+	@Override
+	public ByteBuffer encodeCommand() throws JacksonException
+	{
+		ObjectMapper mapper = new ObjectMapper();	
+		ObjectNode cmd = mapper.createObjectNode();
+		
+		cmd.put("op", Cancel.op);
+		cmd.put("connectionId", connectionID.toString());
+		cmd.put("statementID", statementID.toString());
+		
+		return ByteBuffer.wrap(mapper.writeValueAsBytes(cmd));
+	}
+}
@@ -40,8 +40,38 @@ public class CommandDecoder
 	private final static String executeUpdate = ExecuteUpdate.op;
 	private final static String commit = Commit.op;
 	private final static String rollback = Rollback.op;
+	private final static String cancel = Cancel.op;
+	private final static String fetch = Fetch.op;
+	private final static String closeStatement = CloseStatement.op;
+	private final static String ping = Ping.op;
 	
+	/**
+	 * Decodes a command of version 1, as all commands of the control port are
+	 */
 	public static PataCommand decodeBuffer(ByteBuffer inputBuffer) throws Exception
+	{
+		return decodeBuffer(inputBuffer, Protocol.VERSION_1);
+	}
+	
+	/**
+	 * Decodes a command with the codec of the protocol version of its connection
+	 */
+	public static PataCommand decodeBuffer(ByteBuffer inputBuffer, int protocolVersion) throws Exception
+	{
+		switch (protocolVersion)
+		{
+			// Version 0 has the same commands, only without frames
+			case Protocol.VERSION_0:
+			case Protocol.VERSION_1:
+			{
+				return decodeJson(inputBuffer);
+			}
+			default:
+				throw new IllegalArgumentException("Unsupported protocol version " + protocolVersion);
+		}
+	}
+	
+	private static PataCommand decodeJson(ByteBuffer inputBuffer) throws Exception
 	{
 		inputBuffer.position(0);	
 		CharBuffer inputChars = utf8.decode(inputBuffer);
@@ -80,7 +110,7 @@ public class CommandDecoder
 		{
 			case connectStr:
 			{
-				return new Connect();
+				return new Connect(jsonParser);
 			}
 			case disconnectStr:
 			{
@@ -114,6 +144,22 @@ public class CommandDecoder
 			{
 				return new Rollback();
 			}
+			case ping:
+			{
+				return new Ping();
+			}
+			case cancel:
+			{
+				return new Cancel(jsonParser);
+			}
+			case fetch:
+			{
+				return new Fetch(jsonParser);
+			}
+			case closeStatement:
+			{
+				return new CloseStatement(jsonParser);
+			}
 			default:
 				throw new IllegalArgumentException("Unexpected value: " + inputChars.toString());
 		}
@@ -17,14 +17,135 @@
 package duckdb_driver.pata.commands;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class Connect implements PataCommand
 {
 	public static final String op = "Connect";
+	
+	// Scheduler lane of the session, null for the default of the server
+	public final String workloadClass;
+	// Asks for a socket that carries the sessions of many logical connections
+	public final boolean multiplex;
+	// Asks to keep the socket of the Connect as the socket of the session
+	public final boolean upgrade;
+	// Highest protocol version of the client, 0 if it sent none
+	public final int protocolVersion;
+	// Capabilities of the client, see Protocol
+	public final List<String> capabilities;
+	
+	public Connect()
+	{
+		this(null, false);
+	}
+	
+	public Connect(String workloadClass)
+	{
+		this(workloadClass, false);
+	}
+	
+	public Connect(String workloadClass, boolean multiplex)
+	{
+		this(workloadClass, multiplex, false);
+	}
+	
+	public Connect(String workloadClass, boolean multiplex, boolean upgrade)
+	{
+		this(workloadClass, multiplex, upgrade, 0, Collections.<String>emptyList());
+	}
+	
+	public Connect(String workloadClass, boolean multiplex, boolean upgrade, int protocolVersion, List<String> capabilities)
+	{
+		this.workloadClass = workloadClass;
+		this.multiplex = multiplex;
+		this.upgrade = upgrade;
+		this.protocolVersion = protocolVersion;
+		this.capabilities = capabilities;
+	}
+	
+	public Connect(JsonParser jsonParser) throws Exception
+	{
+		String tmpClass = null;
+		boolean tmpMultiplex = false;
+		boolean tmpUpgrade = false;
+		int tmpVersion = 0;
+		List<String> tmpCapabilities = new ArrayList<String>();
+		
+		// Process Command
+		while(!jsonParser.isClosed())
+		{
+		    JsonToken jsonToken = jsonParser.nextToken();
+
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("workloadClass"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpClass = jsonParser.getValueAsString();
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("multiplex"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpMultiplex = jsonParser.getValueAsBoolean();
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("upgrade"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpUpgrade = jsonParser.getValueAsBoolean();
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("protocolVersion"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpVersion = jsonParser.getValueAsInt();
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("capabilities"))
+		    {	
+		    	// Move on to array
+		    	jsonToken = jsonParser.nextToken();
+		    	jsonToken = jsonParser.nextToken();
+		    	while(!JsonToken.END_ARRAY.equals(jsonToken))
+		    	{
+		    		tmpCapabilities.add(jsonParser.getValueAsString());
+		    		jsonToken = jsonParser.nextToken();
+		    	}
+		    }
+		    
+		    if (JsonToken.END_OBJECT.equals(jsonToken))
+		    {
+		    	break;
+		    }
+		}
+		
+		workloadClass = tmpClass;
+		multiplex = tmpMultiplex;
+		upgrade = tmpUpgrade;
+		protocolVersion = tmpVersion;
+		capabilities = tmpCapabilities;
+	}
 
 	@Override
 	public String getOp()
@@ -39,6 +160,30 @@ public class Connect implements PataCommand
 		ObjectNode cmd = mapper.createObjectNode();
 		
 		cmd.put("op", Connect.op);
+		if (workloadClass != null)
+		{
+			cmd.put("workloadClass", workloadClass);
+		}
+		if (multiplex)
+		{
+			cmd.put("multiplex", true);
+		}
+		if (upgrade)
+		{
+			cmd.put("upgrade", true);
+		}
+		if (protocolVersion > 0)
+		{
+			cmd.put("protocolVersion", protocolVersion);
+		}
+		if (!capabilities.isEmpty())
+		{
+			ArrayNode array = cmd.putArray("capabilities");
+			for (String capability : capabilities)
+			{
+				array.add(capability);
+			}
+		}
 		
 		return ByteBuffer.wrap(mapper.writeValueAsBytes(cmd));
 	}
@@ -38,6 +38,18 @@ public class Execute implements PataCommand
 	public final UUID statementID;
 	public final boolean autoCommit;
 	public StatementParameter stmtParameter;
+	// Seconds, 0 means the default of the server
+	public int queryTimeout = 0;
+	// Record batches sent with the Result, the rest is requested with Fetch. 0 sends the whole result.
+	public int fetchBatches = 0;
+	// Codec of the arrow record batch bodies, see Protocol. null sends them uncompressed.
+	public String compression = null;
+	// Buffers that don't compress well are sent uncompressed
+	public boolean adaptiveCompression = false;
+	// String columns may be sent dictionary-encoded, see Protocol.DICTIONARY
+	public boolean dictionaries = false;
+	// Columns may be sent in compact arrow types, see Protocol.COMPACT_TYPES
+	public boolean compactTypes = false;
 	
 	public Execute(JsonParser jsonParser) throws Exception
 	{
@@ -164,6 +176,60 @@ public class Execute implements PataCommand
 		    	tmpAutoCommit = jsonParser.getValueAsBoolean();
 		    }	
 		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("queryTimeout"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	queryTimeout = jsonParser.getValueAsInt();
+		    }	
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("fetchBatches"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	fetchBatches = jsonParser.getValueAsInt();
+		    }	
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("compression"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	compression = jsonParser.getValueAsString();
+		    }	
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("adaptiveCompression"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	adaptiveCompression = jsonParser.getValueAsBoolean();
+		    }	
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("dictionaries"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	dictionaries = jsonParser.getValueAsBoolean();
+		    }	
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("compactTypes"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	compactTypes = jsonParser.getValueAsBoolean();
+		    }	
+		    
 		    if (JsonToken.END_OBJECT.equals(jsonToken))
 		    {
 		    	break;
@@ -225,6 +291,21 @@ public class Execute implements PataCommand
 		
 		cmd.put("op", this.getOp());
 		cmd.put("autoCommit", autoCommit);
+		cmd.put("queryTimeout", queryTimeout);
+		cmd.put("fetchBatches", fetchBatches);
+		if (compression != null)
+		{
+			cmd.put("compression", compression);
+			cmd.put("adaptiveCompression", adaptiveCompression);
+		}
+		if (dictionaries)
+		{
+			cmd.put("dictionaries", true);
+		}
+		if (compactTypes)
+		{
+			cmd.put("compactTypes", true);
+		}
 		
 		// Add parameterTypes as Array
 		for(String str : parameterTypes)
@@ -0,0 +1,119 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.commands;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Requests the next record batches of a result that was executed with
+ * fetchBatches. With close the rest of the result is dropped instead.
+ */
+public class Fetch implements PataCommand
+{
+	public static final String op = "Fetch";
+	
+	public final UUID statementID;
+	public final int batches;
+	public final boolean close;
+	
+	public Fetch(JsonParser jsonParser) throws Exception
+	{
+		UUID tmpStatementId = null;
+		int tmpBatches = 0;
+		boolean tmpClose = false;
+		
+		// Process Command
+		while(!jsonParser.isClosed())
+		{
+		    JsonToken jsonToken = jsonParser.nextToken();
+
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("statementID"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpStatementId = UUID.fromString(jsonParser.getValueAsString());
+		    }
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("batches"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpBatches = jsonParser.getValueAsInt();
+		    }
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("close"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpClose = jsonParser.getValueAsBoolean();
+		    }
+		    
+		    if (JsonToken.END_OBJECT.equals(jsonToken))
+		    {
+		    	break;
+		    }
+		}
+		
+		statementID = tmpStatementId;
+		batches = tmpBatches;
+		close = tmpClose;
+		
+		// We need the statement and something to do
+		if (tmpStatementId == null || (tmpBatches < 1 && !tmpClose))
+		{
+			throw new Exception();
+		}
+	}
+	
+	public Fetch(UUID statementID, int batches, boolean close)
+	{
+		this.statementID = statementID;
+		this.batches = batches;
+		this.close = close;
+	}
+	
+	@Override
+	public String getOp()
+	{
+		return op;
+	}
+
+	@Override
+	public ByteBuffer encodeCommand() throws JacksonException
+	{
+		ObjectMapper mapper = new ObjectMapper();	
+		ObjectNode cmd = mapper.createObjectNode();
+		
+		cmd.put("op", Fetch.op);
+		cmd.put("statementID", statementID.toString());
+		cmd.put("batches", batches);
+		cmd.put("close", close);
+		
+		return ByteBuffer.wrap(mapper.writeValueAsBytes(cmd));
+	}
+}
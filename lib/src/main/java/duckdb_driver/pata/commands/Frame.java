@@ -0,0 +1,153 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.commands;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Every command and every response is sent as a frame: a header of fixed length,
+ * followed by the encoded command or response as payload. The header holds the
+ * length of the payload and a request id. A response has the request id of its
+ * command, so a client can send several commands before reading the responses.
+ * <p>
+ * The session tells the logical connections of a multiplexed socket apart, it
+ * is 0 on the socket of a single connection.
+ */
+public class Frame
+{
+	private static Charset utf8 = Charset.forName("UTF-8");
+	
+	private static JsonFactory jsonFactory = new JsonFactory();
+	
+	// {"session":"0000000000","requestId":"0000000001","length":"0000000123"}
+	public static final int headerLength = 71;
+	
+	// Every header starts with these bytes, unframed JSON of old clients doesn't
+	static final byte[] headerPrefix = "{\"session\":\"".getBytes(utf8);
+	
+	public final int session;
+	public final int requestId;
+	public final int length;
+	
+	public Frame(int requestId, int length)
+	{
+		this(0, requestId, length);
+	}
+	
+	public Frame(int session, int requestId, int length)
+	{
+		this.session = session;
+		this.requestId = requestId;
+		this.length = length;
+	}
+	
+	/**
+	 * Decodes the header at the position of the buffer and moves past it
+	 */
+	public Frame(ByteBuffer inputBuffer) throws Exception
+	{
+		CharBuffer headerChars = utf8.decode(inputBuffer.slice(inputBuffer.position(), headerLength));
+		inputBuffer.position(inputBuffer.position() + headerLength);
+		
+		JsonParser jsonParser = jsonFactory.createParser(headerChars.toString());
+		
+		int tmpSession = -1;
+		int tmpRequestId = -1;
+		int tmpLength = -1;
+		
+		while(!jsonParser.isClosed())
+		{
+		    JsonToken jsonToken = jsonParser.nextToken();
+	
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("session"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	tmpSession = Integer.parseInt(jsonParser.getValueAsString());
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("requestId"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	tmpRequestId = Integer.parseInt(jsonParser.getValueAsString());
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("length"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	tmpLength = Integer.parseInt(jsonParser.getValueAsString());
+		    }
+		    
+		    if (JsonToken.END_OBJECT.equals(jsonToken))
+		    {
+		    	break;
+		    }
+		}
+		
+		if (tmpSession < 0 || tmpRequestId < 0 || tmpLength < 0)
+		{
+			throw new Exception("Invalid frame header: " + headerChars);
+		}
+		session = tmpSession;
+		requestId = tmpRequestId;
+		length = tmpLength;
+	}
+	
+	public ByteBuffer encodeHeader() throws JacksonException
+	{
+		ObjectMapper mapper = new ObjectMapper();	
+		ObjectNode header = mapper.createObjectNode();
+		
+		header.put("session", String.format("%010d", session));
+		header.put("requestId", String.format("%010d", requestId));
+		header.put("length", String.format("%010d", length));
+		
+		return ByteBuffer.wrap(mapper.writeValueAsBytes(header));
+	}
+	
+	/**
+	 * Header and payload in one buffer, ready to be written
+	 */
+	public static ByteBuffer encode(int requestId, ByteBuffer payload) throws JacksonException
+	{
+		return encode(0, requestId, payload);
+	}
+	
+	public static ByteBuffer encode(int session, int requestId, ByteBuffer payload) throws JacksonException
+	{
+		ByteBuffer header = new Frame(session, requestId, payload.remaining()).encodeHeader();
+		
+		ByteBuffer frame = ByteBuffer.allocate(header.remaining() + payload.remaining());
+		frame.put(header).put(payload);
+		
+		return frame.flip();
+	}
+}
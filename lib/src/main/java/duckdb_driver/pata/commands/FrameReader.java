@@ -0,0 +1,190 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.commands;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads frames from a blocking channel. Bytes that arrive beyond the current
+ * frame, like pipelined commands or responses, stay buffered for the next one.
+ */
+public class FrameReader
+{
+	private final ReadableByteChannel channel;
+	// Buffered bytes between position and limit
+	private ByteBuffer buffer;
+	
+	public FrameReader(ReadableByteChannel channel, int bufferSize)
+	{
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferSize).flip();
+	}
+	
+	/**
+	 * Reads the header of the next frame, null if the channel was closed between frames
+	 */
+	public Frame readHeader() throws Exception
+	{
+		if (!fill(Frame.headerLength, true))
+		{
+			return null;
+		}
+		return new Frame(buffer);
+	}
+	
+	/**
+	 * Whether the next bytes start a frame header. Only waits for the first few
+	 * bytes, so an unframed message shorter than a header is told apart as well.
+	 */
+	public boolean isHeaderNext() throws IOException
+	{
+		fill(Frame.headerPrefix.length);
+		return buffer.slice(buffer.position(), Frame.headerPrefix.length).equals(ByteBuffer.wrap(Frame.headerPrefix));
+	}
+	
+	/**
+	 * Reads the next bare JSON object, as drivers from before frames send their
+	 * commands, null if the channel was closed between objects
+	 */
+	public ByteBuffer readJson() throws IOException
+	{
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		int count = 0;
+		
+		while (true)
+		{
+			if (count == buffer.remaining() && !fill(count + 1, count == 0))
+			{
+				return null;
+			}
+			byte b = buffer.get(buffer.position() + count);
+			count++;
+			
+			if (inString)
+			{
+				if (escaped)
+				{
+					escaped = false;
+				}
+				else if (b == '\\')
+				{
+					escaped = true;
+				}
+				else if (b == '"')
+				{
+					inString = false;
+				}
+			}
+			else if (b == '"')
+			{
+				inString = true;
+			}
+			else if (b == '{')
+			{
+				depth++;
+			}
+			else if (b == '}' && --depth <= 0)
+			{
+				return take(count);
+			}
+		}
+	}
+	
+	/**
+	 * Waits until at least count bytes are buffered
+	 */
+	public void fill(int count) throws IOException
+	{
+		fill(count, false);
+	}
+	
+	private boolean fill(int count, boolean endAllowed) throws IOException
+	{
+		if (buffer.remaining() >= count)
+		{
+			return true;
+		}
+		
+		if (buffer.capacity() < count)
+		{
+			buffer = ByteBuffer.allocate(Math.max(count, buffer.capacity() * 2)).put(buffer).flip();
+		}
+		
+		buffer.compact();
+		try
+		{
+			while (buffer.position() < count)
+			{
+				if (channel.read(buffer) == -1)
+				{
+					if (endAllowed && buffer.position() == 0)
+					{
+						return false;
+					}
+					throw new EOFException("Connection closed in the middle of a frame");
+				}
+			}
+		}
+		finally
+		{
+			buffer.flip();
+		}
+		return true;
+	}
+	
+	/**
+	 * Number of bytes that are buffered
+	 */
+	public int available()
+	{
+		return buffer.remaining();
+	}
+	
+	/**
+	 * The buffered bytes, without consuming them
+	 */
+	public ByteBuffer peek()
+	{
+		return buffer.slice();
+	}
+	
+	/**
+	 * Consumes count buffered bytes and returns a copy of them
+	 */
+	public ByteBuffer take(int count)
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(count);
+		bytes.put(buffer.slice(buffer.position(), count));
+		buffer.position(buffer.position() + count);
+		
+		return bytes.flip();
+	}
+	
+	/**
+	 * Reads a whole payload
+	 */
+	public ByteBuffer read(int count) throws IOException
+	{
+		fill(count);
+		return take(count);
+	}
+}
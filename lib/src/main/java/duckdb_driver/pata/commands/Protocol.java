@@ -0,0 +1,94 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Versions and capabilities that client and server agree on with Connect and
+ * Connected. The client sends the highest version it speaks and its
+ * capabilities, the server answers with the lower of both versions and the
+ * capabilities both have. Encodings that old clients can't read are only used
+ * on connections that negotiated them.
+ * <p>
+ * A framed Connect without a version speaks version 1. Drivers from before
+ * frames and versions send bare JSON, the server serves them as version 0:
+ * bare JSON both ways, results as a single record batch, no capabilities.
+ * The commands of the control port, Connect itself included, are always
+ * encoded with version 1, framed or not.
+ */
+public final class Protocol
+{
+	// Unframed commands and responses of the drivers from before frames
+	public static final int VERSION_0 = 0;
+	// Commands and responses as JSON in frames, results as Arrow IPC streams
+	public static final int VERSION_1 = 1;
+	
+	// Highest version of this driver and server
+	public static final int CURRENT_VERSION = VERSION_1;
+	
+	// The socket of the Connect can become the socket of the session
+	public static final String UPGRADE = "upgrade";
+	// Sessions of many connections can share a socket
+	public static final String MULTIPLEX = "multiplex";
+	// Codecs for the bodies of arrow record batches, as in the Arrow IPC format
+	public static final String LZ4_FRAME = "lz4_frame";
+	public static final String ZSTD = "zstd";
+	
+	public static final List<String> COMPRESSION_CODECS = List.of(LZ4_FRAME, ZSTD);
+	// ENUM and low-cardinality VARCHAR columns as dictionary-encoded arrow vectors
+	public static final String DICTIONARY = "dictionary";
+	// DECIMAL, DATE and TIME columns in the smallest arrow vectors that hold them
+	public static final String COMPACT_TYPES = "compact_types";
+	
+	// Everything this driver and server support
+	public static final List<String> CAPABILITIES = List.of(UPGRADE, MULTIPLEX, LZ4_FRAME, ZSTD, DICTIONARY, COMPACT_TYPES);
+	
+	private Protocol()
+	{
+	}
+	
+	/**
+	 * The version both sides speak, 0 stands for a client that sent none
+	 */
+	public static int negotiate(int clientVersion, int serverVersion)
+	{
+		if (clientVersion <= 0)
+		{
+			return VERSION_1;
+		}
+		return Math.min(clientVersion, serverVersion);
+	}
+	
+	/**
+	 * The capabilities of the client the server has as well, in the order of the server
+	 */
+	public static List<String> negotiate(List<String> client, List<String> server)
+	{
+		List<String> both = new ArrayList<String>();
+		for (String capability : server)
+		{
+			if (client.contains(capability))
+			{
+				both.add(capability);
+			}
+		}
+		return both;
+	}
+}
@@ -0,0 +1,390 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.duckdb.StatementReturnType;
+
+import duckdb_driver.pata.commands.CloseStatement;
+import duckdb_driver.pata.commands.Commit;
+import duckdb_driver.pata.commands.Execute;
+import duckdb_driver.pata.commands.ExecuteUpdate;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.PataCommand;
+import duckdb_driver.pata.commands.PrepareSql;
+import duckdb_driver.pata.commands.Rollback;
+import duckdb_driver.pata.responses.Aborted;
+import duckdb_driver.pata.responses.Cancelled;
+import duckdb_driver.pata.responses.Committed;
+import duckdb_driver.pata.responses.ExceptionRaised;
+import duckdb_driver.pata.responses.PataResponse;
+import duckdb_driver.pata.responses.Result;
+
+/**
+ * Asynchronous view of a PataConnection, from connection.unwrap(PataAsyncConnection.class).
+ * Statements are sent right away and their futures complete when the responses
+ * arrive, so one thread can keep many statements in flight on many connections.
+ * The server executes the statements of a connection one after the other.
+ * <p>
+ * Once unwrapped, the socket is non-blocking and the synchronous statement API
+ * of the connection can't be used anymore. The result of a query is read
+ * completely before its future completes. Dependent stages without Async suffix
+ * run on the thread that reads the responses of all connections, they shouldn't
+ * block.
+ */
+public class PataAsyncConnection
+{
+	private static class PendingRequest
+	{
+		final int requestId;
+		final CompletableFuture<ByteBuffer> response = new CompletableFuture<ByteBuffer>();
+		
+		PendingRequest(int requestId)
+		{
+			this.requestId = requestId;
+		}
+	}
+	
+	private final PataConnection conn;
+	private final SocketChannel channel;
+	private final PataAsyncDispatcher dispatcher;
+	private final SelectionKey key;
+	
+	// Requests in the order they were sent, the server responds in the same order
+	private final ArrayDeque<PendingRequest> pending = new ArrayDeque<PendingRequest>();
+	// Frames that did not fit into the socket yet
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+	// Received bytes of incomplete frames, in write mode
+	private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+	private Exception failure;
+	
+	PataAsyncConnection(PataConnection conn) throws IOException
+	{
+		this.conn = conn;
+		this.channel = conn.connectionSocketChannel;
+		
+		channel.configureBlocking(false);
+		dispatcher = PataAsyncDispatcher.getInstance();
+		key = dispatcher.register(channel, this);
+	}
+	
+	public PataConnection getConnection()
+	{
+		return conn;
+	}
+	
+	/**
+	 * Number of statements sent whose responses did not arrive yet
+	 */
+	public synchronized int getPendingRequests()
+	{
+		return pending.size();
+	}
+	
+	/**
+	 * Prepares and executes a query. The future completes with the whole result.
+	 */
+	public CompletableFuture<ResultSet> executeQueryAsync(String sql, Object... parameters)
+	{
+		try
+		{
+			PataPreparedStatement stmt = createStatement(sql, parameters);
+			Execute execute = stmt.createExecute();
+			
+			CompletableFuture<ByteBuffer>[] responses = send(new PrepareSql(sql, stmt.statementId), execute, 
+					new CloseStatement(stmt.statementId));
+			return responses[0].thenCombine(responses[1], (prepared, result) -> {
+				try
+				{
+					checkPrepared(prepared);
+					return createResultSet(stmt, result);
+				}
+				catch (Exception e)
+				{
+					throw new CompletionException(e);
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Prepares and executes an update. The future completes with the update count.
+	 */
+	public CompletableFuture<Integer> executeUpdateAsync(String sql, Object... parameters)
+	{
+		try
+		{
+			PataPreparedStatement stmt = createStatement(sql, parameters);
+			ExecuteUpdate execute = new ExecuteUpdate(stmt.statementId, stmt.getParameterTypes(), stmt.getParameters(), conn.autoCommit);
+			
+			CompletableFuture<ByteBuffer>[] responses = send(new PrepareSql(sql, stmt.statementId), execute, 
+					new CloseStatement(stmt.statementId));
+			return responses[0].thenCombine(responses[1], (prepared, result) -> {
+				try
+				{
+					checkPrepared(prepared);
+					return ((Result) decode(result)).updateCount;
+				}
+				catch (Exception e)
+				{
+					throw new CompletionException(e);
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Commits the statements sent before, outside of auto-commit
+	 */
+	public CompletableFuture<Void> commitAsync()
+	{
+		return sendTransactionEnd(new Commit(), Committed.class);
+	}
+	
+	public CompletableFuture<Void> rollbackAsync()
+	{
+		return sendTransactionEnd(new Rollback(), Aborted.class);
+	}
+	
+	private CompletableFuture<Void> sendTransactionEnd(PataCommand cmd, Class<? extends PataResponse> expected)
+	{
+		try
+		{
+			return send(cmd)[0].thenApply(response -> {
+				try
+				{
+					PataResponse resp = decode(response);
+					if (!expected.isInstance(resp))
+					{
+						throw new SQLException("Unexpected response " + resp.getOp());
+					}
+					return null;
+				}
+				catch (Exception e)
+				{
+					throw new CompletionException(e);
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Statement that holds the parameters and later the result set
+	 */
+	private PataPreparedStatement createStatement(String sql, Object[] parameters) throws SQLException
+	{
+		PataPreparedStatement stmt = new PataPreparedStatement(conn);
+		stmt.preparedSql = sql;
+		
+		for (int i = 0; i < parameters.length; i++)
+		{
+			if (parameters[i] == null)
+			{
+				stmt.setNull(i + 1, 0);
+			}
+			else
+			{
+				stmt.setObject(i + 1, parameters[i]);
+			}
+		}
+		return stmt;
+	}
+	
+	private void checkPrepared(ByteBuffer response) throws Exception
+	{
+		decode(response);
+	}
+	
+	private PataResponse decode(ByteBuffer response) throws Exception
+	{
+		PataResponse resp = conn.decode(response);
+		
+		if (resp instanceof ExceptionRaised)
+		{
+			throw new SQLException(((ExceptionRaised)resp).exceptionMsg);
+		}
+		if (resp instanceof Cancelled)
+		{
+			throw ((Cancelled)resp).toSQLException();
+		}
+		return resp;
+	}
+	
+	private ResultSet createResultSet(PataPreparedStatement stmt, ByteBuffer response) throws Exception
+	{
+		Result resp = (Result) decode(response);
+		if (resp.queryType != StatementReturnType.QUERY_RESULT)
+		{
+			throw new SQLException("executeQueryAsync() can only be used with queries");
+		}
+		
+		ByteBuffer arrow = response.slice(Result.sizeMsgLength + resp.jsonSize, resp.arrowSize);
+		ArrowStreamReader ar = new ArrowStreamReader(new PataResultStream(null, arrow, 0), conn.allocator, CommonsCompressionFactory.INSTANCE);
+		
+		return new PataResultSet(stmt, conn.createBatchReader(ar), false);
+	}
+	
+	/**
+	 * Queues the commands as adjacent frames, so no other statement gets between
+	 * a prepare and its execution. A CloseStatement has no response, its future
+	 * is null.
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized CompletableFuture<ByteBuffer>[] send(PataCommand... cmds) throws Exception
+	{
+		if (failure != null)
+		{
+			throw new SQLException("Connection failed: " + failure.getMessage(), failure);
+		}
+		
+		CompletableFuture<ByteBuffer>[] responses = (CompletableFuture<ByteBuffer>[]) new CompletableFuture<?>[cmds.length];
+		for (int i = 0; i < cmds.length; i++)
+		{
+			PendingRequest request = new PendingRequest(conn.nextRequestId());
+			writeQueue.add(Frame.encode(request.requestId, cmds[i].encodeCommand()));
+			if (cmds[i] instanceof CloseStatement)
+			{
+				continue;
+			}
+			pending.add(request);
+			responses[i] = request.response;
+		}
+		flush();
+		
+		return responses;
+	}
+	
+	/**
+	 * Writes queued frames until the socket is full, the dispatcher continues
+	 * when there is room again
+	 */
+	synchronized void flush() throws IOException
+	{
+		while (!writeQueue.isEmpty())
+		{
+			ByteBuffer frame = writeQueue.peek();
+			channel.write(frame);
+			if (frame.hasRemaining())
+			{
+				break;
+			}
+			writeQueue.remove();
+		}
+		dispatcher.setWriteInterest(key, !writeQueue.isEmpty());
+	}
+	
+	/**
+	 * Reads what arrived and completes the requests whose responses are complete.
+	 * Only called by the dispatcher.
+	 */
+	void read() throws Exception
+	{
+		if (channel.read(readBuffer) == -1)
+		{
+			throw new EOFException("Connection closed by the server");
+		}
+		readBuffer.flip();
+		
+		while (readBuffer.remaining() >= Frame.headerLength)
+		{
+			Frame frame = new Frame(readBuffer.duplicate());
+			
+			int frameSize = Frame.headerLength + frame.length;
+			if (readBuffer.remaining() < frameSize)
+			{
+				if (readBuffer.capacity() < frameSize)
+				{
+					readBuffer = ByteBuffer.allocate(frameSize).put(readBuffer).flip();
+				}
+				break;
+			}
+			
+			ByteBuffer payload = ByteBuffer.allocate(frame.length);
+			payload.put(readBuffer.slice(readBuffer.position() + Frame.headerLength, frame.length)).flip();
+			readBuffer.position(readBuffer.position() + frameSize);
+			
+			complete(frame.requestId, payload);
+		}
+		readBuffer.compact();
+	}
+	
+	private void complete(int requestId, ByteBuffer payload) throws Exception
+	{
+		PendingRequest request;
+		synchronized (this)
+		{
+			request = pending.poll();
+		}
+		
+		if (request == null || request.requestId != requestId)
+		{
+			throw new SQLException("Received response to request " + requestId + " that was not expected");
+		}
+		request.response.complete(payload);
+	}
+	
+	/**
+	 * Fails all outstanding and later requests
+	 */
+	void fail(Exception e)
+	{
+		ArrayDeque<PendingRequest> failed;
+		synchronized (this)
+		{
+			if (failure == null)
+			{
+				failure = e;
+			}
+			failed = new ArrayDeque<PendingRequest>(pending);
+			pending.clear();
+			writeQueue.clear();
+		}
+		
+		for (PendingRequest request : failed)
+		{
+			request.response.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One thread that reads the responses of all asynchronous connections of the
+ * JVM. A selector tells which sockets have data, the connection then completes
+ * the futures of the responses that arrived.
+ */
+class PataAsyncDispatcher implements Runnable
+{
+	private static PataAsyncDispatcher instance;
+	
+	private final Selector selector;
+	
+	private PataAsyncDispatcher() throws IOException
+	{
+		selector = Selector.open();
+	}
+	
+	static synchronized PataAsyncDispatcher getInstance() throws IOException
+	{
+		if (instance == null)
+		{
+			instance = new PataAsyncDispatcher();
+			
+			Thread t = new Thread(instance, "pata-async");
+			t.setDaemon(true);
+			t.start();
+		}
+		return instance;
+	}
+	
+	SelectionKey register(SocketChannel channel, PataAsyncConnection connection) throws ClosedChannelException
+	{
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+		selector.wakeup();
+		return key;
+	}
+	
+	/**
+	 * The dispatcher writes the rest of the queued frames once the socket has room again
+	 */
+	void setWriteInterest(SelectionKey key, boolean write)
+	{
+		int ops = write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+		if (key.isValid() && key.interestOps() != ops)
+		{
+			key.interestOps(ops);
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				selector.select();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return;
+			}
+			
+			for (SelectionKey key : selector.selectedKeys())
+			{
+				PataAsyncConnection connection = (PataAsyncConnection) key.attachment();
+				try
+				{
+					if (key.isValid() && key.isWritable())
+					{
+						connection.flush();
+					}
+					if (key.isValid() && key.isReadable())
+					{
+						connection.read();
+					}
+				}
+				catch (CancelledKeyException e)
+				{
+					// Connection was closed meanwhile
+				}
+				catch (Exception e)
+				{
+					key.cancel();
+					connection.fail(e);
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+	}
+}
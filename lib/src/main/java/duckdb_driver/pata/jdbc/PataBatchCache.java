@@ -0,0 +1,315 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorLoader;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.ipc.ReadChannel;
+import org.apache.arrow.vector.ipc.WriteChannel;
+import org.apache.arrow.vector.ipc.message.ArrowBlock;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.ipc.message.MessageSerializer;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+/**
+ * Keeps the fetched batches of a scrollable result set.
+ * <p>
+ * Once the batches in memory exceed memoryLimit bytes, the oldest ones are
+ * written as Arrow IPC record batches to a temporary file. A spilled batch is
+ * read back through a memory-mapped view of its region when it is needed
+ * again; only one spilled batch is kept loaded at a time.
+ */
+class PataBatchCache
+{
+	private static class CachedBatch
+	{
+		final int startRow;
+		final int rowCount;
+		VectorSchemaRoot root; // null while spilled
+		ArrowBlock block; // Position in the spill file, null if never spilled
+		
+		CachedBatch(int startRow, VectorSchemaRoot root)
+		{
+			this.startRow = startRow;
+			this.rowCount = root.getRowCount();
+			this.root = root;
+		}
+	}
+	
+	private final BufferAllocator allocator;
+	private final Schema schema;
+	private final long memoryLimit;
+	
+	private final List<CachedBatch> batches = new ArrayList<CachedBatch>();
+	private int rowCount = 0;
+	private long memorySize = 0;
+	
+	private CachedBatch current;
+	private CachedBatch reloaded; // Spilled batch that was read back
+	
+	private Path spillPath;
+	private FileChannel spillChannel;
+	private WriteChannel spillWriter;
+	
+	PataBatchCache(BufferAllocator allocator, Schema schema, long memoryLimit)
+	{
+		this.allocator = allocator;
+		this.schema = schema;
+		this.memoryLimit = memoryLimit;
+	}
+	
+	/**
+	 * Number of rows in all cached batches
+	 */
+	int getRowCount()
+	{
+		return rowCount;
+	}
+	
+	/**
+	 * Appends a batch, the cache takes ownership of it
+	 */
+	void add(VectorSchemaRoot root) throws SQLException
+	{
+		CachedBatch batch = new CachedBatch(rowCount, root);
+		batches.add(batch);
+		rowCount += batch.rowCount;
+		memorySize += sizeOf(root);
+		
+		spillIfNeeded();
+	}
+	
+	/**
+	 * Index of the batch holding the row (0-based), -1 if the row is not cached
+	 */
+	int findBatch(int row)
+	{
+		int low = 0;
+		int high = batches.size() - 1;
+		
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			CachedBatch batch = batches.get(mid);
+			
+			if (row < batch.startRow)
+			{
+				high = mid - 1;
+			}
+			else if (row >= batch.startRow + batch.rowCount)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	int getStartRow(int index)
+	{
+		return batches.get(index).startRow;
+	}
+	
+	/**
+	 * Returns the batch and makes it the current one, which is never spilled.
+	 * The root stays valid until another batch is requested.
+	 */
+	VectorSchemaRoot getBatch(int index) throws SQLException
+	{
+		CachedBatch batch = batches.get(index);
+		current = batch;
+		
+		if (batch.root == null)
+		{
+			if (reloaded != null)
+			{
+				memorySize -= sizeOf(reloaded.root);
+				reloaded.root.close();
+				reloaded.root = null;
+			}
+			batch.root = reload(batch.block);
+			reloaded = batch;
+			// Counts like an added batch, others are spilled to make room for it
+			memorySize += sizeOf(batch.root);
+			spillIfNeeded();
+		}
+		return batch.root;
+	}
+	
+	void close()
+	{
+		for (CachedBatch batch : batches)
+		{
+			if (batch.root != null)
+			{
+				batch.root.close();
+				batch.root = null;
+			}
+		}
+		batches.clear();
+		memorySize = 0;
+		current = null;
+		reloaded = null;
+		
+		if (spillChannel != null)
+		{
+			try
+			{
+				spillChannel.close();
+				Files.deleteIfExists(spillPath);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			spillChannel = null;
+		}
+	}
+	
+	private void spillIfNeeded() throws SQLException
+	{
+		for (int i = 0; i < batches.size() && memorySize > memoryLimit; i++)
+		{
+			CachedBatch batch = batches.get(i);
+			
+			if (batch == current || batch == reloaded || batch.root == null || batch.rowCount == 0)
+			{
+				continue;
+			}
+			
+			long size = sizeOf(batch.root);
+			if (batch.block == null)
+			{
+				batch.block = spill(batch.root);
+			}
+			batch.root.close();
+			batch.root = null;
+			memorySize -= size;
+		}
+	}
+	
+	private ArrowBlock spill(VectorSchemaRoot root) throws SQLException
+	{
+		try
+		{
+			if (spillChannel == null)
+			{
+				spillPath = Files.createTempFile("pata-scroll", ".arrow");
+				spillPath.toFile().deleteOnExit();
+				spillChannel = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				spillWriter = new WriteChannel(spillChannel);
+			}
+			
+			try (ArrowRecordBatch recordBatch = new VectorUnloader(root).getRecordBatch())
+			{
+				return MessageSerializer.serialize(spillWriter, recordBatch);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new SQLException("Spilling batch to disk failed", e);
+		}
+	}
+	
+	private VectorSchemaRoot reload(ArrowBlock block) throws SQLException
+	{
+		try
+		{
+			ByteBuffer mapped = spillChannel.map(FileChannel.MapMode.READ_ONLY, block.getOffset(),
+					block.getMetadataLength() + block.getBodyLength());
+			
+			VectorSchemaRoot root = VectorSchemaRoot.create(schema, allocator);
+			try (ArrowRecordBatch recordBatch = MessageSerializer.deserializeRecordBatch(
+					new ReadChannel(new MappedChannel(mapped)), block, allocator))
+			{
+				new VectorLoader(root).load(recordBatch);
+			}
+			return root;
+		}
+		catch (IOException e)
+		{
+			throw new SQLException("Reading spilled batch failed", e);
+		}
+	}
+	
+	private static long sizeOf(VectorSchemaRoot root)
+	{
+		long size = 0;
+		for (FieldVector vec : root.getFieldVectors())
+		{
+			size += vec.getBufferSize();
+		}
+		return size;
+	}
+	
+	// Reads a mapped region of the spill file
+	private static class MappedChannel implements ReadableByteChannel
+	{
+		private final ByteBuffer buffer;
+		
+		MappedChannel(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read(ByteBuffer dst)
+		{
+			if (!buffer.hasRemaining())
+			{
+				return -1;
+			}
+			
+			int cnt = Math.min(dst.remaining(), buffer.remaining());
+			dst.put(buffer.slice(buffer.position(), cnt));
+			buffer.position(buffer.position() + cnt);
+			return cnt;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
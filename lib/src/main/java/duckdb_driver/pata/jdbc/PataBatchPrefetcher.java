@@ -0,0 +1,159 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+
+/**
+ * Batch reader that reads ahead: a task on the connection's prefetch executor
+ * receives and decodes up to depth batches into a bounded queue while the
+ * application is still processing the current one.
+ */
+class PataBatchPrefetcher extends PataBatchReader
+{
+	private static final Object END = new Object();
+	
+	// Batches, END after the last one, or the Throwable that stopped reading
+	private final BlockingQueue<Object> queue;
+	private final Future<?> task;
+	private volatile boolean closed = false;
+	private boolean done = false;
+	
+	PataBatchPrefetcher(ArrowStreamReader reader, BufferAllocator allocator, int depth, ExecutorService executor) throws SQLException
+	{
+		super(reader, allocator);
+		
+		// The schema is read here, so a broken stream fails the query itself
+		getSchema();
+		
+		queue = new ArrayBlockingQueue<Object>(depth);
+		task = executor.submit(this::prefetch);
+	}
+	
+	private void prefetch()
+	{
+		try
+		{
+			VectorSchemaRoot batch;
+			while (!closed && (batch = readBatch()) != null)
+			{
+				if (!offer(batch))
+				{
+					batch.close();
+					return;
+				}
+			}
+			offer(END);
+		}
+		catch (Throwable e)
+		{
+			try
+			{
+				offer(e);
+			}
+			catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	// Waits for space in the queue, gives up when the result set gets closed
+	private boolean offer(Object element) throws InterruptedException
+	{
+		while (!closed)
+		{
+			if (queue.offer(element, 100, TimeUnit.MILLISECONDS))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	VectorSchemaRoot nextBatch() throws SQLException
+	{
+		if (done)
+		{
+			return null;
+		}
+		
+		Object element;
+		try
+		{
+			element = queue.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the next batch", e);
+		}
+		
+		if (element == END)
+		{
+			done = true;
+			return null;
+		}
+		if (element instanceof Throwable)
+		{
+			done = true;
+			throw new SQLException("Loading next batch failed", (Throwable) element);
+		}
+		return (VectorSchemaRoot) element;
+	}
+	
+	@Override
+	void close()
+	{
+		closed = true;
+		
+		// The reader must not be closed while the task is still reading from it
+		try
+		{
+			task.get();
+		}
+		catch (Exception e)
+		{
+			// Failures were already handed over through the queue
+		}
+		
+		Object element;
+		while ((element = queue.poll()) != null)
+		{
+			if (element instanceof VectorSchemaRoot)
+			{
+				((VectorSchemaRoot) element).close();
+			}
+		}
+		
+		super.close();
+	}
+}
@@ -0,0 +1,377 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+package duckdb_driver.pata.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Flow;
+
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.duckdb.StatementReturnType;
+
+import duckdb_driver.pata.commands.Execute;
+import duckdb_driver.pata.commands.Fetch;
+import duckdb_driver.pata.commands.PataCommand;
+import duckdb_driver.pata.responses.Cancelled;
+import duckdb_driver.pata.responses.ExceptionRaised;
+import duckdb_driver.pata.responses.PataResponse;
+import duckdb_driver.pata.responses.Result;
+
+/**
+ * Publishes the record batches of a query to a single subscriber, as handed
+ * out by {@link PataPreparedStatement#publish()}.
+ * <p>
+ * The server sends the result in parts: the demand of the subscriber decides
+ * how many batches the next part holds, at most maxFetchBatches. Nothing is
+ * fetched while there is no demand, so a slow subscriber also holds back the
+ * conversion and the transfer of the result on the server.
+ * <p>
+ * Batches are delivered on the thread that calls request(), each as its own
+ * VectorSchemaRoot which the subscriber has to close. Until the publisher
+ * completed or the subscription was cancelled, the connection must not be
+ * used for other statements: any other command ends the result on the server.
+ */
+class PataBatchPublisher implements Flow.Publisher<VectorSchemaRoot>
+{
+	private final PataPreparedStatement stmt;
+	private final int maxFetchBatches;
+	private boolean subscribed = false;
+	
+	PataBatchPublisher(PataPreparedStatement stmt, int maxFetchBatches)
+	{
+		this.stmt = stmt;
+		this.maxFetchBatches = maxFetchBatches;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super VectorSchemaRoot> subscriber)
+	{
+		Objects.requireNonNull(subscriber);
+		
+		synchronized (this)
+		{
+			if (subscribed)
+			{
+				subscriber.onSubscribe(new Flow.Subscription()
+				{
+					public void request(long n) {}
+					public void cancel() {}
+				});
+				subscriber.onError(new IllegalStateException("The result can only be published to one subscriber"));
+				return;
+			}
+			subscribed = true;
+		}
+		subscriber.onSubscribe(new BatchSubscription(subscriber));
+	}
+	
+	private class BatchSubscription implements Flow.Subscription
+	{
+		private final Flow.Subscriber<? super VectorSchemaRoot> subscriber;
+		private long demand = 0;
+		// A thread is delivering batches, request() from onNext only adds demand then
+		private boolean draining = false;
+		private boolean cancelled = false;
+		private boolean finished = false;
+		// Error of an invalid request() while a thread was delivering, that thread signals it
+		private Throwable pendingError;
+		
+		private PartStream parts;
+		private PataBatchReader batchReader;
+		
+		BatchSubscription(Flow.Subscriber<? super VectorSchemaRoot> subscriber)
+		{
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if (n <= 0)
+			{
+				invalidRequest(new IllegalArgumentException("Requested " + n + " batches, must be > 0"));
+				return;
+			}
+			
+			synchronized (this)
+			{
+				if (finished)
+				{
+					return;
+				}
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				if (draining)
+				{
+					return;
+				}
+				draining = true;
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel()
+		{
+			synchronized (this)
+			{
+				if (finished)
+				{
+					return;
+				}
+				cancelled = true;
+				finished = true;
+				if (draining)
+				{
+					// The draining thread releases the result
+					return;
+				}
+			}
+			release();
+		}
+		
+		/**
+		 * Ends the subscription with the error. Nothing is signalled after it was
+		 * cancelled or completed, and a running onNext is never overlapped: the
+		 * draining thread signals the error after it.
+		 */
+		private void invalidRequest(Throwable error)
+		{
+			synchronized (this)
+			{
+				if (finished)
+				{
+					return;
+				}
+				finished = true;
+				if (draining)
+				{
+					pendingError = error;
+					return;
+				}
+			}
+			release();
+			subscriber.onError(error);
+		}
+		
+		private void drain()
+		{
+			while (true)
+			{
+				Throwable error;
+				synchronized (this)
+				{
+					if (cancelled || (demand == 0 && pendingError == null))
+					{
+						draining = false;
+						if (!cancelled)
+						{
+							return;
+						}
+						break;
+					}
+					error = pendingError;
+				}
+				
+				if (error != null)
+				{
+					finish();
+					subscriber.onError(error);
+					return;
+				}
+				
+				VectorSchemaRoot batch;
+				try
+				{
+					if (batchReader == null)
+					{
+						parts = new PartStream();
+						batchReader = new PataBatchReader(new ArrowStreamReader(parts, stmt.conn.allocator, CommonsCompressionFactory.INSTANCE), stmt.conn.allocator);
+					}
+					batch = batchReader.nextBatch();
+				}
+				catch (Exception e)
+				{
+					finish();
+					subscriber.onError(e);
+					return;
+				}
+				
+				if (batch == null)
+				{
+					finish();
+					subscriber.onComplete();
+					return;
+				}
+				
+				synchronized (this)
+				{
+					if (demand != Long.MAX_VALUE)
+					{
+						demand--;
+					}
+				}
+				subscriber.onNext(batch);
+			}
+			
+			// Cancelled while this thread was delivering
+			release();
+		}
+		
+		private void finish()
+		{
+			synchronized (this)
+			{
+				finished = true;
+				draining = false;
+			}
+			release();
+		}
+		
+		/**
+		 * Closes the reader and drops the rest of the result on the server
+		 */
+		private void release()
+		{
+			if (batchReader != null)
+			{
+				batchReader.close();
+			}
+			if (parts != null && parts.hasMore)
+			{
+				try
+				{
+					parts.request(new Fetch(parts.statementId, 0, true));
+					parts.hasMore = false;
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		// Batches the next part should hold
+		private synchronized int wantedBatches()
+		{
+			return (int) Math.max(1, Math.min(demand, maxFetchBatches));
+		}
+		
+		/**
+		 * The parts of the result as one arrow stream. The next part is only
+		 * requested once the reader needs its bytes.
+		 */
+		private class PartStream extends InputStream
+		{
+			private final UUID statementId;
+			private PataResultStream part;
+			private boolean hasMore;
+			
+			PartStream() throws Exception
+			{
+				Execute cmd = stmt.createExecute();
+				cmd.fetchBatches = wantedBatches();
+				// Subscribers get the batches as they are, with the strings in the column vectors
+				// and the vector types they always had
+				cmd.dictionaries = false;
+				cmd.compactTypes = false;
+				statementId = cmd.statementID;
+				request(cmd);
+			}
+
+			@Override
+			public int read() throws IOException
+			{
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				int cnt = part.read(b, off, len);
+				
+				while (cnt == -1 && hasMore)
+				{
+					try
+					{
+						request(new Fetch(statementId, wantedBatches(), false));
+					}
+					catch (IOException e)
+					{
+						throw e;
+					}
+					catch (Exception e)
+					{
+						throw new IOException(e.getMessage(), e);
+					}
+					cnt = part.read(b, off, len);
+				}
+				return cnt;
+			}
+			
+			private void request(PataCommand cmd) throws Exception
+			{
+				PataConnection conn = stmt.conn;
+				
+				conn.releaseOpenResult();
+				conn.runningStatementIds.add(statementId);
+				int requestId;
+				ByteBuffer response;
+				try
+				{
+					requestId = conn.send(cmd);
+					response = conn.receive(requestId);
+				}
+				finally
+				{
+					conn.runningStatementIds.remove(statementId);
+				}
+				
+				PataResponse pataResponse = conn.decode(response);
+				
+				if (pataResponse instanceof ExceptionRaised)
+				{
+					hasMore = false;
+					throw new SQLException(((ExceptionRaised)pataResponse).exceptionMsg);
+				}
+				if (pataResponse instanceof Cancelled)
+				{
+					hasMore = false;
+					throw ((Cancelled)pataResponse).toSQLException();
+				}
+				
+				Result res = (Result)pataResponse;
+				if (res.queryType != StatementReturnType.QUERY_RESULT)
+				{
+					hasMore = false;
+					throw new SQLException("Statement did not return a result set");
+				}
+				
+				part = conn.resultStream(requestId, response, res);
+				hasMore = res.hasMore;
+			}
+		}
+	}
+}
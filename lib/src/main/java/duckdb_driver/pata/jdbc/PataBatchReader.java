@@ -0,0 +1,122 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.apache.arrow.vector.util.TransferPair;
+
+/**
+ * Reads the record batches of a result. Every batch is handed out as its own
+ * VectorSchemaRoot which the caller has to close. The values of dictionary
+ * encoded columns are in the dictionaries, they stay with the reader.
+ */
+class PataBatchReader
+{
+	protected final ArrowStreamReader reader;
+	protected final BufferAllocator allocator;
+	final PataDictionaries dictionaries = new PataDictionaries();
+	
+	PataBatchReader(ArrowStreamReader reader, BufferAllocator allocator)
+	{
+		this.reader = reader;
+		this.allocator = allocator;
+	}
+	
+	Schema getSchema() throws SQLException
+	{
+		try
+		{
+			return reader.getVectorSchemaRoot().getSchema();
+		}
+		catch (IOException e)
+		{
+			throw new SQLException("Reading result schema failed", e);
+		}
+	}
+	
+	/**
+	 * Returns the next non-empty batch, or null after the last one
+	 */
+	VectorSchemaRoot nextBatch() throws SQLException
+	{
+		try
+		{
+			return readBatch();
+		}
+		catch (IOException e)
+		{
+			throw new SQLException("Loading next batch failed", e);
+		}
+	}
+	
+	protected VectorSchemaRoot readBatch() throws IOException
+	{
+		while (reader.loadNextBatch())
+		{
+			dictionaries.update(reader);
+			VectorSchemaRoot root = reader.getVectorSchemaRoot();
+			if (root.getRowCount() > 0)
+			{
+				return transfer(root, allocator);
+			}
+		}
+		return null;
+	}
+	
+	void close()
+	{
+		try
+		{
+			reader.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Moves the buffers of root into a new root, so the reader can load the
+	 * next batch without touching this one.
+	 */
+	static VectorSchemaRoot transfer(VectorSchemaRoot root, BufferAllocator allocator)
+	{
+		List<FieldVector> vectors = new ArrayList<FieldVector>();
+		
+		for (FieldVector vec : root.getFieldVectors())
+		{
+			TransferPair pair = vec.getTransferPair(allocator);
+			pair.transfer();
+			vectors.add((FieldVector) pair.getTo());
+		}
+		
+		return new VectorSchemaRoot(root.getSchema().getFields(), vectors, root.getRowCount());
+	}
+}
@@ -21,20 +21,51 @@ package duckdb_driver.pata.jdbc;
 
 import com.fasterxml.jackson.core.JacksonException;
 import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import duckdb_driver.pata.commands.Cancel;
+import duckdb_driver.pata.commands.CloseStatement;
 import duckdb_driver.pata.commands.Commit;
+import duckdb_driver.pata.commands.Connect;
+import duckdb_driver.pata.commands.Disconnect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
+import duckdb_driver.pata.commands.PataCommand;
+import duckdb_driver.pata.commands.Ping;
+import duckdb_driver.pata.commands.Protocol;
 import duckdb_driver.pata.commands.Rollback;
 import duckdb_driver.pata.responses.Aborted;
+import duckdb_driver.pata.responses.Cancelled;
 import duckdb_driver.pata.responses.Committed;
+import duckdb_driver.pata.responses.Connected;
+import duckdb_driver.pata.responses.ExceptionRaised;
+import duckdb_driver.pata.responses.PataResponse;
+import duckdb_driver.pata.responses.Pong;
 import duckdb_driver.pata.responses.ResponseDecoder;
+import duckdb_driver.pata.responses.Result;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PataConnection implements Connection
 {
@@ -44,21 +75,802 @@ public class PataConnection implements Connection
 	protected boolean transactionRunning = false;
 	boolean read_only = false;
 	
+	// Number of record batches read ahead in the background, 0 turns prefetching off
+	int prefetchBatches = 0;
+	private ExecutorService prefetchExecutor;
+	
+	// Bytes of batches a scrollable result set, or of a detached result, keeps in memory before spilling to disk
+	long scrollMemoryLimit = 64 * 1024 * 1024;
+	
+	// Result whose arrow part is still being read from the socket
+	private PataResultStream openResult;
+	
+	// Cancel commands go to the control port, this connection is blocked while a statement runs
+	private int controlPort;
+	private UUID connectionId;
+	// Negotiated with the Connect, responses are decoded with the codec of the version
+	private int protocolVersion = Protocol.VERSION_1;
+	private List<String> capabilities = Collections.emptyList();
+	
+	// Codec of the results of statements that don't set their own, null for none
+	String compression = null;
+	boolean adaptiveCompression = true;
+	// String columns may be sent dictionary-encoded if the server supports it
+	boolean dictionaries = true;
+	// Statements of all threads that wait for their response
+	final Set<UUID> runningStatementIds = ConcurrentHashMap.newKeySet();
+	
+	// Responses are read through it, so pipelined ones are not lost
+	private FrameReader frameReader;
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	
+	// Threads share the connection: frames are written whole under writeLock, and the
+	// thread waiting for a response reads frames until its own arrives. Responses of
+	// other threads are buffered for them in responses.
+	private final Object writeLock = new Object();
+	private final List<CloseStatement> deferredCloses = new ArrayList<CloseStatement>();
+	private final Map<Integer, ByteBuffer> responses = new HashMap<Integer, ByteBuffer>();
+	// Arrow parts left in the socket by requests whose threads did not pick them up yet
+	private final Map<Integer, PataResultStream> openResults = new HashMap<Integer, PataResultStream>();
+	private boolean reading = false;
+	private Exception readFailure;
+	
+	// Updates outside of auto-commit that may be sent before their responses are read, 0 turns pipelining off
+	int pipelineDepth = 0;
+	// Request ids of sent updates whose responses were not read yet
+	private ArrayDeque<Integer> pipelined = new ArrayDeque<Integer>();
+	private List<Integer> pipelinedUpdateCounts = new ArrayList<Integer>();
+	private SQLException pipelineFailure;
+	
+	// Set once the connection is used through PataAsyncConnection, the socket is non-blocking then
+	private PataAsyncConnection asyncConnection;
+	
+	// Session on a socket shared with other connections, null if the connection has a socket of its own
+	private PataMultiplexer.Session muxSession;
+	private boolean closed = false;
+	
+	// Milliseconds without a command after which a Ping keeps the session from being reaped, 0 turns it off
+	long heartbeatInterval = 0;
+	private ScheduledFuture<?> heartbeat;
+	private volatile long lastWrite = System.nanoTime();
+	// Shared by the heartbeats of all connections
+	private static ScheduledExecutorService heartbeatExecutor;
+	
 	public PataConnection(int port, boolean read_only) throws SQLException
 	{
-		allocator = new RootAllocator(Long.MAX_VALUE);
-		this.read_only = read_only;
+		this(port, read_only, new Properties());
+	}
+	
+	public PataConnection(int port, boolean read_only, Properties info) throws SQLException
+	{
+		this(port, read_only, info, 0, null);
+	}
+	
+	public PataConnection(int port, boolean read_only, Properties info, int controlPort, UUID connectionId) throws SQLException
+	{
+		this(read_only, info, controlPort);
+		this.connectionId = connectionId;
 		
 		try 
 		{
 			connectionSocketChannel = SocketChannel.open();
 			connectionSocketChannel.connect(new InetSocketAddress("localhost", port));
 			connectionSocketChannel.configureBlocking(true);
+			frameReader = new FrameReader(connectionSocketChannel, 64 * 1024);
 		} 
 		catch (Exception e)
 		{
 			e.printStackTrace();
 		}
+		startHeartbeat();
+	}
+	
+	/**
+	 * Opens a session with one TCP handshake and one round trip: the socket the
+	 * Connect is sent on becomes the socket of the session. Servers without the
+	 * upgrade answer with the port of the session, which is connected then.
+	 */
+	static PataConnection open(int controlPort, boolean read_only, Properties info) throws SQLException
+	{
+		PataConnection conn = new PataConnection(read_only, info, controlPort);
+		conn.handshake(info.getProperty(PataDriver.WORKLOAD_CLASS_PROPERTY));
+		conn.startHeartbeat();
+		return conn;
+	}
+	
+	private void handshake(String workloadClass) throws SQLException
+	{
+		PataResponse resp;
+		try
+		{
+			connectionSocketChannel = SocketChannel.open(new InetSocketAddress("localhost", controlPort));
+			writeFully(connectionSocketChannel, Frame.encode(0, 
+					new Connect(workloadClass, false, true, Protocol.CURRENT_VERSION, Protocol.CAPABILITIES).encodeCommand()));
+			
+			// The server sends nothing before the first command, so no bytes of the session are lost
+			frameReader = new FrameReader(connectionSocketChannel, 64 * 1024);
+			Frame frame = frameReader.readHeader();
+			if (frame == null)
+			{
+				throw new EOFException("Server closed the control connection");
+			}
+			resp = ResponseDecoder.decodeBuffer(frameReader.read(frame.length));
+		}
+		catch (Exception e)
+		{
+			closeSocket();
+			throw new SQLException("No connection possible: " + e.getMessage(), e);
+		}
+		
+		if (resp instanceof ExceptionRaised)
+		{
+			closeSocket();
+			throw new SQLException(((ExceptionRaised)resp).exceptionMsg);
+		}
+		Connected connected = (Connected)resp;
+		negotiated(connected);
+		if (connected.isUpgraded())
+		{
+			return;
+		}
+		
+		closeSocket();
+		try
+		{
+			connectionSocketChannel = SocketChannel.open(new InetSocketAddress("localhost", connected.port));
+			frameReader = new FrameReader(connectionSocketChannel, 64 * 1024);
+		}
+		catch (IOException e)
+		{
+			throw new SQLException("No connection possible: " + e.getMessage(), e);
+		}
+	}
+	
+	private void closeSocket()
+	{
+		if (connectionSocketChannel == null)
+		{
+			return;
+		}
+		try
+		{
+			connectionSocketChannel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Opens a session on a socket shared with other connections. The server
+	 * gives it a DuckDB connection of its own.
+	 */
+	PataConnection(PataMultiplexer.Session muxSession, boolean read_only, Properties info, int controlPort) throws SQLException
+	{
+		this(read_only, info, controlPort);
+		this.muxSession = muxSession;
+		connectionSocketChannel = muxSession.getChannel();
+		
+		PataResponse resp;
+		try
+		{
+			resp = request(new Connect(info.getProperty(PataDriver.WORKLOAD_CLASS_PROPERTY), false, false, 
+					Protocol.CURRENT_VERSION, Protocol.CAPABILITIES));
+		}
+		catch (Exception e)
+		{
+			muxSession.close();
+			throw new SQLException("Opening session failed: " + e.getMessage(), e);
+		}
+		
+		if (resp instanceof ExceptionRaised)
+		{
+			muxSession.close();
+			throw new SQLException(((ExceptionRaised)resp).exceptionMsg);
+		}
+		negotiated((Connected)resp);
+		startHeartbeat();
+	}
+	
+	private void negotiated(Connected connected)
+	{
+		connectionId = connected.connectionId;
+		protocolVersion = connected.protocolVersion;
+		capabilities = connected.capabilities;
+	}
+	
+	/**
+	 * Protocol version agreed on with the server, see Protocol
+	 */
+	public int getProtocolVersion()
+	{
+		return protocolVersion;
+	}
+	
+	/**
+	 * True if client and server agreed on the capability, see Protocol
+	 */
+	public boolean hasCapability(String capability)
+	{
+		return capabilities.contains(capability);
+	}
+	
+	private PataConnection(boolean read_only, Properties info, int controlPort) throws SQLException
+	{
+		allocator = new RootAllocator(Long.MAX_VALUE);
+		this.read_only = read_only;
+		this.controlPort = controlPort;
+		
+		prefetchBatches = (int) getLongProperty(info, PataDriver.PREFETCH_BATCHES_PROPERTY, prefetchBatches, Integer.MAX_VALUE);
+		scrollMemoryLimit = getLongProperty(info, PataDriver.SCROLL_MEMORY_LIMIT_PROPERTY, scrollMemoryLimit, Long.MAX_VALUE);
+		pipelineDepth = (int) getLongProperty(info, PataDriver.PIPELINE_DEPTH_PROPERTY, pipelineDepth, Integer.MAX_VALUE);
+		heartbeatInterval = getLongProperty(info, PataDriver.HEARTBEAT_INTERVAL_PROPERTY, heartbeatInterval, Long.MAX_VALUE);
+		compression = checkCompression(info.getProperty(PataDriver.COMPRESSION_PROPERTY));
+		String adaptive = info.getProperty(PataDriver.COMPRESSION_ADAPTIVE_PROPERTY);
+		adaptiveCompression = adaptive == null || adaptive.trim().equals("1") || adaptive.trim().equalsIgnoreCase("true") 
+				|| adaptive.trim().equalsIgnoreCase("yes");
+		String dictionaryEncoding = info.getProperty(PataDriver.DICTIONARIES_PROPERTY);
+		dictionaries = dictionaryEncoding == null || dictionaryEncoding.trim().equals("1") || dictionaryEncoding.trim().equalsIgnoreCase("true") 
+				|| dictionaryEncoding.trim().equalsIgnoreCase("yes");
+	}
+	
+	/**
+	 * Schedules the heartbeat once the connection has its session, a failed
+	 * handshake leaves no task behind that keeps the connection reachable
+	 */
+	private void startHeartbeat()
+	{
+		if (heartbeatInterval > 0)
+		{
+			heartbeat = getHeartbeatExecutor().scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval, 
+					TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private static synchronized ScheduledExecutorService getHeartbeatExecutor()
+	{
+		if (heartbeatExecutor == null)
+		{
+			heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "pata-heartbeat");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return heartbeatExecutor;
+	}
+	
+	/**
+	 * Pings the server if the connection was not used for heartbeatInterval, so
+	 * its session is not taken for the session of a crashed client
+	 */
+	private void heartbeat()
+	{
+		try
+		{
+			if (isClosed())
+			{
+				close();
+				return;
+			}
+			// A result that is still read from the socket would have to be buffered first
+			if (asyncConnection != null || openResult != null || !runningStatementIds.isEmpty()
+					|| System.nanoTime() - lastWrite < TimeUnit.MILLISECONDS.toNanos(heartbeatInterval))
+			{
+				return;
+			}
+			
+			// Without send(), failures of pipelined updates stay for the application
+			receive(write(new Ping()));
+		}
+		catch (Exception e)
+		{
+			// The next command of the application reports the broken connection
+		}
+	}
+	
+	/**
+	 * A codec of the protocol, null for none
+	 */
+	static String checkCompression(String compression) throws SQLException
+	{
+		if (compression == null || compression.trim().isEmpty() || compression.trim().equalsIgnoreCase("none"))
+		{
+			return null;
+		}
+		
+		String codec = compression.trim().toLowerCase();
+		if (!Protocol.COMPRESSION_CODECS.contains(codec))
+		{
+			throw new SQLException("Invalid value for " + PataDriver.COMPRESSION_PROPERTY + ": " + compression);
+		}
+		return codec;
+	}
+	
+	/**
+	 * The codec if the server can send it, otherwise results come uncompressed
+	 */
+	String getNegotiatedCompression(String compression)
+	{
+		return compression != null && hasCapability(compression) ? compression : null;
+	}
+	
+	private static long getLongProperty(Properties info, String key, long defaultValue, long maxValue) throws SQLException
+	{
+		String value = info.getProperty(key);
+		if (value == null)
+		{
+			return defaultValue;
+		}
+		
+		try
+		{
+			long parsed = Long.parseLong(value.trim());
+			if (parsed >= 0 && parsed <= maxValue)
+			{
+				return parsed;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		throw new SQLException("Invalid value for " + key + ": " + value);
+	}
+	
+	/**
+	 * Asks the server to interrupt the statement. Does nothing if the statement
+	 * is not running anymore.
+	 */
+	void cancel(UUID statementId) throws SQLException
+	{
+		if (connectionId == null)
+		{
+			throw new SQLFeatureNotSupportedException("Connection was opened without control port");
+		}
+		
+		try
+		{
+			PataResponse resp = requestControl(controlPort, new Cancel(connectionId, statementId));
+			if (resp instanceof ExceptionRaised)
+			{
+				throw new SQLException(((ExceptionRaised)resp).exceptionMsg);
+			}
+		}
+		catch (SQLException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new SQLException("Cancel failed: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Sends a command to the control port of the server and returns its response
+	 */
+	static PataResponse requestControl(int controlPort, PataCommand cmd) throws Exception
+	{
+		try (SocketChannel controlSocketChannel = SocketChannel.open(new InetSocketAddress("localhost", controlPort)))
+		{
+			writeFully(controlSocketChannel, Frame.encode(0, cmd.encodeCommand()));
+			
+			FrameReader controlReader = new FrameReader(controlSocketChannel, 1000);
+			Frame frame = controlReader.readHeader();
+			if (frame == null)
+			{
+				throw new EOFException("Server closed the control connection");
+			}
+			return ResponseDecoder.decodeBuffer(controlReader.read(frame.length));
+		}
+	}
+	
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+	
+	private static void writeFully(SocketChannel channel, ByteBuffer[] buffers) throws IOException
+	{
+		while (buffers[buffers.length - 1].hasRemaining())
+		{
+			channel.write(buffers);
+		}
+	}
+	
+	/**
+	 * Sends a command and returns its request id. The responses of pipelined
+	 * updates are read before, a failure of one of them is thrown.
+	 */
+	int send(PataCommand cmd) throws Exception
+	{
+		syncPipeline();
+		return write(cmd);
+	}
+	
+	/**
+	 * Frees a prepared statement on the server. The CloseStatement has no
+	 * response and goes out with the next command, so it costs no extra packet.
+	 */
+	void closeStatement(UUID statementId)
+	{
+		synchronized (writeLock)
+		{
+			deferredCloses.add(new CloseStatement(statementId));
+		}
+	}
+	
+	private int write(PataCommand cmd) throws Exception
+	{
+		checkSynchronous();
+		int session = muxSession == null ? 0 : muxSession.id;
+		
+		synchronized (writeLock)
+		{
+			ByteBuffer[] frames = new ByteBuffer[deferredCloses.size() + 1];
+			for (int i = 0; i < deferredCloses.size(); i++)
+			{
+				frames[i] = Frame.encode(session, nextRequestId(), deferredCloses.get(i).encodeCommand());
+			}
+			deferredCloses.clear();
+			
+			int requestId = nextRequestId();
+			frames[frames.length - 1] = Frame.encode(session, requestId, cmd.encodeCommand());
+			lastWrite = System.nanoTime();
+			
+			if (muxSession != null)
+			{
+				muxSession.write(frames);
+			}
+			else
+			{
+				writeFully(connectionSocketChannel, frames);
+			}
+			return requestId;
+		}
+	}
+	
+	int nextRequestId()
+	{
+		return nextRequestId.getAndUpdate(id -> (id + 1) & Integer.MAX_VALUE);
+	}
+	
+	private void checkSynchronous() throws SQLException
+	{
+		if (asyncConnection != null)
+		{
+			throw new SQLException("Connection is used through PataAsyncConnection");
+		}
+	}
+	
+	/**
+	 * Switches the connection to asynchronous use, once
+	 */
+	synchronized PataAsyncConnection getAsyncConnection() throws SQLException
+	{
+		if (muxSession != null)
+		{
+			throw new SQLFeatureNotSupportedException("Multiplexed connections can't be used asynchronously");
+		}
+		if (asyncConnection == null)
+		{
+			if (isClosed()) 
+			{
+				throw new SQLException("Connection was closed");
+			}
+			
+			try
+			{
+				syncPipeline();
+				releaseOpenResult();
+				asyncConnection = new PataAsyncConnection(this);
+			}
+			catch (IOException e)
+			{
+				throw new SQLException("Switching to asynchronous use failed: " + e.getMessage(), e);
+			}
+		}
+		return asyncConnection;
+	}
+	
+	/**
+	 * Reads the response to a request. Of a Result only the size msg and the
+	 * JSON part are read completely, plus whatever of the arrow part arrived
+	 * with them. The rest of the arrow part is left in the socket, use
+	 * resultStream() to read it.
+	 * <p>
+	 * Responses to requests of other threads that arrive before are read
+	 * completely and kept for them. A multiplexed connection always receives
+	 * the whole response.
+	 */
+	ByteBuffer receive(int requestId) throws Exception
+	{
+		if (muxSession != null)
+		{
+			return muxSession.receive(requestId);
+		}
+		
+		synchronized (responses)
+		{
+			while (true)
+			{
+				ByteBuffer response = responses.remove(requestId);
+				if (response != null)
+				{
+					return response;
+				}
+				if (readFailure != null)
+				{
+					throw new SQLException("Reading response failed: " + readFailure.getMessage(), readFailure);
+				}
+				if (!reading)
+				{
+					reading = true;
+					break;
+				}
+				responses.wait();
+			}
+		}
+		
+		try
+		{
+			while (true)
+			{
+				detachOpenResult();
+				
+				Frame frame = frameReader.readHeader();
+				if (frame == null)
+				{
+					throw new EOFException("Connection closed while reading response");
+				}
+				if (frame.requestId == requestId)
+				{
+					return readOwnFrame(frame);
+				}
+				
+				ByteBuffer response = frameReader.read(frame.length);
+				synchronized (responses)
+				{
+					responses.put(frame.requestId, response);
+					responses.notifyAll();
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			synchronized (responses)
+			{
+				readFailure = e;
+			}
+			throw e;
+		}
+		finally
+		{
+			synchronized (responses)
+			{
+				reading = false;
+				responses.notifyAll();
+			}
+		}
+	}
+	
+	// Reads the response of the receiving thread, the arrow part of a Result stays in the socket
+	private ByteBuffer readOwnFrame(Frame frame) throws Exception
+	{
+		int headerSize = Math.min(frame.length, Result.sizeMsgLength);
+		frameReader.fill(headerSize);
+		
+		if (Result.startsWithSizeMsg(frameReader.peek(), headerSize))
+		{
+			headerSize = Result.sizeMsgLength + Result.decodeJsonSize(frameReader.peek());
+		}
+		else
+		{
+			headerSize = frame.length;
+		}
+		frameReader.fill(headerSize);
+		
+		int received = Math.max(headerSize, Math.min(frame.length, frameReader.available()));
+		ByteBuffer response = frameReader.take(received);
+		
+		// Registered before another thread may read the next frame
+		if (received < frame.length)
+		{
+			openResult = new PataResultStream(connectionSocketChannel, response.slice(headerSize, received - headerSize), 
+					frame.length - received, scrollMemoryLimit);
+			synchronized (responses)
+			{
+				openResults.put(frame.requestId, openResult);
+			}
+		}
+		return response;
+	}
+	
+	/**
+	 * Arrow part of a Result that was received for the request, read from the
+	 * socket while it is consumed if it did not arrive completely.
+	 */
+	PataResultStream resultStream(int requestId, ByteBuffer response, Result res)
+	{
+		synchronized (responses)
+		{
+			PataResultStream open = openResults.remove(requestId);
+			if (open != null)
+			{
+				return open;
+			}
+		}
+		
+		int arrowStart = Result.sizeMsgLength + res.jsonSize;
+		return new PataResultStream(null, response.slice(arrowStart, response.limit() - arrowStart), 0);
+	}
+	
+	/**
+	 * Sends a command and waits for its response
+	 */
+	PataResponse request(PataCommand cmd) throws Exception
+	{
+		return decode(receive(send(cmd)));
+	}
+	
+	/**
+	 * Decodes a response of the session with the codec of the negotiated version
+	 */
+	PataResponse decode(ByteBuffer response) throws Exception
+	{
+		return ResponseDecoder.decodeBuffer(response, protocolVersion);
+	}
+	
+	/**
+	 * Sends an update without waiting for its response. Once pipelineDepth
+	 * updates are outstanding the oldest response is read first.
+	 */
+	synchronized void sendPipelined(PataCommand cmd) throws Exception
+	{
+		if (pipelined.size() >= pipelineDepth)
+		{
+			readPipelined();
+		}
+		pipelined.add(write(cmd));
+	}
+	
+	private void readPipelined() throws Exception
+	{
+		PataResponse resp = decode(receive(pipelined.remove()));
+		
+		if (resp instanceof Result)
+		{
+			pipelinedUpdateCounts.add(((Result)resp).updateCount);
+		}
+		else if (pipelineFailure == null)
+		{
+			if (resp instanceof Cancelled)
+			{
+				pipelineFailure = ((Cancelled)resp).toSQLException();
+			}
+			else
+			{
+				pipelineFailure = new SQLException(resp instanceof ExceptionRaised ? ((ExceptionRaised)resp).exceptionMsg 
+						: "Unexpected response to pipelined update: " + resp.getOp());
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the responses of all pipelined updates and returns their update
+	 * counts in the order they were sent. If one of them failed, its exception
+	 * is thrown instead: the transaction is aborted then and has to be rolled back.
+	 */
+	public synchronized int[] syncPipeline() throws SQLException
+	{
+		try
+		{
+			while (!pipelined.isEmpty())
+			{
+				readPipelined();
+			}
+		}
+		catch (SQLException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new SQLException("Reading pipelined responses failed: " + e.getMessage(), e);
+		}
+		
+		SQLException failure = pipelineFailure;
+		int[] updateCounts = pipelinedUpdateCounts.stream().mapToInt(Integer::intValue).toArray();
+		pipelineFailure = null;
+		pipelinedUpdateCounts.clear();
+		
+		if (failure != null)
+		{
+			throw failure;
+		}
+		return updateCounts;
+	}
+	
+	/**
+	 * Reads the rest of the open result from the socket, waiting if another
+	 * thread reads from it.
+	 */
+	void releaseOpenResult() throws IOException
+	{
+		if (muxSession != null)
+		{
+			return;
+		}
+		
+		try
+		{
+			synchronized (responses)
+			{
+				while (reading)
+				{
+					responses.wait();
+				}
+				reading = true;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the socket", e);
+		}
+		
+		try
+		{
+			detachOpenResult();
+		}
+		finally
+		{
+			synchronized (responses)
+			{
+				reading = false;
+				responses.notifyAll();
+			}
+		}
+	}
+	
+	// Only called by the thread that reads from the socket
+	private void detachOpenResult() throws IOException
+	{
+		if (openResult != null)
+		{
+			openResult.detach();
+			openResult = null;
+		}
+	}
+	
+	/**
+	 * Reader for the record batches of a result, reading ahead in the
+	 * background if prefetching is configured.
+	 */
+	PataBatchReader createBatchReader(ArrowStreamReader reader) throws SQLException
+	{
+		if (prefetchBatches == 0)
+		{
+			return new PataBatchReader(reader, allocator);
+		}
+		return new PataBatchPrefetcher(reader, allocator, prefetchBatches, getPrefetchExecutor());
+	}
+	
+	private synchronized ExecutorService getPrefetchExecutor()
+	{
+		if (prefetchExecutor == null)
+		{
+			prefetchExecutor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "pata-prefetch");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return prefetchExecutor;
 	}
 	
 	@Override
@@ -69,9 +881,10 @@ public class PataConnection implements Connection
 		{
 			throw new SQLException("Connection was closed");
 		}
-		if (resultSetConcurrency == ResultSet.CONCUR_READ_ONLY && resultSetType == ResultSet.TYPE_FORWARD_ONLY) 
+		if (resultSetConcurrency == ResultSet.CONCUR_READ_ONLY && (resultSetType == ResultSet.TYPE_FORWARD_ONLY
+				|| resultSetType == ResultSet.TYPE_SCROLL_INSENSITIVE)) 
 		{
-			return new PataPreparedStatement(this);
+			return new PataPreparedStatement(this, resultSetType);
 		}
 		throw new SQLFeatureNotSupportedException();
 	}	
@@ -84,9 +897,10 @@ public class PataConnection implements Connection
 		{
 			throw new SQLException("Connection was closed");
 		}
-		if (resultSetConcurrency == ResultSet.CONCUR_READ_ONLY && resultSetType == ResultSet.TYPE_FORWARD_ONLY) 
+		if (resultSetConcurrency == ResultSet.CONCUR_READ_ONLY && (resultSetType == ResultSet.TYPE_FORWARD_ONLY
+				|| resultSetType == ResultSet.TYPE_SCROLL_INSENSITIVE)) 
 		{
-			return new PataPreparedStatement(this, sql);
+			return new PataPreparedStatement(this, sql, resultSetType);
 		}
 		throw new SQLFeatureNotSupportedException();
 	}
@@ -94,13 +908,21 @@ public class PataConnection implements Connection
 	@Override
 	public <T> T unwrap(Class<T> iface) throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		if (iface == PataAsyncConnection.class)
+		{
+			return iface.cast(getAsyncConnection());
+		}
+		if (iface.isInstance(this))
+		{
+			return iface.cast(this);
+		}
+		throw new SQLException("Can't unwrap to " + iface.getName());
 	}
 
 	@Override
 	public boolean isWrapperFor(Class<?> iface) throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		return (iface == PataAsyncConnection.class && muxSession == null) || iface.isInstance(this);
 	}
 
 	@Override
@@ -159,27 +981,23 @@ public class PataConnection implements Connection
 	@Override
 	public void commit() throws SQLException
 	{
+		checkSynchronous();
+		try
+		{
+			syncPipeline();
+		}
+		catch (SQLException e)
+		{
+			rollback();
+			throw new SQLException("Pipelined update failed, transaction was rolled back: " + e.getMessage(), e.getSQLState(), e);
+		}
+		
 		Commit cmd = new Commit();
 		try
 		{
-			int writeCnt = 0;
-			ByteBuffer buf = cmd.encodeCommand();
+			releaseOpenResult();
 			
-			while (connectionSocketChannel.isOpen())
-			{
-				writeCnt = connectionSocketChannel.write(buf);
-				
-				// End-of-stream check
-				if (writeCnt == 0)
-					{ break;}
-			}
-
-			ByteBuffer response = ByteBuffer.allocate(1000);
-			
-			connectionSocketChannel.read(response);		
-			response.position(0);
-			
-			Committed resp = (Committed)ResponseDecoder.decodeBuffer(response);
+			Committed resp = (Committed)request(cmd);
 		} catch (JacksonException e)
 		{
 			// TODO Auto-generated catch block
@@ -199,27 +1017,23 @@ public class PataConnection implements Connection
 	@Override
 	public void rollback() throws SQLException
 	{
+		checkSynchronous();
+		
+		// Failures of pipelined updates don't matter anymore
+		try
+		{
+			syncPipeline();
+		}
+		catch (SQLException e)
+		{
+		}
+		
 		Rollback cmd = new Rollback();
 		try
 		{
-			int writeCnt = 0;
-			ByteBuffer buf = cmd.encodeCommand();
-			
-			while (connectionSocketChannel.isOpen())
-			{
-				writeCnt = connectionSocketChannel.write(buf);
-				
-				// End-of-stream check
-				if (writeCnt == 0)
-					{ break;}
-			}
-
-			ByteBuffer response = ByteBuffer.allocate(1000);
-			
-			connectionSocketChannel.read(response);		
-			response.position(0);
+			releaseOpenResult();
 			
-			Aborted resp = (Aborted)ResponseDecoder.decodeBuffer(response);
+			Aborted resp = (Aborted)request(cmd);
 		} catch (JacksonException e)
 		{
 			// TODO Auto-generated catch block
@@ -239,8 +1053,51 @@ public class PataConnection implements Connection
 	@Override
 	public void close() throws SQLException
 	{
+		// Closing the socket alone would let the server finish the statements
+		for (UUID running : runningStatementIds)
+		{
+			if (connectionId == null)
+			{
+				break;
+			}
+			try
+			{
+				cancel(running);
+			}
+			catch (SQLException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		if (asyncConnection != null)
+		{
+			asyncConnection.fail(new SQLException("Connection was closed"));
+		}
+		if (heartbeat != null)
+		{
+			heartbeat.cancel(false);
+		}
+		
 		try
 		{
+			openResult = null;
+			if (prefetchExecutor != null)
+			{
+				prefetchExecutor.shutdown();
+			}
+			
+			if (muxSession != null)
+			{
+				// The session ends on the server, the socket stays open for the others
+				if (!closed)
+				{
+					closed = true;
+					muxSession.write(nextRequestId(), new Disconnect(connectionId).encodeCommand());
+					muxSession.close();
+				}
+				return;
+			}
 			connectionSocketChannel.close();
 		} catch (IOException e)
 		{
@@ -252,6 +1109,10 @@ public class PataConnection implements Connection
 	@Override
 	public boolean isClosed() throws SQLException
 	{
+		if (muxSession != null)
+		{
+			return closed;
+		}
 		return !connectionSocketChannel.isConnected();
 	}
 
@@ -436,19 +1297,17 @@ public class PataConnection implements Connection
 			return false;
 		}
 		
-		// run a query just to be sure
-		Statement s = createStatement();
-		ResultSet rs = s.executeQuery("SELECT 42");
-		if (!rs.next() || rs.getInt(1) != 42) 
+		checkSynchronous();
+		
+		// A ping is answered by the session without running a statement
+		try
+		{
+			return request(new Ping()) instanceof Pong;
+		}
+		catch (Exception e)
 		{
-			rs.close();
-			s.close();
 			return false;
 		}
-		rs.close();
-		s.close();
-
-		return true;
 	}
 
 	@Override
@@ -0,0 +1,491 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+package duckdb_driver.pata.jdbc;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.PooledConnection;
+
+/**
+ * DataSource with a pool of PataConnections, so getConnection() does not need
+ * the handshake with the control socket. Connections closed by the application
+ * are reset and kept for the next getConnection(), up to maxIdle. Once less
+ * than minIdle connections are idle, new ones are opened in the background.
+ * <p>
+ * A connection that was idle longer than validationIntervalMillis is pinged
+ * before it is handed out. Each pooled connection caches up to
+ * statementCacheSize prepared statements.
+ * <p>
+ * As ConnectionPoolDataSource it hands out PataPooledConnections for pools of
+ * application servers, those are not part of the built-in pool.
+ */
+public class PataDataSource implements DataSource, ConnectionPoolDataSource, AutoCloseable
+{
+	private static final PataDriver driver = new PataDriver();
+
+	private String url;
+	private Properties properties = new Properties();
+	private int minIdle = 0;
+	private int maxIdle = 8;
+	private int statementCacheSize = 32;
+	private long validationIntervalMillis = 5000;
+	private int loginTimeout = 0;
+	private PrintWriter logWriter;
+
+	// Most recently returned last, handed out first
+	private final ArrayDeque<PataPooledConnection> idle = new ArrayDeque<PataPooledConnection>();
+	private final ConnectionEventListener returner = new Returner();
+	private ExecutorService filler;
+	private boolean filling = false;
+	private boolean closed = false;
+
+	private int active = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evicted = 0;
+
+	public PataDataSource()
+	{
+	}
+
+	public PataDataSource(String url)
+	{
+		this.url = url;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		PataPooledConnection pooled;
+		while ((pooled = poll()) != null)
+		{
+			if (System.nanoTime() - pooled.returnedAt < TimeUnit.MILLISECONDS.toNanos(validationIntervalMillis)
+					|| pooled.isValid())
+			{
+				break;
+			}
+			discard(pooled);
+			synchronized (this)
+			{
+				evicted++;
+			}
+		}
+
+		synchronized (this)
+		{
+			if (closed && pooled == null)
+			{
+				throw new SQLException("DataSource was closed");
+			}
+			if (pooled != null)
+			{
+				hits++;
+			}
+			else
+			{
+				misses++;
+			}
+			active++;
+		}
+		if (getIdleConnections() < minIdle)
+		{
+			refill();
+		}
+
+		try
+		{
+			if (pooled == null)
+			{
+				pooled = open();
+			}
+			return pooled.getConnection();
+		}
+		catch (SQLException e)
+		{
+			synchronized (this)
+			{
+				active--;
+			}
+			if (pooled != null)
+			{
+				discard(pooled);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Same as getConnection(), the server has no users
+	 */
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException
+	{
+		return getConnection();
+	}
+
+	/**
+	 * A new connection for a pool of the caller, not one of the built-in pool
+	 */
+	@Override
+	public PooledConnection getPooledConnection() throws SQLException
+	{
+		return new PataPooledConnection(connect(), statementCacheSize);
+	}
+
+	@Override
+	public PooledConnection getPooledConnection(String user, String password) throws SQLException
+	{
+		return getPooledConnection();
+	}
+
+	/**
+	 * Closes the idle connections, connections in use are closed when the application closes them
+	 */
+	@Override
+	public void close()
+	{
+		synchronized (this)
+		{
+			closed = true;
+			if (filler != null)
+			{
+				filler.shutdownNow();
+			}
+		}
+
+		PataPooledConnection pooled;
+		while ((pooled = poll()) != null)
+		{
+			discard(pooled);
+		}
+	}
+
+	private synchronized PataPooledConnection poll()
+	{
+		return idle.pollLast();
+	}
+
+	private PataPooledConnection open() throws SQLException
+	{
+		PataPooledConnection pooled = new PataPooledConnection(connect(), statementCacheSize);
+		pooled.addConnectionEventListener(returner);
+		return pooled;
+	}
+
+	private PataConnection connect() throws SQLException
+	{
+		if (url == null)
+		{
+			throw new SQLException("No url set");
+		}
+		PataConnection conn = (PataConnection)driver.connect(url, properties);
+		if (conn == null)
+		{
+			throw new SQLException("Not a Pata url: " + url);
+		}
+		return conn;
+	}
+
+	private static void discard(PataPooledConnection pooled)
+	{
+		try
+		{
+			pooled.close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	// Opens connections in the background until minIdle are idle
+	private void refill()
+	{
+		synchronized (this)
+		{
+			if (filling || closed || idle.size() >= minIdle)
+			{
+				return;
+			}
+			filling = true;
+			if (filler == null)
+			{
+				filler = Executors.newSingleThreadExecutor(r -> {
+					Thread t = new Thread(r, "pata-datasource-pool");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+		}
+
+		filler.execute(() -> {
+			try
+			{
+				while (true)
+				{
+					synchronized (this)
+					{
+						if (closed || idle.size() >= minIdle)
+						{
+							break;
+						}
+					}
+					PataPooledConnection pooled = open();
+					synchronized (this)
+					{
+						if (!closed && idle.size() < maxIdle)
+						{
+							idle.addFirst(pooled);
+							pooled = null;
+						}
+					}
+					if (pooled != null)
+					{
+						discard(pooled);
+						break;
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					filling = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Puts connections back that the application closed, or drops them if they broke
+	 */
+	private class Returner implements ConnectionEventListener
+	{
+		@Override
+		public void connectionClosed(ConnectionEvent event)
+		{
+			PataPooledConnection pooled = (PataPooledConnection)event.getSource();
+			synchronized (PataDataSource.this)
+			{
+				active--;
+				if (!closed && idle.size() < maxIdle)
+				{
+					idle.addLast(pooled);
+					return;
+				}
+			}
+			discard(pooled);
+		}
+
+		@Override
+		public void connectionErrorOccurred(ConnectionEvent event)
+		{
+			PataPooledConnection pooled = (PataPooledConnection)event.getSource();
+			synchronized (PataDataSource.this)
+			{
+				active--;
+				evicted++;
+			}
+			discard(pooled);
+		}
+	}
+
+	/**
+	 * jdbc:duckdb-pata:&lt;port&gt;, properties can be given in the url as well
+	 */
+	public void setUrl(String url)
+	{
+		this.url = url;
+	}
+
+	public String getUrl()
+	{
+		return url;
+	}
+
+	/**
+	 * Properties of the connections, as for DriverManager.getConnection()
+	 */
+	public void setProperties(Properties properties)
+	{
+		this.properties = properties;
+	}
+
+	public Properties getProperties()
+	{
+		return properties;
+	}
+
+	/**
+	 * Idle connections opened in the background, 0 by default
+	 */
+	public void setMinIdle(int minIdle)
+	{
+		this.minIdle = minIdle;
+		if (url != null)
+		{
+			refill();
+		}
+	}
+
+	public int getMinIdle()
+	{
+		return minIdle;
+	}
+
+	/**
+	 * Idle connections kept at most, connections returned beyond it are closed. 8 by default.
+	 */
+	public void setMaxIdle(int maxIdle)
+	{
+		this.maxIdle = maxIdle;
+	}
+
+	public int getMaxIdle()
+	{
+		return maxIdle;
+	}
+
+	/**
+	 * Prepared statements cached per connection, 0 turns caching off. 32 by default.
+	 */
+	public void setStatementCacheSize(int statementCacheSize)
+	{
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public int getStatementCacheSize()
+	{
+		return statementCacheSize;
+	}
+
+	/**
+	 * Connections idle longer are pinged before they are handed out, 5000 by default
+	 */
+	public void setValidationIntervalMillis(long validationIntervalMillis)
+	{
+		this.validationIntervalMillis = validationIntervalMillis;
+	}
+
+	public long getValidationIntervalMillis()
+	{
+		return validationIntervalMillis;
+	}
+
+	public synchronized int getIdleConnections()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * Connections handed out and not closed yet
+	 */
+	public synchronized int getActiveConnections()
+	{
+		return active;
+	}
+
+	/**
+	 * getConnection() calls that got an idle connection
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * getConnection() calls that had to open a connection
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Connections dropped because their ping failed or they broke while in use
+	 */
+	public synchronized long getEvicted()
+	{
+		return evicted;
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException
+	{
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException
+	{
+		logWriter = out;
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException
+	{
+		loginTimeout = seconds;
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException
+	{
+		return loginTimeout;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		throw new SQLFeatureNotSupportedException("no logger");
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException
+	{
+		if (iface.isInstance(this))
+		{
+			return iface.cast(this);
+		}
+		throw new SQLException("Not a wrapper for " + iface.getName());
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException
+	{
+		return iface.isInstance(this);
+	}
+}
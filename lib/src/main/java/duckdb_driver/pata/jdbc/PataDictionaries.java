@@ -0,0 +1,82 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.ipc.ArrowReader;
+
+/**
+ * The values of the dictionary-encoded columns of a result as Strings. Each
+ * value is decoded once, all rows with the same index get the same String.
+ * <p>
+ * The server only adds values to a dictionary while the result is sent, so the
+ * reader decodes the new ones after every batch, also on a prefetch thread,
+ * while the result set still reads the batches before.
+ */
+class PataDictionaries
+{
+	// Replaced by a longer copy when a dictionary grows
+	private final Map<Long, String[]> values = new ConcurrentHashMap<Long, String[]>();
+	
+	/**
+	 * Decodes the values the dictionaries of the reader got since the last call
+	 */
+	void update(ArrowReader reader) throws IOException
+	{
+		for (Map.Entry<Long, Dictionary> entry : reader.getDictionaryVectors().entrySet())
+		{
+			VarCharVector vector = (VarCharVector) entry.getValue().getVector();
+			int count = vector.getValueCount();
+			String[] known = values.get(entry.getKey());
+			if (known != null && known.length == count)
+			{
+				continue;
+			}
+			
+			// A dictionary that was sent again from scratch is decoded again
+			int first = known != null && known.length < count ? known.length : 0;
+			String[] decoded = new String[count];
+			if (first > 0)
+			{
+				System.arraycopy(known, 0, decoded, 0, first);
+			}
+			for (int i = first; i < count; i++)
+			{
+				decoded[i] = vector.isNull(i) ? null : new String(vector.get(i), StandardCharsets.UTF_8);
+			}
+			values.put(entry.getKey(), decoded);
+		}
+	}
+	
+	/**
+	 * The value at index of the dictionary with the id
+	 */
+	String get(long id, int index)
+	{
+		return values.get(id)[index];
+	}
+}
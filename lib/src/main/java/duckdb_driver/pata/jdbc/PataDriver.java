@@ -19,9 +19,6 @@
 
 package duckdb_driver.pata.jdbc;
 
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.sql.Connection;
 import java.sql.Driver;
@@ -32,14 +29,18 @@ import java.sql.SQLFeatureNotSupportedException;
 import java.util.Properties;
 import java.util.logging.Logger;
 
-import duckdb_driver.pata.commands.Connect;
-import duckdb_driver.pata.responses.Connected;
-import duckdb_driver.pata.responses.PataResponse;
-import duckdb_driver.pata.responses.ResponseDecoder;
-
 public class PataDriver implements Driver
 {
 	static final String DUCKDB_READONLY_PROPERTY = "duckdb.read_only";
+	static final String PREFETCH_BATCHES_PROPERTY = "pata.prefetch_batches";
+	static final String SCROLL_MEMORY_LIMIT_PROPERTY = "pata.scroll_memory_limit";
+	static final String WORKLOAD_CLASS_PROPERTY = "pata.workload_class";
+	static final String PIPELINE_DEPTH_PROPERTY = "pata.pipeline_depth";
+	static final String MULTIPLEX_PROPERTY = "pata.multiplex";
+	static final String HEARTBEAT_INTERVAL_PROPERTY = "pata.heartbeat_interval";
+	static final String COMPRESSION_PROPERTY = "pata.compression";
+	static final String COMPRESSION_ADAPTIVE_PROPERTY = "pata.compression_adaptive";
+	static final String DICTIONARIES_PROPERTY = "pata.dictionaries";
 	static final Charset utf8 = Charset.forName("UTF-8");
 
 	static
@@ -62,46 +63,60 @@ public class PataDriver implements Driver
 		{
 			return null;
 		}
-		boolean read_only = false;
-		if (info != null) 
+		
+		// Properties can also be given in the url: jdbc:duckdb-pata:<port>?<key>=<value>&...
+		Properties props = new Properties();
+		if (info != null)
+		{
+			props.putAll(info);
+		}
+		int queryStart = url.indexOf('?');
+		if (queryStart >= 0)
 		{
-			String prop_val = info.getProperty(DUCKDB_READONLY_PROPERTY);
-			if (prop_val != null) 
+			for (String param : url.substring(queryStart + 1).split("&"))
 			{
-				String prop_clean = prop_val.trim().toLowerCase();
-				read_only = prop_clean.equals("1") || prop_clean.equals("true") || prop_clean.equals("yes");
+				String[] keyValue = param.split("=", 2);
+				if (keyValue.length == 2)
+				{
+					props.setProperty(keyValue[0].trim(), keyValue[1].trim());
+				}
 			}
+			url = url.substring(0, queryStart);
 		}
 		
+		boolean read_only = getBooleanProperty(props, DUCKDB_READONLY_PROPERTY);
+		boolean multiplex = getBooleanProperty(props, MULTIPLEX_PROPERTY);
+		
 		// Find port number from url
 		String[] urlParts = url.trim().toLowerCase().split(":");
 		String portString = urlParts[urlParts.length - 1]; 
 		
-		try 
+		if (multiplex)
 		{
-			SocketChannel controlSocketChannel = SocketChannel.open();
-			controlSocketChannel.connect(new InetSocketAddress("localhost", Integer.parseInt(portString)));
+			PataMultiplexer.Session session;
+			try
+			{
+				session = PataMultiplexer.openSession(Integer.parseInt(portString));
+			}
+			catch (Exception e)
+			{
+				throw new SQLException("No connection possible: " + e.getMessage(), e);
+			}
+			return new PataConnection(session, read_only, props, Integer.parseInt(portString));
+		}
+		
+		return PataConnection.open(Integer.parseInt(portString), read_only, props);
+	}
 
-			// Establish control connection
-			controlSocketChannel.write(new Connect().encodeCommand());
-			
-			ByteBuffer response = ByteBuffer.allocate(1000);
-			
-			controlSocketChannel.read(response);
-			
-			response.position(0);
-			
-			PataResponse resp = ResponseDecoder.decodeBuffer(response);
-			
-			return new PataConnection(((Connected)resp).port, read_only);		
-		} 
-		catch (Exception e) 
+	private static boolean getBooleanProperty(Properties props, String key)
+	{
+		String prop_val = props.getProperty(key);
+		if (prop_val == null) 
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			
-			throw new SQLException("No connection possible: " + e.getMessage());
+			return false;
 		}
+		String prop_clean = prop_val.trim().toLowerCase();
+		return prop_clean.equals("1") || prop_clean.equals("true") || prop_clean.equals("yes");
 	}
 
 	@Override
@@ -113,8 +128,41 @@ public class PataDriver implements Driver
 	@Override
 	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException
 	{
-		DriverPropertyInfo[] ret = {};
-		return ret; // no properties
+		DriverPropertyInfo prefetch = new DriverPropertyInfo(PREFETCH_BATCHES_PROPERTY, "0");
+		prefetch.description = "Number of record batches read ahead in the background, 0 turns prefetching off";
+		
+		DriverPropertyInfo scrollLimit = new DriverPropertyInfo(SCROLL_MEMORY_LIMIT_PROPERTY, String.valueOf(64 * 1024 * 1024));
+		scrollLimit.description = "Bytes of batches a scrollable result set keeps in memory, older batches are spilled to a temporary file. "
+				+ "Also the bytes of a result that is still read when the next statement runs, a larger rest is spilled as well";
+		
+		DriverPropertyInfo workloadClass = new DriverPropertyInfo(WORKLOAD_CLASS_PROPERTY, "interactive");
+		workloadClass.description = "Scheduler lane of the statements of this connection on the server, for example interactive or batch";
+		
+		DriverPropertyInfo pipelineDepth = new DriverPropertyInfo(PIPELINE_DEPTH_PROPERTY, "0");
+		pipelineDepth.description = "Updates outside of auto-commit sent before their responses are read, 0 turns pipelining off";
+		
+		DriverPropertyInfo multiplex = new DriverPropertyInfo(MULTIPLEX_PROPERTY, "false");
+		multiplex.description = "Share one socket to the server with the other multiplexed connections, each still has its own session and transactions";
+		
+		DriverPropertyInfo heartbeatInterval = new DriverPropertyInfo(HEARTBEAT_INTERVAL_PROPERTY, "0");
+		heartbeatInterval.description = "Milliseconds without a command after which the connection pings the server, "
+				+ "so its session is not reaped as idle. 0 turns the heartbeat off";
+		
+		DriverPropertyInfo compression = new DriverPropertyInfo(COMPRESSION_PROPERTY, "none");
+		compression.description = "Codec of the record batches of results, none, lz4_frame or zstd. "
+				+ "Servers that don't support it send them uncompressed";
+		compression.choices = new String[] { "none", "lz4_frame", "zstd" };
+		
+		DriverPropertyInfo adaptive = new DriverPropertyInfo(COMPRESSION_ADAPTIVE_PROPERTY, "true");
+		adaptive.description = "Send the parts of record batches that don't compress well uncompressed";
+		
+		DriverPropertyInfo dictionaries = new DriverPropertyInfo(DICTIONARIES_PROPERTY, "true");
+		dictionaries.description = "Let the server send ENUM and low-cardinality VARCHAR columns dictionary-encoded, "
+				+ "each distinct value is sent and decoded only once";
+		
+		DriverPropertyInfo[] ret = { prefetch, scrollLimit, workloadClass, pipelineDepth, multiplex, heartbeatInterval, 
+				compression, adaptive, dictionaries };
+		return ret;
 	}
 
 	@Override
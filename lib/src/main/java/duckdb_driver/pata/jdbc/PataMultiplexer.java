@@ -0,0 +1,272 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+package duckdb_driver.pata.jdbc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import duckdb_driver.pata.commands.Connect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
+import duckdb_driver.pata.commands.Protocol;
+import duckdb_driver.pata.responses.Connected;
+import duckdb_driver.pata.responses.ExceptionRaised;
+import duckdb_driver.pata.responses.PataResponse;
+
+/**
+ * One socket to the server that carries the sessions of many PataConnections,
+ * used with the connection property pata.multiplex. The server gives every
+ * session its own DuckDB connection, so transactions stay apart.
+ * <p>
+ * There is no reader thread: a connection waiting for its response reads
+ * frames from the socket and keeps those of other requests for them. Frames
+ * are always read completely, the arrow part of a result is not streamed from
+ * the socket. The socket is closed with its last session.
+ */
+class PataMultiplexer
+{
+	// Open multiplexers by control port of the server
+	private static final Map<Integer, PataMultiplexer> multiplexers = new HashMap<Integer, PataMultiplexer>();
+	
+	private final int controlPort;
+	private final SocketChannel channel;
+	private final FrameReader frameReader;
+	
+	private int nextSession = 1;
+	// Received frames of sessions that did not read them yet, by request id
+	private final Map<Integer, Map<Integer, ByteBuffer>> sessions = new HashMap<Integer, Map<Integer, ByteBuffer>>();
+	// A thread is reading from the socket
+	private boolean reading = false;
+	// Set once the socket failed, all sessions fail then
+	private IOException failure;
+	
+	private PataMultiplexer(int controlPort, int port) throws IOException
+	{
+		this.controlPort = controlPort;
+		channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+		channel.configureBlocking(true);
+		frameReader = new FrameReader(channel, 64 * 1024);
+	}
+	
+	/**
+	 * Session of one PataConnection
+	 */
+	class Session
+	{
+		final int id;
+		
+		private Session(int id)
+		{
+			this.id = id;
+		}
+		
+		SocketChannel getChannel()
+		{
+			return channel;
+		}
+		
+		void write(int requestId, ByteBuffer payload) throws IOException
+		{
+			PataMultiplexer.this.write(Frame.encode(id, requestId, payload));
+		}
+		
+		/**
+		 * Writes frames that were encoded for this session, without frames of
+		 * other sessions between them
+		 */
+		void write(ByteBuffer... frames) throws IOException
+		{
+			PataMultiplexer.this.write(frames);
+		}
+		
+		ByteBuffer receive(int requestId) throws Exception
+		{
+			return PataMultiplexer.this.receive(id, requestId);
+		}
+		
+		void close()
+		{
+			closeSession(id);
+		}
+	}
+	
+	/**
+	 * Reserves a session on the multiplexer of a server, which is opened with the
+	 * first session. The session is opened on the server by a Connect frame.
+	 */
+	static Session openSession(int controlPort) throws Exception
+	{
+		synchronized (multiplexers)
+		{
+			PataMultiplexer mux = multiplexers.get(controlPort);
+			if (mux == null || !mux.isOpen())
+			{
+				PataResponse resp = PataConnection.requestControl(controlPort, new Connect(null, true, false, Protocol.CURRENT_VERSION, Protocol.CAPABILITIES));
+				if (resp instanceof ExceptionRaised)
+				{
+					throw new SQLException(((ExceptionRaised)resp).exceptionMsg);
+				}
+				
+				mux = new PataMultiplexer(controlPort, ((Connected)resp).port);
+				multiplexers.put(controlPort, mux);
+			}
+			return mux.new Session(mux.reserveSession());
+		}
+	}
+	
+	private synchronized boolean isOpen()
+	{
+		return failure == null && channel.isOpen();
+	}
+	
+	private synchronized int reserveSession()
+	{
+		int session = nextSession;
+		nextSession = nextSession == Integer.MAX_VALUE ? 1 : nextSession + 1;
+		sessions.put(session, new HashMap<Integer, ByteBuffer>());
+		return session;
+	}
+	
+	/**
+	 * Forgets the session, frames that still arrive for it are dropped. Closes
+	 * the socket with the last session.
+	 */
+	private void closeSession(int session)
+	{
+		synchronized (multiplexers)
+		{
+			synchronized (this)
+			{
+				sessions.remove(session);
+				if (!sessions.isEmpty())
+				{
+					return;
+				}
+			}
+			if (multiplexers.get(controlPort) == this)
+			{
+				multiplexers.remove(controlPort);
+			}
+		}
+		
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	private void write(ByteBuffer... frames) throws IOException
+	{
+		synchronized (channel)
+		{
+			while (frames[frames.length - 1].hasRemaining())
+			{
+				channel.write(frames);
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the response to a request of a session and returns its payload.
+	 * Threads sharing a session wait for their own responses.
+	 */
+	private ByteBuffer receive(int session, int requestId) throws Exception
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				while (true)
+				{
+					Map<Integer, ByteBuffer> received = sessions.get(session);
+					if (received == null)
+					{
+						throw new SQLException("Session " + session + " was closed");
+					}
+					
+					ByteBuffer payload = received.remove(requestId);
+					if (payload != null)
+					{
+						return payload;
+					}
+					if (failure != null)
+					{
+						throw failure;
+					}
+					if (!reading)
+					{
+						reading = true;
+						break;
+					}
+					wait();
+				}
+			}
+			
+			readFrame();
+		}
+	}
+	
+	// Reads one frame and keeps it for its request
+	private void readFrame()
+	{
+		try
+		{
+			Frame frame = frameReader.readHeader();
+			if (frame == null)
+			{
+				throw new EOFException("Server closed the multiplexed connection");
+			}
+			ByteBuffer payload = frameReader.read(frame.length);
+			
+			synchronized (this)
+			{
+				Map<Integer, ByteBuffer> received = sessions.get(frame.session);
+				if (received != null)
+				{
+					received.put(frame.requestId, payload);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			synchronized (this)
+			{
+				failure = e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+			}
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				reading = false;
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,492 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+package duckdb_driver.pata.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEvent;
+import javax.sql.StatementEventListener;
+
+/**
+ * A PataConnection that is handed out again and again. The application gets a
+ * logical connection, closing it resets the PataConnection and tells the
+ * listeners, which put it back into their pool.
+ * <p>
+ * Prepared statements of the logical connections are cached by their sql, so
+ * a statement that is prepared again is not sent to the server. The reset on
+ * close only needs a round trip if a transaction was started.
+ */
+public class PataPooledConnection implements PooledConnection
+{
+	private final PataConnection physical;
+	private final int statementCacheSize;
+
+	private final List<ConnectionEventListener> connectionListeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+	private final List<StatementEventListener> statementListeners = new CopyOnWriteArrayList<StatementEventListener>();
+
+	// Prepared statements that are not in use, least recently used first
+	private final LinkedHashMap<String, PataPreparedStatement> statementCache;
+
+	// The logical connection handed out last, null if it was closed
+	private LogicalConnection logical;
+
+	// Set once the listeners were told that the connection broke
+	private volatile boolean broken = false;
+
+	// System.nanoTime() of the last close of a logical connection
+	volatile long returnedAt = System.nanoTime();
+
+	PataPooledConnection(PataConnection physical, int statementCacheSize)
+	{
+		this.physical = physical;
+		this.statementCacheSize = statementCacheSize;
+
+		statementCache = new LinkedHashMap<String, PataPreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PataPreparedStatement> eldest)
+			{
+				if (size() <= PataPooledConnection.this.statementCacheSize)
+				{
+					return false;
+				}
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	@Override
+	public synchronized Connection getConnection() throws SQLException
+	{
+		if (isPhysicalClosed())
+		{
+			throw new SQLException("Connection was closed");
+		}
+
+		// Only the newest logical connection may be used
+		if (logical != null)
+		{
+			logical.close(false);
+		}
+		logical = new LogicalConnection();
+
+		return logical.proxy;
+	}
+
+	@Override
+	public void close() throws SQLException
+	{
+		synchronized (this)
+		{
+			if (logical != null)
+			{
+				logical.closed = true;
+				logical = null;
+			}
+			for (PataPreparedStatement stmt : statementCache.values())
+			{
+				closeQuietly(stmt);
+			}
+			statementCache.clear();
+		}
+		physical.close();
+	}
+
+	@Override
+	public void addConnectionEventListener(ConnectionEventListener listener)
+	{
+		connectionListeners.add(listener);
+	}
+
+	@Override
+	public void removeConnectionEventListener(ConnectionEventListener listener)
+	{
+		connectionListeners.remove(listener);
+	}
+
+	@Override
+	public void addStatementEventListener(StatementEventListener listener)
+	{
+		statementListeners.add(listener);
+	}
+
+	@Override
+	public void removeStatementEventListener(StatementEventListener listener)
+	{
+		statementListeners.remove(listener);
+	}
+
+	/**
+	 * Pings the session of the connection
+	 */
+	boolean isValid()
+	{
+		try
+		{
+			return physical.isValid(0);
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+	}
+
+	private boolean isPhysicalClosed()
+	{
+		try
+		{
+			return physical.isClosed();
+		}
+		catch (SQLException e)
+		{
+			return true;
+		}
+	}
+
+	synchronized int getCachedStatements()
+	{
+		return statementCache.size();
+	}
+
+	/**
+	 * Makes the connection look new again: open statements go back to the cache,
+	 * a transaction is rolled back and auto-commit is switched on
+	 */
+	private void reset(LogicalConnection closing) throws SQLException
+	{
+		for (StatementHandle handle : new ArrayList<StatementHandle>(closing.statements))
+		{
+			handle.close();
+		}
+
+		// Pipelined updates are only sent outside of auto-commit, the rollback drops them
+		if (!physical.getAutoCommit())
+		{
+			physical.rollback();
+			physical.setAutoCommit(true);
+		}
+	}
+
+	private synchronized PreparedStatement prepareCached(LogicalConnection owner, String sql) throws SQLException
+	{
+		PataPreparedStatement stmt = statementCache.remove(sql);
+		if (stmt == null)
+		{
+			stmt = (PataPreparedStatement)physical.prepareStatement(sql);
+		}
+
+		StatementHandle handle = new StatementHandle(owner, sql, stmt);
+		owner.statements.add(handle);
+		return handle.proxy;
+	}
+
+	private synchronized void release(StatementHandle handle)
+	{
+		handle.owner.statements.remove(handle);
+
+		// A statement that failed might be gone on the server
+		if (statementCacheSize <= 0 || handle.failed || isPhysicalClosed())
+		{
+			closeQuietly(handle.stmt);
+			return;
+		}
+		try
+		{
+			ResultSet rs = handle.stmt.getResultSet();
+			if (rs != null)
+			{
+				rs.close();
+			}
+			handle.stmt.clearParameters();
+		}
+		catch (SQLException e)
+		{
+			closeQuietly(handle.stmt);
+			return;
+		}
+
+		PataPreparedStatement replaced = statementCache.put(handle.sql, handle.stmt);
+		if (replaced != null && replaced != handle.stmt)
+		{
+			closeQuietly(replaced);
+		}
+	}
+
+	private static void closeQuietly(PataPreparedStatement stmt)
+	{
+		try
+		{
+			stmt.close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable
+	{
+		try
+		{
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * What the application gets as its Connection, everything but close() and
+	 * prepareStatement(String) goes straight to the PataConnection
+	 */
+	private class LogicalConnection implements InvocationHandler
+	{
+		final Connection proxy = (Connection)Proxy.newProxyInstance(PataPooledConnection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, this);
+
+		final List<StatementHandle> statements = new ArrayList<StatementHandle>();
+
+		volatile boolean closed = false;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			switch (method.getName())
+			{
+				case "close":
+				{
+					close(true);
+					return null;
+				}
+				case "isClosed":
+				{
+					return closed || isPhysicalClosed();
+				}
+				case "equals":
+				{
+					return proxy == args[0];
+				}
+				case "hashCode":
+				{
+					return System.identityHashCode(proxy);
+				}
+				case "toString":
+				{
+					return "Pooled " + physical;
+				}
+			}
+			if (closed)
+			{
+				if (method.getName().equals("isValid"))
+				{
+					return false;
+				}
+				throw new SQLException("Connection was closed");
+			}
+			if (method.getName().equals("prepareStatement") && args.length == 1)
+			{
+				return prepareCached(this, (String)args[0]);
+			}
+
+			try
+			{
+				return invokeOn(physical, method, args);
+			}
+			catch (SQLException e)
+			{
+				if (isPhysicalClosed())
+				{
+					fireConnectionError(e);
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * Resets the connection, listeners are told if the application closed it
+		 */
+		void close(boolean notify) throws SQLException
+		{
+			synchronized (PataPooledConnection.this)
+			{
+				if (closed)
+				{
+					return;
+				}
+				closed = true;
+				if (logical == this)
+				{
+					logical = null;
+				}
+			}
+			if (broken)
+			{
+				return;
+			}
+
+			try
+			{
+				reset(this);
+			}
+			catch (SQLException e)
+			{
+				fireConnectionError(e);
+				throw e;
+			}
+			returnedAt = System.nanoTime();
+
+			if (notify)
+			{
+				ConnectionEvent event = new ConnectionEvent(PataPooledConnection.this);
+				for (ConnectionEventListener listener : connectionListeners)
+				{
+					listener.connectionClosed(event);
+				}
+			}
+		}
+	}
+
+	private void fireConnectionError(SQLException e)
+	{
+		synchronized (this)
+		{
+			if (broken)
+			{
+				return;
+			}
+			broken = true;
+		}
+		ConnectionEvent event = new ConnectionEvent(this, e);
+		for (ConnectionEventListener listener : connectionListeners)
+		{
+			listener.connectionErrorOccurred(event);
+		}
+	}
+
+	/**
+	 * A prepared statement of a logical connection, closing it returns the
+	 * PataPreparedStatement to the cache
+	 */
+	private class StatementHandle implements InvocationHandler
+	{
+		final PreparedStatement proxy = (PreparedStatement)Proxy.newProxyInstance(PataPooledConnection.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, this);
+
+		final LogicalConnection owner;
+		final String sql;
+		final PataPreparedStatement stmt;
+
+		boolean closed = false;
+		boolean failed = false;
+
+		StatementHandle(LogicalConnection owner, String sql, PataPreparedStatement stmt)
+		{
+			this.owner = owner;
+			this.sql = sql;
+			this.stmt = stmt;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			switch (method.getName())
+			{
+				case "close":
+				{
+					close();
+					return null;
+				}
+				case "isClosed":
+				{
+					return closed;
+				}
+				case "equals":
+				{
+					return proxy == args[0];
+				}
+				case "hashCode":
+				{
+					return System.identityHashCode(proxy);
+				}
+				case "toString":
+				{
+					return "Pooled statement " + sql;
+				}
+			}
+			if (closed)
+			{
+				throw new SQLException("Statement was closed");
+			}
+			if (method.getName().equals("getConnection"))
+			{
+				return owner.proxy;
+			}
+
+			try
+			{
+				return invokeOn(stmt, method, args);
+			}
+			catch (SQLException e)
+			{
+				failed = true;
+				StatementEvent event = new StatementEvent(PataPooledConnection.this, this.proxy, e);
+				for (StatementEventListener listener : statementListeners)
+				{
+					listener.statementErrorOccurred(event);
+				}
+				throw e;
+			}
+		}
+
+		void close()
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			release(this);
+
+			StatementEvent event = new StatementEvent(PataPooledConnection.this, proxy);
+			for (StatementEventListener listener : statementListeners)
+			{
+				listener.statementClosed(event);
+			}
+		}
+	}
+}
@@ -20,7 +20,6 @@
 
 package duckdb_driver.pata.jdbc;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
@@ -50,20 +49,37 @@ import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.UUID;
+import java.util.concurrent.Flow;
 
 import duckdb_driver.pata.commands.ExecuteUpdate;
 import duckdb_driver.pata.responses.*;
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.vector.VectorSchemaRoot;
 import org.apache.arrow.vector.ipc.ArrowStreamReader;
 import org.duckdb.StatementReturnType;
 
 import duckdb_driver.pata.commands.Execute;
 import duckdb_driver.pata.commands.PrepareSql;
+import duckdb_driver.pata.commands.Protocol;
 
 public class PataPreparedStatement implements PreparedStatement
 {
 	PataConnection conn;
 	UUID statementId;
 	String preparedSql;
+	int resultSetType = ResultSet.TYPE_FORWARD_ONLY;
+	// Seconds, enforced by the server
+	private int queryTimeout = 0;
+	// Rows publish() fetches at most per round trip, 0 for the default
+	private int fetchSize = 0;
+	// Codec of the results, null for none. Taken from the connection.
+	private String compression;
+	private boolean adaptiveCompression;
+	
+	// Rows of a record batch sent by the server
+	private static final int BATCH_ROWS = 2048;
+	// Record batches publish() fetches at most per round trip by default
+	private static final int DEFAULT_FETCH_BATCHES = 16;
 
 	private PataResultSet select_result = null;
 	private int update_result = 0;
@@ -75,6 +91,11 @@ public class PataPreparedStatement implements PreparedStatement
 	private boolean returnsResultSet = false;
 
 	public PataPreparedStatement(PataConnection conn) throws SQLException
+	{
+		this(conn, ResultSet.TYPE_FORWARD_ONLY);
+	}
+	
+	public PataPreparedStatement(PataConnection conn, int resultSetType) throws SQLException
 	{
 		if (conn == null)
 		{
@@ -82,9 +103,17 @@ public class PataPreparedStatement implements PreparedStatement
 		}
 		this.conn = conn;
 		this.statementId = UUID.randomUUID();
+		this.resultSetType = resultSetType;
+		this.compression = conn.compression;
+		this.adaptiveCompression = conn.adaptiveCompression;
 	}
 
 	public PataPreparedStatement(PataConnection conn, String sql) throws SQLException
+	{
+		this(conn, sql, ResultSet.TYPE_FORWARD_ONLY);
+	}
+	
+	public PataPreparedStatement(PataConnection conn, String sql, int resultSetType) throws SQLException
 	{
 		if (conn == null)
 		{
@@ -96,6 +125,9 @@ public class PataPreparedStatement implements PreparedStatement
 		}
 		this.conn = conn;
 		this.statementId = UUID.randomUUID();
+		this.resultSetType = resultSetType;
+		this.compression = conn.compression;
+		this.adaptiveCompression = conn.adaptiveCompression;
 		prepare(sql);
 	}
 	
@@ -118,20 +150,15 @@ public class PataPreparedStatement implements PreparedStatement
 
 		try 
 		{
+			// The previously prepared statement is not needed anymore
+			closeServerStatement();
+			
 			// Send Prepare cmd
 			PrepareSql cmd = new PrepareSql(sql);
 			statementId = cmd.statementID;
 			
-			conn.connectionSocketChannel.write(cmd.encodeCommand());
-			ByteBuffer response = ByteBuffer.allocate(1000);
-					
-			int readCnt = 0;
-			
-			readCnt = conn.connectionSocketChannel.read(response);
-			
-			response.position(0);
-			
-			PataResponse resp = ResponseDecoder.decodeBuffer(response);
+			conn.releaseOpenResult();
+			PataResponse resp = conn.request(cmd);
 
 			if (resp instanceof ExceptionRaised)
 			{
@@ -179,23 +206,32 @@ public class PataPreparedStatement implements PreparedStatement
 		try 
 		{
 			// Send Execute cmd
-			Execute cmd = new Execute(statementId, parameterTypes, parameters, conn.autoCommit);
-			
-			conn.connectionSocketChannel.write(cmd.encodeCommand());
-			ByteBuffer response = ByteBuffer.allocate(10_000_000);
+			Execute cmd = createExecute();
 			
-			int readCnt = 0;
-			readCnt = conn.connectionSocketChannel.read(response);
-//			System.out.println("Execute - readCnt: " + readCnt);
-					
-			response.position(0);
+			conn.releaseOpenResult();
+			conn.runningStatementIds.add(statementId);
+			int requestId;
+			ByteBuffer response;
+			try
+			{
+				requestId = conn.send(cmd);
+				response = conn.receive(requestId);
+			}
+			finally
+			{
+				conn.runningStatementIds.remove(statementId);
+			}
 
-			PataResponse pataResponse =	ResponseDecoder.decodeBuffer(response);
+			PataResponse pataResponse =	conn.decode(response);
 
 			if (pataResponse instanceof ExceptionRaised)
 			{
 				throw new SQLException(((ExceptionRaised)pataResponse).exceptionMsg);
 			}
+			if (pataResponse instanceof Cancelled)
+			{
+				throw ((Cancelled)pataResponse).toSQLException();
+			}
 
 			Result resp = (Result)pataResponse;
 
@@ -203,22 +239,13 @@ public class PataPreparedStatement implements PreparedStatement
 			switch (resp.queryType)
 			{
 				case QUERY_RESULT:
-					// Read potential rest of response from buffer
-					while (readCnt < resp.arrowSize + resp.jsonSize + 50)
-					{
-						resp.arrowBuffer.position(readCnt);
-						readCnt = readCnt + conn.connectionSocketChannel.read(response);
-						System.out.println("Execute - readCnt: " + readCnt);
-					}
-					
-					resp.arrowBuffer.position(resp.jsonSize + 50);
-					
-					byte[] arrowArray = new byte[resp.arrowBuffer.limit() - resp.arrowBuffer.position()];
-					resp.arrowBuffer.get(resp.arrowBuffer.position(), arrowArray);
+					// The arrow part is read from the socket while the result set is consumed
+					PataResultStream arrowStream = conn.resultStream(requestId, response, resp);
 					
-					ArrowStreamReader ar = new ArrowStreamReader(new ByteArrayInputStream(arrowArray), conn.allocator);
+					ArrowStreamReader ar = new ArrowStreamReader(arrowStream, conn.allocator, CommonsCompressionFactory.INSTANCE);
 					
-					select_result = new PataResultSet(this, ar);
+					select_result = new PataResultSet(this, conn.createBatchReader(ar), 
+							resultSetType == ResultSet.TYPE_SCROLL_INSENSITIVE);
 					
 					this.meta = (PataResultSetMetaData) select_result.getMetaData();
 					
@@ -242,12 +269,79 @@ public class PataPreparedStatement implements PreparedStatement
 		}
 		catch (Exception e) 
 		{
+			if (isCancellation(e))
+			{
+				throw (SQLException) e;
+			}
 			close();
 			throw new SQLException(e);
 		}	
 		return !returnsChangedRows;
 	}	
 	
+	Execute createExecute()
+	{
+		Execute cmd = new Execute(statementId, parameterTypes, parameters, conn.autoCommit);
+		cmd.queryTimeout = queryTimeout;
+		cmd.compression = conn.getNegotiatedCompression(compression);
+		cmd.adaptiveCompression = adaptiveCompression;
+		cmd.dictionaries = conn.dictionaries && conn.hasCapability(Protocol.DICTIONARY);
+		cmd.compactTypes = conn.hasCapability(Protocol.COMPACT_TYPES);
+		return cmd;
+	}
+	
+	/**
+	 * Codec of the record batches of the results of this statement: none,
+	 * lz4_frame or zstd. Overrides the pata.compression of the connection, the
+	 * server only compresses if it supports the codec.
+	 */
+	public void setCompression(String compression) throws SQLException
+	{
+		this.compression = PataConnection.checkCompression(compression);
+	}
+	
+	/**
+	 * The codec of the results, null for none
+	 */
+	public String getCompression()
+	{
+		return compression;
+	}
+	
+	/**
+	 * Parts of record batches that don't compress well are sent uncompressed
+	 */
+	public void setAdaptiveCompression(boolean adaptive)
+	{
+		this.adaptiveCompression = adaptive;
+	}
+	
+	public boolean isAdaptiveCompression()
+	{
+		return adaptiveCompression;
+	}
+	
+	/**
+	 * Publisher for the record batches of the query. It is executed when the
+	 * subscriber requests the first batches, with the parameters set then.
+	 * The result is fetched in parts of at most getFetchSize() rows, driven
+	 * by the demand of the subscriber, see {@link PataBatchPublisher}.
+	 */
+	public Flow.Publisher<VectorSchemaRoot> publish() throws SQLException
+	{
+		if (isClosed()) 
+		{
+			throw new SQLException("Statement was closed");
+		}
+		if (preparedSql == null) 
+		{
+			throw new SQLException("Prepare something first");
+		}
+		
+		int maxFetchBatches = fetchSize == 0 ? DEFAULT_FETCH_BATCHES : (fetchSize + BATCH_ROWS - 1) / BATCH_ROWS;
+		return new PataBatchPublisher(this, maxFetchBatches);
+	}
+	
 	@Override
 	public ResultSet executeQuery(String sql) throws SQLException
 	{
@@ -273,12 +367,23 @@ public class PataPreparedStatement implements PreparedStatement
 	@Override
 	public void close() throws SQLException
 	{
-		// TODO Auto-generated method stub
-		// send close connection cmd
+		closeServerStatement();
 		statementId = null;
 		preparedSql = null;
 		conn = null;
 	}
+	
+	/**
+	 * Frees the prepared statement on the server, with the next command of the connection
+	 */
+	private void closeServerStatement()
+	{
+		if (conn != null && preparedSql != null && statementId != null)
+		{
+			conn.closeStatement(statementId);
+		}
+		preparedSql = null;
+	}
 
 	@Override
 	public int getMaxFieldSize() throws SQLException
@@ -312,19 +417,49 @@ public class PataPreparedStatement implements PreparedStatement
 	@Override
 	public int getQueryTimeout() throws SQLException
 	{
-		return 0;
+		return queryTimeout;
 	}
 
 	@Override
 	public void setQueryTimeout(int seconds) throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		if (seconds < 0)
+		{
+			throw new SQLException("Query timeout must be >= 0");
+		}
+		queryTimeout = seconds;
 	}
 
 	@Override
 	public void cancel() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		// Called from another thread while execute() waits for the server
+		PataConnection connection = conn;
+		UUID id = statementId;
+		
+		if (connection == null || id == null)
+		{
+			throw new SQLException("Statement was closed");
+		}
+		connection.cancel(id);
+	}
+	
+	/**
+	 * A cancelled statement stays prepared and can be executed again
+	 */
+	private static boolean isCancellation(Exception e)
+	{
+		return e instanceof SQLException && Cancelled.sqlState.equals(((SQLException) e).getSQLState());
+	}
+
+	ArrayList<String> getParameterTypes()
+	{
+		return parameterTypes;
+	}
+	
+	ArrayList<Object> getParameters()
+	{
+		return parameters;
 	}
 
 	@Override
@@ -399,13 +534,17 @@ public class PataPreparedStatement implements PreparedStatement
 	@Override
 	public void setFetchSize(int rows) throws SQLException
 	{
+		if (rows < 0)
+		{
+			throw new SQLException("Fetch size must be >= 0");
+		}
+		fetchSize = rows;
 	}
 
 	@Override
 	public int getFetchSize() throws SQLException
 	{
-		// TODO Auto-generated method stub
-		return 0;
+		return fetchSize;
 	}
 
 	@Override
@@ -417,7 +556,7 @@ public class PataPreparedStatement implements PreparedStatement
 	@Override
 	public int getResultSetType() throws SQLException
 	{
-		return ResultSet.TYPE_FORWARD_ONLY;
+		return resultSetType;
 	}
 
 	@Override
@@ -531,13 +670,17 @@ public class PataPreparedStatement implements PreparedStatement
 	@Override
 	public <T> T unwrap(Class<T> iface) throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		if (iface.isInstance(this))
+		{
+			return iface.cast(this);
+		}
+		throw new SQLException("Can't unwrap to " + iface.getName());
 	}
 
 	@Override
 	public boolean isWrapperFor(Class<?> iface) throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		return iface.isInstance(this);
 	}
 
 	@Override
@@ -560,22 +703,40 @@ public class PataPreparedStatement implements PreparedStatement
 		{
 			// Send Execute cmd
 			ExecuteUpdate cmd = new ExecuteUpdate(statementId, parameterTypes, parameters, conn.autoCommit);
+			cmd.queryTimeout = queryTimeout;
 
-			conn.connectionSocketChannel.write(cmd.encodeCommand());
-			ByteBuffer response = ByteBuffer.allocate(10_000_000);
-
-			int readCnt = 0;
-			readCnt = conn.connectionSocketChannel.read(response);
-//			System.out.println("Execute - readCnt: " + readCnt);
-
-			response.position(0);
-
-			PataResponse pataResponse =	ResponseDecoder.decodeBuffer(response);
+			conn.releaseOpenResult();
+			
+			// Failures only show up with the next command, in the worst case on commit
+			if (conn.pipelineDepth > 0 && !conn.autoCommit)
+			{
+				conn.sendPipelined(cmd);
+				update_result = 0;
+				returnsChangedRows = true;
+				returnsNothing = false;
+				returnsResultSet = true;
+				return update_result;
+			}
+			
+			conn.runningStatementIds.add(statementId);
+			PataResponse pataResponse;
+			try
+			{
+				pataResponse = conn.request(cmd);
+			}
+			finally
+			{
+				conn.runningStatementIds.remove(statementId);
+			}
 
 			if (pataResponse instanceof ExceptionRaised)
 			{
 				throw new SQLException(((ExceptionRaised)pataResponse).exceptionMsg);
 			}
+			if (pataResponse instanceof Cancelled)
+			{
+				throw ((Cancelled)pataResponse).toSQLException();
+			}
 
 			Result resp = (Result)pataResponse;
 
@@ -597,6 +758,10 @@ public class PataPreparedStatement implements PreparedStatement
 		}
 		catch (Exception e)
 		{
+			if (isCancellation(e))
+			{
+				throw (SQLException) e;
+			}
 			close();
 			throw new SQLException(e);
 		}
@@ -20,7 +20,6 @@
 
 package duckdb_driver.pata.jdbc;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
@@ -42,15 +41,21 @@ import java.sql.SQLXML;
 import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.Calendar;
 import java.util.Map;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.arrow.vector.*;
 import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.Schema;
 import org.duckdb.DuckDBColumnType;
 import org.duckdb.DuckDBTimestamp;
 
@@ -59,6 +64,7 @@ public class PataResultSet implements ResultSet
 	private static DateTimeFormatter timeFormat = DateTimeFormatter.ISO_TIME;
 
 	private VectorSchemaRoot resultVector;
+	private PataBatchReader batches;
 	private PataPreparedStatement stmt;
 	private PataResultSetMetaData meta;
 
@@ -66,29 +72,53 @@ public class PataResultSet implements ResultSet
 	private int row = -1; // The first next() call will make it 0
 	private int rowCnt;
 	private boolean wasNull = false;
+	
+	// Scrollable result sets keep their batches, position is the 0-based row in the whole result
+	private PataBatchCache cache;
+	private int position = -1;
+	private boolean allFetched = false;
 
-	public PataResultSet(PataPreparedStatement stmt, ArrowStreamReader ar)
+	public PataResultSet(PataPreparedStatement stmt, ArrowStreamReader ar) throws SQLException
 	{
-		try
+		this(stmt, new PataBatchReader(ar, stmt.conn.allocator), false);
+	}
+	
+	PataResultSet(PataPreparedStatement stmt, PataBatchReader batches, boolean scrollable) throws SQLException
+	{
+		this.stmt = stmt;
+		this.batches = batches;
+		
+		Schema schema = batches.getSchema();
+		this.meta = new PataResultSetMetaData(schema.getFields(), batches.dictionaries);
+		
+		// Load first batch, an empty result still gets a (empty) root
+		this.resultVector = batches.nextBatch();
+		if (resultVector == null)
 		{
-			this.stmt = stmt;
-			
-			// Create schema root and load data
-			this.resultVector = ar.getVectorSchemaRoot();
-			ar.loadNextBatch();
-			
-			this.meta = new PataResultSetMetaData(resultVector.getSchema().getFields());
-			this.rowCnt = resultVector.getRowCount();
+			resultVector = VectorSchemaRoot.create(schema, stmt.conn.allocator);
 		}
-		catch (SQLException e)
-		{
-			e.printStackTrace();
-		} catch (IOException e)
+		this.rowCnt = resultVector.getRowCount();
+		
+		if (scrollable)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			cache = new PataBatchCache(stmt.conn.allocator, schema, stmt.conn.scrollMemoryLimit);
+			cache.add(resultVector);
+			resultVector = cache.getBatch(0);
 		}
 	}
+	
+	/**
+	 * Cursor over a single record batch, starting at firstRow. Used by the
+	 * stream view, every batch gets its own cursor.
+	 */
+	PataResultSet(PataPreparedStatement stmt, PataResultSetMetaData meta, VectorSchemaRoot batch, int firstRow)
+	{
+		this.stmt = stmt;
+		this.meta = meta;
+		this.resultVector = batch;
+		this.rowCnt = batch.getRowCount();
+		this.row = firstRow - 1;
+	}
 
 	@Override
 	public boolean next() throws SQLException
@@ -97,6 +127,10 @@ public class PataResultSet implements ResultSet
 		{
 			throw new SQLException("ResultSet was closed");
 		}
+		if (cache != null)
+		{
+			return moveTo(position + 1L);
+		}
 		if (finished) {
 			return false;
 		}
@@ -106,16 +140,175 @@ public class PataResultSet implements ResultSet
 			row++;
 			return true;
 		}
+		
+		// Current batch is done, continue with the next one
+		if (loadNextBatch())
+		{
+			row = 0;
+			return true;
+		}
+		
+		finished = true;
+		return false;
+	}
+	
+	private boolean loadNextBatch() throws SQLException
+	{
+		if (batches == null)
+		{
+			return false;
+		}
+		
+		VectorSchemaRoot nextBatch = batches.nextBatch();
+		if (nextBatch == null)
+		{
+			return false;
+		}
+		
+		resultVector.close();
+		resultVector = nextBatch;
+		rowCnt = resultVector.getRowCount();
+		row = -1;
+		return true;
+	}
+	
+	/**
+	 * Positions a scrollable result set on the 0-based row target, fetching
+	 * batches as far as needed. Targets outside of the result end up before
+	 * the first or after the last row.
+	 */
+	private boolean moveTo(long target) throws SQLException
+	{
+		if (target < 0)
+		{
+			position = -1;
+			return false;
+		}
+		
+		while (target >= cache.getRowCount() && fetchBatch())
+		{
+		}
+		
+		if (target >= cache.getRowCount())
+		{
+			position = cache.getRowCount();
+			return false;
+		}
+		
+		int index = cache.findBatch((int) target);
+		resultVector = cache.getBatch(index);
+		rowCnt = resultVector.getRowCount();
+		row = (int) target - cache.getStartRow(index);
+		position = (int) target;
+		return true;
+	}
+	
+	private boolean fetchBatch() throws SQLException
+	{
+		if (allFetched)
+		{
+			return false;
+		}
+		
+		VectorSchemaRoot nextBatch = batches.nextBatch();
+		if (nextBatch == null)
+		{
+			allFetched = true;
+			return false;
+		}
+		
+		cache.add(nextBatch);
+		return true;
+	}
+	
+	private void checkScrollable() throws SQLException
+	{
+		if (isClosed())
+		{
+			throw new SQLException("ResultSet was closed");
+		}
+		if (cache == null)
+		{
+			throw new SQLFeatureNotSupportedException("ResultSet is TYPE_FORWARD_ONLY");
+		}
+	}
+	
+	/**
+	 * Returns the remaining rows of this result set as a stream.
+	 * <p>
+	 * The spliterator splits along the Arrow record batches: a parallel stream
+	 * processes every batch as an independent task, while the batches after it
+	 * are still being read. Afterwards the result set is positioned after the
+	 * last row. Closing the stream releases batches that were not consumed.
+	 */
+	public Stream<PataRow> stream() throws SQLException
+	{
+		if (isClosed())
+		{
+			throw new SQLException("ResultSet was closed");
+		}
+		if (cache != null)
+		{
+			throw new SQLFeatureNotSupportedException("stream() needs a TYPE_FORWARD_ONLY result set");
+		}
+		
+		PataRowSpliterator spliterator;
+		if (finished)
+		{
+			spliterator = new PataRowSpliterator(stmt, meta, null, null, 0);
+		}
 		else
 		{
+			// The spliterator takes over the current batch and the batch reader
+			spliterator = new PataRowSpliterator(stmt, meta, resultVector, batches, row + 1);
+			batches = null;
 			finished = true;
-			return false;
 		}
+		
+		return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+	}
+	
+	/**
+	 * Number of rows in the current batch after the current row
+	 */
+	int remainingRows()
+	{
+		return rowCnt - row - 1;
+	}
+	
+	/**
+	 * Values of all columns in the current row
+	 */
+	PataRow getRow(int columnCount) throws SQLException
+	{
+		Object[] values = new Object[columnCount];
+		
+		for (int i = 0; i < columnCount; i++)
+		{
+			values[i] = getObject(i + 1);
+		}
+		
+		return new PataRow(meta, values);
 	}
 
 	@Override
 	public void close() throws SQLException
 	{
+		// Batches of a single-batch cursor belong to its stream
+		if (cache != null)
+		{
+			cache.close();
+			cache = null;
+		}
+		else if (batches != null)
+		{
+			resultVector.close();
+		}
+		if (batches != null)
+		{
+			batches.close();
+			batches = null;
+		}
 		stmt = null;
 		meta = null;
 		resultVector = null;
@@ -154,7 +347,14 @@ public class PataResultSet implements ResultSet
 		if (isType(columnIndex, DuckDBColumnType.VARCHAR)
 				|| isType(columnIndex, DuckDBColumnType.ENUM))
 		{
-			return new String(((VarCharVector)resultVector.getVector(columnIndex - 1)).get(row));
+			FieldVector vector = resultVector.getVector(columnIndex - 1);
+			DictionaryEncoding encoding = vector.getField().getDictionary();
+			if (encoding != null)
+			{
+				// Same String for every row with this value
+				return meta.dictionaries.get(encoding.getId(), ((IntVector) vector).get(row));
+			}
+			return new String(((VarCharVector) vector).get(row));
 		}
 
 		Object res = getObject(columnIndex);
@@ -504,7 +704,12 @@ public class PataResultSet implements ResultSet
 		
 		if (isType(columnIndex, DuckDBColumnType.DATE))
 		{
-			return Date.valueOf(((DateMilliVector)resultVector.getVector(columnIndex - 1)).getObject(row).toLocalDate());
+			FieldVector vector = resultVector.getVector(columnIndex - 1);
+			if (vector instanceof DateDayVector)
+			{
+				return Date.valueOf(LocalDate.ofEpochDay(((DateDayVector) vector).get(row)));
+			}
+			return Date.valueOf(((DateMilliVector) vector).getObject(row).toLocalDate());
 		}
 
 		return Date.valueOf(getObject(columnIndex).toString());
@@ -526,7 +731,14 @@ public class PataResultSet implements ResultSet
 		if (isType(columnIndex, DuckDBColumnType.TIME))
 		{
 			//return Time.valueOf(((TimeMilliVector)resultVector.getVector(columnIndex - 1)).getObject(row).toLocalDate().format(timeFormat));
-			return new Time(((TimeMilliVector)resultVector.getVector(columnIndex - 1)).get(row));
+			FieldVector vector = resultVector.getVector(columnIndex - 1);
+			if (vector instanceof TimeMicroVector)
+			{
+				// Time of day in the local time zone, with the milliseconds that java.sql.Time keeps
+				LocalTime time = LocalTime.ofNanoOfDay(((TimeMicroVector) vector).get(row) * 1000);
+				return new Time(Time.valueOf(time).getTime() + time.getNano() / 1_000_000);
+			}
+			return new Time(((TimeMilliVector) vector).get(row));
 		}
 
 		return Time.valueOf(getObject(columnIndex).toString());
@@ -864,7 +1076,17 @@ public class PataResultSet implements ResultSet
 		
 		if (isType(columnIndex, DuckDBColumnType.DECIMAL))
 		{
-			return ((Decimal256Vector)resultVector.getVector(columnIndex - 1)).getObject(row);
+			FieldVector vector = resultVector.getVector(columnIndex - 1);
+			if (vector instanceof Decimal256Vector)
+			{
+				return ((Decimal256Vector) vector).getObject(row);
+			}
+			if (vector instanceof DecimalVector)
+			{
+				return ((DecimalVector) vector).getObject(row);
+			}
+			// Unscaled value of a decimal with up to 18 digits
+			return BigDecimal.valueOf(((BaseIntVector) vector).getValueAsLong(row), meta.resultColumnScales.get(columnIndex - 1));
 		}
 
 		Object res = getObject(columnIndex);
@@ -885,79 +1107,117 @@ public class PataResultSet implements ResultSet
 	@Override
 	public boolean isBeforeFirst() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		return position == -1 && cache.getRowCount() > 0;
 	}
 
 	@Override
 	public boolean isAfterLast() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		return cache.getRowCount() > 0 && position >= cache.getRowCount();
 	}
 
 	@Override
 	public boolean isFirst() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		return position == 0 && cache.getRowCount() > 0;
 	}
 
 	@Override
 	public boolean isLast() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		if (position < 0 || position >= cache.getRowCount())
+		{
+			return false;
+		}
+		
+		// Only a fetch can tell, if there is another row
+		while (position + 1 >= cache.getRowCount() && fetchBatch())
+		{
+		}
+		return position == cache.getRowCount() - 1;
 	}
 
 	@Override
 	public void beforeFirst() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		moveTo(-1);
 	}
 
 	@Override
 	public void afterLast() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		moveTo(Long.MAX_VALUE);
 	}
 
 	@Override
 	public boolean first() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		return moveTo(0);
 	}
 
 	@Override
 	public boolean last() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		while (fetchBatch())
+		{
+		}
+		return moveTo(cache.getRowCount() - 1L);
 	}
 
 	@Override
 	public int getRow() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		if (position < 0 || position >= cache.getRowCount())
+		{
+			return 0;
+		}
+		return position + 1;
 	}
 
 	@Override
 	public boolean absolute(int row) throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		if (row >= 0)
+		{
+			return moveTo(row - 1L);
+		}
+		
+		// Negative rows count from the end
+		while (fetchBatch())
+		{
+		}
+		return moveTo(cache.getRowCount() + (long) row);
 	}
 
 	@Override
 	public boolean relative(int rows) throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		return moveTo((long) position + rows);
 	}
 
 	@Override
 	public boolean previous() throws SQLException
 	{
-		throw new SQLFeatureNotSupportedException();
+		checkScrollable();
+		return moveTo(position - 1L);
 	}
 
 	@Override
 	public void setFetchDirection(int direction) throws SQLException
 	{
-		if (direction != ResultSet.FETCH_FORWARD && direction != ResultSet.FETCH_UNKNOWN)
+		if (direction != ResultSet.FETCH_FORWARD && direction != ResultSet.FETCH_UNKNOWN
+				&& (direction != ResultSet.FETCH_REVERSE || cache == null))
 		{
 			throw new SQLFeatureNotSupportedException();
 		}
@@ -988,7 +1248,7 @@ public class PataResultSet implements ResultSet
 	@Override
 	public int getType() throws SQLException
 	{
-		return ResultSet.TYPE_FORWARD_ONLY;
+		return cache == null ? ResultSet.TYPE_FORWARD_ONLY : ResultSet.TYPE_SCROLL_INSENSITIVE;
 	}
 
 	@Override
@@ -1959,14 +2219,16 @@ public class PataResultSet implements ResultSet
 	@Override
 	public <T> T unwrap(Class<T> iface) throws SQLException
 	{
-		// TODO Auto-generated method stub
-		return null;
+		if (iface.isInstance(this))
+		{
+			return iface.cast(this);
+		}
+		throw new SQLException("Not a wrapper for " + iface.getName());
 	}
 
 	@Override
 	public boolean isWrapperFor(Class<?> iface) throws SQLException
 	{
-		// TODO Auto-generated method stub
-		return false;
+		return iface.isInstance(this);
 	}
 }
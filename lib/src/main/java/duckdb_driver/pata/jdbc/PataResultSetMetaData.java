@@ -40,15 +40,27 @@ public class PataResultSetMetaData implements ResultSetMetaData
 	protected List<Field> arrowFields = new ArrayList<Field>();
 	protected List<Integer> resultColumnSqlTypes = new ArrayList<Integer>();
 	protected List<DuckDBColumnType> resultColumnDuckDBTypes = new ArrayList<DuckDBColumnType>();
+	// Decimals sent as unscaled values need it for every value
+	protected List<Integer> resultColumnScales = new ArrayList<Integer>();
+	// Values of the dictionary-encoded columns, null if the result has none
+	PataDictionaries dictionaries;
 	
 	public PataResultSetMetaData(List<Field> arrowFields) throws SQLException
+	{
+		this(arrowFields, null);
+	}
+	
+	PataResultSetMetaData(List<Field> arrowFields, PataDictionaries dictionaries) throws SQLException
 	{
 		this.arrowFields = arrowFields;
+		this.dictionaries = dictionaries;
 	
 		// Prepare DuckDB Types list
 		for (Field field : arrowFields)
 		{
 			resultColumnDuckDBTypes.add(getDuckDBColumnType(field));
+			String scale = field.getFieldType().getMetadata().get("Scale");
+			resultColumnScales.add(scale == null ? 0 : Integer.parseInt(scale));
 		}
 		
 		// Prepare SqlTypes list
@@ -209,8 +221,7 @@ public class PataResultSetMetaData implements ResultSetMetaData
 		{
 			throw new SQLException("Column index out of bounds");	
 		}
-		String scale = arrowFields.get(column - 1).getFieldType().getMetadata().get("Scale");
-		return scale == null ? 0 : Integer.parseInt(scale);
+		return resultColumnScales.get(column - 1);
 	}
 
 	@Override
@@ -0,0 +1,250 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Arrow part of a Result response, read from the connection's socket while the
+ * result set is consumed.
+ * <p>
+ * The connection can only send the next command after the whole response was
+ * received, so it calls detach() before that: the rest of the stream is then
+ * buffered in memory, or in a temporary file if it is larger than the memory
+ * limit (or skipped, if the stream was already closed).
+ */
+class PataResultStream extends InputStream
+{
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	// Largest array the JVM allocates reliably
+	private static final long MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+	
+	private final SocketChannel channel;
+	private final long memoryLimit;
+	private ByteBuffer buffer;
+	private ByteBuffer chunk;
+	private long remaining; // Bytes of the response still in the socket
+	private boolean closed = false;
+	
+	// Rest of a detached response that did not fit in memory
+	private Path spillPath;
+	private FileChannel spillChannel;
+	
+	PataResultStream(SocketChannel channel, ByteBuffer received, long remaining)
+	{
+		this(channel, received, remaining, MAX_BUFFER_SIZE);
+	}
+	
+	/**
+	 * @param received Bytes of the arrow part that were already read with the response header
+	 * @param remaining Bytes of the arrow part that are still to be read from the channel
+	 * @param memoryLimit Bytes detach() keeps in memory, a larger rest goes to a temporary file
+	 */
+	PataResultStream(SocketChannel channel, ByteBuffer received, long remaining, long memoryLimit)
+	{
+		this.channel = channel;
+		this.buffer = received;
+		this.remaining = remaining;
+		this.memoryLimit = Math.min(memoryLimit, MAX_BUFFER_SIZE);
+	}
+
+	@Override
+	public synchronized int read() throws IOException
+	{
+		if (!fill())
+		{
+			return -1;
+		}
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+		if (!fill())
+		{
+			return -1;
+		}
+		
+		int cnt = Math.min(len, buffer.remaining());
+		buffer.get(b, off, cnt);
+		return cnt;
+	}
+
+	@Override
+	public synchronized int available()
+	{
+		return buffer.remaining();
+	}
+	
+	@Override
+	public synchronized void close()
+	{
+		closed = true;
+		buffer = ByteBuffer.allocate(0);
+		chunk = null;
+		
+		if (spillChannel != null)
+		{
+			try
+			{
+				spillChannel.close();
+				Files.deleteIfExists(spillPath);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			spillChannel = null;
+		}
+	}
+	
+	/**
+	 * Reads the rest of the response from the socket, so the channel is free for
+	 * the next command. An open stream keeps the bytes for later reads.
+	 */
+	synchronized void detach() throws IOException
+	{
+		if (remaining == 0)
+		{
+			return;
+		}
+		
+		if (closed)
+		{
+			ByteBuffer skip = ByteBuffer.allocate(CHUNK_SIZE);
+			while (remaining > 0)
+			{
+				skip.clear();
+				skip.limit((int) Math.min(skip.capacity(), remaining));
+				remaining -= readChannel(skip);
+			}
+			return;
+		}
+		
+		if (buffer.remaining() + remaining > memoryLimit)
+		{
+			spill();
+			return;
+		}
+		
+		ByteBuffer rest = ByteBuffer.allocate((int) (buffer.remaining() + remaining));
+		rest.put(buffer);
+		while (remaining > 0)
+		{
+			remaining -= readChannel(rest);
+		}
+		buffer = rest.flip();
+		chunk = null;
+	}
+	
+	// Copies the buffered bytes and the rest of the socket to a temporary file
+	private void spill() throws IOException
+	{
+		spillPath = Files.createTempFile("pata-result", ".arrow");
+		spillPath.toFile().deleteOnExit();
+		spillChannel = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		
+		while (buffer.hasRemaining())
+		{
+			spillChannel.write(buffer);
+		}
+		if (chunk == null)
+		{
+			chunk = ByteBuffer.allocate(CHUNK_SIZE);
+		}
+		while (remaining > 0)
+		{
+			chunk.clear();
+			chunk.limit((int) Math.min(chunk.capacity(), remaining));
+			remaining -= readChannel(chunk);
+			chunk.flip();
+			while (chunk.hasRemaining())
+			{
+				spillChannel.write(chunk);
+			}
+		}
+		
+		spillChannel.position(0);
+		buffer = ByteBuffer.allocate(0);
+	}
+	
+	// Makes sure that buffer has bytes left, false at the end of the response
+	private boolean fill() throws IOException
+	{
+		if (buffer.hasRemaining())
+		{
+			return true;
+		}
+		if (closed)
+		{
+			return false;
+		}
+		if (spillChannel != null)
+		{
+			chunk.clear();
+			if (spillChannel.read(chunk) <= 0)
+			{
+				return false;
+			}
+			buffer = chunk.flip();
+			return true;
+		}
+		if (remaining == 0)
+		{
+			return false;
+		}
+		
+		if (chunk == null)
+		{
+			chunk = ByteBuffer.allocate(CHUNK_SIZE);
+		}
+		chunk.clear();
+		chunk.limit((int) Math.min(chunk.capacity(), remaining));
+		remaining -= readChannel(chunk);
+		buffer = chunk.flip();
+		
+		return true;
+	}
+	
+	private int readChannel(ByteBuffer target) throws IOException
+	{
+		int cnt = channel.read(target);
+		if (cnt == -1)
+		{
+			throw new EOFException("Connection closed before the result was complete");
+		}
+		return cnt;
+	}
+}
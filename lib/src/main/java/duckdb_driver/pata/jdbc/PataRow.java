@@ -0,0 +1,113 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.util.Arrays;
+
+/**
+ * One materialized row of a result, as handed out by {@link PataResultSet#stream()}.
+ * Values are the same objects getObject() of the result set returns. The accessors
+ * throw unchecked exceptions, so rows can be used inside stream lambdas.
+ */
+public final class PataRow
+{
+	private final PataResultSetMetaData meta;
+	private final Object[] values;
+	
+	PataRow(PataResultSetMetaData meta, Object[] values)
+	{
+		this.meta = meta;
+		this.values = values;
+	}
+	
+	public int getColumnCount()
+	{
+		return values.length;
+	}
+	
+	public Object getObject(int columnIndex)
+	{
+		if (columnIndex < 1 || columnIndex > values.length)
+		{
+			throw new IndexOutOfBoundsException("Column index out of bounds");
+		}
+		return values[columnIndex - 1];
+	}
+	
+	public Object getObject(String columnLabel)
+	{
+		for (int i = 0; i < values.length; i++)
+		{
+			if (columnLabel.equals(meta.arrowFields.get(i).getName()))
+			{
+				return values[i];
+			}
+		}
+		throw new IllegalArgumentException("Could not find column with label " + columnLabel);
+	}
+	
+	public long getLong(int columnIndex)
+	{
+		Object value = getObject(columnIndex);
+		
+		if (value == null)
+		{
+			return 0;
+		}
+		if (value instanceof Number)
+		{
+			return ((Number) value).longValue();
+		}
+		return Long.parseLong(value.toString());
+	}
+	
+	public double getDouble(int columnIndex)
+	{
+		Object value = getObject(columnIndex);
+		
+		if (value == null)
+		{
+			return 0;
+		}
+		if (value instanceof Number)
+		{
+			return ((Number) value).doubleValue();
+		}
+		return Double.parseDouble(value.toString());
+	}
+	
+	public String getString(int columnIndex)
+	{
+		Object value = getObject(columnIndex);
+		return value == null ? null : value.toString();
+	}
+	
+	public PataResultSetMetaData getMetaData()
+	{
+		return meta;
+	}
+
+	@Override
+	public String toString()
+	{
+		return Arrays.toString(values);
+	}
+}
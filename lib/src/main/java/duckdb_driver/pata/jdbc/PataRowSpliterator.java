@@ -0,0 +1,213 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+		The duckdb_driver.pata.jdbc package is derived from the DuckDB JDBC
+		driver (www.duckdb.org). DuckDB is licensed under the MIT License.*/
+
+
+package duckdb_driver.pata.jdbc;
+
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+/**
+ * Spliterator over the rows of a result that splits along record batches.
+ * <p>
+ * Only the spliterator holding the batch reader (the remainder of the stream)
+ * loads batches. trySplit() hands off the rest of its current batch, or the next
+ * batch read from the connection, as an ordered prefix. Every batch is its own
+ * VectorSchemaRoot, so the prefixes can be processed in parallel while the
+ * remainder keeps reading.
+ */
+class PataRowSpliterator implements Spliterator<PataRow>
+{
+	private final PataPreparedStatement stmt;
+	private final PataResultSetMetaData meta;
+	private final int columnCount;
+	
+	// Batches not yet released, shared by all splits of a stream
+	private final Set<VectorSchemaRoot> openBatches;
+	
+	private PataBatchReader reader;
+	private VectorSchemaRoot batch;
+	private PataResultSet cursor;
+	
+	/**
+	 * Takes over currentBatch and reader, both are closed by the spliterator
+	 */
+	PataRowSpliterator(PataPreparedStatement stmt, PataResultSetMetaData meta,
+			VectorSchemaRoot currentBatch, PataBatchReader reader, int firstRow)
+	{
+		this.stmt = stmt;
+		this.meta = meta;
+		this.reader = reader;
+		this.openBatches = ConcurrentHashMap.newKeySet();
+		this.columnCount = meta == null ? 0 : meta.arrowFields.size();
+		
+		if (currentBatch != null)
+		{
+			openBatches.add(currentBatch);
+			setBatch(currentBatch, firstRow);
+		}
+	}
+	
+	private PataRowSpliterator(PataRowSpliterator parent, VectorSchemaRoot batch, int firstRow)
+	{
+		this.stmt = parent.stmt;
+		this.meta = parent.meta;
+		this.columnCount = parent.columnCount;
+		this.openBatches = parent.openBatches;
+		this.reader = null;
+		
+		setBatch(batch, firstRow);
+	}
+	
+	@Override
+	public boolean tryAdvance(Consumer<? super PataRow> action)
+	{
+		try
+		{
+			while (cursor == null || !cursor.next())
+			{
+				releaseBatch();
+				if (!readBatch())
+				{
+					return false;
+				}
+			}
+			
+			action.accept(cursor.getRow(columnCount));
+			return true;
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public Spliterator<PataRow> trySplit()
+	{
+		// Prefixes own exactly one batch and are not split further
+		if (reader == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			while (cursor == null || cursor.remainingRows() == 0)
+			{
+				releaseBatch();
+				if (!readBatch())
+				{
+					return null;
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e);
+		}
+		
+		PataRowSpliterator prefix = new PataRowSpliterator(this, batch, batch.getRowCount() - cursor.remainingRows());
+		batch = null;
+		cursor = null;
+		
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize()
+	{
+		if (reader != null)
+		{
+			return Long.MAX_VALUE;
+		}
+		return cursor == null ? 0 : cursor.remainingRows();
+	}
+
+	@Override
+	public int characteristics()
+	{
+		if (reader != null)
+		{
+			return ORDERED | NONNULL | IMMUTABLE;
+		}
+		return ORDERED | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+	}
+	
+	/**
+	 * Releases all batches of the stream that were not consumed
+	 */
+	void close()
+	{
+		if (reader != null)
+		{
+			reader.close();
+			reader = null;
+		}
+		
+		for (VectorSchemaRoot root : openBatches)
+		{
+			if (openBatches.remove(root))
+			{
+				root.close();
+			}
+		}
+	}
+	
+	private boolean readBatch() throws SQLException
+	{
+		if (reader == null)
+		{
+			return false;
+		}
+		
+		VectorSchemaRoot next = reader.nextBatch();
+		if (next == null)
+		{
+			reader.close();
+			reader = null;
+			return false;
+		}
+		
+		openBatches.add(next);
+		setBatch(next, 0);
+		return true;
+	}
+	
+	private void setBatch(VectorSchemaRoot root, int firstRow)
+	{
+		batch = root;
+		cursor = new PataResultSet(stmt, meta, root, firstRow);
+	}
+	
+	private void releaseBatch()
+	{
+		if (batch != null && openBatches.remove(batch))
+		{
+			batch.close();
+		}
+		batch = null;
+		cursor = null;
+	}
+}
@@ -0,0 +1,109 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.responses;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Answer to a statement that was interrupted by a Cancel command or its query
+ * timeout. The control port also acknowledges the Cancel command itself with it.
+ */
+public class Cancelled implements PataResponse
+{
+	public static final String op = "Cancelled";
+	
+	// SQLState of cancelled statements, "query canceled" in the SQL standard classes
+	public static final String sqlState = "57014";
+	
+	public String exceptionMsg;
+	public boolean timedOut;
+	
+	public Cancelled(String exceptionMsg, boolean timedOut)
+	{
+		this.exceptionMsg = exceptionMsg;
+		this.timedOut = timedOut;
+	}
+	
+	public Cancelled(JsonParser jsonParser) throws Exception
+	{
+		// Process Command
+		while(!jsonParser.isClosed())
+		{
+		    JsonToken jsonToken = jsonParser.nextToken();
+
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("exception"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	exceptionMsg = jsonParser.getValueAsString();
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("timedOut"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	timedOut = jsonParser.getValueAsBoolean();
+		    }
+		    
+		    if (JsonToken.END_OBJECT.equals(jsonToken))
+		    {
+		    	break;
+		    }
+		}
+	}
+	
+	@Override
+	public String getOp()
+	{
+		return op;
+	}
+	
+	public SQLException toSQLException()
+	{
+		if (timedOut)
+		{
+			return new SQLTimeoutException(exceptionMsg, sqlState);
+		}
+		return new SQLException(exceptionMsg, sqlState);
+	}
+
+	@Override
+	public ByteBuffer encodeResponse() throws JacksonException, IOException, Exception
+	{
+		ObjectMapper mapper = new ObjectMapper();	
+		ObjectNode cmd = mapper.createObjectNode();
+		
+		cmd.put("op", Cancelled.op);
+		cmd.put("exception", exceptionMsg);
+		cmd.put("timedOut", timedOut);
+		
+		return ByteBuffer.wrap(mapper.writeValueAsBytes(cmd));
+	}
+}
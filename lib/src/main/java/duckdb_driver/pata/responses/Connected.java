@@ -18,21 +18,35 @@ package duckdb_driver.pata.responses;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
+import duckdb_driver.pata.commands.Protocol;
+
 public class Connected implements PataResponse
 {
 	public static final String op = "Connected";
 	
+	// 0 if the socket of the Connect was upgraded, the client keeps using it then
 	public final int port;
+	public final UUID connectionId;
+	// Negotiated with the Connect, older servers send no version and no capabilities
+	public final int protocolVersion;
+	public final List<String> capabilities;
 	
 	private Charset utf8 = Charset.forName("UTF-8");
 	
 	public Connected(JsonParser jsonParser) throws Exception
 	{
 		int tmpPort = 0;
+		UUID tmpId = null;
+		int tmpVersion = Protocol.VERSION_1;
+		List<String> tmpCapabilities = new ArrayList<String>();
 		
 		// Process Command
 		while(!jsonParser.isClosed())
@@ -46,22 +60,81 @@ public class Connected implements PataResponse
 		    	jsonToken = jsonParser.nextToken();
 		    	
 		    	tmpPort = jsonParser.getValueAsInt();
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("connectionId"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpId = UUID.fromString(jsonParser.getValueAsString());
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("protocolVersion"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	tmpVersion = jsonParser.getValueAsInt();
+		    }
+		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("capabilities"))
+		    {	
+		    	// Move on to array
+		    	jsonToken = jsonParser.nextToken();
+		    	jsonToken = jsonParser.nextToken();
+		    	while(!JsonToken.END_ARRAY.equals(jsonToken))
+		    	{
+		    		tmpCapabilities.add(jsonParser.getValueAsString());
+		    		jsonToken = jsonParser.nextToken();
+		    	}
+		    }
+		    
+		    if (JsonToken.END_OBJECT.equals(jsonToken))
+		    {
 		    	break;
 		    }
 		}
 		
 		port = tmpPort;
+		connectionId = tmpId;
+		protocolVersion = tmpVersion;
+		capabilities = tmpCapabilities;
 		
-		// We need a port
-		if (tmpPort == 0)
+		// We need a port, or the socket of the Connect
+		if (tmpPort == 0 && !hasCapability(Protocol.UPGRADE))
 		{
 			throw new Exception();
 		}
 	}
 	
-	public Connected(int port)
+	public Connected(int port, UUID connectionId)
+	{
+		this(port, connectionId, Protocol.VERSION_1, Collections.<String>emptyList());
+	}
+	
+	public Connected(int port, UUID connectionId, int protocolVersion, List<String> capabilities)
 	{
 		this.port = port;
+		this.connectionId = connectionId;
+		this.protocolVersion = protocolVersion;
+		this.capabilities = capabilities;
+	}
+	
+	public boolean hasCapability(String capability)
+	{
+		return capabilities.contains(capability);
+	}
+	
+	/**
+	 * True if the session is served on the socket the Connect was sent on
+	 */
+	public boolean isUpgraded()
+	{
+		return port == 0;
 	}
 	
 	public String getOp()
@@ -71,7 +144,19 @@ public class Connected implements PataResponse
 	
 	public ByteBuffer encodeResponse()
 	{
-		String response = "{\"op\":\"Connected\", \"port\":\"" + port + "\"}";
-		return ByteBuffer.wrap(response.getBytes(utf8));
+		StringBuilder response = new StringBuilder();
+		response.append("{\"op\":\"Connected\", \"port\":\"").append(port).append("\", \"connectionId\":\"").append(connectionId).append("\"");
+		response.append(", \"protocolVersion\":").append(protocolVersion);
+		if (!capabilities.isEmpty())
+		{
+			response.append(", \"capabilities\":[");
+			for (int i = 0; i < capabilities.size(); i++)
+			{
+				response.append(i == 0 ? "\"" : ", \"").append(capabilities.get(i)).append("\"");
+			}
+			response.append("]");
+		}
+		response.append("}");
+		return ByteBuffer.wrap(response.toString().getBytes(utf8));
 	}
 }
@@ -25,6 +25,8 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
+import duckdb_driver.pata.commands.Protocol;
+
 public class ResponseDecoder
 {
 	private static Charset utf8 = Charset.forName("UTF-8");
@@ -37,13 +39,39 @@ public class ResponseDecoder
 	private final static String committedStr = Committed.op;
 	private final static String abortedStr = Aborted.op;
 	private final static String exceptionStr = ExceptionRaised.op;
+	private final static String cancelledStr = Cancelled.op;
+	private final static String pongStr = Pong.op;
 	
+	/**
+	 * Decodes a response of version 1, as all responses of the control port are
+	 */
 	public static PataResponse decodeBuffer(ByteBuffer inputBuffer) throws Exception
+	{
+		return decodeBuffer(inputBuffer, Protocol.VERSION_1);
+	}
+	
+	/**
+	 * Decodes a response with the codec of the protocol version of its connection
+	 */
+	public static PataResponse decodeBuffer(ByteBuffer inputBuffer, int protocolVersion) throws Exception
+	{
+		switch (protocolVersion)
+		{
+			case Protocol.VERSION_1:
+			{
+				return decodeJson(inputBuffer);
+			}
+			default:
+				throw new IllegalArgumentException("Unsupported protocol version " + protocolVersion);
+		}
+	}
+	
+	private static PataResponse decodeJson(ByteBuffer inputBuffer) throws Exception
 	{
 		inputBuffer.position(0);	
 		
 		// Only the first 1000 bytes should be relevant for JSON
-		CharBuffer inputChars = utf8.decode(inputBuffer.slice(0, 1000));
+		CharBuffer inputChars = utf8.decode(inputBuffer.slice(0, Math.min(1000, inputBuffer.limit())));
 		
 		String responseStr = null;
 		JsonParser jsonParser = null;
@@ -105,10 +133,18 @@ public class ResponseDecoder
 			{
 				return new Aborted();
 			}
+			case pongStr:
+			{
+				return new Pong();
+			}
 			case exceptionStr:
 			{
 				return new ExceptionRaised(jsonParser);
 			}
+			case cancelledStr:
+			{
+				return new Cancelled(jsonParser);
+			}
 			default:
 				throw new IllegalArgumentException("Unexpected value: " + inputChars.toString());
 		}
@@ -23,6 +23,7 @@ import java.nio.channels.Channels;
 import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.function.BooleanSupplier;
 
 import org.apache.arrow.vector.ipc.ArrowStreamWriter;
 import org.duckdb.DuckDBPreparedStatement;
@@ -37,6 +38,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import duckdb_driver.pata.server.ArrowResultSet;
+import duckdb_driver.pata.server.ResultEncoding;
 
 public class Result implements PataResponse
 {
@@ -54,6 +56,20 @@ public class Result implements PataResponse
 	public int arrowSize;
 	public int jsonSize;
 	
+	// Part of the arrow stream of a result that is fetched in parts
+	private byte[] arrowFragment;
+	// More record batches can be fetched after this part
+	public boolean hasMore = false;
+	
+	// Encoding of the arrow stream for the client. Only set on the server.
+	public ResultEncoding encoding = ResultEncoding.NONE;
+	// Clients of protocol version 0 only read the first record batch. Only set on the server.
+	public boolean singleBatch = false;
+	
+	// Every Result starts with a size msg of this length
+	public static final int sizeMsgLength = 50;
+	private static final String sizeMsgStart = "{\"jsonSize\"";
+	
 	@Override
 	public String getOp()
 	{
@@ -79,6 +95,17 @@ public class Result implements PataResponse
 		this.changedRows = changedRows;
 	}
 
+	/**
+	 * Next part of the arrow stream of an open cursor. The parts of all
+	 * responses together are one arrow stream.
+	 */
+	public Result(byte[] arrowFragment, boolean hasMore)
+	{
+		this.queryType = StatementReturnType.QUERY_RESULT;
+		this.arrowFragment = arrowFragment;
+		this.hasMore = hasMore;
+	}
+
 	public Result(ByteBuffer inputBuffer) throws Exception
 	{
 		inputBuffer.position(0);	
@@ -146,6 +173,15 @@ public class Result implements PataResponse
 		    	updateCount = Integer.parseInt(jsonParser.getValueAsString());
 		    }
 		    
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+			    	&& jsonParser.getCurrentName().equals("hasMore"))
+		    {	
+		    	// Move on to field value
+		    	jsonToken = jsonParser.nextToken();
+		    	
+		    	hasMore = jsonParser.getValueAsBoolean();
+		    }
+		    
 		    if (JsonToken.END_OBJECT.equals(jsonToken))
 		    {
 		    	break;
@@ -167,6 +203,15 @@ public class Result implements PataResponse
 	
 	@Override
 	public ByteBuffer encodeResponse() throws Exception
+	{
+		return encodeResponse(() -> false);
+	}
+	
+	/**
+	 * Encodes the response, stops writing the arrow part as soon as stopped is
+	 * true. The arrow buffers are freed then.
+	 */
+	public ByteBuffer encodeResponse(BooleanSupplier stopped) throws Exception
 	{
 		// JSON part
 		ObjectMapper mapper = new ObjectMapper();	
@@ -179,25 +224,41 @@ public class Result implements PataResponse
 		{
 			cmd.put("updateCount", changedRows);
 		}	
+		if (hasMore)
+		{
+			cmd.put("hasMore", true);
+		}
 		
 		ByteBuffer jsonBuffer = ByteBuffer.wrap(mapper.writeValueAsBytes(cmd));
 		ByteBuffer resultBuffer;	
 		
-		if (queryType == StatementReturnType.QUERY_RESULT)
+		if (arrowFragment != null)
+		{
+			ByteBuffer sizeMsgBuffer = createSizeMsg(jsonBuffer.capacity(), arrowFragment.length);
+			
+			resultBuffer = ByteBuffer.allocate(sizeMsgBuffer.capacity() + jsonBuffer.capacity() + arrowFragment.length);
+			resultBuffer.put(sizeMsgBuffer).put(jsonBuffer).put(arrowFragment);
+		}
+		else if (queryType == StatementReturnType.QUERY_RESULT)
 		{
 			// Arrow part
 			try 
 			(
 				DuckDBResultSet resultSet = (DuckDBResultSet)stmt.getResultSet();
 				ByteArrayOutputStream arrowOutStream = new ByteArrayOutputStream();
-				ArrowResultSet ars = new ArrowResultSet(resultSet);
+				ArrowResultSet ars = new ArrowResultSet(resultSet, encoding);
 				ArrowStreamWriter writer =  ars.getArrowStreamWriter(Channels.newChannel(arrowOutStream));
 				
 			)
 			{
-				writer.start();
-				writer.writeBatch();
-				writer.end();
+				if (singleBatch)
+				{
+					ars.writeSingleBatch(writer, stopped);
+				}
+				else
+				{
+					ars.writeBatches(writer, stopped);
+				}
 				
 				ByteBuffer arrowBuffer = ByteBuffer.wrap(arrowOutStream.toByteArray());
 				
@@ -222,6 +283,39 @@ public class Result implements PataResponse
 		return resultBuffer;	
 	}
 
+	/**
+	 * Checks if the first bytes of a response are the size msg of a Result
+	 */
+	public static boolean startsWithSizeMsg(ByteBuffer inputBuffer, int readCnt)
+	{
+		if (readCnt < sizeMsgStart.length())
+		{
+			return false;
+		}
+		return utf8.decode(inputBuffer.slice(0, sizeMsgStart.length())).toString().equals(sizeMsgStart);
+	}
+	
+	/**
+	 * Length of the JSON part, read from the size msg
+	 */
+	public static int decodeJsonSize(ByteBuffer inputBuffer) throws Exception
+	{
+		JsonParser jsonParser = jsonFactory.createParser(utf8.decode(inputBuffer.slice(0, sizeMsgLength)).toString());
+		
+		while(!jsonParser.isClosed())
+		{
+		    JsonToken jsonToken = jsonParser.nextToken();
+	
+		    if(JsonToken.FIELD_NAME.equals(jsonToken)
+		    	&& jsonParser.getCurrentName().equals("jsonSize"))
+		    {	
+		    	jsonParser.nextToken();
+		    	return Integer.parseInt(jsonParser.getValueAsString());
+		    }
+		}
+		throw new Exception("No jsonSize in size msg");
+	}
+
 	private ByteBuffer createSizeMsg(int jsonBufSize, int arrowBufSize) throws JsonProcessingException
 	{
 		// Known size of resulting message is: 50
@@ -0,0 +1,406 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of statements DuckDB executes at the same time across all
+ * DbConnections. Statements over the limit wait in a bounded queue, ordered by
+ * priority and then arrival. A full queue or a too long wait fails the statement.
+ * <p>
+ * Every workload class has its own lane in the queue. Free slots go to the lane
+ * with the least service relative to its weight, so a class with weight 4 gets
+ * four slots for every slot of a class with weight 1 while both are waiting.
+ * A class can also have its own limit below the one of the server.
+ * <p>
+ * The limit is either fixed or adapted to the execution latency: it grows by one
+ * per limit statements finishing within the target latency and shrinks by a
+ * tenth for every slower one (AIMD), between 1 and the configured maximum.
+ */
+public class AdmissionController
+{
+	// SQLState class 53, insufficient resources
+	public static final String sqlState = "53000";
+	
+	// How often waiting statements check whether they were stopped meanwhile
+	private static final long STOP_CHECK_MILLIS = 100;
+	
+	public class Permit implements AutoCloseable
+	{
+		private final Lane lane;
+		private final long admittedAt = System.nanoTime();
+		private boolean released = false;
+		
+		private Permit(Lane lane)
+		{
+			this.lane = lane;
+		}
+		
+		@Override
+		public void close()
+		{
+			release(this);
+		}
+	}
+	
+	private class Waiter implements Comparable<Waiter>
+	{
+		final int priority;
+		final long sequence;
+		// Only admitted waiters are woken up
+		final Condition admission = lock.newCondition();
+		boolean admitted = false;
+		
+		Waiter(int priority, long sequence)
+		{
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Waiter other)
+		{
+			if (priority != other.priority)
+			{
+				return Integer.compare(other.priority, priority);
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+	
+	private class Lane
+	{
+		final WorkloadClass workloadClass;
+		final PriorityQueue<Waiter> queue = new PriorityQueue<Waiter>();
+		int running = 0;
+		long admitted = 0;
+		// Service received so far, grows by 1 / weight per admitted statement
+		double pass = 0;
+		
+		Lane(WorkloadClass workloadClass)
+		{
+			this.workloadClass = workloadClass;
+		}
+		
+		boolean belowLimit()
+		{
+			return workloadClass.maxConcurrent == 0 || running < workloadClass.maxConcurrent;
+		}
+	}
+	
+	private final int maxLimit;
+	private final boolean adaptive;
+	private final long targetLatencyNanos;
+	private final int queueSize;
+	private final long queueTimeoutMillis;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private double limit;
+	private int running = 0;
+	private int queued = 0;
+	private long sequence = 0;
+	
+	private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+	private final Lane defaultLane;
+	// Pass of the last admitted statement, lanes that were idle start from here
+	private double virtualTime = 0;
+	
+	// Metrics
+	private long admitted = 0;
+	private long rejected = 0;
+	private long queueTimeouts = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
+	
+	public AdmissionController(ServerConfig config)
+	{
+		maxLimit = config.maxConcurrentStatements > 0 ? config.maxConcurrentStatements : Integer.MAX_VALUE;
+		adaptive = config.adaptiveConcurrency && config.maxConcurrentStatements > 0;
+		targetLatencyNanos = config.adaptiveLatencyTargetMillis * 1_000_000;
+		queueSize = config.admissionQueueSize;
+		queueTimeoutMillis = config.admissionQueueTimeoutMillis;
+		limit = maxLimit;
+		
+		for (WorkloadClass workloadClass : config.workloadClasses.values())
+		{
+			lanes.put(workloadClass.name, new Lane(workloadClass));
+		}
+		Lane configuredDefault = lanes.get(config.defaultWorkloadClass);
+		if (configuredDefault == null)
+		{
+			configuredDefault = new Lane(new WorkloadClass(config.defaultWorkloadClass, 1, 0));
+			lanes.put(config.defaultWorkloadClass, configuredDefault);
+		}
+		defaultLane = configuredDefault;
+	}
+	
+	/**
+	 * Waits until a statement of the default workload class may execute
+	 */
+	public Permit acquire(int priority, BooleanSupplier stopped) throws SQLException
+	{
+		return acquire(null, priority, stopped);
+	}
+	
+	/**
+	 * Waits until the statement may execute. Within a workload class higher
+	 * priorities are admitted first. Waiting ends early with an exception if
+	 * stopped becomes true.
+	 */
+	public Permit acquire(String workloadClass, int priority, BooleanSupplier stopped) throws SQLException
+	{
+		long start = System.nanoTime();
+		Lane lane = getLane(workloadClass);
+		Waiter waiter;
+		
+		lock.lock();
+		try
+		{
+			// Waiters of other lanes that could run are admitted right away, so the
+			// remaining ones are only held back by the limits of their class
+			if (lane.queue.isEmpty() && lane.belowLimit() && running < (int) limit)
+			{
+				admit(lane);
+				return new Permit(lane);
+			}
+			if (queued >= queueSize)
+			{
+				rejected++;
+				throw new SQLTransientException("Too many statements waiting for execution", sqlState);
+			}
+			
+			waiter = new Waiter(priority, sequence++);
+			lane.queue.add(waiter);
+			queued++;
+			
+			long deadline = start + queueTimeoutMillis * 1_000_000;
+			while (!waiter.admitted)
+			{
+				long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+				
+				if (remainingMillis <= 0 || stopped.getAsBoolean())
+				{
+					lane.queue.remove(waiter);
+					queued--;
+					if (remainingMillis <= 0)
+					{
+						queueTimeouts++;
+						throw new SQLTransientException("Statement waited longer than " + queueTimeoutMillis + " ms for execution", sqlState);
+					}
+					throw new SQLException("Statement was stopped while waiting for execution");
+				}
+				
+				try
+				{
+					waiter.admission.await(Math.min(remainingMillis, STOP_CHECK_MILLIS), TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					lane.queue.remove(waiter);
+					queued--;
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for execution");
+				}
+			}
+			
+			long waited = System.nanoTime() - start;
+			totalWaitNanos += waited;
+			maxWaitNanos = Math.max(maxWaitNanos, waited);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return new Permit(lane);
+	}
+	
+	/**
+	 * Lane of a workload class, the default one for unknown classes
+	 */
+	private Lane getLane(String workloadClass)
+	{
+		Lane lane = workloadClass == null ? null : lanes.get(workloadClass);
+		return lane == null ? defaultLane : lane;
+	}
+	
+	private void admit(Lane lane)
+	{
+		// Idle lanes don't save up service
+		double startPass = Math.max(lane.pass, virtualTime);
+		virtualTime = startPass;
+		lane.pass = startPass + 1.0 / lane.workloadClass.weight;
+		
+		lane.running++;
+		lane.admitted++;
+		running++;
+		admitted++;
+	}
+	
+	/**
+	 * Whether the lane received less service than the other one, on a tie the
+	 * statement that waits longer goes first
+	 */
+	private boolean isAhead(Lane lane, Lane other)
+	{
+		double pass = Math.max(lane.pass, virtualTime);
+		double otherPass = Math.max(other.pass, virtualTime);
+		
+		if (pass != otherPass)
+		{
+			return pass < otherPass;
+		}
+		return lane.queue.peek().sequence < other.queue.peek().sequence;
+	}
+	
+	private void release(Permit permit)
+	{
+		lock.lock();
+		try
+		{
+			if (permit.released)
+			{
+				return;
+			}
+			permit.released = true;
+			permit.lane.running--;
+			running--;
+			
+			if (adaptive)
+			{
+				long latency = System.nanoTime() - permit.admittedAt;
+				if (latency <= targetLatencyNanos)
+				{
+					limit = Math.min(maxLimit, limit + 1 / limit);
+				}
+				else
+				{
+					limit = Math.max(1, limit * 0.9);
+				}
+			}
+			
+			while (running < (int) limit)
+			{
+				Lane next = null;
+				for (Lane lane : lanes.values())
+				{
+					if (!lane.queue.isEmpty() && lane.belowLimit() && (next == null || isAhead(lane, next)))
+					{
+						next = lane;
+					}
+				}
+				if (next == null)
+				{
+					break;
+				}
+				
+				Waiter waiter = next.queue.poll();
+				queued--;
+				admit(next);
+				waiter.admitted = true;
+				waiter.admission.signal();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Number of statements that may execute at the same time right now
+	 */
+	public int getLimit()
+	{
+		return (int) read(() -> (long) limit);
+	}
+	
+	public int getRunning()
+	{
+		return (int) read(() -> (long) running);
+	}
+	
+	public int getRunning(String workloadClass)
+	{
+		return (int) read(() -> (long) getLane(workloadClass).running);
+	}
+	
+	public int getQueueDepth()
+	{
+		return (int) read(() -> (long) queued);
+	}
+	
+	public int getQueueDepth(String workloadClass)
+	{
+		return (int) read(() -> (long) getLane(workloadClass).queue.size());
+	}
+	
+	public long getAdmitted()
+	{
+		return read(() -> admitted);
+	}
+	
+	public long getAdmitted(String workloadClass)
+	{
+		return read(() -> getLane(workloadClass).admitted);
+	}
+	
+	public long getRejected()
+	{
+		return read(() -> rejected);
+	}
+	
+	public long getQueueTimeouts()
+	{
+		return read(() -> queueTimeouts);
+	}
+	
+	/**
+	 * Summed up wait time of all statements that had to queue
+	 */
+	public long getTotalWaitMillis()
+	{
+		return read(() -> totalWaitNanos / 1_000_000);
+	}
+	
+	public long getMaxWaitMillis()
+	{
+		return read(() -> maxWaitNanos / 1_000_000);
+	}
+	
+	private long read(LongSupplier metric)
+	{
+		lock.lock();
+		try
+		{
+			return metric.getAsLong();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
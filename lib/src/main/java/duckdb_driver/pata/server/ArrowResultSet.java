@@ -19,15 +19,20 @@ package duckdb_driver.pata.server;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BooleanSupplier;
 
 import org.apache.arrow.memory.RootAllocator;
 import org.apache.arrow.vector.*;
+import org.apache.arrow.vector.compression.CompressionUtil;
 import org.apache.arrow.vector.ipc.ArrowStreamWriter;
 import org.apache.arrow.vector.types.pojo.Field;
 import org.apache.arrow.vector.types.pojo.FieldType;
@@ -39,46 +44,309 @@ import org.duckdb.DuckDBTimestamp;
 
 public class ArrowResultSet implements AutoCloseable
 {
+	// Rows per record batch, the same as DuckDB's vector size
+	public static final int BATCH_SIZE = 2048;
+	
+	// VARCHAR columns are dictionary-encoded if the first batch has at least
+	// as many rows, and at most a quarter of them distinct
+	static final int MIN_DICTIONARY_ROWS = 256;
+	static final int MAX_DISTINCT_SHARE = 4;
+	
+	// With compact types, DECIMAL columns of up to this precision are sent as
+	// their unscaled values in INT or BIGINT vectors
+	static final int MAX_INT_DECIMAL_PRECISION = 9;
+	static final int MAX_BIGINT_DECIMAL_PRECISION = 18;
+	
 	private RootAllocator allocator;
 	private VectorSchemaRoot vecSchemaRoot;
 	private List<Field> arrowFields = new ArrayList<Field>();
 	private List<FieldVector> arrowVectors = new ArrayList<FieldVector>();
 	
+	private final ResultEncoding encoding;
+	// Per column, null for columns that are not dictionary-encoded
+	private ResultDictionary[] columnDictionaries;
+	private List<ResultDictionary> dictionaries = new ArrayList<ResultDictionary>();
+	// Per column, looked up once instead of for every value
+	private DuckDBColumnType[] columnTypes;
+	private int[] columnScales;
+	
+	private DuckDBResultSet rs;
+	private int batchSize = BATCH_SIZE;
+	private boolean exhausted = false;
+	private boolean firstBatch = true;
+	private boolean started = false;
+	// The first batch was loaded to choose the columns to encode
+	private boolean preloaded = false;
+	private boolean preloadedResult;
 
 	public ArrowResultSet(DuckDBResultSet rs) throws Exception
+	{
+		this(rs, ResultEncoding.NONE);
+	}
+	
+	public ArrowResultSet(DuckDBResultSet rs, ResultEncoding encoding) throws Exception
 	{
 		allocator = new RootAllocator(Long.MAX_VALUE);
+		this.rs = rs;
+		this.encoding = encoding;
 		
 		createSchemaData(allocator, rs);
 		
-		fillVectorSchemaRoot(rs);
+		vecSchemaRoot = new VectorSchemaRoot(arrowFields, arrowVectors);
 	}
 	
-	public ArrowStreamWriter getArrowStreamWriter(WritableByteChannel chan)
+	/**
+	 * Writer of the result in its encoding. With dictionaries the first batch
+	 * is loaded here, to see which VARCHAR columns are worth encoding.
+	 */
+	public ArrowStreamWriter getArrowStreamWriter(WritableByteChannel chan) throws Exception
 	{
-		return new ArrowStreamWriter(vecSchemaRoot, null, chan);
+		if (encoding.dictionaries())
+		{
+			encodeLowCardinalityColumns();
+		}
+		
+		CompressionUtil.CodecType codecType = ResultStreamWriter.getCodecType(encoding.compression());
+		if (codecType == CompressionUtil.CodecType.NO_COMPRESSION && dictionaries.isEmpty())
+		{
+			return new ArrowStreamWriter(vecSchemaRoot, null, chan);
+		}
+		return new ResultStreamWriter(vecSchemaRoot, dictionaries, allocator, chan, codecType, encoding.adaptiveCompression());
+	}
+	
+	/**
+	 * Fills the vectors with the next batch of at most BATCH_SIZE rows.
+	 * The first call always loads a batch, even if the result is empty,
+	 * so that readers get a schema and a row count.
+	 * 
+	 * @return false if there are no more rows to send
+	 */
+	public boolean loadNextBatch() throws Exception
+	{
+		if (preloaded)
+		{
+			preloaded = false;
+			return preloadedResult;
+		}
+		if (exhausted && !firstBatch)
+		{
+			return false;
+		}
+		
+		int rowCnt = fillVectorSchemaRoot(rs);
+		
+		boolean loaded = rowCnt > 0 || firstBatch;
+		firstBatch = false;
+		
+		return loaded;
+	}
+	
+	/**
+	 * Writes the complete result as a stream of record batches.
+	 */
+	public void writeBatches(ArrowStreamWriter writer) throws Exception
+	{
+		writeBatches(writer, () -> false);
+	}
+	
+	/**
+	 * Writes all batches, stops with an exception as soon as stopped is true
+	 */
+	public void writeBatches(ArrowStreamWriter writer, BooleanSupplier stopped) throws Exception
+	{
+		writer.start();
+		while (loadNextBatch())
+		{
+			if (stopped.getAsBoolean())
+			{
+				throw new SQLException("Writing the result was stopped");
+			}
+			writer.writeBatch();
+		}
+		writer.end();
 	}
 	
-	private void fillVectorSchemaRoot(DuckDBResultSet rs) throws Exception
+	/**
+	 * Writes the complete result as one record batch, for the clients of
+	 * protocol version 0
+	 */
+	public void writeSingleBatch(ArrowStreamWriter writer, BooleanSupplier stopped) throws Exception
+	{
+		batchSize = Integer.MAX_VALUE;
+		writeBatches(writer, stopped);
+	}
+	
+	/**
+	 * Writes at most maxBatches batches of a result that is sent in parts. The
+	 * first call writes the schema, the last one the end of the stream.
+	 * 
+	 * @return true if there may be more batches to write
+	 */
+	public boolean writeNextBatches(ArrowStreamWriter writer, int maxBatches, BooleanSupplier stopped) throws Exception
+	{
+		if (!started)
+		{
+			writer.start();
+			started = true;
+		}
+		for (int i = 0; i < maxBatches; i++)
+		{
+			if (!loadNextBatch())
+			{
+				writer.end();
+				return false;
+			}
+			if (stopped.getAsBoolean())
+			{
+				throw new SQLException("Writing the result was stopped");
+			}
+			writer.writeBatch();
+		}
+		if (exhausted)
+		{
+			writer.end();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Loads the first batch and replaces the VARCHAR columns with few distinct
+	 * values in it by dictionary-encoded ones. Their dictionaries keep growing
+	 * if later batches have more values.
+	 */
+	private void encodeLowCardinalityColumns() throws Exception
+	{
+		if (!firstBatch)
+		{
+			return;
+		}
+		
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int columnIndex = 0; columnIndex < arrowVectors.size(); columnIndex++)
+		{
+			if (arrowVectors.get(columnIndex) instanceof VarCharVector)
+			{
+				candidates.add(columnIndex);
+			}
+		}
+		if (candidates.isEmpty())
+		{
+			return;
+		}
+		
+		preloadedResult = loadNextBatch();
+		preloaded = true;
+		
+		int rows = vecSchemaRoot.getRowCount();
+		if (rows < MIN_DICTIONARY_ROWS)
+		{
+			return;
+		}
+		
+		for (int columnIndex : candidates)
+		{
+			VarCharVector values = (VarCharVector) arrowVectors.get(columnIndex);
+			IntVector indices = createDictionaryColumn(values.getName(), columnIndex);
+			ResultDictionary dictionary = columnDictionaries[columnIndex];
+			indices.allocateNewSafe();
+			
+			for (int row = 0; row < rows && dictionary != null; row++)
+			{
+				if (values.isNull(row))
+				{
+					indices.setNull(row);
+					continue;
+				}
+				indices.setSafe(row, dictionary.indexOf(new String(values.get(row), StandardCharsets.UTF_8)));
+				
+				if (dictionary.size() * MAX_DISTINCT_SHARE > rows)
+				{
+					// Stays a VARCHAR column
+					dictionaries.remove(dictionary);
+					columnDictionaries[columnIndex] = null;
+					dictionary.close();
+					indices.close();
+					dictionary = null;
+				}
+			}
+			
+			if (dictionary != null)
+			{
+				indices.setValueCount(rows);
+				arrowFields.set(columnIndex, indices.getField());
+				arrowVectors.set(columnIndex, indices);
+				values.close();
+			}
+		}
+		
+		vecSchemaRoot = new VectorSchemaRoot(arrowFields, arrowVectors);
+		vecSchemaRoot.setRowCount(rows);
+	}
+	
+	/**
+	 * Vector of the indices of a column whose values are in a new dictionary
+	 */
+	private IntVector createDictionaryColumn(String columnName, int columnIndex)
+	{
+		ResultDictionary dictionary = new ResultDictionary(columnIndex, allocator);
+		dictionaries.add(dictionary);
+		columnDictionaries[columnIndex] = dictionary;
+		
+		return new IntVector(new Field(columnName, 
+				new FieldType(true, ResultDictionary.INDEX_TYPE, dictionary.getEncoding(), Map.of("Datatype", "VARCHAR"))
+				, null), allocator);
+	}
+	
+	private int fillVectorSchemaRoot(DuckDBResultSet rs) throws Exception
 	{	
 		int columnCount = rs.getMetaData().getColumnCount();
 		
 		int row = 0;
 		
-		// All rows
-		while(rs.next())
+		// Vectors are reused for every batch
+		for (FieldVector vec : arrowVectors)
+		{
+			vec.reset();
+		}
+		
+		// All rows of this batch
+		while(row < batchSize && !exhausted)
 		{	
+			if (!rs.next())
+			{
+				exhausted = true;
+				break;
+			}
+			
 			// All columns
 			for (int columnIndex = 0; columnIndex < columnCount; columnIndex++)
 			{
 				int sqlColumnIndex = columnIndex + 1;
 				
-				DuckDBColumnType colType = DuckDBResultSetMetaData.TypeNameToType(rs.getMetaData().getColumnTypeName(sqlColumnIndex));
+				ResultDictionary dictionary = columnDictionaries[columnIndex];
+				if (dictionary != null)
+				{
+					IntVector indices = (IntVector) arrowVectors.get(columnIndex);
+					String value = rs.getString(sqlColumnIndex);
+					if (value != null)
+					{
+						indices.setSafe(row, dictionary.indexOf(value));
+					}
+					else
+					{
+						indices.setNull(row);
+					}
+					continue;
+				}
+				
+				DuckDBColumnType colType = columnTypes[columnIndex];
 			
-				// Check for null value
-				if (colType != DuckDBColumnType.VARCHAR)
+				// Check for null value, the value is used as it is for the types that need an object anyway
+				Object value = null;
+				if (colType != DuckDBColumnType.VARCHAR && colType != DuckDBColumnType.ENUM)
 				{
-					rs.getObject(sqlColumnIndex);
+					value = rs.getObject(sqlColumnIndex);
 					if (rs.wasNull())
 					{
 						BaseFixedWidthVector vec = (BaseFixedWidthVector) arrowVectors.get(columnIndex);
@@ -111,23 +379,23 @@ public class ArrowResultSet implements AutoCloseable
 							break;
 						case HUGEINT:
 							Decimal256Vector hvector = (Decimal256Vector) arrowVectors.get(columnIndex);
-							hvector.setSafe(row, new BigDecimal(rs.getHugeint(sqlColumnIndex)));
+							hvector.setBigEndianSafe(row, ((BigInteger) value).toByteArray());
 							break;
 						case UTINYINT:
 							UInt1Vector u1vector = (UInt1Vector) arrowVectors.get(columnIndex);
-							u1vector.setSafe(row, ((Short) rs.getObject(sqlColumnIndex)).intValue());
+							u1vector.setSafe(row, ((Short) value).intValue());
 							break;
 						case USMALLINT:
 							UInt2Vector u2vector = (UInt2Vector) arrowVectors.get(columnIndex);
-							u2vector.setSafe(row, (int) rs.getObject(sqlColumnIndex));
+							u2vector.setSafe(row, (int) value);
 							break;
 						case UINTEGER:
 							UInt4Vector u4vector = (UInt4Vector) arrowVectors.get(columnIndex);
-							u4vector.setWithPossibleTruncate(row, (long) rs.getObject(sqlColumnIndex));
+							u4vector.setWithPossibleTruncate(row, (long) value);
 							break;
 						case UBIGINT:
 							UInt8Vector u8vector = (UInt8Vector) arrowVectors.get(columnIndex);
-							u8vector.setSafe(row, ((BigInteger) rs.getObject(sqlColumnIndex)).longValue()); // Cast to long is not correct!!!
+							u8vector.setSafe(row, ((BigInteger) value).longValue()); // Cast to long is not correct!!!
 							break;
 						case FLOAT:
 							Float4Vector f4vector = (Float4Vector) arrowVectors.get(columnIndex);
@@ -138,8 +406,7 @@ public class ArrowResultSet implements AutoCloseable
 							f8vector.setSafe(row, rs.getDouble(sqlColumnIndex));
 							break;
 						case DECIMAL:
-							Decimal256Vector dvector = (Decimal256Vector) arrowVectors.get(columnIndex);
-							dvector.setSafe(row, rs.getBigDecimal(sqlColumnIndex));
+							setDecimal(arrowVectors.get(columnIndex), row, (BigDecimal) value, columnScales[columnIndex]);
 							break;
 						case VARCHAR:
 						case ENUM:
@@ -152,10 +419,29 @@ public class ArrowResultSet implements AutoCloseable
 							}
 							break;
 						case TIME:
+							if (encoding.compactTypes())
+							{
+								TimeMicroVector tmvector = (TimeMicroVector) arrowVectors.get(columnIndex);
+								tmvector.setSafe(row, ((LocalTime) value).toNanoOfDay() / 1000);
+								break;
+							}
 							TimeMilliVector tivector = (TimeMilliVector) arrowVectors.get(columnIndex);
 							tivector.setSafe(row, (int) rs.getTime(sqlColumnIndex).getTime()); // Time is 4 bytes but wrapped into util.Date
 							break;
 						case DATE:
+							if (encoding.compactTypes())
+							{
+								DateDayVector ddvector = (DateDayVector) arrowVectors.get(columnIndex);
+								LocalDate date = (LocalDate) value;
+								if (date.getYear() < 1)
+								{
+									// Null like the dates BC that DuckDB can't turn into a java.sql.Date
+									ddvector.setNull(row);
+									break;
+								}
+								ddvector.setSafe(row, (int) date.toEpochDay());
+								break;
+							}
 							DateMilliVector davector = (DateMilliVector) arrowVectors.get(columnIndex);
 							davector.setSafe(row, rs.getDate(sqlColumnIndex).getTime());
 							break;
@@ -188,19 +474,70 @@ public class ArrowResultSet implements AutoCloseable
 		{
 			vec.setValueCount(row);
 		}
+		vecSchemaRoot.setRowCount(row);
 		
-		vecSchemaRoot = new VectorSchemaRoot(arrowFields, arrowVectors);
+		return row;
+	}
+	
+	/**
+	 * Sets a decimal in the vector createDecimalVector chose for its column
+	 */
+	private static void setDecimal(FieldVector vector, int row, BigDecimal value, int scale)
+	{
+		if (vector instanceof IntVector)
+		{
+			((IntVector) vector).setSafe(row, value.setScale(scale).unscaledValue().intValueExact());
+		}
+		else if (vector instanceof BigIntVector)
+		{
+			((BigIntVector) vector).setSafe(row, value.setScale(scale).unscaledValue().longValueExact());
+		}
+		else if (vector instanceof DecimalVector)
+		{
+			((DecimalVector) vector).setSafe(row, value);
+		}
+		else
+		{
+			((Decimal256Vector) vector).setSafe(row, value);
+		}
+	}
+	
+	/**
+	 * With compact types, decimals of up to 18 digits are sent as their unscaled
+	 * values in INT or BIGINT vectors and wider ones as 128 bit decimals. The
+	 * client takes the scale from the field metadata. Otherwise all decimals
+	 * are 256 bit.
+	 */
+	private FieldVector createDecimalVector(String columnName, int precision, int scale)
+	{
+		if (!encoding.compactTypes())
+		{
+			return new Decimal256Vector(columnName, allocator, precision, scale);
+		}
+		if (precision <= MAX_INT_DECIMAL_PRECISION)
+		{
+			return new IntVector(columnName, allocator);
+		}
+		if (precision <= MAX_BIGINT_DECIMAL_PRECISION)
+		{
+			return new BigIntVector(columnName, allocator);
+		}
+		return new DecimalVector(columnName, allocator, precision, scale);
 	}
 	
 	private void createSchemaData(RootAllocator allocator, DuckDBResultSet rs) throws Exception
 	{	
 		int columnCount = rs.getMetaData().getColumnCount();
+		columnDictionaries = new ResultDictionary[columnCount];
+		columnTypes = new DuckDBColumnType[columnCount];
+		columnScales = new int[columnCount];
 		
 		for (int columnIndex = 1; columnIndex <= columnCount; columnIndex++)
 		{
 			String columnName =  rs.getMetaData().getColumnName(columnIndex);
 				
 			DuckDBColumnType colType = DuckDBResultSetMetaData.TypeNameToType(rs.getMetaData().getColumnTypeName(columnIndex));
+			columnTypes[columnIndex - 1] = colType;
 			
 			// For easier copy-paste
 			Field tmpField = null;
@@ -329,7 +666,8 @@ public class ArrowResultSet implements AutoCloseable
 				arrowVectors.add(f8vector);
 				break; 
 			case DECIMAL:
-				Decimal256Vector dvector = new Decimal256Vector(columnName, allocator
+				columnScales[columnIndex - 1] = rs.getMetaData().getScale(columnIndex);
+				FieldVector dvector = createDecimalVector(columnName
 						, rs.getMetaData().getPrecision(columnIndex), rs.getMetaData().getScale(columnIndex));
 				tmpField = dvector.getField();
 				String precision = String.valueOf(rs.getMetaData().getPrecision(columnIndex));
@@ -343,8 +681,16 @@ public class ArrowResultSet implements AutoCloseable
 				arrowFields.add(tmpField);
 				arrowVectors.add(dvector);
 				break;
-			case VARCHAR:
 			case ENUM:
+			case VARCHAR:
+				// ENUM columns are sent like VARCHAR unless they can be dictionary-encoded
+				if (colType == DuckDBColumnType.ENUM && encoding.dictionaries())
+				{
+					IntVector evector = createDictionaryColumn(columnName, columnIndex - 1);
+					arrowFields.add(evector.getField());
+					arrowVectors.add(evector);
+					break;
+				}
 				VarCharVector vvector = new VarCharVector(columnName, allocator);
 				tmpField = vvector.getField();
 				tmpField = new Field(columnName, 
@@ -355,7 +701,8 @@ public class ArrowResultSet implements AutoCloseable
 				arrowVectors.add(vvector);
 				break;
 			case TIME:
-				TimeMilliVector tivector = new TimeMilliVector(columnName, allocator);
+				FieldVector tivector = encoding.compactTypes() 
+						? new TimeMicroVector(columnName, allocator) : new TimeMilliVector(columnName, allocator);
 				tmpField = tivector.getField();
 				tmpField = new Field(columnName, 
 						new FieldType(tmpField.getFieldType().isNullable(), tmpField.getFieldType().getType(), tmpField.getFieldType().getDictionary()
@@ -365,7 +712,8 @@ public class ArrowResultSet implements AutoCloseable
 				arrowVectors.add(tivector);
 				break;
 			case DATE:
-				DateMilliVector davector = new DateMilliVector(columnName, allocator);
+				FieldVector davector = encoding.compactTypes() 
+						? new DateDayVector(columnName, allocator) : new DateMilliVector(columnName, allocator);
 				tmpField = davector.getField();
 				tmpField = new Field(columnName, 
 						new FieldType(tmpField.getFieldType().isNullable(), tmpField.getFieldType().getType(), tmpField.getFieldType().getDictionary()
@@ -407,6 +755,10 @@ public class ArrowResultSet implements AutoCloseable
 	{
 		System.out.println("Autoclose ArrowResultSet");
 		vecSchemaRoot.close();
+		for (ResultDictionary dictionary : dictionaries)
+		{
+			dictionary.close();
+		}
 		allocator.close();
 	}
 }
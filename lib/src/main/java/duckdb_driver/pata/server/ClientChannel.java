@@ -0,0 +1,40 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The socket of a client as seen by its sessions: responses are sent through
+ * it, and the server can stop reading from it or close it. The sessions of a
+ * multiplexed socket share one.
+ */
+interface ClientChannel
+{
+	/**
+	 * Sends a response framed with the session and the request id of its command
+	 */
+	void send(int session, int requestId, ByteBuffer payload) throws IOException;
+	
+	/**
+	 * Stops reading commands, the responses of the commands that were read can still be sent
+	 */
+	void shutdownInput() throws IOException;
+	
+	void close();
+}
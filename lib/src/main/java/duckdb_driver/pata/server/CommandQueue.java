@@ -0,0 +1,79 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs the commands of a session in order, one at a time, on a pool of workers
+ * shared with other sessions. A session only takes a thread while a command executes.
+ */
+class CommandQueue
+{
+	private final ExecutorService workers;
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+	private boolean scheduled = false;
+	
+	CommandQueue(ExecutorService workers)
+	{
+		this.workers = workers;
+	}
+	
+	void submit(Runnable task)
+	{
+		synchronized (this)
+		{
+			queue.add(task);
+			if (scheduled)
+			{
+				return;
+			}
+			scheduled = true;
+		}
+		workers.execute(this::runNext);
+	}
+	
+	// One command per turn, so a session with many queued commands does not hold back the others
+	private void runNext()
+	{
+		Runnable task;
+		synchronized (this)
+		{
+			task = queue.poll();
+		}
+		
+		try
+		{
+			task.run();
+		}
+		catch (RuntimeException e)
+		{
+			e.printStackTrace();
+		}
+		
+		synchronized (this)
+		{
+			if (queue.isEmpty())
+			{
+				scheduled = false;
+				return;
+			}
+		}
+		workers.execute(this::runNext);
+	}
+}
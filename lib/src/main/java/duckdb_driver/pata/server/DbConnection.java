@@ -21,11 +21,15 @@ import org.apache.arrow.vector.ipc.ArrowStreamWriter;
 import org.duckdb.*;
 import duckdb_driver.pata.commands.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
@@ -33,23 +37,138 @@ import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public class DbConnection implements Runnable
 {
 	private UUID connctionId;
 	private DuckDBConnection jdbcDbConnection;
+	// Statement of the running Execute, taken from statements
 	private DuckDBPreparedStatement stmt;
+	private String preparedSql;
 	private ServerSocketChannel svrChannel;
+	// Socket the client sent its Connect on, served instead of an accepted one
+	private volatile SocketChannel upgraded;
 	private Thread thread;
 
 	private Charset utf8 = Charset.forName("UTF-8");
 	
+	private ServerConfig config;
+	
+	// Shared by all connections of the server, null if disabled
+	private ResultCache resultCache;
+	private SingleFlight singleFlight;
+	private AdmissionController admissionController;
+	
+	// Scheduler lane of the statements of this connection
+	private String workloadClass;
+	private TimerWheel timerWheel;
+	
+	// Writes of the running transaction, the cache is invalidated again on commit
+	private boolean pendingWrites = false;
+	
+	// A statement other than a read ran, temporary objects or settings of the
+	// session may differ from those of the others. Its reads share neither the
+	// cache nor executions.
+	private boolean sessionLocalState = false;
+	
+	// Statement of the running Execute, the only one a Cancel or timeout can stop
+	private UUID runningStatementId;
+	private long executionCount = 0;
+	// DuckDB itself is executing, only then it has to be interrupted
+	private boolean inDuckDB = false;
+	// Response for the running statement if it was stopped, null otherwise
+	private Cancelled stopped;
+	// Completed when the running statement is stopped, wakes it up while it waits outside of DuckDB
+	private CompletableFuture<Cancelled> stopSignal = new CompletableFuture<Cancelled>();
+	
+	// Request id of the command that is processed, repeated in its response
+	private int requestId;
+	
+	// Result that is fetched in parts, open until its end was sent or the next other command
+	private ResultCursor cursor;
+	
+	// Session on a multiplexed socket, 0 if the connection has a socket of its own
+	private final int sessionId;
+	
+	// Pool the session returns to when its client disconnects, null if it is not pooled
+	private SessionPool pool;
+	
+	// Server the session is registered with, it is removed when the session ends
+	private Server server;
+	private SessionRegistry registry;
+	private volatile SessionState state = SessionState.CONNECTING;
+	
+	// Socket of the client, closed by the reaper if the client went quiet
+	private volatile ClientChannel clientChannel;
+	// System.nanoTime() of the last command of the client, or of its Connect
+	private volatile long lastActivity = System.nanoTime();
+	private volatile boolean reaped = false;
+	
+	// Negotiated with the Connect of the client, its commands are decoded with the codec of the version
+	private volatile int protocolVersion = Protocol.VERSION_1;
+	private volatile List<String> capabilities = Collections.emptyList();
+	
+	// Set once the server shuts down, the session ends after its running command
+	private volatile ShutdownReport shutdownReport;
+	
+	private record PreparedStatement(DuckDBPreparedStatement stmt, String sql)
+	{
+	}
+	
+	// Prepared statements of the client by statement id, least recently used first
+	private LinkedHashMap<UUID, PreparedStatement> statements = new LinkedHashMap<UUID, PreparedStatement>(16, 0.75f, true);
+	
 	public DbConnection(DuckDBConnection jdbcDbConnection)
+	{
+		this(jdbcDbConnection, new ServerConfig(), null, null, null, null);
+	}
+	
+	public DbConnection(DuckDBConnection jdbcDbConnection, ServerConfig config, ResultCache resultCache, SingleFlight singleFlight,
+			AdmissionController admissionController, TimerWheel timerWheel)
+	{
+		this(jdbcDbConnection, config, resultCache, singleFlight, admissionController, timerWheel, 0);
+	}
+	
+	/**
+	 * A session above 0 belongs to a MuxConnection, which hands in its commands.
+	 * No socket is opened for it then.
+	 */
+	public DbConnection(DuckDBConnection jdbcDbConnection, ServerConfig config, ResultCache resultCache, SingleFlight singleFlight,
+			AdmissionController admissionController, TimerWheel timerWheel, int sessionId)
+	{
+		this(jdbcDbConnection, config, resultCache, singleFlight, admissionController, timerWheel, sessionId, sessionId == 0);
+	}
+	
+	/**
+	 * Without a socket of its own the commands are handed in by a transport,
+	 * which attaches the socket of the client
+	 */
+	DbConnection(DuckDBConnection jdbcDbConnection, ServerConfig config, ResultCache resultCache, SingleFlight singleFlight,
+			AdmissionController admissionController, TimerWheel timerWheel, int sessionId, boolean ownSocket)
 	{
 		this.connctionId = UUID.randomUUID();
+		this.sessionId = sessionId;
 		this.jdbcDbConnection = jdbcDbConnection;
+		this.config = config;
+		this.resultCache = resultCache;
+		this.singleFlight = singleFlight;
+		this.admissionController = admissionController;
+		this.timerWheel = timerWheel;
 		
+		if (ownSocket)
+		{
+			bind();
+		}
+	}
+	
+	private void bind()
+	{
 		try 
 		{
 			svrChannel = ServerSocketChannel.open();
@@ -89,87 +208,678 @@ public class DbConnection implements Runnable
 	@Override
 	public void run()
 	{
-		SocketChannel socketChannel;
-		ByteBuffer receiveBuffer;
+		// A pooled session waits for its next client after a reset
+		do
+		{
+			serve();
+		}
+		while (pool != null && !reaped && pool.recycle(this));
+		
+		// Clients that crashed never send Disconnect
+		release();
+		if (server != null)
+		{
+			server.closeSession(this);
+		}
+	}
+	
+	// Accepts one client and processes its commands until it disconnects
+	private void serve()
+	{
+		SocketChannel socketChannel = null;
 		try 
 		{
-			socketChannel = svrChannel.accept();
+			socketChannel = accept();
+			
+			// Only clients that sent their Connect in a frame get frames, those of version 0 don't
+			boolean framed = protocolVersion > Protocol.VERSION_0;
+			ClientChannel channel = new SocketClientChannel(socketChannel, framed);
+			clientChannel = channel;
+			touch();
+			setState(SessionState.IDLE);
 			socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
 			socketChannel.configureBlocking(true);
-			int readCnt = 0;
+			
+			// Pipelined commands are processed one after the other in the order they arrived
+			FrameReader frameReader = new FrameReader(socketChannel, 10000);
 		
 			while (socketChannel.isOpen())
 			{
-				receiveBuffer = ByteBuffer.allocate(10000);
-				readCnt = socketChannel.read(receiveBuffer);
-				
-				// End-of-stream check
-				if (readCnt == -1)
-					{ break;}
-				
-				processInput(receiveBuffer, socketChannel);
+				ByteBuffer payload;
+				if (framed)
+				{
+					Frame frame = readHeader(frameReader, channel);
+					
+					// End-of-stream check
+					if (frame == null)
+						{ break;}
+					
+					requestId = frame.requestId;
+					payload = frameReader.read(frame.length);
+				}
+				else
+				{
+					payload = frameReader.readJson();
+					
+					// End-of-stream check
+					if (payload == null)
+						{ break;}
+					
+					requestId = 0;
+				}
+				touch();
+				processInput(payload, channel);
 			}
 		}
+		catch (AsynchronousCloseException e)
+		{
+			// Disconnected through the server, reaped, or an idle session was closed by its pool
+		}
 		catch (Exception e) 
 		{
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}	
+		finally
+		{
+			closeCursor();
+			closeStatements();
+			clientChannel = null;
+			close(socketChannel);
+		}
+	}
+	
+	// The next client, a pooled session may get an upgraded socket while it waits in accept
+	private SocketChannel accept() throws IOException
+	{
+		SocketChannel handed = upgraded;
+		if (handed == null)
+		{
+			try
+			{
+				return svrChannel.accept();
+			}
+			catch (ClosedChannelException e)
+			{
+				handed = upgraded;
+				if (handed == null)
+				{
+					throw e;
+				}
+			}
+		}
+		upgraded = null;
+		return handed;
+	}
+	
+	/**
+	 * Reads the next frame header, null at the end of the stream. A malformed
+	 * header leaves no way to find the next frame, the client gets an error
+	 * and the session ends.
+	 */
+	private Frame readHeader(FrameReader frameReader, ClientChannel channel) throws Exception
+	{
+		try
+		{
+			return frameReader.readHeader();
+		}
+		catch (IOException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			requestId = 0;
+			send(channel, new ExceptionRaised(new SQLException("Malformed frame, the session is closed: " + e.getMessage(), e)).encodeResponse());
+			return null;
+		}
 	}
 	
-	private void processInput(ByteBuffer inputBuffer, SocketChannel socketChannel)
+	private static void close(SocketChannel socketChannel)
+	{
+		if (socketChannel != null)
+		{
+			try
+			{
+				socketChannel.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static void close(ClientChannel channel)
+	{
+		if (channel != null)
+		{
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Sends a response to the running command, framed with its request id
+	 */
+	private void send(ClientChannel channel, ByteBuffer response) throws IOException
+	{
+		channel.send(sessionId, requestId, response);
+	}
+	
+	/**
+	 * Decodes and processes a command. The frame or the JSON object it came in
+	 * was read completely, so the next one is found even if it can't be decoded.
+	 */
+	private void processInput(ByteBuffer inputBuffer, ClientChannel channel) throws Exception
 	{
 		PataCommand cmd;
 		try
 		{
-			cmd = CommandDecoder.decodeBuffer(inputBuffer);
+			cmd = CommandDecoder.decodeBuffer(inputBuffer, protocolVersion);
+		}
+		catch (Exception e)
+		{
+			send(channel, new ExceptionRaised(new SQLException("Malformed command: " + e.getMessage(), e)).encodeResponse());
+			return;
+		}
+		process(requestId, cmd, channel);
+	}
+	
+	/**
+	 * Processes a decoded command and sends its response to channel
+	 */
+	public void process(int requestId, PataCommand cmd, ClientChannel channel)
+	{
+		this.requestId = requestId;
+		setState(SessionState.EXECUTING);
+		try
+		{
+			// Any other command ends the result that was fetched in parts
+			if (!cmd.getOp().equals(Fetch.op) && !cmd.getOp().equals(CloseStatement.op) && !cmd.getOp().equals(Ping.op))
+			{
+				closeCursor();
+			}
 	
 			switch (cmd.getOp())		
 			{
 				case ExecuteSql.op:
 				{
-					executeSql(cmd, socketChannel);
+					executeSql(cmd, channel);
 					break;
 				}
 				case ExecuteQuery.op: // TODO remove, replaced by Execute
 				{
-					executeQuery(cmd, socketChannel);
+					executeQuery(cmd, channel);
 					break;
 				}
 				case PrepareSql.op:
 				{
-					prepareSql(cmd, socketChannel);
+					prepareSql(cmd, channel);
 					break;
 				}
 				case ExecuteUpdate.op:
 				case Execute.op:
 				{
-					execute(cmd, socketChannel);
+					execute(cmd, channel);
 					break;
 				}
 				case Commit.op:
 				{
-					commit(cmd, socketChannel);
+					commit(cmd, channel);
 					break;
 				}
 				case Rollback.op:
 				{
-					rollback(cmd, socketChannel);
+					rollback(cmd, channel);
 					break;
 				}	
+				case Fetch.op:
+				{
+					fetch(cmd, channel);
+					break;
+				}
+				case CloseStatement.op:
+				{
+					closeStatement((CloseStatement)cmd);
+					break;
+				}
+				case Ping.op:
+				{
+					ping(channel);
+					break;
+				}
 				default:
-				socketChannel.write(ByteBuffer.wrap(("ERROR: Unknown command" + cmd.getOp()).getBytes(utf8)));	
+				send(channel, ByteBuffer.wrap(("ERROR: Unknown command" + cmd.getOp()).getBytes(utf8)));	
 			}
 		} catch (Exception e)
 		{
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-		}			
+		}
+		finally
+		{
+			setState(SessionState.IDLE);
+		}
 	}
 	
+	/**
+	 * Ends the session for Disconnect. Closing the socket of the client stops a
+	 * blocked read, a pooled session is reused then.
+	 */
 	public void closeConnection()
 	{
-		thread.interrupt();
+		// Sessions of a multiplexed socket are closed by their MuxConnection
+		if (sessionId > 0)
+		{
+			return;
+		}
+		
+		ClientChannel channel = clientChannel;
+		if (channel == null)
+		{
+			// The client never connected
+			reap();
+			return;
+		}
+		channel.close();
+	}
+	
+	/**
+	 * Prepares a pooled session for its next client. An open transaction is
+	 * rolled back, and the DuckDB connection is replaced by a fresh duplicate,
+	 * which also resets the settings and temporary objects of the session.
+	 */
+	void reset(DuckDBConnection duplicate)
+	{
+		try
+		{
+			if (!jdbcDbConnection.getAutoCommit())
+			{
+				jdbcDbConnection.rollback();
+			}
+			jdbcDbConnection.close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+		
+		jdbcDbConnection = duplicate;
+		connctionId = UUID.randomUUID();
+		pendingWrites = false;
+		sessionLocalState = false;
+		
+		// Closed for the handover of an upgraded socket, the next client may connect to the port
+		if (!svrChannel.isOpen())
+		{
+			bind();
+		}
+	}
+	
+	/**
+	 * Serves the socket the client sent its Connect on. The bound socket is not
+	 * needed then, closing it stops the accept of a pooled session.
+	 */
+	void handOver(SocketChannel socketChannel)
+	{
+		upgraded = socketChannel;
+		closeSocket();
+	}
+	
+	/**
+	 * Hands the socket of the client to a session without a socket of its own,
+	 * before the client connected. The transport closes it to end the session.
+	 */
+	void attach(ClientChannel channel)
+	{
+		clientChannel = channel;
+	}
+	
+	/**
+	 * Agrees on the protocol with the Connect of the client, before the client
+	 * sends its first command. An unframed Connect comes from a driver from
+	 * before frames, which speaks version 0 and has no capabilities.
+	 */
+	void negotiate(Connect cmd, boolean framed)
+	{
+		if (!framed)
+		{
+			protocolVersion = Protocol.VERSION_0;
+			capabilities = Collections.emptyList();
+			return;
+		}
+		protocolVersion = Protocol.negotiate(cmd.protocolVersion, Protocol.CURRENT_VERSION);
+		List<String> agreed = Protocol.negotiate(cmd.capabilities, Protocol.CAPABILITIES);
+		// Asking for the upgrade is enough, the first clients that did sent no capabilities
+		if (cmd.upgrade && !agreed.contains(Protocol.UPGRADE))
+		{
+			agreed.add(0, Protocol.UPGRADE);
+		}
+		capabilities = agreed;
+	}
+	
+	/**
+	 * The encoding the statement asked for, as far as the client negotiated it.
+	 * Codecs, dictionaries and compact types of other clients are not used.
+	 */
+	private ResultEncoding getEncoding(Execute cmd)
+	{
+		String compression = cmd.compression != null && capabilities.contains(cmd.compression) ? cmd.compression : null;
+		boolean dictionaries = cmd.dictionaries && capabilities.contains(Protocol.DICTIONARY);
+		boolean compactTypes = cmd.compactTypes && capabilities.contains(Protocol.COMPACT_TYPES);
+		return new ResultEncoding(compression, cmd.adaptiveCompression, dictionaries, compactTypes);
+	}
+	
+	public int getProtocolVersion()
+	{
+		return protocolVersion;
+	}
+	
+	public List<String> getCapabilities()
+	{
+		return capabilities;
+	}
+	
+	/**
+	 * The client of a session without a socket of its own connected
+	 */
+	void connected()
+	{
+		touch();
+		setState(SessionState.IDLE);
+	}
+	
+	/**
+	 * Marks the session as used, a Connect counts as well
+	 */
+	void touch()
+	{
+		lastActivity = System.nanoTime();
+	}
+	
+	/**
+	 * True if the client sent no command for idleNanos and none is processed
+	 */
+	boolean isIdle(long now, long idleNanos)
+	{
+		SessionState current = state;
+		return sessionId == 0 && (current == SessionState.CONNECTING || current == SessionState.IDLE) 
+				&& now - lastActivity > idleNanos;
+	}
+	
+	/**
+	 * Starts the lifecycle of the session for a new client
+	 */
+	void open(SessionRegistry registry)
+	{
+		this.registry = registry;
+		touch();
+		synchronized (this)
+		{
+			state = sessionId == 0 ? SessionState.CONNECTING : SessionState.IDLE;
+		}
+	}
+	
+	/**
+	 * Changes the state and tells the listeners of the registry, a closing session stays closing
+	 */
+	void setState(SessionState to)
+	{
+		SessionState from;
+		synchronized (this)
+		{
+			from = state;
+			if (from == to || from == SessionState.CLOSING)
+			{
+				return;
+			}
+			state = to;
+		}
+		
+		SessionRegistry current = registry;
+		if (current != null)
+		{
+			current.fireStateChanged(this, from, to);
+		}
+	}
+	
+	public SessionState getState()
+	{
+		return state;
+	}
+	
+	public String getWorkloadClass()
+	{
+		return workloadClass;
+	}
+	
+	/**
+	 * Closes the sockets of a session whose client went quiet. Its thread then
+	 * frees the statements and the DuckDB connection, a pooled session is not reused.
+	 */
+	void reap()
+	{
+		reaped = true;
+		close(clientChannel);
+		closeSocket();
+	}
+	
+	/**
+	 * Lets the session end once its running command was answered. The input of
+	 * its socket is shut down, so the next read sees the end of the stream.
+	 */
+	void drain(ShutdownReport report)
+	{
+		shutdownReport = report;
+		
+		// MuxConnection drains its socket
+		if (sessionId > 0)
+		{
+			return;
+		}
+		
+		ClientChannel channel = clientChannel;
+		if (channel == null)
+		{
+			// The client never connected
+			reap();
+			return;
+		}
+		try
+		{
+			channel.shutdownInput();
+		}
+		catch (IOException e)
+		{
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Cancels the running statement of a draining session, its client gets the Cancelled response
+	 */
+	synchronized void abort() throws SQLException
+	{
+		if (runningStatementId == null || stopped != null)
+		{
+			return;
+		}
+		if (shutdownReport != null)
+		{
+			shutdownReport.statementAborted(preparedSql);
+		}
+		stop(new Cancelled("Statement was aborted because the server shuts down", false));
+	}
+	
+	/**
+	 * Closes the socket of an idle pooled session, its thread then releases it
+	 */
+	void closeSocket()
+	{
+		// Sessions of a multiplexed socket have none
+		if (svrChannel == null)
+		{
+			return;
+		}
+		try
+		{
+			svrChannel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	// Frees the DuckDB connection and the socket of a session that is not reused
+	void release()
+	{
+		closeSession();
+		closeSocket();
+	}
+	
+	/**
+	 * Ends a session of a multiplexed socket, its open transaction is rolled back
+	 */
+	public void closeSession()
+	{
+		closeCursor();
+		closeStatements();
+		try
+		{
+			if (!jdbcDbConnection.isClosed() && !jdbcDbConnection.getAutoCommit())
+			{
+				jdbcDbConnection.rollback();
+				if (shutdownReport != null)
+				{
+					shutdownReport.transactionRolledBack();
+				}
+			}
+			jdbcDbConnection.close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Stops the statement if it is running. Called from the control thread, the
+	 * thread of the connection is blocked in the execution.
+	 */
+	public synchronized void cancel(UUID statementId) throws SQLException
+	{
+		if (runningStatementId != null && runningStatementId.equals(statementId))
+		{
+			stop(new Cancelled("Statement was cancelled", false));
+		}
+	}
+	
+	/**
+	 * Called by the timer wheel when the deadline of an execution passed
+	 */
+	private synchronized void timeout(long execution, long timeoutMillis)
+	{
+		if (runningStatementId != null && execution == executionCount)
+		{
+			try
+			{
+				stop(new Cancelled("Statement timed out after " + timeoutMillis + " ms", true));
+			}
+			catch (SQLException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void stop(Cancelled response) throws SQLException
+	{
+		if (stopped != null)
+		{
+			return;
+		}
+		
+		// Outside of DuckDB the result encoding checks for it between batches
+		stopped = response;
+		stopSignal.complete(response);
+		if (inDuckDB)
+		{
+			stmt.cancel();
+		}
+	}
+	
+	private TimerWheel.Timeout beginStatement(Execute cmd)
+	{
+		return beginStatement(cmd.statementID, getTimeoutMillis(cmd));
+	}
+	
+	private synchronized TimerWheel.Timeout beginStatement(UUID statementId, long timeoutMillis)
+	{
+		runningStatementId = statementId;
+		executionCount++;
+		stopped = null;
+		stopSignal = new CompletableFuture<Cancelled>();
+		
+		if (timeoutMillis == 0 || timerWheel == null)
+		{
+			return null;
+		}
+		
+		long execution = executionCount;
+		return timerWheel.schedule(() -> timeout(execution, timeoutMillis), timeoutMillis);
+	}
+	
+	private synchronized void endStatement(TimerWheel.Timeout timeout)
+	{
+		if (timeout != null)
+		{
+			timeout.cancel();
+		}
+		runningStatementId = null;
+	}
+	
+	private synchronized void enterDuckDB() throws SQLException
+	{
+		if (stopped != null)
+		{
+			throw new SQLException(stopped.exceptionMsg);
+		}
+		inDuckDB = true;
+	}
+	
+	private synchronized void leaveDuckDB()
+	{
+		inDuckDB = false;
+	}
+	
+	private synchronized CompletableFuture<Cancelled> getStopSignal()
+	{
+		return stopSignal;
+	}
+	
+	private synchronized Cancelled getStopped()
+	{
+		return stopped;
+	}
+	
+	private boolean isStopped()
+	{
+		return getStopped() != null;
+	}
+	
+	/**
+	 * Timeout of the client, bounded by the server maximum. 0 means no timeout.
+	 */
+	private long getTimeoutMillis(Execute cmd)
+	{
+		long timeoutMillis = cmd.queryTimeout > 0 ? cmd.queryTimeout * 1000L : config.defaultQueryTimeoutMillis;
+		
+		if (config.maxQueryTimeoutMillis > 0 && (timeoutMillis == 0 || timeoutMillis > config.maxQueryTimeoutMillis))
+		{
+			timeoutMillis = config.maxQueryTimeoutMillis;
+		}
+		return timeoutMillis;
 	}
 
 	public void setThread(Thread thread)
@@ -177,32 +887,58 @@ public class DbConnection implements Runnable
 		this.thread = thread;
 	}
 	
-	private void executeSql(PataCommand cmd, SocketChannel socketChannel)
+	Thread getThread()
+	{
+		return thread;
+	}
+	
+	void setPool(SessionPool pool)
+	{
+		this.pool = pool;
+	}
+	
+	void setServer(Server server)
+	{
+		this.server = server;
+	}
+	
+	public void setWorkloadClass(String workloadClass)
+	{
+		this.workloadClass = workloadClass;
+	}
+	
+	private void executeSql(PataCommand cmd, ClientChannel channel)
 	{
 		boolean result = false;
 		
 		try
 		{
 			result = jdbcDbConnection.createStatement().execute(((ExecuteSql)cmd).sql);
+			
+			if (!ResultCache.isReadOnly(((ExecuteSql)cmd).sql))
+			{
+				noteWrite(jdbcDbConnection.getAutoCommit());
+			}
 		} 
 		catch (SQLException e)
 		{
 			ExceptionRaised ex = new ExceptionRaised(e);
 			try
 			{
-				socketChannel.write(ex.encodeResponse());
+				send(channel, ex.encodeResponse());
 			}
 			catch (Exception exc)
 			{
 				throw new RuntimeException(exc);
 			}
+			return;
 		}
 		
 		String resp = "RESULT: " + result;
 		
 		try
 		{
-			socketChannel.write(ByteBuffer.wrap(resp.getBytes(utf8)));
+			send(channel, ByteBuffer.wrap(resp.getBytes(utf8)));
 		}
 		catch (IOException e)
 		{
@@ -211,22 +947,24 @@ public class DbConnection implements Runnable
 		}
 	}
 	
-	private void executeQuery(PataCommand cmd, SocketChannel socketChannel)
+	private void executeQuery(PataCommand cmd, ClientChannel channel)
 	{
 		// Parameter zu stmt hinzufügen
 		try(DuckDBResultSet rs = (DuckDBResultSet)jdbcDbConnection.createStatement().executeQuery(((ExecuteQuery)cmd).sql);
 			ArrowResultSet ars = new ArrowResultSet(rs);
-			ArrowStreamWriter wrt = ars.getArrowStreamWriter(socketChannel);)
+			ByteArrayOutputStream arrowOutStream = new ByteArrayOutputStream();
+			ArrowStreamWriter wrt = ars.getArrowStreamWriter(Channels.newChannel(arrowOutStream));)
 		{
-			wrt.writeBatch();
-			wrt.end();
+			// The frame needs the length of the stream up front
+			ars.writeBatches(wrt);
+			send(channel, ByteBuffer.wrap(arrowOutStream.toByteArray()));
 		} 
 		catch (Exception e)
 		{
 			ExceptionRaised ex = new ExceptionRaised(e);
 			try
 			{
-				socketChannel.write(ex.encodeResponse());
+				send(channel, ex.encodeResponse());
 			}
 			catch (Exception exc)
 			{
@@ -235,11 +973,18 @@ public class DbConnection implements Runnable
 		}
 	}
 	
-	private void prepareSql(PataCommand cmd, SocketChannel socketChannel)
+	private void prepareSql(PataCommand cmd, ClientChannel channel)
 	{		
+		PrepareSql prepare = (PrepareSql)cmd;
+		
+		// A pipelined Execute must not run the previous statement if this fails
+		closeStatement(prepare.statementID);
+		
 		try
 		{
-			stmt = (DuckDBPreparedStatement) jdbcDbConnection.prepareStatement(((PrepareSql)cmd).sql);
+			DuckDBPreparedStatement stmt = (DuckDBPreparedStatement) jdbcDbConnection.prepareStatement(prepare.sql);
+			statements.put(prepare.statementID, new PreparedStatement(stmt, prepare.sql));
+			evictStatements();
 
 			// Set return type, and handle case when there is no MetaData
 			StatementReturnType returnType;
@@ -254,14 +999,14 @@ public class DbConnection implements Runnable
 
 			Prepared prep = new Prepared(returnType.toString());
 			
-			socketChannel.write(prep.encodeResponse());
+			send(channel, prep.encodeResponse());
 		}
 		catch (Exception e)
 		{
 			ExceptionRaised ex = new ExceptionRaised(e);
 			try
 			{
-				socketChannel.write(ex.encodeResponse());
+				send(channel, ex.encodeResponse());
 			}
 			catch (Exception exc)
 			{
@@ -270,94 +1015,323 @@ public class DbConnection implements Runnable
 		}
 	}
 	
-	private void execute(PataCommand cmd, SocketChannel socketChannel)
+	private void execute(PataCommand cmd, ClientChannel channel)
 	{
+		TimerWheel.Timeout timeout = beginStatement((Execute)cmd);
 		try
 		{
-			setStatementParameters(((Execute)cmd).stmtParameter);
-			jdbcDbConnection.setAutoCommit(((Execute)cmd).autoCommit);
-			DuckDBResultSetMetaData meta;
-			Result res = null;
-
-			switch (cmd.getOp()) {
-				case Execute.op:
-					stmt.execute();
-					meta= (DuckDBResultSetMetaData)stmt.getMetaData();
-					res = new Result(meta.getReturnType(), stmt);
-					break;
-				case ExecuteUpdate.op:
-					res = new Result(stmt.executeUpdate());
-					break;
+			PreparedStatement prepared = statements.get(((Execute)cmd).statementID);
+			if (prepared == null)
+			{
+				throw new SQLException("No statement prepared");
+			}
+			stmt = prepared.stmt();
+			preparedSql = prepared.sql();
+			
+			boolean autoCommit = ((Execute)cmd).autoCommit;
+			jdbcDbConnection.setAutoCommit(autoCommit);
+			
+			// Cached and shared results are only used for reads outside of transactions
+			// and in sessions without state of their own. Clients of version 0 get their
+			// results in a format of their own.
+			ResultCache.Key readKey = null;
+			if ((resultCache != null || singleFlight != null) && autoCommit && !pendingWrites && !sessionLocalState
+					&& cmd.getOp().equals(Execute.op) && ((Execute)cmd).fetchBatches == 0 && protocolVersion > Protocol.VERSION_0)
+			{
+				readKey = ResultCache.createKey(preparedSql, ((Execute)cmd).stmtParameter, getEncoding((Execute)cmd));
+			}
+			
+			if (readKey != null)
+			{
+				if (resultCache != null)
+				{
+					byte[] cached = resultCache.get(readKey);
+					if (cached != null)
+					{
+						send(channel, ByteBuffer.wrap(cached));
+						return;
+					}
+				}
+				
+				ResultCache.Key key = readKey;
+				long cacheGeneration = resultCache == null ? 0 : resultCache.getGeneration();
+				byte[] response;
+				
+				if (singleFlight != null)
+				{
+					response = singleFlight.execute(key, () -> executeRead(cmd, key, cacheGeneration), getStopSignal());
+				}
+				else
+				{
+					response = executeRead(cmd, key, cacheGeneration);
+				}
+				
+				send(channel, ByteBuffer.wrap(response));
+				return;
+			}
+			
+			Result res = executeStatement(cmd);
+			
+			if (!ResultCache.isReadOnly(preparedSql))
+			{
+				noteWrite(autoCommit);
+			}
+			
+			if (res.queryType == StatementReturnType.QUERY_RESULT && ((Execute)cmd).fetchBatches > 0)
+			{
+				cursor = new ResultCursor(((Execute)cmd).statementID, (DuckDBResultSet) stmt.getResultSet(), 
+						getEncoding((Execute)cmd));
+				res = fetchNext(((Execute)cmd).fetchBatches);
 			}
 
-			socketChannel.write(res.encodeResponse().flip());				
+			send(channel, res.encodeResponse(this::isStopped).flip());				
 		}
 		catch (Exception e)
 		{
-			ExceptionRaised ex = new ExceptionRaised(e);
+			closeCursor();
+			
+			Cancelled stoppedResponse = getStopped();
+			PataResponse ex = stoppedResponse != null ? stoppedResponse : new ExceptionRaised(e);
 			try
 			{
-				socketChannel.write(ex.encodeResponse());
+				send(channel, ex.encodeResponse());
 			}
 			catch (Exception exc)
 			{
 				throw new RuntimeException(exc);
 			}
 		}
+		finally
+		{
+			endStatement(timeout);
+		}
 	}
 
-	private void executeUpdate(PataCommand cmd, SocketChannel socketChannel)
+	/**
+	 * Sends the next batches of the open cursor. Fetch can be cancelled like the
+	 * Execute of the statement, but has no timeout.
+	 */
+	private void fetch(PataCommand cmd, ClientChannel channel)
 	{
+		Fetch fetch = (Fetch)cmd;
+		TimerWheel.Timeout timeout = beginStatement(fetch.statementID, 0);
 		try
 		{
-			setStatementParameters(((Execute)cmd).stmtParameter);
-			jdbcDbConnection.setAutoCommit(((Execute)cmd).autoCommit);
-			stmt.executeUpdate();
-
-			DuckDBResultSetMetaData meta = (DuckDBResultSetMetaData)stmt.getMetaData();
-			Result res = new Result(meta.getReturnType(), stmt);
-
-			socketChannel.write(res.encodeResponse().flip());
+			if (cursor == null || !cursor.statementId.equals(fetch.statementID))
+			{
+				throw new SQLException("No open result for statement " + fetch.statementID);
+			}
+			
+			Result res;
+			if (fetch.close)
+			{
+				closeCursor();
+				res = new Result(new byte[0], false);
+			}
+			else
+			{
+				res = fetchNext(fetch.batches);
+			}
+			
+			send(channel, res.encodeResponse().flip());
 		}
 		catch (Exception e)
 		{
-			ExceptionRaised ex = new ExceptionRaised(e);
+			closeCursor();
+			
+			Cancelled stoppedResponse = getStopped();
+			PataResponse ex = stoppedResponse != null ? stoppedResponse : new ExceptionRaised(e);
 			try
 			{
-				socketChannel.write(ex.encodeResponse());
+				send(channel, ex.encodeResponse());
 			}
 			catch (Exception exc)
 			{
 				throw new RuntimeException(exc);
 			}
 		}
+		finally
+		{
+			endStatement(timeout);
+		}
+	}
+	
+	private void closeStatement(CloseStatement cmd)
+	{
+		if (cursor != null && cursor.statementId.equals(cmd.statementID))
+		{
+			closeCursor();
+		}
+		closeStatement(cmd.statementID);
+	}
+	
+	private void closeStatement(UUID statementId)
+	{
+		PreparedStatement prepared = statements.remove(statementId);
+		if (prepared != null)
+		{
+			close(prepared);
+		}
 	}
 	
-	private void commit(PataCommand cmd, SocketChannel socketChannel)
+	/**
+	 * Closes the least recently used statements beyond maxPreparedStatements,
+	 * in case clients don't close theirs
+	 */
+	private void evictStatements()
+	{
+		Iterator<PreparedStatement> it = statements.values().iterator();
+		while (statements.size() > config.maxPreparedStatements && it.hasNext())
+		{
+			PreparedStatement prepared = it.next();
+			it.remove();
+			close(prepared);
+		}
+	}
+	
+	private void closeStatements()
+	{
+		for (PreparedStatement prepared : statements.values())
+		{
+			close(prepared);
+		}
+		statements.clear();
+	}
+	
+	private void close(PreparedStatement prepared)
+	{
+		try
+		{
+			prepared.stmt().close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	private Result fetchNext(int batches) throws Exception
+	{
+		Result res = new Result(cursor.next(batches, this::isStopped), cursor.hasMore());
+		
+		if (!cursor.hasMore())
+		{
+			closeCursor();
+		}
+		return res;
+	}
+	
+	private void closeCursor()
+	{
+		if (cursor != null)
+		{
+			try
+			{
+				cursor.close();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+			cursor = null;
+		}
+	}
+
+	private Result executeStatement(PataCommand cmd) throws Exception
+	{
+		setStatementParameters(((Execute)cmd).stmtParameter);
+		
+		AdmissionController.Permit permit = admissionController == null ? null : admissionController.acquire(workloadClass, 0, this::isStopped);
+		try
+		{
+			enterDuckDB();
+			try
+			{
+				switch (cmd.getOp()) {
+					case ExecuteUpdate.op:
+						return new Result(stmt.executeUpdate());
+					default:
+						boolean hasResultSet = stmt.execute();
+						Result res = new Result(getReturnType(hasResultSet), stmt);
+						res.encoding = getEncoding((Execute)cmd);
+						res.singleBatch = protocolVersion == Protocol.VERSION_0;
+						return res;
+				}
+			}
+			finally
+			{
+				leaveDuckDB();
+			}
+		}
+		finally
+		{
+			if (permit != null)
+			{
+				permit.close();
+			}
+		}
+	}
+	
+	/**
+	 * duckdb_jdbc only has meta data while the result of the executed statement
+	 * is open. For changed rows it is already closed after reading the update count.
+	 */
+	private StatementReturnType getReturnType(boolean hasResultSet)
+	{
+		if (hasResultSet)
+		{
+			return StatementReturnType.QUERY_RESULT;
+		}
+		
+		try
+		{
+			return ((DuckDBResultSetMetaData)stmt.getMetaData()).getReturnType();
+		}
+		catch (SQLException e)
+		{
+			return StatementReturnType.CHANGED_ROWS;
+		}
+	}
+	
+	/**
+	 * Executes a read-only query and puts its encoded response into the result cache
+	 */
+	private byte[] executeRead(PataCommand cmd, ResultCache.Key key, long cacheGeneration) throws Exception
+	{
+		Result res = executeStatement(cmd);
+		ByteBuffer response = res.encodeResponse(this::isStopped).flip();
+		
+		byte[] encoded = new byte[response.remaining()];
+		response.get(response.position(), encoded);
+		
+		if (resultCache != null && res.queryType == StatementReturnType.QUERY_RESULT)
+		{
+			resultCache.put(key, encoded, cacheGeneration);
+		}
+		return encoded;
+	}
+
+	private void commit(PataCommand cmd, ClientChannel channel)
 	{
 		try
 		{
 			jdbcDbConnection.commit();
-			Committed res = new Committed();
-			
-			int writeCnt = 0;
-			ByteBuffer buf = res.encodeResponse();
 			
-			while (socketChannel.isOpen())
+			if (pendingWrites)
 			{
-				writeCnt = socketChannel.write(buf);
-				
-				// End-of-stream check
-				if (buf.remaining() == 0)
-					{ break;}
+				pendingWrites = false;
+				invalidate();
 			}
+			Committed res = new Committed();
+			
+			send(channel, res.encodeResponse());
 		}
 		catch (Exception e)
 		{
 			ExceptionRaised ex = new ExceptionRaised(e);
 			try
 			{
-				socketChannel.write(ex.encodeResponse());
+				send(channel, ex.encodeResponse());
 			}
 			catch (Exception exc)
 			{
@@ -366,31 +1340,37 @@ public class DbConnection implements Runnable
 		}
 	}
 
-	private void rollback(PataCommand cmd, SocketChannel socketChannel)
+	/**
+	 * Answers a validation of the client without touching the database, unless its connection is gone
+	 */
+	private void ping(ClientChannel channel) throws Exception
+	{
+		if (jdbcDbConnection.isClosed())
+		{
+			send(channel, new ExceptionRaised(new SQLException("Connection is closed")).encodeResponse());
+			return;
+		}
+		send(channel, new Pong().encodeResponse());
+	}
+
+	private void rollback(PataCommand cmd, ClientChannel channel)
 	{
 		try
 		{
-			jdbcDbConnection.rollback();;
-			Aborted res = new Aborted();
+			jdbcDbConnection.rollback();
 			
-			int writeCnt = 0;
-			ByteBuffer buf = res.encodeResponse();
+			// Other connections can only have cached the state before the transaction
+			pendingWrites = false;
+			Aborted res = new Aborted();
 			
-			while (socketChannel.isOpen())
-			{
-				writeCnt = socketChannel.write(buf);
-				
-				// End-of-stream check
-				if (buf.remaining() == 0)
-					{ break;}
-			}
+			send(channel, res.encodeResponse());
 		}
 		catch (Exception e)
 		{
 			ExceptionRaised ex = new ExceptionRaised(e);
 			try
 			{
-				socketChannel.write(ex.encodeResponse());
+				send(channel, ex.encodeResponse());
 			}
 			catch (Exception exc)
 			{
@@ -399,6 +1379,41 @@ public class DbConnection implements Runnable
 		}
 	}	
 	
+	/**
+	 * Invalidates cached and shared results after a write, DDL or SET statement.
+	 * Inside a transaction this is repeated on commit, as queries of other
+	 * connections could have cached the old state in the meantime. The session
+	 * shares neither the cache nor executions anymore, the statement may have
+	 * changed its own state.
+	 */
+	private void noteWrite(boolean autoCommit)
+	{
+		sessionLocalState = true;
+		
+		if (resultCache == null && singleFlight == null)
+		{
+			return;
+		}
+		
+		invalidate();
+		if (!autoCommit)
+		{
+			pendingWrites = true;
+		}
+	}
+	
+	private void invalidate()
+	{
+		if (resultCache != null)
+		{
+			resultCache.invalidate();
+		}
+		if (singleFlight != null)
+		{
+			singleFlight.noteWrite();
+		}
+	}
+	
 	private void setStatementParameters(StatementParameter stmtParams) throws SQLException
 	{
 		// Special case all params are NULL
@@ -0,0 +1,265 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import duckdb_driver.pata.commands.CommandDecoder;
+import duckdb_driver.pata.commands.Connect;
+import duckdb_driver.pata.commands.Disconnect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
+import duckdb_driver.pata.commands.PataCommand;
+import duckdb_driver.pata.responses.Connected;
+import duckdb_driver.pata.responses.ExceptionRaised;
+
+/**
+ * A socket that carries the sessions of many logical client connections. Each
+ * session has a DbConnection with a DuckDB connection of its own, so their
+ * transactions stay apart. Frames are routed by their session.
+ * <p>
+ * A session is opened by a Connect frame, which is answered with Connected,
+ * and ended by a Disconnect frame without response. Its commands are executed
+ * one after the other on the worker pool shared by all multiplexed sockets of
+ * the server, a session only takes a thread while a command executes.
+ */
+public class MuxConnection implements Runnable
+{
+	private final UUID id = UUID.randomUUID();
+	private final Server server;
+	private final ExecutorService workers;
+	private ServerSocketChannel svrChannel;
+	private volatile ClientChannel clientChannel;
+	private int port;
+	// Negotiated by the Connect of the control port, frames of all sessions are decoded with it
+	private final int protocolVersion;
+	
+	// Only used by the thread reading the socket
+	private final Map<Integer, Session> sessions = new HashMap<Integer, Session>();
+	
+	/**
+	 * Runs the commands of a session in order, one at a time
+	 */
+	private class Session extends CommandQueue
+	{
+		final DbConnection connection;
+		
+		Session(DbConnection connection)
+		{
+			super(workers);
+			this.connection = connection;
+		}
+	}
+	
+	public MuxConnection(Server server, ExecutorService workers, int protocolVersion)
+	{
+		this.server = server;
+		this.workers = workers;
+		this.protocolVersion = protocolVersion;
+		
+		try 
+		{
+			svrChannel = ServerSocketChannel.open();
+			svrChannel.socket().bind(new InetSocketAddress("localhost", 0));
+			port = svrChannel.socket().getLocalPort();
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	public UUID getId()
+	{
+		return id;
+	}
+	
+	public int getSocketPort()
+	{
+		return port;
+	}
+
+	@Override
+	public void run()
+	{
+		ClientChannel channel = null;
+		try 
+		{
+			SocketChannel socketChannel = svrChannel.accept();
+			channel = new SocketClientChannel(socketChannel);
+			clientChannel = channel;
+			svrChannel.close();
+			socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+			socketChannel.configureBlocking(true);
+			
+			FrameReader frameReader = new FrameReader(socketChannel, 64 * 1024);
+			
+			while (true)
+			{
+				Frame frame = frameReader.readHeader();
+				
+				// End-of-stream check
+				if (frame == null)
+					{ break;}
+				
+				dispatch(frame, CommandDecoder.decodeBuffer(frameReader.read(frame.length), protocolVersion), channel);
+			}
+		}
+		catch (Exception e) 
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			// Open transactions of the sessions are rolled back. The last session
+			// closes the socket, after the responses of the commands before.
+			List<Session> open = new ArrayList<Session>(sessions.values());
+			sessions.clear();
+			
+			ClientChannel closing = channel;
+			AtomicInteger remaining = new AtomicInteger(open.size());
+			for (Session session : open)
+			{
+				session.submit(() -> {
+					close(session);
+					if (remaining.decrementAndGet() == 0)
+					{
+						close(closing);
+					}
+				});
+			}
+			if (open.isEmpty())
+			{
+				close(closing);
+			}
+			server.removeMuxConnection(this);
+		}
+	}
+	
+	/**
+	 * Stops reading commands for a shutdown, the sessions end after the commands that were read
+	 */
+	void drain()
+	{
+		ClientChannel channel = clientChannel;
+		try
+		{
+			if (channel != null)
+			{
+				channel.shutdownInput();
+			}
+			else
+			{
+				// The client never connected
+				svrChannel.close();
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Closes the socket of sessions that did not end after the shutdown deadline
+	 */
+	void closeSocket()
+	{
+		close(clientChannel);
+	}
+	
+	private static void close(ClientChannel channel)
+	{
+		if (channel != null)
+		{
+			channel.close();
+		}
+	}
+	
+	private void dispatch(Frame frame, PataCommand cmd, ClientChannel channel) throws Exception
+	{
+		switch (cmd.getOp())
+		{
+			case Connect.op:
+			{
+				open(frame, (Connect)cmd, channel);
+				break;
+			}
+			case Disconnect.op:
+			{
+				Session session = sessions.remove(frame.session);
+				if (session != null)
+				{
+					session.submit(() -> close(session));
+				}
+				break;
+			}
+			default:
+			{
+				Session session = sessions.get(frame.session);
+				if (session == null)
+				{
+					channel.send(frame.session, frame.requestId, new ExceptionRaised(new SQLException("Unknown session " + frame.session)).encodeResponse());
+					break;
+				}
+				session.submit(() -> session.connection.process(frame.requestId, cmd, channel));
+			}
+		}
+	}
+	
+	private void open(Frame frame, Connect cmd, ClientChannel channel) throws Exception
+	{
+		ByteBuffer response;
+		try
+		{
+			if (frame.session == 0 || sessions.containsKey(frame.session))
+			{
+				throw new SQLException("Session " + frame.session + " can't be opened");
+			}
+			
+			DbConnection con = server.openSession(cmd, frame.session);
+			sessions.put(frame.session, new Session(con));
+			
+			// The port of the socket that carries the session
+			response = new Connected(port, con.getConnctionId(), con.getProtocolVersion(), con.getCapabilities()).encodeResponse();
+		}
+		catch (SQLException e)
+		{
+			response = new ExceptionRaised(e).encodeResponse();
+		}
+		channel.send(frame.session, frame.requestId, response);
+	}
+	
+	private void close(Session session)
+	{
+		session.connection.closeSession();
+		server.closeSession(session.connection);
+	}
+}
@@ -0,0 +1,422 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import duckdb_driver.pata.commands.CommandDecoder;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.PataCommand;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Sockets of all sessions on a few event loop threads, with epoll on Linux.
+ * Frames are split by the length in their header and decoded in place, the
+ * commands run on the worker pool that multiplexed sockets use as well. So a
+ * session only takes a thread while a command executes.
+ * <p>
+ * Responses are written as a composite of a pooled header buffer and the
+ * wrapped payload, which is not copied. A session waits while the client
+ * reads slower than it sends, as on a blocking socket.
+ * <p>
+ * Upgraded sockets were accepted by the control port as plain java sockets,
+ * which only a NIO event loop can take over. With epoll they get a NIO group
+ * of their own, created on the first upgrade.
+ */
+public class NettyTransport implements Transport
+{
+	private final Server server;
+	private final ExecutorService workers;
+	private final EventLoopGroup group;
+	private final Class<? extends ServerChannel> serverChannelClass;
+	private final int eventLoopThreads;
+	// Loops of the upgraded sockets, the group itself if it is not epoll
+	private EventLoopGroup upgradeGroup;
+	
+	// A decoded command with the request id of its frame
+	private record Request(int requestId, PataCommand cmd)
+	{
+	}
+	
+	public NettyTransport(Server server, ExecutorService workers, int eventLoopThreads)
+	{
+		this.server = server;
+		this.workers = workers;
+		this.eventLoopThreads = eventLoopThreads;
+		
+		DefaultThreadFactory threadFactory = new DefaultThreadFactory("pata-netty", true);
+		if (Epoll.isAvailable())
+		{
+			group = new EpollEventLoopGroup(eventLoopThreads, threadFactory);
+			serverChannelClass = EpollServerSocketChannel.class;
+		}
+		else
+		{
+			group = new NioEventLoopGroup(eventLoopThreads, threadFactory);
+			serverChannelClass = NioServerSocketChannel.class;
+			upgradeGroup = group;
+		}
+	}
+	
+	@Override
+	public boolean isThreadPerSession()
+	{
+		return false;
+	}
+	
+	@Override
+	public int open(DbConnection con) throws IOException
+	{
+		NettySession session = new NettySession(con);
+		con.attach(session);
+		
+		ServerBootstrap bootstrap = new ServerBootstrap()
+				.group(group)
+				.channel(serverChannelClass)
+				.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+				.childOption(ChannelOption.SO_KEEPALIVE, true)
+				// Responses of the commands that were read are still sent after the client shut down its output
+				.childOption(ChannelOption.ALLOW_HALF_CLOSURE, true)
+				.childHandler(new ChannelInitializer<Channel>()
+				{
+					@Override
+					protected void initChannel(Channel channel)
+					{
+						session.accept(channel);
+					}
+				});
+		
+		ChannelFuture bound = bootstrap.bind(new InetSocketAddress("localhost", 0)).awaitUninterruptibly();
+		if (!bound.isSuccess())
+		{
+			throw new IOException("No socket for the session", bound.cause());
+		}
+		session.listen(bound.channel());
+		
+		return ((InetSocketAddress)bound.channel().localAddress()).getPort();
+	}
+	
+	@Override
+	public void upgrade(DbConnection con, SocketChannel socketChannel) throws IOException
+	{
+		NettySession session = new NettySession(con);
+		con.attach(session);
+		
+		NioSocketChannel channel = new NioSocketChannel(socketChannel);
+		channel.config().setAllocator(PooledByteBufAllocator.DEFAULT).setKeepAlive(true).setAllowHalfClosure(true);
+		channel.pipeline().addLast(new ChannelInitializer<Channel>()
+		{
+			@Override
+			protected void initChannel(Channel channel)
+			{
+				session.accept(channel);
+			}
+		});
+		
+		ChannelFuture registered = getUpgradeGroup().register(channel).awaitUninterruptibly();
+		if (!registered.isSuccess())
+		{
+			throw new IOException("Socket was not taken over", registered.cause());
+		}
+	}
+	
+	private synchronized EventLoopGroup getUpgradeGroup()
+	{
+		if (upgradeGroup == null)
+		{
+			upgradeGroup = new NioEventLoopGroup(eventLoopThreads, new DefaultThreadFactory("pata-netty-upgraded", true));
+		}
+		return upgradeGroup;
+	}
+	
+	@Override
+	public void close()
+	{
+		group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+		synchronized (this)
+		{
+			if (upgradeGroup != null && upgradeGroup != group)
+			{
+				upgradeGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * The socket of one session. The first client that connects gets the
+	 * session, its commands are run one after the other. An upgraded socket
+	 * has no listener, it is accepted when it is registered.
+	 */
+	private class NettySession extends CommandQueue implements ClientChannel
+	{
+		private final DbConnection con;
+		
+		private volatile Channel listener;
+		private volatile Channel channel;
+		private volatile boolean closing = false;
+		private final AtomicBoolean finishing = new AtomicBoolean();
+		private final AtomicBoolean ended = new AtomicBoolean();
+		
+		NettySession(DbConnection con)
+		{
+			super(workers);
+			this.con = con;
+		}
+		
+		void listen(Channel listener)
+		{
+			this.listener = listener;
+			
+			// Closed without a client if the session was reaped or disconnected before
+			listener.closeFuture().addListener(future -> {
+				if (channel == null)
+				{
+					end();
+				}
+			});
+			if (closing)
+			{
+				listener.close();
+			}
+		}
+		
+		synchronized void accept(Channel accepted)
+		{
+			if (channel != null || closing)
+			{
+				accepted.close();
+				// Without a listener nothing else ends the session
+				if (channel == null)
+				{
+					end();
+				}
+				return;
+			}
+			// Before the listener is closed, which ends a session without client.
+			// Closed after its accept loop, not within it.
+			channel = accepted;
+			Channel parent = accepted.parent();
+			if (parent != null)
+			{
+				parent.eventLoop().execute(parent::close);
+			}
+			
+			accepted.pipeline().addLast(new FrameDecoder(con.getProtocolVersion()), new RequestHandler(this));
+			accepted.closeFuture().addListener(future -> end());
+			con.connected();
+		}
+		
+		void receive(Request request)
+		{
+			con.touch();
+			submit(() -> con.process(request.requestId(), request.cmd(), this));
+		}
+		
+		/**
+		 * Closes the socket once the commands that were read are answered
+		 */
+		void finish()
+		{
+			if (!finishing.compareAndSet(false, true))
+			{
+				return;
+			}
+			submit(() -> {
+				Channel current = channel;
+				current.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+			});
+		}
+		
+		// Frees the session after its last command, as the thread of a session with its own socket does
+		private void end()
+		{
+			if (!ended.compareAndSet(false, true))
+			{
+				return;
+			}
+			submit(() -> {
+				con.release();
+				server.closeSession(con);
+			});
+		}
+		
+		@Override
+		public void send(int session, int requestId, ByteBuffer payload) throws IOException
+		{
+			Channel current = channel;
+			if (current == null || !current.isActive())
+			{
+				throw new ClosedChannelException();
+			}
+			
+			ByteBuffer header = new Frame(session, requestId, payload.remaining()).encodeHeader();
+			ByteBuf headerBuf = current.alloc().directBuffer(header.remaining()).writeBytes(header);
+			CompositeByteBuf frame = current.alloc().compositeDirectBuffer(2).addComponents(true, headerBuf, Unpooled.wrappedBuffer(payload));
+			
+			ChannelFuture written = current.writeAndFlush(frame);
+			if (!current.isWritable())
+			{
+				written.awaitUninterruptibly();
+			}
+			if (written.isDone() && !written.isSuccess())
+			{
+				throw new IOException(written.cause());
+			}
+		}
+		
+		@Override
+		public void shutdownInput() throws IOException
+		{
+			Channel current = channel;
+			if (current == null)
+			{
+				// The client never connected
+				close();
+				return;
+			}
+			
+			ChannelFuture shutdown = ((DuplexChannel)current).shutdownInput().awaitUninterruptibly();
+			if (!shutdown.isSuccess())
+			{
+				throw new IOException(shutdown.cause());
+			}
+			finish();
+		}
+		
+		@Override
+		public void close()
+		{
+			closing = true;
+			
+			Channel current = listener;
+			if (current != null)
+			{
+				current.close();
+			}
+			current = channel;
+			if (current != null)
+			{
+				current.close();
+			}
+		}
+	}
+	
+	/**
+	 * Splits the stream into frames by the length in their header. The command
+	 * is decoded right away, so its payload is read in place.
+	 */
+	private static class FrameDecoder extends ByteToMessageDecoder
+	{
+		private final int protocolVersion;
+		
+		// Header of the frame whose payload did not fully arrive yet
+		private Frame frame;
+		
+		FrameDecoder(int protocolVersion)
+		{
+			this.protocolVersion = protocolVersion;
+		}
+		
+		@Override
+		protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception
+		{
+			if (frame == null)
+			{
+				if (in.readableBytes() < Frame.headerLength)
+				{
+					return;
+				}
+				frame = new Frame(in.nioBuffer(in.readerIndex(), Frame.headerLength));
+				in.skipBytes(Frame.headerLength);
+			}
+			if (in.readableBytes() < frame.length)
+			{
+				return;
+			}
+			
+			PataCommand cmd = CommandDecoder.decodeBuffer(in.nioBuffer(in.readerIndex(), frame.length), protocolVersion);
+			in.skipBytes(frame.length);
+			out.add(new Request(frame.requestId, cmd));
+			frame = null;
+		}
+	}
+	
+	private static class RequestHandler extends SimpleChannelInboundHandler<Request>
+	{
+		private final NettySession session;
+		
+		RequestHandler(NettySession session)
+		{
+			this.session = session;
+		}
+		
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, Request request)
+		{
+			session.receive(request);
+		}
+		
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception
+		{
+			// The client shut down its output, or the server the input for a shutdown
+			if (event instanceof ChannelInputShutdownEvent)
+			{
+				session.finish();
+			}
+			super.userEventTriggered(ctx, event);
+		}
+		
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+		{
+			cause.printStackTrace();
+			ctx.close();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking sockets with a thread per session, see DbConnection.run()
+ */
+public class NioTransport implements Transport
+{
+	@Override
+	public boolean isThreadPerSession()
+	{
+		return true;
+	}
+	
+	@Override
+	public int open(DbConnection con)
+	{
+		// Pooled sessions are already waiting for their client
+		if (con.getThread() == null)
+		{
+			Server.start(con);
+		}
+		return con.getSocketPort();
+	}
+	
+	@Override
+	public void upgrade(DbConnection con, SocketChannel socketChannel)
+	{
+		con.handOver(socketChannel);
+		if (con.getThread() == null)
+		{
+			Server.start(con);
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		// The threads of the sessions close their sockets
+	}
+}
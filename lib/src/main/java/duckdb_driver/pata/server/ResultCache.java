@@ -0,0 +1,312 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Cache for encoded Result responses of read-only queries, keyed by the
+ * normalised SQL text and the bound parameter values.
+ * <p>
+ * Entries expire after the TTL and the least recently used ones are evicted
+ * when the cache grows beyond its size limit. Every write or DDL statement
+ * seen by a DbConnection invalidates the whole cache; the write generation
+ * makes sure that a query which ran concurrently to a write does not put its
+ * (possibly outdated) result into the cache afterwards.
+ * <p>
+ * The key has no session, so a session that ran anything but reads neither
+ * uses nor fills the cache. Its temporary tables, settings or current schema
+ * could make the same query return something else than for the others.
+ * <p>
+ * A statement containing the hint /*+ NO_RESULT_CACHE *&#47; bypasses the cache.
+ */
+public class ResultCache
+{
+	private static final Pattern bypassHint = Pattern.compile("/\\*\\+[^*]*\\bNO_RESULT_CACHE\\b[^*]*\\*/", Pattern.CASE_INSENSITIVE);
+	private static final Pattern readStatement = Pattern.compile("^\\(*\\s*(SELECT|WITH|FROM|VALUES)\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern returningClause = Pattern.compile("\\bRETURNING\\b", Pattern.CASE_INSENSITIVE);
+	
+	// The encoding tells apart responses of the same statement that are encoded differently
+	public record Key(String sql, List<String> parameterTypes, List<Object> parameterValues, ResultEncoding encoding)
+	{
+	}
+	
+	private record Entry(byte[] response, long expiresAt)
+	{
+	}
+	
+	private final long maxBytes;
+	private final long ttlMillis;
+	
+	// Access ordered, the first entry is the least recently used one
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long sizeBytes = 0;
+	
+	private final AtomicLong generation = new AtomicLong();
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	
+	public ResultCache(long maxBytes, long ttlMillis)
+	{
+		this.maxBytes = maxBytes;
+		this.ttlMillis = ttlMillis;
+	}
+	
+	/**
+	 * Returns the key for a statement, or null if its result must not be cached
+	 */
+	public static Key createKey(String sql, StatementParameter parameters)
+	{
+		return createKey(sql, parameters, ResultEncoding.NONE);
+	}
+	
+	/**
+	 * Returns the key for a statement whose response has the encoding, or null
+	 * if its result must not be cached
+	 */
+	public static Key createKey(String sql, StatementParameter parameters, ResultEncoding encoding)
+	{
+		if (sql == null || bypassHint.matcher(sql).find())
+		{
+			return null;
+		}
+		
+		String normalized = normalize(sql);
+		if (!isReadOnly(normalized))
+		{
+			return null;
+		}
+		
+		List<String> types = parameters == null ? List.of() : new ArrayList<String>(parameters.parameterTypes());
+		List<Object> values = parameters == null ? List.of() : new ArrayList<Object>(parameters.parameterValues());
+		
+		return new Key(normalized, types, values, encoding);
+	}
+	
+	/**
+	 * True for queries that can't change data or schema. Everything else counts
+	 * as a write and invalidates the cache.
+	 */
+	public static boolean isReadOnly(String sql)
+	{
+		String normalized = normalize(sql);
+		return readStatement.matcher(normalized).matches() && !returningClause.matcher(normalized).find();
+	}
+	
+	/**
+	 * Collapses whitespace and removes comments and a trailing semicolon,
+	 * string literals and quoted identifiers are kept as they are.
+	 */
+	static String normalize(String sql)
+	{
+		StringBuilder sb = new StringBuilder(sql.length());
+		int len = sql.length();
+		int i = 0;
+		boolean space = false;
+		
+		while (i < len)
+		{
+			char c = sql.charAt(i);
+			
+			if (c == '\'' || c == '"')
+			{
+				int end = i + 1;
+				while (end < len)
+				{
+					if (sql.charAt(end) == c)
+					{
+						// Doubled quote is an escaped quote
+						if (end + 1 < len && sql.charAt(end + 1) == c)
+						{
+							end += 2;
+							continue;
+						}
+						break;
+					}
+					end++;
+				}
+				end = Math.min(end + 1, len);
+				
+				if (space && sb.length() > 0)
+				{
+					sb.append(' ');
+				}
+				space = false;
+				sb.append(sql, i, end);
+				i = end;
+			}
+			else if (c == '-' && i + 1 < len && sql.charAt(i + 1) == '-')
+			{
+				while (i < len && sql.charAt(i) != '\n')
+				{
+					i++;
+				}
+				space = true;
+			}
+			else if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*')
+			{
+				int end = sql.indexOf("*/", i + 2);
+				i = end < 0 ? len : end + 2;
+				space = true;
+			}
+			else if (Character.isWhitespace(c))
+			{
+				space = true;
+				i++;
+			}
+			else
+			{
+				if (space && sb.length() > 0)
+				{
+					sb.append(' ');
+				}
+				space = false;
+				sb.append(c);
+				i++;
+			}
+		}
+		
+		// Trailing semicolons don't change the statement
+		int end = sb.length();
+		while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+		{
+			end--;
+		}
+		sb.setLength(end);
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Current write generation. Take it before executing a query and pass it to put().
+	 */
+	public long getGeneration()
+	{
+		return generation.get();
+	}
+	
+	/**
+	 * Returns the encoded response, or null on a miss
+	 */
+	public synchronized byte[] get(Key key)
+	{
+		Entry entry = entries.get(key);
+		
+		if (entry != null && entry.expiresAt() < System.currentTimeMillis())
+		{
+			remove(key);
+			entry = null;
+		}
+		
+		if (entry == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		
+		hits.incrementAndGet();
+		return entry.response();
+	}
+	
+	/**
+	 * Stores an encoded response, unless there was a write since generation was taken
+	 */
+	public synchronized void put(Key key, byte[] response, long generation)
+	{
+		if (generation != this.generation.get() || response.length > maxBytes)
+		{
+			return;
+		}
+		
+		Entry old = entries.put(key, new Entry(response, System.currentTimeMillis() + ttlMillis));
+		if (old != null)
+		{
+			sizeBytes -= old.response().length;
+		}
+		sizeBytes += response.length;
+		
+		// Evict least recently used entries
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (sizeBytes > maxBytes && it.hasNext())
+		{
+			Map.Entry<Key, Entry> eldest = it.next();
+			sizeBytes -= eldest.getValue().response().length;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Drops all entries after a write or DDL statement
+	 */
+	public synchronized void invalidate()
+	{
+		generation.incrementAndGet();
+		entries.clear();
+		sizeBytes = 0;
+		invalidations.incrementAndGet();
+	}
+	
+	private void remove(Key key)
+	{
+		Entry entry = entries.remove(key);
+		if (entry != null)
+		{
+			sizeBytes -= entry.response().length;
+		}
+	}
+	
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public long getInvalidations()
+	{
+		return invalidations.get();
+	}
+	
+	public synchronized int getEntryCount()
+	{
+		return entries.size();
+	}
+	
+	public synchronized long getSizeBytes()
+	{
+		return sizeBytes;
+	}
+}
@@ -0,0 +1,98 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.duckdb.DuckDBResultSet;
+
+/**
+ * Result of a statement that the client fetches in parts. Record batches are
+ * only converted when the client asks for them, so a slow reader does not
+ * make the server buffer the whole result.
+ * <p>
+ * All parts together are one arrow stream: the first one starts with the
+ * schema, the last one ends with the end-of-stream marker.
+ */
+public class ResultCursor implements AutoCloseable
+{
+	public final UUID statementId;
+	
+	private final DuckDBResultSet resultSet;
+	private final ArrowResultSet ars;
+	private final ByteArrayOutputStream arrowOutStream = new ByteArrayOutputStream();
+	private final ArrowStreamWriter writer;
+	private boolean hasMore = true;
+	
+	public ResultCursor(UUID statementId, DuckDBResultSet resultSet) throws Exception
+	{
+		this(statementId, resultSet, ResultEncoding.NONE);
+	}
+	
+	/**
+	 * Result with compressed record batches or dictionary-encoded columns, see ResultStreamWriter
+	 */
+	public ResultCursor(UUID statementId, DuckDBResultSet resultSet, ResultEncoding encoding) throws Exception
+	{
+		this.statementId = statementId;
+		this.resultSet = resultSet;
+		this.ars = new ArrowResultSet(resultSet, encoding);
+		this.writer = ars.getArrowStreamWriter(Channels.newChannel(arrowOutStream));
+	}
+	
+	/**
+	 * Encodes the next batches of the result, at most maxBatches
+	 */
+	public byte[] next(int maxBatches, BooleanSupplier stopped) throws Exception
+	{
+		if (hasMore)
+		{
+			hasMore = ars.writeNextBatches(writer, maxBatches, stopped);
+		}
+		
+		byte[] fragment = arrowOutStream.toByteArray();
+		arrowOutStream.reset();
+		return fragment;
+	}
+	
+	/**
+	 * False once the end of the stream was encoded
+	 */
+	public boolean hasMore()
+	{
+		return hasMore;
+	}
+
+	@Override
+	public void close() throws SQLException
+	{
+		try
+		{
+			writer.close();
+			ars.close();
+		}
+		finally
+		{
+			resultSet.close();
+		}
+	}
+}
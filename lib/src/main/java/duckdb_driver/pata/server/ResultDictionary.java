@@ -0,0 +1,132 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+
+/**
+ * Dictionary of a string column that grows while the result is written. Each
+ * distinct value gets the next index, the values are only sent once: the first
+ * record batch is preceded by a dictionary batch, later batches by a delta
+ * batch with the values that were new in them.
+ */
+class ResultDictionary implements AutoCloseable
+{
+	// Indices of the column vector
+	static final ArrowType.Int INDEX_TYPE = new ArrowType.Int(32, true);
+	
+	final Dictionary dictionary;
+	
+	private final HashMap<String, Integer> indices = new HashMap<String, Integer>();
+	// Values that were not sent yet
+	private final VarCharVector pending;
+	private int pendingCount = 0;
+	private boolean sent = false;
+	
+	ResultDictionary(long id, BufferAllocator allocator)
+	{
+		pending = new VarCharVector("dictionary" + id, allocator);
+		pending.allocateNewSafe();
+		dictionary = new Dictionary(pending, new DictionaryEncoding(id, false, INDEX_TYPE));
+	}
+	
+	long getId()
+	{
+		return dictionary.getEncoding().getId();
+	}
+	
+	DictionaryEncoding getEncoding()
+	{
+		return dictionary.getEncoding();
+	}
+	
+	/**
+	 * Index of the value, new values are added to the dictionary
+	 */
+	int indexOf(String value)
+	{
+		Integer index = indices.get(value);
+		if (index == null)
+		{
+			index = indices.size();
+			indices.put(value, index);
+			pending.setSafe(pendingCount++, value.getBytes(StandardCharsets.UTF_8));
+			// Unloading the vector fills everything after its value count with empty values
+			pending.setValueCount(pendingCount);
+		}
+		return index;
+	}
+	
+	/**
+	 * Distinct values so far
+	 */
+	int size()
+	{
+		return indices.size();
+	}
+	
+	/**
+	 * True if the next batch of the dictionary is a delta
+	 */
+	boolean isDelta()
+	{
+		return sent;
+	}
+	
+	/**
+	 * The values to send before the next record batch, null if there are none.
+	 * The first batch is sent even if it is empty, readers need one for every
+	 * dictionary. Call sent() once it was written.
+	 */
+	ArrowRecordBatch getPendingBatch()
+	{
+		if (sent && pendingCount == 0)
+		{
+			return null;
+		}
+		VectorSchemaRoot root = new VectorSchemaRoot(List.of(pending.getField()), List.of(pending), pendingCount);
+		return new VectorUnloader(root).getRecordBatch();
+	}
+	
+	/**
+	 * The pending values were written, their buffers are reused
+	 */
+	void sent()
+	{
+		pending.reset();
+		pendingCount = 0;
+		sent = true;
+	}
+	
+	@Override
+	public void close()
+	{
+		pending.close();
+	}
+}
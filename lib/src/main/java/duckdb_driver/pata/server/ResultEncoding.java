@@ -0,0 +1,39 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+/**
+ * How the arrow stream of a result is encoded for a client. Responses with
+ * different encodings are cached apart.
+ * 
+ * @param compression codec of the record batch bodies, see Protocol, null for none
+ * @param adaptiveCompression buffers that don't compress well are sent uncompressed
+ * @param dictionaries ENUM and low-cardinality VARCHAR columns are dictionary-encoded
+ * @param compactTypes DECIMAL, DATE and TIME columns are sent in the smallest arrow vectors that hold them
+ */
+public record ResultEncoding(String compression, boolean adaptiveCompression, boolean dictionaries, boolean compactTypes)
+{
+	// Plain arrow stream that every client can read
+	public static final ResultEncoding NONE = new ResultEncoding(null, false, false, false);
+	
+	public ResultEncoding
+	{
+		// Without codec the flag makes no difference
+		adaptiveCompression = compression != null && adaptiveCompression;
+	}
+}
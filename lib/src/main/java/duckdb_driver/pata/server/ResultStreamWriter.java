@@ -0,0 +1,237 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.compression.CompressionCodec;
+import org.apache.arrow.vector.compression.CompressionUtil;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.message.ArrowDictionaryBatch;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+
+import duckdb_driver.pata.commands.Protocol;
+
+/**
+ * Writes the arrow stream of a result with dictionary-encoded columns, whose
+ * dictionaries grow from batch to batch, and record batch bodies that may be
+ * compressed with LZ4_FRAME or ZSTD. Readers need a CompressionCodec.Factory
+ * for compressed streams.
+ * <p>
+ * The writers of Arrow 10 only send the dictionaries as they were when the
+ * writer was created, can't compress, and the compressing VectorUnloader frees
+ * the buffers of the vectors. New dictionary values are sent as delta
+ * dictionary batches before the record batch that uses them, and the record
+ * batches are compressed here instead. Dictionary batches are always sent
+ * uncompressed, the readers of Arrow 10 load them without codec.
+ * <p>
+ * In adaptive mode each buffer of a batch is only compressed if the same buffer
+ * of the previous batches got at least MAX_RATIO smaller. Buffers that didn't
+ * are sent uncompressed for the next batches, twice as many after every miss
+ * up to MAX_SKIPPED_BATCHES, then compressed again to see if the data changed.
+ * Small buffers are always sent uncompressed.
+ */
+public class ResultStreamWriter extends ArrowStreamWriter
+{
+	// Compressed size relative to the uncompressed one that is worth the time
+	static final double MAX_RATIO = 0.9;
+	static final int MAX_SKIPPED_BATCHES = 64;
+	static final long MIN_BUFFER_BYTES = 1024;
+	
+	private final VectorUnloader unloader;
+	private final List<ResultDictionary> dictionaries;
+	private final BufferAllocator allocator;
+	// null if the batches are sent uncompressed
+	private final CompressionCodec codec;
+	private final boolean adaptive;
+	
+	// Per buffer of a batch: batches to send uncompressed and misses in a row
+	private int[] skipBatches = new int[0];
+	private int[] misses = new int[0];
+	
+	private long uncompressedBytes = 0;
+	private long compressedBytes = 0;
+	private long skippedBuffers = 0;
+	
+	ResultStreamWriter(VectorSchemaRoot root, List<ResultDictionary> dictionaries, BufferAllocator allocator, 
+			WritableByteChannel chan, CompressionUtil.CodecType codecType, boolean adaptive)
+	{
+		super(root, createProvider(dictionaries), chan);
+		this.unloader = new VectorUnloader(root);
+		this.dictionaries = dictionaries;
+		this.allocator = allocator;
+		this.codec = codecType == CompressionUtil.CodecType.NO_COMPRESSION ? null : CommonsCompressionFactory.INSTANCE.createCodec(codecType);
+		this.adaptive = adaptive;
+	}
+	
+	// The schema refers to the dictionaries by their id
+	private static DictionaryProvider createProvider(List<ResultDictionary> dictionaries)
+	{
+		DictionaryProvider.MapDictionaryProvider provider = new DictionaryProvider.MapDictionaryProvider();
+		for (ResultDictionary dictionary : dictionaries)
+		{
+			provider.put(dictionary.dictionary);
+		}
+		return provider;
+	}
+	
+	/**
+	 * The Arrow codec of a codec of the protocol, NO_COMPRESSION for null
+	 */
+	public static CompressionUtil.CodecType getCodecType(String compression)
+	{
+		if (compression == null)
+		{
+			return CompressionUtil.CodecType.NO_COMPRESSION;
+		}
+		switch (compression)
+		{
+			case Protocol.LZ4_FRAME:
+				return CompressionUtil.CodecType.LZ4_FRAME;
+			case Protocol.ZSTD:
+				return CompressionUtil.CodecType.ZSTD;
+			default:
+				throw new IllegalArgumentException("Unknown compression " + compression);
+		}
+	}
+	
+	@Override
+	public void writeBatch() throws IOException
+	{
+		start();
+		for (ResultDictionary dictionary : dictionaries)
+		{
+			writeDictionary(dictionary);
+		}
+		try (ArrowRecordBatch batch = unloader.getRecordBatch(); ArrowRecordBatch compressed = compress(batch))
+		{
+			writeRecordBatch(compressed);
+		}
+	}
+	
+	private void writeDictionary(ResultDictionary dictionary) throws IOException
+	{
+		try (ArrowRecordBatch batch = dictionary.getPendingBatch())
+		{
+			if (batch == null)
+			{
+				return;
+			}
+			writeDictionaryBatch(new ArrowDictionaryBatch(dictionary.getId(), batch, dictionary.isDelta()));
+		}
+		dictionary.sent();
+	}
+	
+	/**
+	 * The batch with compressed buffers, without codec the batch itself with another reference
+	 */
+	private ArrowRecordBatch compress(ArrowRecordBatch batch)
+	{
+		List<ArrowBuf> buffers = batch.getBuffers();
+		if (codec == null)
+		{
+			return new ArrowRecordBatch(batch.getLength(), batch.getNodes(), buffers);
+		}
+		if (skipBatches.length != buffers.size())
+		{
+			skipBatches = new int[buffers.size()];
+			misses = new int[buffers.size()];
+		}
+		
+		List<ArrowBuf> compressed = new ArrayList<ArrowBuf>(buffers.size());
+		try
+		{
+			for (int i = 0; i < buffers.size(); i++)
+			{
+				compressed.add(compress(i, buffers.get(i)));
+			}
+			// Takes its own reference of the buffers
+			return new ArrowRecordBatch(batch.getLength(), batch.getNodes(), compressed, 
+					CompressionUtil.createBodyCompression(codec), true);
+		}
+		finally
+		{
+			compressed.forEach(ArrowBuf::close);
+		}
+	}
+	
+	private ArrowBuf compress(int index, ArrowBuf buffer)
+	{
+		long length = buffer.writerIndex();
+		uncompressedBytes += length;
+		
+		if (adaptive && (length < MIN_BUFFER_BYTES || skipBatches[index] > 0))
+		{
+			skipBatches[index] = Math.max(0, skipBatches[index] - 1);
+			skippedBuffers++;
+			compressedBytes += length;
+			return CompressionUtil.packageRawBuffer(allocator, buffer);
+		}
+		
+		// The codec closes the buffer it compressed, the batch still needs it
+		buffer.getReferenceManager().retain();
+		ArrowBuf compressed = codec.compress(allocator, buffer);
+		
+		long compressedLength = compressed.getLong(0) == CompressionUtil.NO_COMPRESSION_LENGTH 
+				? length : compressed.writerIndex() - CompressionUtil.SIZE_OF_UNCOMPRESSED_LENGTH;
+		compressedBytes += compressedLength;
+		
+		if (compressedLength > length * MAX_RATIO)
+		{
+			misses[index]++;
+			skipBatches[index] = Math.min(1 << Math.min(misses[index], 30), MAX_SKIPPED_BATCHES);
+		}
+		else
+		{
+			misses[index] = 0;
+		}
+		return compressed;
+	}
+	
+	/**
+	 * Bytes of the buffers before compression
+	 */
+	public long getUncompressedBytes()
+	{
+		return uncompressedBytes;
+	}
+	
+	/**
+	 * Bytes of the buffers as sent, without the length prefix of every buffer
+	 */
+	public long getCompressedBytes()
+	{
+		return compressedBytes;
+	}
+	
+	/**
+	 * Buffers that adaptive mode sent without trying to compress them
+	 */
+	public long getSkippedBuffers()
+	{
+		return skippedBuffers;
+	}
+}
@@ -18,39 +18,129 @@ package duckdb_driver.pata.server;
 
 import com.fasterxml.jackson.core.JacksonException;
 import org.duckdb.DuckDBConnection;
+import duckdb_driver.pata.commands.Cancel;
 import duckdb_driver.pata.commands.CommandDecoder;
 import duckdb_driver.pata.commands.Connect;
 import duckdb_driver.pata.commands.Disconnect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
 import duckdb_driver.pata.commands.PataCommand;
+import duckdb_driver.pata.commands.Protocol;
+import duckdb_driver.pata.responses.Cancelled;
 import duckdb_driver.pata.responses.Connected;
+import duckdb_driver.pata.responses.ExceptionRaised;
 import duckdb_driver.pata.responses.PataResponse;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 public class Server 
 {
+	// Time a client of the control port gets to send its command
+	static final long CONTROL_READ_TIMEOUT_MILLIS = 5000;
+	
+	// Time given to cancelled statements after the shutdown deadline
+	private static final long SHUTDOWN_GRACE_MILLIS = 1000;
+	
 	private ServerSocketChannel svrChannel;
 	
 	private Charset utf8 = Charset.forName("UTF-8");
 	
-	private Map<UUID, DbConnection> connections = new HashMap<UUID, DbConnection>();
+	// Also holds the sessions of multiplexed sockets, which are opened by their threads
+	private SessionRegistry sessions = new SessionRegistry();
 	
 	private DuckDBConnection rootDBConnection;
 	
+	private ServerConfig config;
+	
+	private ResultCache resultCache;
+	
+	private SingleFlight singleFlight;
+	
+	// Limit for concurrently executing statements, null if unlimited
+	private AdmissionController admissionController;
+	
+	// Deadlines of query timeouts of all connections
+	private TimerWheel timerWheel = new TimerWheel(100, 512);
+	
+	// Executes the commands of all multiplexed sessions and those of the netty transport, created when first needed
+	private ExecutorService muxWorkers;
+	
+	// Read the commands of the control port, one thread per socket until its command arrived
+	private ExecutorService controlReaders = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "pata-control");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	// Commands of the control port are processed one at a time
+	private final Object controlLock = new Object();
+	
+	// Sockets of the sessions that are not multiplexed
+	private Transport transport;
+	
+	// Sessions ready for Connect, null if disabled
+	private SessionPool sessionPool;
+	
+	// Closes sessions of clients that went quiet, null if disabled
+	private SessionReaper sessionReaper;
+	
+	// Multiplexed sockets, drained on shutdown
+	private Set<MuxConnection> muxConnections = ConcurrentHashMap.newKeySet();
+	
+	// Set by shutdown(), no sessions are opened anymore
+	private volatile boolean shuttingDown = false;
+	
 	public Server(DuckDBConnection duckDBConnection, int port)
+	{
+		this(duckDBConnection, port, new ServerConfig());
+	}
+	
+	public Server(DuckDBConnection duckDBConnection, int port, ServerConfig config)
 	{
 		rootDBConnection = duckDBConnection;
+		this.config = config;
+		
+		if (config.resultCacheEnabled)
+		{
+			resultCache = new ResultCache(config.resultCacheMaxBytes, config.resultCacheTtlMillis);
+		}
+		if (config.singleFlightEnabled)
+		{
+			singleFlight = new SingleFlight();
+		}
+		if (config.maxConcurrentStatements > 0 || hasClassLimits(config))
+		{
+			admissionController = new AdmissionController(config);
+		}
+		transport = createTransport(config);
+		if (config.sessionPoolSize > 0 && transport.isThreadPerSession())
+		{
+			sessionPool = new SessionPool(this, config.sessionPoolSize);
+		}
+		if (config.sessionIdleTimeoutMillis > 0)
+		{
+			sessionReaper = new SessionReaper(this, config.sessionIdleTimeoutMillis);
+		}
+		
 		InetSocketAddress socketAddress = new InetSocketAddress("localhost", port);
 		
 		try 
@@ -67,34 +157,221 @@ public class Server
 	
 	public void startServer()
 	{
-		while (true)
+		while (svrChannel.isOpen())
 		{
-			SocketChannel socketChannel;
-			ByteBuffer receiveBuffer = ByteBuffer.allocate(100);
-			
 			try 
 			{
-				socketChannel = svrChannel.accept();
-				socketChannel.read(receiveBuffer);
-				
-				ByteBuffer responseBuffer = processInput(receiveBuffer);
-				
-				socketChannel.write(responseBuffer);
+				SocketChannel socketChannel = svrChannel.accept();
+				controlReaders.execute(() -> readControl(socketChannel));
 			}
 			catch (ClosedByInterruptException e)
 			{
 				e.printStackTrace();
 			}
-			catch (IOException e) 
+			catch (AsynchronousCloseException e)
+			{
+				// Closed by stopServer() or shutdown()
+			}
+			catch (Exception e) 
 			{
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}	
 		}		
 	}
+	
+	/**
+	 * Reads the command of a socket of the control port and answers it. Runs on
+	 * a thread of its own, so a client that is slow to send doesn't hold up the
+	 * others, and gives up on the socket after CONTROL_READ_TIMEOUT_MILLIS. The
+	 * commands themselves are processed one at a time, as before. Drivers from
+	 * before frames send bare JSON and get a bare response.
+	 */
+	private void readControl(SocketChannel socketChannel)
+	{
+		TimerWheel.Timeout readTimeout = timerWheel.schedule(() -> closeQuietly(socketChannel), CONTROL_READ_TIMEOUT_MILLIS);
+		try
+		{
+			FrameReader frameReader = new FrameReader(socketChannel, 1000);
+			boolean framed = frameReader.isHeaderNext();
+			int requestId = 0;
+			ByteBuffer payload;
+			if (framed)
+			{
+				Frame frame = frameReader.readHeader();
+				requestId = frame.requestId;
+				payload = frameReader.read(frame.length);
+			}
+			else
+			{
+				payload = frameReader.readJson();
+			}
+			readTimeout.cancel();
+			
+			ByteBuffer response;
+			synchronized (controlLock)
+			{
+				response = processInput(requestId, payload, socketChannel, framed);
+			}
+			if (response == null)
+			{
+				// The socket was upgraded, it belongs to its session now
+				return;
+			}
+			ByteBuffer responseBuffer = framed ? Frame.encode(requestId, response) : response;
+			
+			while (responseBuffer.hasRemaining())
+			{
+				socketChannel.write(responseBuffer);
+			}
+		}
+		catch (AsynchronousCloseException e)
+		{
+			// Closed by the read timeout, or the client went away
+		}
+		catch (EOFException e)
+		{
+			closeQuietly(socketChannel);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			closeQuietly(socketChannel);
+		}
+	}
+	
+	private static void closeQuietly(SocketChannel socketChannel)
+	{
+		try
+		{
+			socketChannel.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing left to do with it
+		}
+	}
+	
+	/**
+	 * Stops accepting sessions and lets the open ones end: running statements
+	 * may finish until the timeout and their responses are sent, then they are
+	 * cancelled. Open transactions are rolled back when the sessions close
+	 * their DuckDB connections. Stops the server afterwards.
+	 */
+	public ShutdownReport shutdown(long timeoutMillis)
+	{
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		ShutdownReport report = new ShutdownReport();
+		
+		shuttingDown = true;
+		try
+		{
+			svrChannel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		if (sessionPool != null)
+		{
+			sessionPool.close();
+		}
+		if (sessionReaper != null)
+		{
+			sessionReaper.close();
+		}
+		
+		List<DbConnection> open = new ArrayList<DbConnection>(sessions.getSessions());
+		report.sessions = open.size();
+		for (DbConnection con : open)
+		{
+			if (con.getState() == SessionState.EXECUTING)
+			{
+				report.runningStatements++;
+			}
+			con.drain(report);
+		}
+		for (MuxConnection mux : muxConnections)
+		{
+			mux.drain();
+		}
+		
+		if (!awaitSessions(deadline))
+		{
+			for (DbConnection con : sessions.getSessions())
+			{
+				try
+				{
+					con.abort();
+				}
+				catch (SQLException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			
+			// Cancelled statements end with their next check
+			if (!awaitSessions(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_GRACE_MILLIS)))
+			{
+				for (DbConnection con : sessions.getSessions())
+				{
+					report.unfinishedSessions++;
+					con.reap();
+				}
+				for (MuxConnection mux : muxConnections)
+				{
+					mux.closeSocket();
+				}
+			}
+		}
+		
+		stopServer();
+		report.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		return report;
+	}
+	
+	private boolean awaitSessions(long deadline)
+	{
+		while (sessions.size() > 0)
+		{
+			if (System.nanoTime() - deadline >= 0)
+			{
+				return false;
+			}
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
 
 	public void stopServer()
 	{
+		timerWheel.stop();
+		controlReaders.shutdown();
+		transport.close();
+		if (sessionPool != null)
+		{
+			sessionPool.close();
+		}
+		if (sessionReaper != null)
+		{
+			sessionReaper.close();
+		}
+		synchronized (this)
+		{
+			if (muxWorkers != null)
+			{
+				muxWorkers.shutdown();
+			}
+		}
 		try
 		{
 			svrChannel.close();
@@ -105,7 +382,68 @@ public class Server
 		}
 	}
 
-	private ByteBuffer processInput(ByteBuffer inputBuffer)
+	/**
+	 * Result cache of the server with its hit/miss metrics, null if disabled
+	 */
+	public ResultCache getResultCache()
+	{
+		return resultCache;
+	}
+
+	/**
+	 * Deduplication of concurrent identical queries, null if disabled
+	 */
+	public SingleFlight getSingleFlight()
+	{
+		return singleFlight;
+	}
+
+	/**
+	 * Sessions kept ready for Connect with their metrics, null if disabled
+	 */
+	public SessionPool getSessionPool()
+	{
+		return sessionPool;
+	}
+
+	/**
+	 * Port of the control socket, the one the system picked if the server was created with port 0
+	 */
+	public int getPort()
+	{
+		return svrChannel.socket().getLocalPort();
+	}
+	
+	/**
+	 * Sessions of the server with their states, listeners can be added to it
+	 */
+	public SessionRegistry getSessionRegistry()
+	{
+		return sessions;
+	}
+
+	/**
+	 * Closing of idle sessions with its metrics, null if disabled
+	 */
+	public SessionReaper getSessionReaper()
+	{
+		return sessionReaper;
+	}
+
+	/**
+	 * Admission of statements with queue metrics, null if unlimited
+	 */
+	public AdmissionController getAdmissionController()
+	{
+		return admissionController;
+	}
+
+	/**
+	 * Answers a command of the control port, null if the response was already
+	 * sent because the socket was handed to a session. An unframed Connect
+	 * opens a session of version 0.
+	 */
+	private ByteBuffer processInput(int requestId, ByteBuffer inputBuffer, SocketChannel socketChannel, boolean framed)
 	{
 		PataCommand cmd;
 		try
@@ -116,12 +454,25 @@ public class Server
 			{
 				case Connect.op:
 				{
-					return connect();
+					Connect connect = (Connect)cmd;
+					if (!framed)
+					{
+						return connectLegacy(connect);
+					}
+					if (connect.upgrade && !connect.multiplex)
+					{
+						return upgrade(connect, requestId, socketChannel);
+					}
+					return connect(connect);
 				}
 				case Disconnect.op:
 				{
 					return disconnect(cmd);
 				}
+				case Cancel.op:
+				{
+					return cancel(cmd);
+				}
 			}
 		} 
 		catch (Exception e)
@@ -133,18 +484,78 @@ public class Server
 		return ByteBuffer.wrap("ERROR: Unknown command".getBytes(utf8));
 	}
 
-	private ByteBuffer connect()
+	private Transport createTransport(ServerConfig config)
+	{
+		switch (config.transport)
+		{
+			case ServerConfig.NIO_TRANSPORT:
+			{
+				return new NioTransport();
+			}
+			case ServerConfig.NETTY_TRANSPORT:
+			{
+				return new NettyTransport(this, getMuxWorkers(), config.nettyEventLoopThreads);
+			}
+		}
+		throw new IllegalArgumentException("Unknown transport " + config.transport);
+	}
+	
+	private static boolean hasClassLimits(ServerConfig config)
+	{
+		for (WorkloadClass workloadClass : config.workloadClasses.values())
+		{
+			if (workloadClass.maxConcurrent > 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private ByteBuffer connect(Connect cmd)
 	{
 		try
 		{
-			DbConnection con = new DbConnection((DuckDBConnection) rootDBConnection.duplicate());
-			connections.put(con.getConnctionId(), con);
+			if (cmd.multiplex)
+			{
+				if (shuttingDown)
+				{
+					return new ExceptionRaised(new SQLException("Server is shutting down")).encodeResponse();
+				}
+				int protocolVersion = Protocol.negotiate(cmd.protocolVersion, Protocol.CURRENT_VERSION);
+				MuxConnection mux = new MuxConnection(this, getMuxWorkers(), protocolVersion);
+				muxConnections.add(mux);
+				
+				Thread t = new Thread(mux);
+				t.start();
+				
+				return new Connected(mux.getSocketPort(), mux.getId(), protocolVersion, 
+						Protocol.negotiate(cmd.capabilities, Protocol.CAPABILITIES)).encodeResponse();
+			}
 			
-			Thread t = new Thread(con);
-			con.setThread(t);
-			t.start();
+			DbConnection con;
+			try
+			{
+				con = openSession(cmd, 0);
+			}
+			catch (SQLException e)
+			{
+				return new ExceptionRaised(e).encodeResponse();
+			}
+			
+			int port;
+			try
+			{
+				port = transport.open(con);
+			}
+			catch (IOException e)
+			{
+				con.release();
+				closeSession(con);
+				return new ExceptionRaised(new SQLException(e.getMessage(), e)).encodeResponse();
+			}
 			
-			PataResponse response = new Connected(con.getSocketPort());
+			PataResponse response = new Connected(port, con.getConnctionId(), con.getProtocolVersion(), con.getCapabilities());
 			
 			return response.encodeResponse();
 		} 
@@ -166,13 +577,198 @@ public class Server
 		}
 	}
 	
+	/**
+	 * Opens a session of version 0 for a driver from before frames. It gets a
+	 * socket and a thread of its own with either transport, the client
+	 * connects to its port as it always did.
+	 */
+	private ByteBuffer connectLegacy(Connect cmd) throws Exception
+	{
+		DbConnection con;
+		try
+		{
+			con = openSession(cmd, 0, false);
+		}
+		catch (SQLException e)
+		{
+			return new ExceptionRaised(e).encodeResponse();
+		}
+		
+		// Pooled sessions are already waiting for their client
+		if (con.getThread() == null)
+		{
+			start(con);
+		}
+		return new Connected(con.getSocketPort(), con.getConnctionId(), con.getProtocolVersion(), con.getCapabilities()).encodeResponse();
+	}
+	
+	/**
+	 * Opens a session on the socket the Connect came in on, so the client saves
+	 * the second TCP handshake. Connected is sent before the transport takes the
+	 * socket, the client sends its first command only after reading it.
+	 * Returns the response if no session could be opened, null otherwise.
+	 */
+	private ByteBuffer upgrade(Connect cmd, int requestId, SocketChannel socketChannel) throws Exception
+	{
+		DbConnection con;
+		try
+		{
+			con = openSession(cmd, 0);
+		}
+		catch (SQLException e)
+		{
+			return new ExceptionRaised(e).encodeResponse();
+		}
+		
+		try
+		{
+			ByteBuffer responseBuffer = Frame.encode(requestId, 
+					new Connected(0, con.getConnctionId(), con.getProtocolVersion(), con.getCapabilities()).encodeResponse());
+			while (responseBuffer.hasRemaining())
+			{
+				socketChannel.write(responseBuffer);
+			}
+			transport.upgrade(con, socketChannel);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			socketChannel.close();
+			
+			// A pooled session already waits with its thread, which frees it
+			if (con.getThread() != null)
+			{
+				con.reap();
+			}
+			else
+			{
+				con.release();
+				closeSession(con);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Creates the DbConnection of a session, with a socket of its own if sessionId is 0
+	 */
+	DbConnection openSession(Connect cmd, int sessionId) throws SQLException
+	{
+		return openSession(cmd, sessionId, true);
+	}
+	
+	/**
+	 * The session of an unframed Connect speaks version 0 on a socket of its own
+	 */
+	private DbConnection openSession(Connect cmd, int sessionId, boolean framed) throws SQLException
+	{
+		if (shuttingDown)
+		{
+			throw new SQLException("Server is shutting down");
+		}
+		
+		String workloadClass = cmd.workloadClass == null ? config.defaultWorkloadClass : cmd.workloadClass;
+		
+		if (!workloadClass.equals(config.defaultWorkloadClass) && !config.workloadClasses.containsKey(workloadClass))
+		{
+			throw new SQLException("Unknown workload class " + workloadClass);
+		}
+		
+		DbConnection con = sessionId == 0 && sessionPool != null ? sessionPool.take() : createSession(sessionId, framed && cmd.upgrade, !framed);
+		con.setWorkloadClass(workloadClass);
+		con.negotiate(cmd, framed);
+		sessions.register(con);
+		
+		return con;
+	}
+	
+	void closeSession(DbConnection con)
+	{
+		sessions.unregister(con);
+	}
+	
+	void removeMuxConnection(MuxConnection mux)
+	{
+		muxConnections.remove(mux);
+	}
+	
+	DbConnection createSession(int sessionId) throws SQLException
+	{
+		return createSession(sessionId, false, false);
+	}
+	
+	/**
+	 * A session for an upgraded socket binds none, its client is already connected.
+	 * A session of version 0 binds one with either transport, its thread reads it.
+	 */
+	DbConnection createSession(int sessionId, boolean upgrade, boolean legacy) throws SQLException
+	{
+		DbConnection con = new DbConnection(duplicateRoot(), config, resultCache, singleFlight, admissionController, timerWheel, sessionId, 
+				sessionId == 0 && (transport.isThreadPerSession() || legacy) && !upgrade);
+		con.setServer(this);
+		return con;
+	}
+	
+	DuckDBConnection duplicateRoot() throws SQLException
+	{
+		return (DuckDBConnection) rootDBConnection.duplicate();
+	}
+	
+	/**
+	 * Starts the thread of a session with a socket of its own, it waits for the client
+	 */
+	static void start(DbConnection con)
+	{
+		Thread t = new Thread(con);
+		con.setThread(t);
+		t.start();
+	}
+	
+	private synchronized ExecutorService getMuxWorkers()
+	{
+		if (muxWorkers == null)
+		{
+			// Idle workers end, so the pool only holds threads while sessions are busy
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(config.muxWorkerThreads, config.muxWorkerThreads, 60, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>(), r -> {
+						Thread t = new Thread(r, "pata-mux-worker");
+						t.setDaemon(true);
+						return t;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			muxWorkers = pool;
+		}
+		return muxWorkers;
+	}
+	
 	private ByteBuffer disconnect(PataCommand cmd)
 	{
-		DbConnection dbCon = connections.remove(((Disconnect)cmd).connectionID);
+		DbConnection dbCon = sessions.get(((Disconnect)cmd).connectionID);
 		
-		dbCon.closeConnection();
+		// Already gone if its client closed the socket first, or it was reaped.
+		// Otherwise its thread removes it.
+		if (dbCon != null)
+		{
+			dbCon.closeConnection();
+		}
 		
 		return ByteBuffer.wrap("Disconnected".getBytes(utf8));
 	}
 	
+	private ByteBuffer cancel(PataCommand cmd) throws Exception
+	{
+		Cancel cancel = (Cancel)cmd;
+		DbConnection dbCon = sessions.get(cancel.connectionID);
+		
+		if (dbCon == null)
+		{
+			return new ExceptionRaised(new SQLException("Unknown connection " + cancel.connectionID)).encodeResponse();
+		}
+		
+		// Nothing to do if the statement already finished
+		dbCon.cancel(cancel.statementID);
+		
+		return new Cancelled("Cancel requested", false).encodeResponse();
+	}
+	
 }
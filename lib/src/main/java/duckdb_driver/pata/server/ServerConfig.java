@@ -0,0 +1,91 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of a Server. Change the fields before passing the config to the
+ * Server constructor.
+ */
+public class ServerConfig
+{
+	public static final String NIO_TRANSPORT = "nio";
+	public static final String NETTY_TRANSPORT = "netty";
+	
+	// Cache for encoded query results, shared by all connections of the server
+	public boolean resultCacheEnabled = false;
+	public long resultCacheMaxBytes = 64 * 1024 * 1024;
+	public long resultCacheTtlMillis = 60_000;
+	
+	// Identical read-only queries running at the same time are executed only once
+	public boolean singleFlightEnabled = false;
+	
+	// Timeout of statements without setQueryTimeout, 0 means none
+	public long defaultQueryTimeoutMillis = 0;
+	// Upper bound for all query timeouts, 0 means unbounded
+	public long maxQueryTimeoutMillis = 0;
+	
+	// Statements DuckDB executes at the same time, 0 means unlimited. Others wait
+	// in a queue of admissionQueueSize for at most admissionQueueTimeoutMillis.
+	public int maxConcurrentStatements = 0;
+	public int admissionQueueSize = 1000;
+	public long admissionQueueTimeoutMillis = 30_000;
+	
+	// Adapts the limit between 1 and maxConcurrentStatements to the execution latency
+	public boolean adaptiveConcurrency = false;
+	public long adaptiveLatencyTargetMillis = 1000;
+	
+	// Scheduler lanes selected by the pata.workload_class connection property.
+	// Waiting statements share free slots by the weights of their classes.
+	public Map<String, WorkloadClass> workloadClasses = new HashMap<String, WorkloadClass>();
+	public String defaultWorkloadClass = "interactive";
+	
+	// Threads executing the commands of sessions on multiplexed sockets, shared by all of them.
+	// The netty transport runs the commands of its sessions on them as well.
+	public int muxWorkerThreads = 16;
+	
+	// Sockets of sessions that are not multiplexed: NIO_TRANSPORT reads each with a
+	// thread of its own, NETTY_TRANSPORT all of them on nettyEventLoopThreads
+	// (0 for twice the number of cores). The session pool needs NIO_TRANSPORT.
+	public String transport = NIO_TRANSPORT;
+	public int nettyEventLoopThreads = 0;
+	
+	// Prepared statements a connection keeps, the least recently used are closed beyond it
+	public int maxPreparedStatements = 1024;
+	
+	// Sessions kept ready for Connect, 0 turns the pool off. Sessions are reused
+	// after their client disconnected, the pool is refilled in the background.
+	public int sessionPoolSize = 0;
+	
+	// Sessions whose client sent no command for this long are closed, 0 turns the
+	// reaper off. Clients that stay idle longer keep their session with pata.heartbeat_interval.
+	public long sessionIdleTimeoutMillis = 0;
+	
+	public ServerConfig()
+	{
+		addWorkloadClass(new WorkloadClass("interactive", 4, 0));
+		addWorkloadClass(new WorkloadClass("batch", 1, 0));
+	}
+	
+	public void addWorkloadClass(WorkloadClass workloadClass)
+	{
+		workloadClasses.put(workloadClass.name, workloadClass);
+	}
+}
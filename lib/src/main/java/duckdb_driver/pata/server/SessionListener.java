@@ -0,0 +1,43 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+/**
+ * Hooks into the lifecycle of the sessions of a server, added with
+ * SessionRegistry.addListener(). Listeners are called by the threads of the
+ * sessions, for every command, so they must not block.
+ */
+public interface SessionListener
+{
+	/**
+	 * A client connected, the session is registered
+	 */
+	default void sessionOpened(DbConnection session)
+	{
+	}
+	
+	default void stateChanged(DbConnection session, SessionState from, SessionState to)
+	{
+	}
+	
+	/**
+	 * The session was removed, a session that is not reused has closed its DuckDB connection
+	 */
+	default void sessionClosed(DbConnection session)
+	{
+	}
+}
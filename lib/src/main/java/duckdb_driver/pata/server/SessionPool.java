@@ -0,0 +1,232 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sessions that are ready for clients, used with ServerConfig.sessionPoolSize.
+ * Each has its duplicated DuckDB connection, a bound socket and a thread that
+ * waits for the client, so Connect can answer right away.
+ * <p>
+ * When its client disconnects, a session is reset and returns to the pool if
+ * there is room, otherwise it is closed. New sessions are created in the
+ * background once less than half of the pool is idle, so sessions of clients
+ * that connect and disconnect in a loop are reused.
+ */
+public class SessionPool
+{
+	private final Server server;
+	private final int size;
+	
+	private final ArrayDeque<DbConnection> idle = new ArrayDeque<DbConnection>();
+	private final ExecutorService filler;
+	private boolean filling = false;
+	private boolean closed = false;
+	
+	private long hits = 0;
+	private long misses = 0;
+	private long recycled = 0;
+	
+	SessionPool(Server server, int size)
+	{
+		this.server = server;
+		this.size = size;
+		
+		filler = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "pata-session-pool");
+			t.setDaemon(true);
+			return t;
+		});
+		refill();
+	}
+	
+	/**
+	 * An idle session, or a new one if the pool is empty
+	 */
+	DbConnection take() throws SQLException
+	{
+		DbConnection con;
+		synchronized (this)
+		{
+			con = idle.poll();
+			if (con != null)
+			{
+				hits++;
+			}
+			else
+			{
+				misses++;
+			}
+		}
+		if (getIdleSessions() < size / 2 || con == null)
+		{
+			refill();
+		}
+		
+		return con != null ? con : newSession();
+	}
+	
+	/**
+	 * Resets a session whose client disconnected and puts it back. False if it
+	 * is not needed anymore, its thread closes it then.
+	 */
+	boolean recycle(DbConnection con)
+	{
+		// Otherwise the thread releases the session before it is removed
+		if (Thread.currentThread().isInterrupted() || !hasRoom())
+		{
+			return false;
+		}
+		server.closeSession(con);
+		
+		try
+		{
+			con.reset(server.duplicateRoot());
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		
+		synchronized (this)
+		{
+			if (closed || idle.size() >= size)
+			{
+				return false;
+			}
+			idle.add(con);
+			recycled++;
+			return true;
+		}
+	}
+	
+	/**
+	 * Closes the idle sessions, sessions in use are closed when their clients disconnect
+	 */
+	void close()
+	{
+		synchronized (this)
+		{
+			closed = true;
+		}
+		filler.shutdownNow();
+		
+		DbConnection con;
+		while ((con = poll()) != null)
+		{
+			con.closeSocket();
+		}
+	}
+	
+	private synchronized DbConnection poll()
+	{
+		return idle.poll();
+	}
+	
+	private synchronized boolean hasRoom()
+	{
+		return !closed && idle.size() < size;
+	}
+	
+	private DbConnection newSession() throws SQLException
+	{
+		DbConnection con = server.createSession(0);
+		con.setPool(this);
+		Server.start(con);
+		return con;
+	}
+	
+	// Creates sessions in the background until the pool is full
+	private void refill()
+	{
+		synchronized (this)
+		{
+			if (filling || closed || idle.size() >= size)
+			{
+				return;
+			}
+			filling = true;
+		}
+		
+		filler.execute(() -> {
+			try
+			{
+				while (hasRoom())
+				{
+					DbConnection con = server.createSession(0);
+					con.setPool(this);
+					synchronized (this)
+					{
+						if (closed || idle.size() >= size)
+						{
+							con.release();
+							break;
+						}
+						idle.add(con);
+					}
+					// A client may connect before the thread accepts, the socket is bound already
+					Server.start(con);
+				}
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					filling = false;
+				}
+			}
+		});
+	}
+	
+	public synchronized int getIdleSessions()
+	{
+		return idle.size();
+	}
+	
+	/**
+	 * Connects that got a ready session
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	/**
+	 * Connects that had to create their session because the pool was empty
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+	
+	/**
+	 * Sessions that were reset and reused after their client disconnected
+	 */
+	public synchronized long getRecycled()
+	{
+		return recycled;
+	}
+}
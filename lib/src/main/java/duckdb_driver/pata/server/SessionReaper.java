@@ -0,0 +1,86 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes sessions whose clients went quiet, used with ServerConfig.sessionIdleTimeoutMillis.
+ * A client that crashed without closing its socket, or that never connected
+ * after Connect, leaves a thread, a duplicated DuckDB connection and its
+ * prepared statements behind. The socket keepalive only notices peers that
+ * are gone, the idle timeout also ends sessions of clients that hang.
+ * <p>
+ * Sessions that run a statement are not reaped. Sessions on multiplexed sockets
+ * end with their socket.
+ */
+public class SessionReaper
+{
+	private final Server server;
+	private final long idleTimeoutNanos;
+	private final ScheduledExecutorService scheduler;
+	
+	private long reaped = 0;
+	
+	SessionReaper(Server server, long idleTimeoutMillis)
+	{
+		this.server = server;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "pata-session-reaper");
+			t.setDaemon(true);
+			return t;
+		});
+		
+		// Sessions are closed at most a quarter of the timeout late
+		long intervalMillis = Math.max(10, Math.min(1000, idleTimeoutMillis / 4));
+		scheduler.scheduleWithFixedDelay(this::reap, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	void close()
+	{
+		scheduler.shutdownNow();
+	}
+	
+	private void reap()
+	{
+		long now = System.nanoTime();
+		for (DbConnection con : server.getSessionRegistry().getSessions())
+		{
+			if (con.isIdle(now, idleTimeoutNanos))
+			{
+				server.closeSession(con);
+				con.reap();
+				synchronized (this)
+				{
+					reaped++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sessions closed because their client sent nothing for the idle timeout
+	 */
+	public synchronized long getReapedSessions()
+	{
+		return reaped;
+	}
+}
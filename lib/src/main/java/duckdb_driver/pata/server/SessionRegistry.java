@@ -0,0 +1,121 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sessions of a server by their connection id, including the sessions of
+ * multiplexed sockets. Lookups and enumeration don't block, so they can be
+ * used from any thread while sessions come and go.
+ */
+public class SessionRegistry
+{
+	private final Map<UUID, DbConnection> sessions = new ConcurrentHashMap<UUID, DbConnection>();
+	private final List<SessionListener> listeners = new CopyOnWriteArrayList<SessionListener>();
+	
+	void register(DbConnection con)
+	{
+		con.open(this);
+		sessions.put(con.getConnctionId(), con);
+		
+		for (SessionListener listener : listeners)
+		{
+			listener.sessionOpened(con);
+		}
+	}
+	
+	/**
+	 * Removes a session once, later calls for the same session do nothing
+	 */
+	void unregister(DbConnection con)
+	{
+		con.setState(SessionState.CLOSING);
+		if (!sessions.remove(con.getConnctionId(), con))
+		{
+			return;
+		}
+		
+		for (SessionListener listener : listeners)
+		{
+			listener.sessionClosed(con);
+		}
+	}
+	
+	void fireStateChanged(DbConnection con, SessionState from, SessionState to)
+	{
+		for (SessionListener listener : listeners)
+		{
+			listener.stateChanged(con, from, to);
+		}
+	}
+	
+	/**
+	 * The session, null if there is none with this id
+	 */
+	public DbConnection get(UUID connectionId)
+	{
+		return sessions.get(connectionId);
+	}
+	
+	/**
+	 * Live view of the sessions, it reflects some of the changes made while iterating
+	 */
+	public Collection<DbConnection> getSessions()
+	{
+		return Collections.unmodifiableCollection(sessions.values());
+	}
+	
+	public int size()
+	{
+		return sessions.size();
+	}
+	
+	/**
+	 * Number of sessions in each state
+	 */
+	public Map<SessionState, Integer> countByState()
+	{
+		Map<SessionState, Integer> counts = new EnumMap<SessionState, Integer>(SessionState.class);
+		for (SessionState state : SessionState.values())
+		{
+			counts.put(state, 0);
+		}
+		for (DbConnection con : sessions.values())
+		{
+			counts.merge(con.getState(), 1, Integer::sum);
+		}
+		return counts;
+	}
+	
+	public void addListener(SessionListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	public void removeListener(SessionListener listener)
+	{
+		listeners.remove(listener);
+	}
+}
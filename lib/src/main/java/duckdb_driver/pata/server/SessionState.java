@@ -0,0 +1,31 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+/**
+ * Lifecycle of a session in the SessionRegistry. A session is CONNECTING from
+ * Connect until its client connected to the socket of the session, sessions on
+ * multiplexed sockets start IDLE. It is EXECUTING while a command is
+ * processed and CLOSING once its client is gone, until it is removed.
+ */
+public enum SessionState
+{
+	CONNECTING,
+	IDLE,
+	EXECUTING,
+	CLOSING
+}
@@ -0,0 +1,58 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What Server.shutdown() did with the sessions that were open. The fields are
+ * filled by the threads of the sessions while they end, read them after
+ * shutdown() returned.
+ */
+public class ShutdownReport
+{
+	// Sessions open when the shutdown began
+	public int sessions = 0;
+	// Sessions that were processing a command when the shutdown began
+	public int runningStatements = 0;
+	// SQL of the statements cancelled because they ran past the deadline
+	public List<String> abortedStatements = new ArrayList<String>();
+	// Open transactions of ending sessions
+	public int rolledBackTransactions = 0;
+	// Sessions that did not end even after their statements were cancelled, their sockets were closed
+	public int unfinishedSessions = 0;
+	public long millis = 0;
+	
+	synchronized void statementAborted(String sql)
+	{
+		abortedStatements.add(sql);
+	}
+	
+	synchronized void transactionRolledBack()
+	{
+		rolledBackTransactions++;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "Shutdown after " + millis + " ms: " + sessions + " sessions, " + runningStatements + " running, " 
+				+ abortedStatements.size() + " aborted, " + rolledBackTransactions + " transactions rolled back, " 
+				+ unfinishedSessions + " unfinished";
+	}
+}
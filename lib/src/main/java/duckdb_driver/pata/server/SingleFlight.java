@@ -0,0 +1,160 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes identical read-only queries that are in flight at the same time only
+ * once. The first DbConnection runs the query, all others with the same key wait
+ * for it and send the same encoded response to their clients.
+ * <p>
+ * Queries only share an execution if no write was seen between their starts,
+ * so they all read the same snapshot. Like the result cache, sessions that ran
+ * anything but reads don't join, their temporary tables or settings are their own.
+ * <p>
+ * Only errors of the query itself are passed on. If the first DbConnection is
+ * cancelled, times out or is aborted, the waiting ones start over: one of them
+ * runs the query, the others wait for it. A waiting DbConnection stops waiting
+ * as soon as its own statement is cancelled or times out.
+ */
+public class SingleFlight
+{
+	private record Flight(ResultCache.Key key, long generation)
+	{
+	}
+	
+	private final ConcurrentHashMap<Flight, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<Flight, CompletableFuture<byte[]>>();
+	
+	private final AtomicLong generation = new AtomicLong();
+	
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong joined = new AtomicLong();
+	
+	/**
+	 * Returns the encoded response for key, running query unless an identical
+	 * query is already running
+	 * 
+	 * @param stopped completed when the statement of this DbConnection is cancelled, times out or is aborted
+	 */
+	public byte[] execute(ResultCache.Key key, Callable<byte[]> query, CompletableFuture<?> stopped) throws Exception
+	{
+		while (true)
+		{
+			Flight flight = new Flight(key, generation.get());
+			CompletableFuture<byte[]> own = new CompletableFuture<byte[]>();
+			CompletableFuture<byte[]> running = inFlight.putIfAbsent(flight, own);
+			
+			if (running == null)
+			{
+				return run(flight, own, query, stopped);
+			}
+			
+			joined.incrementAndGet();
+			byte[] response = await(running, stopped);
+			// null if the first one was stopped, so the query runs again
+			if (response != null)
+			{
+				return response;
+			}
+		}
+	}
+	
+	/**
+	 * The response of the running query, unless the waiting statement is stopped first
+	 */
+	private static byte[] await(CompletableFuture<byte[]> running, CompletableFuture<?> stopped) throws Exception
+	{
+		try
+		{
+			CompletableFuture.anyOf(running, stopped).get();
+		}
+		catch (ExecutionException e)
+		{
+			// The query failed, thrown below
+		}
+		if (!running.isDone())
+		{
+			throw new SQLException("Statement was stopped while waiting for an identical query");
+		}
+		
+		try
+		{
+			return running.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof Exception)
+			{
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	private byte[] run(Flight flight, CompletableFuture<byte[]> own, Callable<byte[]> query, CompletableFuture<?> stopped) throws Exception
+	{
+		executions.incrementAndGet();
+		byte[] response;
+		try
+		{
+			response = query.call();
+		}
+		catch (Exception e)
+		{
+			// Removed first, so the waiting ones that start over don't find it
+			inFlight.remove(flight, own);
+			// A cancel of this DbConnection is none of the others
+			if (stopped.isDone())
+			{
+				own.complete(null);
+			}
+			else
+			{
+				own.completeExceptionally(e);
+			}
+			throw e;
+		}
+		inFlight.remove(flight, own);
+		own.complete(response);
+		return response;
+	}
+	
+	/**
+	 * Called after a write or DDL statement, later queries don't join the running ones
+	 */
+	public void noteWrite()
+	{
+		generation.incrementAndGet();
+	}
+	
+	public long getExecutions()
+	{
+		return executions.get();
+	}
+
+	public long getJoined()
+	{
+		return joined.get();
+	}
+}
@@ -0,0 +1,78 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import duckdb_driver.pata.commands.Frame;
+
+/**
+ * A blocking socket, written by the thread of the session or by the workers of a multiplexed socket
+ */
+class SocketClientChannel implements ClientChannel
+{
+	private final SocketChannel socketChannel;
+	// Clients of version 0 read bare responses
+	private final boolean framed;
+	
+	SocketClientChannel(SocketChannel socketChannel)
+	{
+		this(socketChannel, true);
+	}
+	
+	SocketClientChannel(SocketChannel socketChannel, boolean framed)
+	{
+		this.socketChannel = socketChannel;
+		this.framed = framed;
+	}
+	
+	@Override
+	public void send(int session, int requestId, ByteBuffer payload) throws IOException
+	{
+		ByteBuffer frame = framed ? Frame.encode(session, requestId, payload) : payload;
+		
+		// Sessions of a multiplexed socket write their frames one after the other
+		synchronized (socketChannel)
+		{
+			while (frame.hasRemaining())
+			{
+				socketChannel.write(frame);
+			}
+		}
+	}
+	
+	@Override
+	public void shutdownInput() throws IOException
+	{
+		socketChannel.shutdownInput();
+	}
+	
+	@Override
+	public void close()
+	{
+		try
+		{
+			socketChannel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for statement deadlines. Scheduling and cancelling are O(1),
+ * a single daemon thread advances the wheel every tick and runs the expired
+ * tasks. Tasks run on that thread and have to be short.
+ * <p>
+ * Deadlines are only accurate to one tick, which is plenty for query timeouts.
+ */
+public class TimerWheel
+{
+	public class Timeout
+	{
+		private final Runnable task;
+		private long rounds;
+		private volatile boolean cancelled = false;
+		
+		private Timeout(Runnable task, long rounds)
+		{
+			this.task = task;
+			this.rounds = rounds;
+		}
+		
+		public void cancel()
+		{
+			cancelled = true;
+		}
+	}
+	
+	private final long tickMillis;
+	private final List<List<Timeout>> buckets;
+	private long tick = 0;
+	
+	private final Thread worker;
+	private volatile boolean running = true;
+	
+	public TimerWheel(long tickMillis, int wheelSize)
+	{
+		this.tickMillis = tickMillis;
+		
+		buckets = new ArrayList<List<Timeout>>(wheelSize);
+		for (int i = 0; i < wheelSize; i++)
+		{
+			buckets.add(new ArrayList<Timeout>());
+		}
+		
+		worker = new Thread(this::run, "pata-timer-wheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Runs task after delayMillis, unless the returned Timeout is cancelled before
+	 */
+	public synchronized Timeout schedule(Runnable task, long delayMillis)
+	{
+		// The current tick is partly over, one more keeps tasks from running early
+		long ticks = (delayMillis + tickMillis - 1) / tickMillis + 1;
+		Timeout timeout = new Timeout(task, (ticks - 1) / buckets.size());
+		
+		buckets.get((int) ((tick + ticks) % buckets.size())).add(timeout);
+		return timeout;
+	}
+	
+	public void stop()
+	{
+		running = false;
+		worker.interrupt();
+	}
+	
+	private void run()
+	{
+		long nextTick = System.nanoTime();
+		
+		while (running)
+		{
+			nextTick += tickMillis * 1_000_000;
+			long sleepNanos = nextTick - System.nanoTime();
+			
+			try
+			{
+				if (sleepNanos > 0)
+				{
+					Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+				}
+			}
+			catch (InterruptedException e)
+			{
+				continue;
+			}
+			
+			for (Timeout timeout : advance())
+			{
+				try
+				{
+					timeout.task.run();
+				}
+				catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	private synchronized List<Timeout> advance()
+	{
+		tick++;
+		
+		List<Timeout> expired = new ArrayList<Timeout>();
+		Iterator<Timeout> it = buckets.get((int) (tick % buckets.size())).iterator();
+		
+		while (it.hasNext())
+		{
+			Timeout timeout = it.next();
+			
+			if (timeout.cancelled)
+			{
+				it.remove();
+			}
+			else if (timeout.rounds > 0)
+			{
+				timeout.rounds--;
+			}
+			else
+			{
+				it.remove();
+				expired.add(timeout);
+			}
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,52 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves the sessions whose clients have a socket of their own: the client
+ * connects to the port of its session, sends its commands and reads the
+ * responses. Server picks the implementation by ServerConfig.transport.
+ * Multiplexed sockets are served by MuxConnection with either transport.
+ */
+public interface Transport
+{
+	/**
+	 * True if every session opens its socket itself and reads it with a thread
+	 * of its own. Only then sessions can be kept ready in a SessionPool.
+	 */
+	boolean isThreadPerSession();
+	
+	/**
+	 * Lets the client of a new session connect and hands its commands to the
+	 * session until the client closes the socket. Returns the port for the client.
+	 */
+	int open(DbConnection con) throws IOException;
+	
+	/**
+	 * Hands the socket a client sent its Connect on to the new session, which
+	 * reads the commands from it as if the client had connected to its port
+	 */
+	void upgrade(DbConnection con, SocketChannel socketChannel) throws IOException;
+	
+	/**
+	 * Stops the transport, sockets that are still open are closed
+	 */
+	void close();
+}
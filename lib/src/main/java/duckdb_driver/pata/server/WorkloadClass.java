@@ -0,0 +1,41 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+/**
+ * Scheduler lane for the statements of sessions, chosen by the client with the
+ * pata.workload_class property. When statements have to queue, free execution
+ * slots are shared between the waiting classes in proportion to their weight.
+ */
+public class WorkloadClass
+{
+	public final String name;
+	public final int weight;
+	// Statements of this class executing at the same time, 0 means only the server limit applies
+	public final int maxConcurrent;
+	
+	public WorkloadClass(String name, int weight, int maxConcurrent)
+	{
+		if (weight < 1)
+		{
+			throw new IllegalArgumentException("Weight of workload class " + name + " must be at least 1");
+		}
+		this.name = name;
+		this.weight = weight;
+		this.maxConcurrent = maxConcurrent;
+	}
+}
@@ -0,0 +1,112 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.client;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import duckdb_driver.pata.jdbc.PataDriver;
+
+/**
+ * Benchmarks against a running ServerTestRunner. Every static bench_ method is
+ * run and prints its own timings.
+ */
+public class ClientBenchmarkRunner {
+
+	private static final String URL = "jdbc:duckdb-pata:41442";
+
+	private static final int REPETITIONS = 5;
+
+	/**
+	 * Reads the whole result, sleeping sleepMillis every sleepEveryRows rows to
+	 * simulate an application that hands the rows on to a slow downstream system.
+	 * Returns the nanoseconds spent in executeQuery() and in the loop over the rows.
+	 */
+	private static long[] slowConsumer(String url, String sql, int sleepEveryRows, int sleepMillis) throws Exception {
+		try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+			long start = System.nanoTime();
+			ResultSet rs = stmt.executeQuery(sql);
+			long executed = System.nanoTime();
+
+			long acc = 0;
+			int rows = 0;
+			while (rs.next()) {
+				acc += rs.getLong(1) + rs.getString(3).length();
+				if (++rows % sleepEveryRows == 0) {
+					Thread.sleep(sleepMillis);
+				}
+			}
+			rs.close();
+			long end = System.nanoTime();
+
+			if (acc == 0) {
+				System.out.println("unexpected result");
+			}
+			return new long[] { executed - start, end - executed };
+		}
+	}
+
+	public static void bench_prefetch_slow_consumer() throws Exception {
+		String sql = "SELECT i, i * 2 AS j, 'row number ' || i AS s, random() AS r FROM range(1000000) t(i)";
+
+		// Warm up both paths
+		slowConsumer(URL, sql, 1000, 1);
+		slowConsumer(URL + "?pata.prefetch_batches=4", sql, 1000, 1);
+
+		for (int prefetch : new int[] { 0, 1, 4, 16 }) {
+			String url = prefetch == 0 ? URL : URL + "?pata.prefetch_batches=" + prefetch;
+
+			long bestExecute = Long.MAX_VALUE;
+			long bestConsume = Long.MAX_VALUE;
+			long totalConsume = 0;
+			for (int i = 0; i < REPETITIONS; i++) {
+				long[] elapsed = slowConsumer(url, sql, 1000, 1);
+				bestExecute = Math.min(bestExecute, elapsed[0]);
+				bestConsume = Math.min(bestConsume, elapsed[1]);
+				totalConsume += elapsed[1];
+			}
+			System.out.println(String.format("  prefetch_batches=%-3d executeQuery best %5d ms, consume best %5d ms, avg %5d ms",
+					prefetch, bestExecute / 1_000_000, bestConsume / 1_000_000, totalConsume / REPETITIONS / 1_000_000));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		DriverManager.registerDriver(new PataDriver());
+		Method[] methods = ClientBenchmarkRunner.class.getMethods();
+
+		Arrays.sort(methods, new Comparator<Method>() {
+			@Override
+			public int compare(Method o1, Method o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+
+		for (Method m : methods) {
+			if (m.getName().startsWith("bench_")) {
+				System.out.println(m.getName());
+				m.invoke(null);
+			}
+		}
+		System.exit(0);
+	}
+}
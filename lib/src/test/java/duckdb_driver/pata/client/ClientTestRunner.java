@@ -30,6 +30,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
@@ -39,11 +40,28 @@ import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.sql.Date;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
 import java.util.TimeZone;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import duckdb_driver.pata.jdbc.PataAsyncConnection;
+import duckdb_driver.pata.jdbc.PataConnection;
+import duckdb_driver.pata.jdbc.PataDataSource;
 import duckdb_driver.pata.jdbc.PataDriver;
+import duckdb_driver.pata.jdbc.PataPreparedStatement;
+import duckdb_driver.pata.jdbc.PataResultSet;
+import duckdb_driver.pata.jdbc.PataRow;
+
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
 
 public class ClientTestRunner
 {
@@ -2187,6 +2205,9 @@ public class ClientTestRunner
 		stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, 0);
 		stmt.close();
 
+		stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+		stmt.close();
+
 		PreparedStatement pstmt;
 		pstmt = conn.prepareStatement("SELECT 42");
 		pstmt.close();
@@ -2422,6 +2443,691 @@ public class ClientTestRunner
 		}
 	}
 
+	public static void test_result_stream() throws Exception {
+		Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:41442");
+		Statement stmt = conn.createStatement();
+
+		// Several record batches, split and summed in parallel
+		ResultSet rs = stmt.executeQuery("SELECT i FROM range(100000) t(i)");
+		try (Stream<PataRow> rows = rs.unwrap(PataResultSet.class).stream()) {
+			assertEquals(rows.parallel().mapToLong(r -> r.getLong(1)).sum(), 4999950000L);
+		}
+		assertFalse(rs.next());
+		rs.close();
+
+		// The stream continues after the rows already read with next()
+		rs = stmt.executeQuery("SELECT i FROM range(5000) t(i)");
+		for (int i = 0; i < 10; i++) {
+			assertTrue(rs.next());
+		}
+		try (Stream<PataRow> rows = rs.unwrap(PataResultSet.class).stream()) {
+			PataRow[] rest = rows.toArray(PataRow[]::new);
+			assertEquals(rest.length, 4990);
+			assertEquals(rest[0].getObject("i"), 10L);
+			assertEquals(rest[4989].getLong(1), 4999L);
+		}
+		rs.close();
+
+		// Closing a partially consumed stream releases the remaining batches
+		rs = stmt.executeQuery("SELECT i FROM range(10000) t(i)");
+		try (Stream<PataRow> rows = rs.unwrap(PataResultSet.class).stream()) {
+			assertEquals(rows.limit(3).count(), 3L);
+		}
+		rs.close();
+
+		stmt.close();
+		conn.close();
+	}
+
+	public static void test_detached_result() throws Exception {
+		// The second connection spills the rest of the first result to disk
+		for (String url : new String[] { "jdbc:duckdb-pata:41442",
+				"jdbc:duckdb-pata:41442?pata.scroll_memory_limit=1" }) {
+			Connection conn = DriverManager.getConnection(url);
+			Statement first = conn.createStatement();
+			Statement second = conn.createStatement();
+
+			ResultSet rs = first.executeQuery("SELECT i FROM range(200000) t(i)");
+			long sum = 0;
+			for (int i = 0; i < 10; i++) {
+				assertTrue(rs.next());
+				sum += rs.getLong(1);
+			}
+
+			// Reads the rest of the first result off the socket
+			ResultSet other = second.executeQuery("SELECT 42");
+			assertTrue(other.next());
+			assertEquals(other.getInt(1), 42);
+			other.close();
+
+			int rows = 10;
+			while (rs.next()) {
+				sum += rs.getLong(1);
+				rows++;
+			}
+			assertEquals(rows, 200000);
+			assertEquals(sum, 19999900000L);
+			rs.close();
+
+			first.close();
+			second.close();
+			conn.close();
+		}
+	}
+
+	public static void test_scrollable_result() throws Exception {
+		// The second connection spills every batch but the current one to disk
+		for (String url : new String[] { "jdbc:duckdb-pata:41442",
+				"jdbc:duckdb-pata:41442?pata.scroll_memory_limit=1" }) {
+			Connection conn = DriverManager.getConnection(url);
+			Statement stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+
+			ResultSet rs = stmt.executeQuery("SELECT i, 'v' || i AS s FROM range(10000) t(i)");
+			assertEquals(rs.getType(), ResultSet.TYPE_SCROLL_INSENSITIVE);
+			assertTrue(rs.isBeforeFirst());
+			assertEquals(rs.getRow(), 0);
+
+			assertTrue(rs.next());
+			assertTrue(rs.isFirst());
+			assertEquals(rs.getLong(1), 0L);
+
+			assertTrue(rs.last());
+			assertTrue(rs.isLast());
+			assertEquals(rs.getRow(), 10000);
+			assertEquals(rs.getString(2), "v9999");
+
+			assertTrue(rs.absolute(5000));
+			assertEquals(rs.getLong(1), 4999L);
+			assertTrue(rs.previous());
+			assertEquals(rs.getLong(1), 4998L);
+			assertTrue(rs.relative(-4000));
+			assertEquals(rs.getLong(1), 998L);
+			assertTrue(rs.absolute(-2));
+			assertEquals(rs.getString("s"), "v9998");
+			assertTrue(rs.first());
+			assertEquals(rs.getLong(1), 0L);
+			assertFalse(rs.previous());
+			assertTrue(rs.isBeforeFirst());
+
+			assertFalse(rs.absolute(10001));
+			assertTrue(rs.isAfterLast());
+			assertTrue(rs.previous());
+			assertEquals(rs.getLong(1), 9999L);
+
+			rs.beforeFirst();
+			long sum = 0;
+			while (rs.next()) {
+				sum += rs.getLong(1);
+			}
+			assertEquals(sum, 49995000L);
+			rs.close();
+
+			rs = stmt.executeQuery("SELECT 42 WHERE false");
+			assertFalse(rs.isBeforeFirst());
+			assertFalse(rs.last());
+			assertFalse(rs.first());
+			assertFalse(rs.isFirst());
+			assertEquals(rs.getRow(), 0);
+			rs.close();
+
+			stmt.close();
+			conn.close();
+		}
+
+		// Forward-only result sets can't scroll
+		Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:41442");
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT 42");
+		try {
+			rs.previous();
+			fail();
+		} catch (SQLException e) {
+		}
+		rs.close();
+		stmt.close();
+		conn.close();
+	}
+
+	public static void test_cancel() throws Exception {
+		Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:41442");
+		Statement stmt = conn.createStatement();
+
+		// Cancel a long running cross join from another thread. DuckDB checks for
+		// interrupts once per input chunk, so one side of the join stays small.
+		long[] cancelledAt = new long[1];
+		Thread canceller = new Thread(() -> {
+			try {
+				Thread.sleep(500);
+				cancelledAt[0] = System.nanoTime();
+				stmt.cancel();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		canceller.start();
+
+		try {
+			stmt.executeQuery("SELECT count(*) FROM range(1000000) a, range(10000) b WHERE a.range + b.range = -1");
+			fail();
+		} catch (SQLException e) {
+			assertEquals(e.getSQLState(), "57014");
+		}
+		long latencyMillis = (System.nanoTime() - cancelledAt[0]) / 1000000;
+		canceller.join();
+		assertTrue(cancelledAt[0] != 0, "Failed before the cancel");
+		assertTrue(latencyMillis < 5000, "Cancel took " + latencyMillis + " ms");
+
+		// Connection and statement are still usable
+		ResultSet rs = stmt.executeQuery("SELECT 42");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 42);
+		rs.close();
+
+		// Cancel without a running statement does nothing
+		stmt.cancel();
+		rs = stmt.executeQuery("SELECT 43");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 43);
+		rs.close();
+
+		stmt.close();
+		conn.close();
+	}
+
+	public static void test_query_timeout() throws Exception {
+		Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:41442");
+		Statement stmt = conn.createStatement();
+		assertEquals(stmt.getQueryTimeout(), 0);
+
+		stmt.setQueryTimeout(1);
+		assertEquals(stmt.getQueryTimeout(), 1);
+
+		// Fast statements are not affected
+		ResultSet rs = stmt.executeQuery("SELECT 42");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 42);
+		rs.close();
+
+		long start = System.nanoTime();
+		try {
+			stmt.executeQuery("SELECT count(*) FROM range(1000000) a, range(10000) b WHERE a.range + b.range = -1");
+			fail();
+		} catch (SQLTimeoutException e) {
+			assertEquals(e.getSQLState(), "57014");
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		assertTrue(elapsedMillis >= 1000 && elapsedMillis < 5000, "Timed out after " + elapsedMillis + " ms");
+
+		// The connection is still usable
+		stmt.setQueryTimeout(0);
+		rs = stmt.executeQuery("SELECT 43");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 43);
+		rs.close();
+
+		try {
+			stmt.setQueryTimeout(-1);
+			fail();
+		} catch (SQLException e) {
+		}
+
+		stmt.close();
+		conn.close();
+	}
+
+	public static void test_async_connection() throws Exception {
+		List<Connection> connections = new ArrayList<Connection>();
+		List<CompletableFuture<ResultSet>> queries = new ArrayList<CompletableFuture<ResultSet>>();
+
+		// Many queries in flight on several connections, all sent from this thread
+		for (int c = 0; c < 4; c++) {
+			Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:41442");
+			assertTrue(conn.isWrapperFor(PataAsyncConnection.class));
+			PataAsyncConnection async = conn.unwrap(PataAsyncConnection.class);
+			connections.add(conn);
+
+			for (int i = 0; i < 10; i++) {
+				queries.add(async.executeQueryAsync("SELECT ?::INTEGER * 2, ?::VARCHAR", c * 10 + i, "text"));
+			}
+		}
+		for (int i = 0; i < queries.size(); i++) {
+			ResultSet rs = queries.get(i).get(10, TimeUnit.SECONDS);
+			assertTrue(rs.next());
+			assertEquals(rs.getInt(1), i * 2);
+			assertEquals(rs.getString(2), "text");
+			assertFalse(rs.next());
+			rs.close();
+		}
+
+		PataAsyncConnection async = connections.get(0).unwrap(PataAsyncConnection.class);
+		assertEquals(async.executeUpdateAsync("CREATE TABLE async_table (i INTEGER)").get(), 0);
+		CompletableFuture<Integer> inserted = async.executeUpdateAsync("INSERT INTO async_table VALUES (?), (?)", 1, 2);
+
+		// A failing statement doesn't affect the ones sent after it
+		CompletableFuture<ResultSet> failed = async.executeQueryAsync("SELECT * FROM no_such_table");
+		CompletableFuture<ResultSet> sum = async.executeQueryAsync("SELECT sum(i) FROM async_table");
+		assertEquals(inserted.get(), 2);
+		try {
+			failed.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+		ResultSet rs = sum.get();
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 3);
+		rs.close();
+		assertEquals(async.getPendingRequests(), 0);
+
+		// The synchronous API is not available anymore
+		try {
+			connections.get(0).createStatement().executeQuery("SELECT 1");
+			fail();
+		} catch (SQLException e) {
+		}
+
+		for (Connection conn : connections) {
+			conn.close();
+		}
+		try {
+			async.executeQueryAsync("SELECT 1").get();
+			fail();
+		} catch (ExecutionException e) {
+		}
+	}
+
+	public static void test_pipelined_updates() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("pata.pipeline_depth", "8");
+		Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:41442", props);
+		Statement stmt = conn.createStatement();
+		stmt.execute("CREATE TABLE pipelined (i INTEGER PRIMARY KEY)");
+
+		conn.setAutoCommit(false);
+		PreparedStatement ps = conn.prepareStatement("INSERT INTO pipelined VALUES (?)");
+		for (int i = 0; i < 20; i++) {
+			ps.setInt(1, i);
+			ps.executeUpdate();
+		}
+		// Also counts the 12 responses read while sending
+		int[] counts = ((PataConnection) conn).syncPipeline();
+		assertEquals(counts.length, 20);
+		assertEquals(counts[0], 1);
+		conn.commit();
+
+		// A failed update makes the commit fail, nothing of the transaction remains
+		for (int i = 100; i < 110; i++) {
+			ps.setInt(1, i == 105 ? 0 : i);
+			ps.executeUpdate();
+		}
+		try {
+			conn.commit();
+			fail();
+		} catch (SQLException e) {
+		}
+		ps.close();
+
+		conn.setAutoCommit(true);
+		ResultSet rs = stmt.executeQuery("SELECT count(*), max(i) FROM pipelined");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 20);
+		assertEquals(rs.getInt(2), 19);
+		rs.close();
+		stmt.close();
+		conn.close();
+	}
+
+	public static void test_workload_class() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("pata.workload_class", "batch");
+		Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:41442", props);
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT 42");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 42);
+		rs.close();
+		stmt.close();
+		conn.close();
+
+		props.setProperty("pata.workload_class", "no_such_class");
+		try {
+			DriverManager.getConnection("jdbc:duckdb-pata:41442", props);
+			fail();
+		} catch (SQLException e) {
+			assertTrue(e.getMessage().contains("no_such_class"));
+		}
+	}
+
+	private static class BatchCollector implements Flow.Subscriber<VectorSchemaRoot> {
+		Flow.Subscription subscription;
+		int batches = 0;
+		long rows = 0;
+		long sum = 0;
+		boolean completed = false;
+		Throwable error;
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		public void onNext(VectorSchemaRoot root) {
+			BigIntVector v = (BigIntVector) root.getVector(0);
+			for (int i = 0; i < root.getRowCount(); i++) {
+				sum += v.get(i);
+			}
+			rows += root.getRowCount();
+			batches++;
+			root.close();
+		}
+
+		public void onError(Throwable error) {
+			this.error = error;
+		}
+
+		public void onComplete() {
+			completed = true;
+		}
+	}
+
+	public static void test_publisher() throws Exception {
+		Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:41442");
+		PreparedStatement ps = conn.prepareStatement("SELECT range FROM range(20000)");
+		// At most two batches per round trip
+		ps.setFetchSize(4096);
+		Flow.Publisher<VectorSchemaRoot> publisher = ps.unwrap(PataPreparedStatement.class).publish();
+
+		BatchCollector collector = new BatchCollector();
+		publisher.subscribe(collector);
+		assertEquals(collector.batches, 0);
+
+		// Batches arrive as they are requested
+		collector.subscription.request(1);
+		assertEquals(collector.batches, 1);
+		assertEquals(collector.rows, 2048L);
+		collector.subscription.request(3);
+		assertEquals(collector.batches, 4);
+		collector.subscription.request(Long.MAX_VALUE);
+		assertTrue(collector.completed);
+		assertNull(collector.error);
+		assertEquals(collector.rows, 20000L);
+		assertEquals(collector.sum, 19999L * 20000 / 2);
+
+		// Only one subscriber per publisher
+		BatchCollector second = new BatchCollector();
+		publisher.subscribe(second);
+		assertTrue(second.error instanceof IllegalStateException);
+
+		// Cancelling drops the rest of the result, the connection stays usable
+		BatchCollector cancelled = new BatchCollector();
+		ps.unwrap(PataPreparedStatement.class).publish().subscribe(cancelled);
+		cancelled.subscription.request(2);
+		cancelled.subscription.cancel();
+		cancelled.subscription.request(1);
+		assertEquals(cancelled.batches, 2);
+		assertFalse(cancelled.completed);
+
+		// Nothing is signalled after the cancel, not even for a wrong request
+		cancelled.subscription.request(0);
+		assertNull(cancelled.error);
+
+		// A wrong request from onNext is signalled after it returned, and ends the result
+		BatchCollector invalid = new BatchCollector() {
+			public void onNext(VectorSchemaRoot root) {
+				super.onNext(root);
+				subscription.request(0);
+			}
+		};
+		ps.unwrap(PataPreparedStatement.class).publish().subscribe(invalid);
+		invalid.subscription.request(5);
+		assertEquals(invalid.batches, 1);
+		assertTrue(invalid.error instanceof IllegalArgumentException);
+		assertFalse(invalid.completed);
+
+		ResultSet rs = conn.createStatement().executeQuery("SELECT 42");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 42);
+		rs.close();
+
+		// Failing queries are reported to the subscriber
+		BatchCollector failed = new BatchCollector();
+		conn.prepareStatement("SELECT * FROM range(3) WHERE error('boom') IS NULL").unwrap(PataPreparedStatement.class)
+				.publish().subscribe(failed);
+		failed.subscription.request(1);
+		assertTrue(failed.error != null);
+		assertFalse(failed.completed);
+
+		ps.close();
+		conn.close();
+	}
+
+	public static void test_multiplexed_connections() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("pata.multiplex", "true");
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < 8; i++) {
+			connections.add(DriverManager.getConnection("jdbc:duckdb-pata:41442", props));
+		}
+		// All logical connections share one socket
+		PataConnection first = (PataConnection) connections.get(0);
+		for (Connection conn : connections) {
+			assertTrue(((PataConnection) conn).connectionSocketChannel == first.connectionSocketChannel);
+		}
+
+		// Transactions stay separate
+		Connection a = connections.get(0);
+		Connection b = connections.get(1);
+		a.createStatement().execute("CREATE TABLE mux_table (i INTEGER)");
+		a.setAutoCommit(false);
+		a.createStatement().executeUpdate("INSERT INTO mux_table VALUES (1)");
+		ResultSet rs = b.createStatement().executeQuery("SELECT count(*) FROM mux_table");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 0);
+		rs.close();
+		a.commit();
+		rs = b.createStatement().executeQuery("SELECT count(*) FROM mux_table");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 1);
+		rs.close();
+		a.setAutoCommit(true);
+
+		// Statements of all connections at the same time, each gets its own responses
+		List<CompletableFuture<Void>> threads = new ArrayList<CompletableFuture<Void>>();
+		for (int c = 0; c < connections.size(); c++) {
+			Connection conn = connections.get(c);
+			int offset = c * 1000;
+			threads.add(CompletableFuture.runAsync(() -> {
+				try {
+					PreparedStatement ps = conn.prepareStatement("SELECT ?::INTEGER, count(*) FROM range(50000)");
+					for (int i = 0; i < 20; i++) {
+						ps.setInt(1, offset + i);
+						ResultSet r = ps.executeQuery();
+						r.next();
+						if (r.getInt(1) != offset + i || r.getLong(2) != 50000) {
+							throw new IllegalStateException("Wrong result " + r.getInt(1) + " for " + (offset + i));
+						}
+						r.close();
+					}
+					ps.close();
+				} catch (SQLException e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		for (CompletableFuture<Void> thread : threads) {
+			thread.get(60, TimeUnit.SECONDS);
+		}
+
+		// Results larger than a frame buffer
+		rs = b.createStatement().executeQuery("SELECT range FROM range(100000)");
+		long sum = 0;
+		while (rs.next()) {
+			sum += rs.getLong(1);
+		}
+		assertEquals(sum, 99999L * 100000 / 2);
+		rs.close();
+
+		for (Connection conn : connections) {
+			conn.close();
+			assertTrue(conn.isClosed());
+		}
+
+		// The socket was closed with the last connection, a new one is opened
+		Connection again = DriverManager.getConnection("jdbc:duckdb-pata:41442", props);
+		assertFalse(((PataConnection) again).connectionSocketChannel == first.connectionSocketChannel);
+		rs = again.createStatement().executeQuery("SELECT count(*) FROM mux_table");
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 1);
+		rs.close();
+		again.close();
+	}
+
+	public static void test_shared_connection() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("pata.multiplex", "true");
+		Connection plain = DriverManager.getConnection("jdbc:duckdb-pata:41442");
+		Connection multiplexed = DriverManager.getConnection("jdbc:duckdb-pata:41442", props);
+
+		for (Connection conn : new Connection[] { plain, multiplexed }) {
+			// Prepared before the other threads send theirs, executed after them
+			PreparedStatement early = conn.prepareStatement("SELECT ?::INTEGER + 1");
+
+			// Threads share the connection, results are streamed while others read theirs
+			List<CompletableFuture<Void>> threads = new ArrayList<CompletableFuture<Void>>();
+			for (int t = 0; t < 8; t++) {
+				int offset = t * 1000;
+				threads.add(CompletableFuture.runAsync(() -> {
+					try {
+						PreparedStatement ps = conn.prepareStatement("SELECT ?::INTEGER, range FROM range(20000)");
+						for (int i = 0; i < 10; i++) {
+							ps.setInt(1, offset + i);
+							ResultSet r = ps.executeQuery();
+							long sum = 0;
+							while (r.next()) {
+								if (r.getInt(1) != offset + i) {
+									throw new IllegalStateException("Wrong result " + r.getInt(1) + " for " + (offset + i));
+								}
+								sum += r.getLong(2);
+							}
+							r.close();
+							if (sum != 19999L * 20000 / 2) {
+								throw new IllegalStateException("Wrong sum " + sum);
+							}
+						}
+						ps.close();
+
+						Statement stmt = conn.createStatement();
+						for (int i = 0; i < 10; i++) {
+							ResultSet r = stmt.executeQuery("SELECT " + (offset + i));
+							r.next();
+							if (r.getInt(1) != offset + i) {
+								throw new IllegalStateException("Wrong result " + r.getInt(1) + " for " + (offset + i));
+							}
+							r.close();
+						}
+						stmt.close();
+					} catch (SQLException e) {
+						throw new RuntimeException(e);
+					}
+				}));
+			}
+			for (CompletableFuture<Void> thread : threads) {
+				thread.get(60, TimeUnit.SECONDS);
+			}
+
+			early.setInt(1, 41);
+			ResultSet rs = early.executeQuery();
+			assertTrue(rs.next());
+			assertEquals(rs.getInt(1), 42);
+			rs.close();
+			early.close();
+		}
+
+		plain.close();
+		multiplexed.close();
+	}
+
+	public static void test_data_source() throws Exception {
+		PataDataSource ds = new PataDataSource("jdbc:duckdb-pata:41442");
+		ds.setMaxIdle(2);
+		ds.setStatementCacheSize(4);
+
+		Connection conn = ds.getConnection();
+		assertEquals(ds.getMisses(), 1L);
+		assertTrue(conn.isValid(0));
+
+		PreparedStatement ps = conn.prepareStatement("SELECT ?::INTEGER + 1");
+		PataPreparedStatement cached = ps.unwrap(PataPreparedStatement.class);
+		ps.setInt(1, 41);
+		ResultSet rs = ps.executeQuery();
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 42);
+		assertTrue(ps.getConnection() == conn);
+		ps.close();
+		assertTrue(ps.isClosed());
+
+		// Left open in a transaction, both are undone on return
+		conn.setAutoCommit(false);
+		conn.createStatement().execute("CREATE TABLE data_source_reset (i INTEGER)");
+		PreparedStatement open = conn.prepareStatement("SELECT count(*) FROM data_source_reset");
+		conn.close();
+		assertTrue(conn.isClosed());
+		assertFalse(conn.isValid(0));
+		try {
+			conn.createStatement();
+			fail();
+		} catch (SQLException e) {
+		}
+		try {
+			open.executeQuery();
+			fail();
+		} catch (SQLException e) {
+		}
+		assertEquals(ds.getIdleConnections(), 1);
+		assertEquals(ds.getActiveConnections(), 0);
+
+		conn = ds.getConnection();
+		assertEquals(ds.getHits(), 1L);
+		assertTrue(conn.getAutoCommit());
+		rs = conn.createStatement().executeQuery(
+				"SELECT count(*) FROM information_schema.tables WHERE table_name = 'data_source_reset'");
+		rs.next();
+		assertEquals(rs.getInt(1), 0);
+
+		// Prepared again without a round trip, the parameters of the last use are gone
+		ps = conn.prepareStatement("SELECT ?::INTEGER + 1");
+		assertTrue(ps.unwrap(PataPreparedStatement.class) == cached);
+		ps.setInt(1, 1);
+		rs = ps.executeQuery();
+		assertTrue(rs.next());
+		assertEquals(rs.getInt(1), 2);
+		conn.close();
+
+		// Only maxIdle connections are kept
+		Connection[] conns = new Connection[3];
+		for (int i = 0; i < conns.length; i++) {
+			conns[i] = ds.getConnection();
+		}
+		assertEquals(ds.getActiveConnections(), 3);
+		for (Connection c : conns) {
+			c.close();
+		}
+		assertEquals(ds.getIdleConnections(), 2);
+
+		// Pinged before they are handed out
+		ds.setValidationIntervalMillis(0);
+		conn = ds.getConnection();
+		assertEquals(ds.getEvicted(), 0L);
+		conn.close();
+
+		ds.close();
+		assertEquals(ds.getIdleConnections(), 0);
+		try {
+			ds.getConnection();
+			fail();
+		} catch (SQLException e) {
+		}
+	}
+
 //	public static void test_dont_leak_database() throws Exception {
 //		DuckDBDatabase database;
 //
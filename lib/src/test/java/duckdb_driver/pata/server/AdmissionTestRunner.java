@@ -0,0 +1,235 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests of the admission control of statements. Needs no server.
+ */
+public class AdmissionTestRunner {
+
+	private static ServerConfig config(int limit, int queueSize, long queueTimeoutMillis) {
+		ServerConfig config = new ServerConfig();
+		config.maxConcurrentStatements = limit;
+		config.admissionQueueSize = queueSize;
+		config.admissionQueueTimeoutMillis = queueTimeoutMillis;
+		return config;
+	}
+
+	private static void awaitQueueDepth(AdmissionController admission, int depth) throws Exception {
+		await(() -> admission.getQueueDepth() == depth);
+	}
+
+	public static void test_limit_and_order() throws Exception {
+		AdmissionController admission = new AdmissionController(config(1, 10, 10_000));
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+		AdmissionController.Permit first = admission.acquire(0, () -> false);
+		assertEquals(admission.getRunning(), 1);
+
+		// Priority first, then arrival
+		List<Thread> threads = new ArrayList<Thread>();
+		String[] names = { "low1", "high", "low2" };
+		int[] priorities = { 0, 5, 0 };
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i];
+			int priority = priorities[i];
+			Thread t = new Thread(() -> {
+				try {
+					AdmissionController.Permit permit = admission.acquire(priority, () -> false);
+					try {
+						order.add(name);
+					} finally {
+						permit.close();
+					}
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			});
+			t.start();
+			threads.add(t);
+			awaitQueueDepth(admission, i + 1);
+		}
+
+		first.close();
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(order, Arrays.asList("high", "low1", "low2"));
+		assertEquals(admission.getRunning(), 0);
+		assertEquals(admission.getAdmitted(), 4L);
+	}
+
+	public static void test_queue_full_and_timeout() throws Exception {
+		AdmissionController admission = new AdmissionController(config(1, 1, 300));
+		AdmissionController.Permit first = admission.acquire(0, () -> false);
+
+		Thread waiting = new Thread(() -> {
+			try {
+				admission.acquire(0, () -> false).close();
+			} catch (SQLException e) {
+			}
+		});
+		waiting.start();
+		awaitQueueDepth(admission, 1);
+
+		// Queue of one is full
+		try {
+			admission.acquire(0, () -> false);
+			throw new Exception("Expected rejection");
+		} catch (SQLException e) {
+			assertEquals(e.getSQLState(), AdmissionController.sqlState);
+		}
+		assertEquals(admission.getRejected(), 1L);
+
+		// The waiting statement gives up after the queue timeout
+		waiting.join();
+		assertEquals(admission.getQueueTimeouts(), 1L);
+		assertEquals(admission.getQueueDepth(), 0);
+
+		first.close();
+		admission.acquire(0, () -> false).close();
+	}
+
+	public static void test_stopped_while_waiting() throws Exception {
+		AdmissionController admission = new AdmissionController(config(1, 10, 10_000));
+		AdmissionController.Permit first = admission.acquire(0, () -> false);
+
+		boolean[] stopped = { false };
+		long start = System.nanoTime();
+		Thread t = new Thread(() -> {
+			try {
+				stopped[0] = true;
+				admission.acquire(0, () -> stopped[0]).close();
+			} catch (SQLException e) {
+			}
+		});
+		t.start();
+		t.join();
+
+		assertTrue((System.nanoTime() - start) / 1_000_000 < 5000);
+		assertEquals(admission.getQueueDepth(), 0);
+		first.close();
+	}
+
+	public static void test_adaptive_limit() throws Exception {
+		ServerConfig config = config(4, 10, 10_000);
+		config.adaptiveConcurrency = true;
+		config.adaptiveLatencyTargetMillis = 20;
+		AdmissionController admission = new AdmissionController(config);
+		assertEquals(admission.getLimit(), 4);
+
+		// Slow statements shrink the limit, down to 1
+		for (int i = 0; i < 30; i++) {
+			AdmissionController.Permit permit = admission.acquire(0, () -> false);
+			try {
+				Thread.sleep(30);
+			} finally {
+				permit.close();
+			}
+		}
+		assertEquals(admission.getLimit(), 1);
+
+		// Fast statements grow it again, up to the maximum
+		for (int i = 0; i < 100; i++) {
+			admission.acquire(0, () -> false).close();
+		}
+		assertEquals(admission.getLimit(), 4);
+	}
+
+	public static void test_workload_class_weights() throws Exception {
+		AdmissionController admission = new AdmissionController(config(1, 20, 10_000));
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+		AdmissionController.Permit first = admission.acquire("interactive", 0, () -> false);
+
+		// Batch statements are queued first, still interactive ones get four slots for each batch one
+		List<Thread> threads = new ArrayList<Thread>();
+		String[] classes = { "batch", "interactive" };
+		for (String workloadClass : classes) {
+			for (int i = 1; i <= 5; i++) {
+				String name = workloadClass.charAt(0) + String.valueOf(i);
+				Thread t = new Thread(() -> {
+					try {
+						AdmissionController.Permit permit = admission.acquire(workloadClass, 0, () -> false);
+						try {
+							order.add(name);
+						} finally {
+							permit.close();
+						}
+					} catch (SQLException e) {
+						e.printStackTrace();
+					}
+				});
+				t.start();
+				threads.add(t);
+				awaitQueueDepth(admission, threads.size());
+			}
+		}
+		assertEquals(admission.getQueueDepth("batch"), 5);
+		assertEquals(admission.getQueueDepth("interactive"), 5);
+
+		first.close();
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(order, Arrays.asList("b1", "i1", "i2", "i3", "b2", "i4", "i5", "b3", "b4", "b5"));
+		assertEquals(admission.getAdmitted("batch"), 5L);
+		assertEquals(admission.getAdmitted("interactive"), 6L);
+	}
+
+	public static void test_workload_class_limit() throws Exception {
+		ServerConfig config = config(0, 10, 10_000);
+		config.addWorkloadClass(new WorkloadClass("batch", 1, 1));
+		AdmissionController admission = new AdmissionController(config);
+
+		AdmissionController.Permit batch = admission.acquire("batch", 0, () -> false);
+		Thread waiting = new Thread(() -> {
+			try {
+				admission.acquire("batch", 0, () -> false).close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		});
+		waiting.start();
+		awaitQueueDepth(admission, 1);
+
+		// Other classes are not held back by the batch limit, unknown ones run as the default class
+		AdmissionController.Permit interactive = admission.acquire("interactive", 0, () -> false);
+		AdmissionController.Permit unknown = admission.acquire("unknown", 0, () -> false);
+		assertEquals(admission.getRunning("interactive"), 2);
+		assertEquals(admission.getRunning("batch"), 1);
+
+		batch.close();
+		waiting.join();
+		assertEquals(admission.getAdmitted("batch"), 2L);
+		assertEquals(admission.getQueueDepth(), 0);
+		interactive.close();
+		unknown.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		run(AdmissionTestRunner.class);
+	}
+}
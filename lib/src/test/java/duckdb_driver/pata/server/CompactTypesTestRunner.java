@@ -0,0 +1,233 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Properties;
+
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.DateDayVector;
+import org.apache.arrow.vector.Decimal256Vector;
+import org.apache.arrow.vector.DecimalVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.TimeMicroVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.duckdb.DuckDBConnection;
+import org.duckdb.DuckDBResultSet;
+
+import duckdb_driver.pata.commands.Protocol;
+import duckdb_driver.pata.jdbc.PataConnection;
+import duckdb_driver.pata.jdbc.PataResultSet;
+
+/**
+ * Tests of DECIMAL, DATE and TIME columns in compact arrow types. Starts its
+ * own server, no ServerTestRunner is needed.
+ */
+public class CompactTypesTestRunner {
+
+	// Negative values, dates before 1970, times with microseconds, nulls,
+	// more than one batch
+	private static final String QUERY = "SELECT i, "
+			+ "CASE WHEN i % 7 = 0 THEN NULL ELSE ((i - 500) / 10)::DECIMAL(4,1) END AS d4, "
+			+ "((i - 500) * 123.45)::DECIMAL(9,2) AS d9, "
+			+ "((i - 500) * 123456789.123)::DECIMAL(18,3) AS d18, "
+			+ "((i - 500)::DECIMAL(30,5) * 1000000000000000000 + 0.54321)::DECIMAL(30,5) AS d30, "
+			+ "((i - 500)::HUGEINT * 12345678901234567890123 + 0.0123456789)::DECIMAL(38,10) AS d38, "
+			+ "CASE WHEN i % 5 = 0 THEN NULL ELSE DATE '1969-12-31' + ((i - 1000) * 37)::INTEGER END AS d, "
+			+ "CASE WHEN i % 9 = 0 THEN NULL ELSE TIME '00:00:00' + to_microseconds((i * 28123457)::BIGINT) END AS t, "
+			+ "(i - 500)::HUGEINT * 17014118346046923173168730371588410 AS h "
+			+ "FROM range(3000) t(i) ORDER BY i";
+
+	private static Server server;
+	private static DuckDBConnection local;
+
+	// The arrow stream of a local query
+	private static byte[] write(String sql, ResultEncoding encoding) throws Exception {
+		try (Statement stmt = local.createStatement();
+				DuckDBResultSet rs = (DuckDBResultSet) stmt.executeQuery(sql);
+				ArrowResultSet ars = new ArrowResultSet(rs, encoding)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (ArrowStreamWriter writer = ars.getArrowStreamWriter(Channels.newChannel(out))) {
+				ars.writeBatches(writer);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	// Compares every value of a pata result with the one of the local query
+	private static int compare(ResultSet actual, String sql) throws Exception {
+		int rows = 0;
+		try (Statement stmt = local.createStatement(); ResultSet expected = stmt.executeQuery(sql)) {
+			ResultSetMetaData meta = expected.getMetaData();
+			while (expected.next()) {
+				assertTrue(actual.next());
+				rows++;
+				for (int i = 1; i <= meta.getColumnCount(); i++) {
+					Object value = expected.getObject(i);
+					String column = meta.getColumnName(i) + " of row " + rows;
+					switch (meta.getColumnTypeName(i)) {
+						case "DATE":
+							assertEquals(actual.getDate(i) == null ? null : actual.getDate(i).toLocalDate(), value);
+							break;
+						case "TIME":
+							// java.sql.Time keeps the milliseconds
+							Time time = actual.getTime(i);
+							if (value == null) {
+								assertEquals(time, null);
+								break;
+							}
+							LocalTime localTime = (LocalTime) value;
+							assertEquals(time.toLocalTime(), localTime.truncatedTo(ChronoUnit.SECONDS));
+							assertTrue(Math.floorMod(time.getTime(), 1000) == localTime.getNano() / 1_000_000, column);
+							break;
+						case "HUGEINT":
+							assertEquals(actual.unwrap(PataResultSet.class).getHugeint(i), value);
+							break;
+						default:
+							if (meta.getColumnTypeName(i).startsWith("DECIMAL")) {
+								assertEquals(actual.getBigDecimal(i), value);
+								assertEquals(actual.getString(i), value == null ? null : value.toString());
+							} else {
+								assertEquals(actual.getObject(i), value);
+							}
+					}
+					assertTrue(actual.wasNull() == (value == null), column);
+				}
+			}
+			assertTrue(!actual.next());
+		}
+		return rows;
+	}
+
+	public static void test_metadata() throws Exception {
+		try (Connection conn = DriverManager.getConnection(url(server)); Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery(QUERY)) {
+			assertTrue(conn.unwrap(PataConnection.class).hasCapability(Protocol.COMPACT_TYPES));
+			ResultSetMetaData meta = rs.getMetaData();
+			int[] precisions = { 4, 9, 18, 30, 38 };
+			int[] scales = { 1, 2, 3, 5, 10 };
+			for (int i = 0; i < precisions.length; i++) {
+				assertEquals(meta.getColumnTypeName(i + 2), "DECIMAL");
+				assertEquals(meta.getColumnType(i + 2), Types.DECIMAL);
+				assertEquals(meta.getPrecision(i + 2), precisions[i]);
+				assertEquals(meta.getScale(i + 2), scales[i]);
+			}
+			assertEquals(meta.getColumnTypeName(7), "DATE");
+			assertEquals(meta.getColumnTypeName(8), "TIME");
+		}
+	}
+
+	public static void test_stream_types() throws Exception {
+		byte[] plain = write(QUERY, ResultEncoding.NONE);
+		byte[] compact = write(QUERY, new ResultEncoding(null, false, false, true));
+
+		try (RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+				ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(compact), allocator)) {
+			VectorSchemaRoot root = reader.getVectorSchemaRoot();
+			assertTrue(root.getVector("d4") instanceof IntVector);
+			assertTrue(root.getVector("d9") instanceof IntVector);
+			assertTrue(root.getVector("d18") instanceof BigIntVector);
+			assertTrue(root.getVector("d30") instanceof DecimalVector);
+			assertTrue(root.getVector("d38") instanceof DecimalVector);
+			assertTrue(root.getVector("d") instanceof DateDayVector);
+			assertTrue(root.getVector("t") instanceof TimeMicroVector);
+			assertTrue(root.getVector("h") instanceof Decimal256Vector);
+			assertEquals(root.getVector("d18").getField().getMetadata().get("Scale"), "3");
+
+			assertTrue(reader.loadNextBatch());
+			assertEquals(((IntVector) root.getVector("d9")).get(0), -6172500);
+			assertEquals(((DateDayVector) root.getVector("d")).get(1), (int) LocalDate.of(1868, 10, 18).toEpochDay());
+			assertEquals(((TimeMicroVector) root.getVector("t")).get(1), 28123457L);
+		}
+		assertTrue(compact.length * 2 < plain.length * 11 / 10, compact.length + " of " + plain.length);
+	}
+
+	public static void test_values() throws Exception {
+		try (Connection conn = DriverManager.getConnection(url(server)); Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery(QUERY)) {
+			assertEquals(compare(rs, QUERY), 3000);
+		}
+
+		// Limits of the types
+		String limits = "SELECT 99999.9999::DECIMAL(9,4) AS d9, -99999.9999::DECIMAL(9,4) AS n9, "
+				+ "999999999999999.999::DECIMAL(18,3) AS d18, -999999999999999.999::DECIMAL(18,3) AS n18, "
+				+ "99999999999999999999999999999999999999::DECIMAL(38,0) AS d38, -0.0000000001::DECIMAL(38,10) AS n38, "
+				+ "170141183460469231731687303715884105727::HUGEINT AS h, -170141183460469231731687303715884105727::HUGEINT AS nh, "
+				+ "-1::HUGEINT AS m, DATE '0001-01-01' AS d, DATE '9999-12-31' AS dmax, TIME '23:59:59.999999' AS t";
+		try (Connection conn = DriverManager.getConnection(url(server)); Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery(limits)) {
+			assertEquals(compare(rs, limits), 1);
+		}
+	}
+
+	public static void test_client_paths() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("pata.compression", "zstd");
+		props.setProperty("pata.prefetch_batches", "2");
+		try (Connection conn = DriverManager.getConnection(url(server), props)) {
+			try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(QUERY)) {
+				assertEquals(compare(rs, QUERY), 3000);
+			}
+
+			// Scrollable result sets keep the batches
+			try (Statement stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+					ResultSet rs = stmt.executeQuery(QUERY)) {
+				assertTrue(rs.absolute(2503));
+				assertEquals(rs.getBigDecimal(3), new BigDecimal("247146.90"));
+				assertEquals(rs.getObject(7), java.sql.Date.valueOf(LocalDate.of(1969, 12, 31).plusDays(1502 * 37)));
+				assertTrue(rs.absolute(2));
+				assertEquals(rs.getBigDecimal(2), new BigDecimal("-49.9"));
+				assertEquals(rs.getObject(9), new BigInteger("-8490045054677414663411196455422616590"));
+			}
+
+			// Cursors of the stream view decode as well
+			try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(QUERY)) {
+				long negative = rs.unwrap(PataResultSet.class).stream().filter(row -> row.getString(4).startsWith("-")).count();
+				assertEquals(negative, 500L);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		local = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:");
+		server = startServer(new ServerConfig());
+
+		run(CompactTypesTestRunner.class);
+	}
+}
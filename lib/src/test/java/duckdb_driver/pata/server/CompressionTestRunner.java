@@ -0,0 +1,250 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.duckdb.DuckDBConnection;
+import org.duckdb.DuckDBResultSet;
+
+import duckdb_driver.pata.commands.Connect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
+import duckdb_driver.pata.commands.Protocol;
+import duckdb_driver.pata.jdbc.PataConnection;
+import duckdb_driver.pata.jdbc.PataPreparedStatement;
+import duckdb_driver.pata.responses.Connected;
+import duckdb_driver.pata.responses.ResponseDecoder;
+
+/**
+ * Tests of the compression of record batches: the codecs, adaptive
+ * compression, per statement codecs, the negotiation and the cached results of
+ * each codec. Starts its own server, no ServerTestRunner is needed.
+ */
+public class CompressionTestRunner {
+
+	// Repeating values compress well, random doubles don't
+	private static final String MIXED_QUERY = "SELECT i, i % 10 AS small, 'value ' || (i % 7) AS s, "
+			+ "CASE WHEN i % 3 = 0 THEN NULL ELSE i * 0.5 END AS d, TIMESTAMP '2023-01-01' + INTERVAL (i) SECOND AS ts "
+			+ "FROM range(20000) t(i) ORDER BY i";
+	private static final String REPEATING_QUERY = "SELECT i % 10 AS a, i // 1000 AS b FROM range(100000) t(i)";
+	private static final String RANDOM_QUERY = "SELECT (hash(i) >> 1)::BIGINT AS h FROM range(100000) t(i)";
+
+	private static Server server;
+	private static DuckDBConnection local;
+
+	private static Connection connect(String compression, boolean adaptive) throws SQLException {
+		Properties props = new Properties();
+		props.setProperty("pata.compression", compression);
+		props.setProperty("pata.compression_adaptive", String.valueOf(adaptive));
+		return DriverManager.getConnection(url(server), props);
+	}
+
+	// All values of the result as one string
+	private static String read(ResultSet rs) throws SQLException {
+		StringBuilder sb = new StringBuilder();
+		int columns = rs.getMetaData().getColumnCount();
+		while (rs.next()) {
+			for (int i = 1; i <= columns; i++) {
+				sb.append(rs.getString(i)).append(',');
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static String query(Connection conn, String sql) throws SQLException {
+		try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+			return read(rs);
+		}
+	}
+
+	// The arrow stream of a local query, written by the writer the codec gives
+	private static byte[] write(String sql, String compression, boolean adaptive, long[] stats) throws Exception {
+		try (Statement stmt = local.createStatement();
+				DuckDBResultSet rs = (DuckDBResultSet) stmt.executeQuery(sql);
+				ArrowResultSet ars = new ArrowResultSet(rs, new ResultEncoding(compression, adaptive, false, false))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (ArrowStreamWriter writer = ars.getArrowStreamWriter(Channels.newChannel(out))) {
+				ars.writeBatches(writer);
+				if (writer instanceof ResultStreamWriter) {
+					ResultStreamWriter compressing = (ResultStreamWriter) writer;
+					stats[0] = compressing.getUncompressedBytes();
+					stats[1] = compressing.getCompressedBytes();
+					stats[2] = compressing.getSkippedBuffers();
+				}
+			}
+			return out.toByteArray();
+		}
+	}
+
+	// Rows and the sum of the first column of a stream of BIGINT columns
+	private static long[] sum(byte[] stream) throws Exception {
+		long rows = 0;
+		long sum = 0;
+		try (RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+				ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(stream), allocator,
+						CommonsCompressionFactory.INSTANCE)) {
+			while (reader.loadNextBatch()) {
+				BigIntVector vector = (BigIntVector) reader.getVectorSchemaRoot().getVector(0);
+				for (int i = 0; i < vector.getValueCount(); i++) {
+					sum += vector.get(i);
+				}
+				rows += vector.getValueCount();
+			}
+		}
+		return new long[] { rows, sum };
+	}
+
+	public static void test_codecs_read_the_same() throws Exception {
+		String expected;
+		try (Connection conn = DriverManager.getConnection(url(server))) {
+			expected = query(conn, MIXED_QUERY);
+		}
+		for (String codec : Arrays.asList(Protocol.LZ4_FRAME, Protocol.ZSTD)) {
+			for (boolean adaptive : Arrays.asList(true, false)) {
+				try (Connection conn = connect(codec, adaptive)) {
+					assertTrue(conn.unwrap(PataConnection.class).hasCapability(codec));
+					assertEquals(query(conn, MIXED_QUERY), expected);
+				}
+			}
+		}
+	}
+
+	public static void test_writer_compresses() throws Exception {
+		long[] stats = new long[3];
+		byte[] plain = write(REPEATING_QUERY, null, false, stats);
+		long[] expected = sum(plain);
+		assertEquals(expected[0], 100000L);
+
+		for (String codec : Arrays.asList(Protocol.LZ4_FRAME, Protocol.ZSTD)) {
+			byte[] compressed = write(REPEATING_QUERY, codec, false, stats);
+			assertTrue(compressed.length < plain.length / 4, codec + " " + compressed.length + " of " + plain.length);
+			assertTrue(stats[1] < stats[0] / 4);
+			assertEquals(stats[2], 0L);
+			assertTrue(Arrays.equals(sum(compressed), expected));
+		}
+	}
+
+	public static void test_adaptive_skips_incompressible() throws Exception {
+		long[] stats = new long[3];
+		byte[] plain = write(RANDOM_QUERY, null, false, stats);
+		long[] expected = sum(plain);
+
+		// Only the first batches try to compress the hashes
+		byte[] adaptive = write(RANDOM_QUERY, Protocol.ZSTD, true, stats);
+		long batches = (100000 + ArrowResultSet.BATCH_SIZE - 1) / ArrowResultSet.BATCH_SIZE;
+		assertTrue(stats[2] > batches, "skipped " + stats[2]);
+		assertTrue(Arrays.equals(sum(adaptive), expected));
+
+		// Compressible buffers are still compressed
+		write(REPEATING_QUERY, Protocol.ZSTD, true, stats);
+		assertTrue(stats[1] < stats[0] / 4);
+	}
+
+	public static void test_statement_compression() throws Exception {
+		try (Connection conn = DriverManager.getConnection(url(server))) {
+			String expected = query(conn, MIXED_QUERY);
+			try (PreparedStatement stmt = conn.prepareStatement(MIXED_QUERY)) {
+				PataPreparedStatement pata = stmt.unwrap(PataPreparedStatement.class);
+				assertEquals(pata.getCompression(), null);
+				pata.setCompression("ZSTD");
+				pata.setAdaptiveCompression(false);
+				assertEquals(pata.getCompression(), Protocol.ZSTD);
+				try (ResultSet rs = stmt.executeQuery()) {
+					assertEquals(read(rs), expected);
+				}
+				try {
+					pata.setCompression("gzip");
+					fail();
+				} catch (SQLException e) {
+				}
+				pata.setCompression("none");
+				assertEquals(pata.getCompression(), null);
+			}
+		}
+		try {
+			DriverManager.getConnection(url(server) + "?pata.compression=gzip");
+			fail();
+		} catch (SQLException e) {
+		}
+	}
+
+	public static void test_negotiation() throws Exception {
+		// The codecs are only used if the client asked for them
+		try (SocketChannel control = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			FrameReader reader = new FrameReader(control, 1000);
+			control.write(Frame.encode(0, new Connect(null, false, false, Protocol.CURRENT_VERSION, List.of(Protocol.LZ4_FRAME)).encodeCommand()));
+			Connected connected = (Connected) ResponseDecoder.decodeBuffer(reader.read(reader.readHeader().length));
+			assertEquals(connected.capabilities, List.of(Protocol.LZ4_FRAME));
+			server.getSessionRegistry().get(connected.connectionId).closeConnection();
+		}
+		try (SocketChannel control = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			FrameReader reader = new FrameReader(control, 1000);
+			control.write(Frame.encode(0, new Connect().encodeCommand()));
+			Connected connected = (Connected) ResponseDecoder.decodeBuffer(reader.read(reader.readHeader().length));
+			assertTrue(!connected.hasCapability(Protocol.LZ4_FRAME) && !connected.hasCapability(Protocol.ZSTD));
+			server.getSessionRegistry().get(connected.connectionId).closeConnection();
+		}
+	}
+
+	public static void test_cached_per_encoding() throws Exception {
+		ResultCache cache = server.getResultCache();
+		String sql = "SELECT i, 'cached ' || i FROM range(5000) t(i)";
+		try (Connection plain = DriverManager.getConnection(url(server)); Connection compressed = connect(Protocol.LZ4_FRAME, true)) {
+			long misses = cache.getMisses();
+			long hits = cache.getHits();
+			String expected = query(plain, sql);
+			assertEquals(query(compressed, sql), expected);
+			assertEquals(cache.getMisses(), misses + 2);
+			assertEquals(query(compressed, sql), expected);
+			assertEquals(query(plain, sql), expected);
+			assertEquals(cache.getHits(), hits + 2);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		local = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:");
+		ServerConfig config = new ServerConfig();
+		config.resultCacheEnabled = true;
+		server = startServer(config);
+
+		run(CompressionTestRunner.class);
+	}
+}
@@ -0,0 +1,270 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.duckdb.DuckDBConnection;
+import org.duckdb.DuckDBResultSet;
+
+import duckdb_driver.pata.commands.Protocol;
+import duckdb_driver.pata.jdbc.PataConnection;
+import duckdb_driver.pata.jdbc.PataResultSet;
+
+/**
+ * Tests of dictionary-encoded string columns. Starts its own server, no
+ * ServerTestRunner is needed.
+ */
+public class DictionaryTestRunner {
+
+	// Phase gets new values after half of the rows, unique never repeats
+	private static final String STRING_QUERY = "SELECT i, 'city ' || (i % 50) AS city, "
+			+ "CASE WHEN i % 11 = 0 THEN NULL WHEN i < 10000 THEN 'early' ELSE 'late ' || (i % 3) END AS phase, "
+			+ "'unique ' || i AS u FROM range(20000) t(i) ORDER BY i";
+
+	private static Server server;
+	private static DuckDBConnection local;
+
+	// All values of the result as one string
+	private static String read(ResultSet rs) throws SQLException {
+		StringBuilder sb = new StringBuilder();
+		int columns = rs.getMetaData().getColumnCount();
+		while (rs.next()) {
+			for (int i = 1; i <= columns; i++) {
+				sb.append(rs.getString(i)).append(',');
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static String query(Connection conn, String sql) throws SQLException {
+		try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+			return read(rs);
+		}
+	}
+
+	// The arrow stream of a local query
+	private static byte[] write(String sql, ResultEncoding encoding) throws Exception {
+		try (Statement stmt = local.createStatement();
+				DuckDBResultSet rs = (DuckDBResultSet) stmt.executeQuery(sql);
+				ArrowResultSet ars = new ArrowResultSet(rs, encoding)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (ArrowStreamWriter writer = ars.getArrowStreamWriter(Channels.newChannel(out))) {
+				ars.writeBatches(writer);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	// All values of a stream like read(), dictionary-encoded columns are decoded
+	private static String decode(byte[] stream, List<String> encodedColumns) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		try (RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+				ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(stream), allocator,
+						CommonsCompressionFactory.INSTANCE)) {
+			VectorSchemaRoot root = reader.getVectorSchemaRoot();
+			encodedColumns.clear();
+			encodedColumns.addAll(root.getSchema().getFields().stream().filter(f -> f.getDictionary() != null)
+					.map(f -> f.getName()).collect(Collectors.toList()));
+			while (reader.loadNextBatch()) {
+				for (int row = 0; row < root.getRowCount(); row++) {
+					for (FieldVector vector : root.getFieldVectors()) {
+						DictionaryEncoding encoding = vector.getField().getDictionary();
+						if (vector.isNull(row)) {
+							sb.append("null");
+						} else if (encoding != null) {
+							VarCharVector values = (VarCharVector) reader.lookup(encoding.getId()).getVector();
+							sb.append(new String(values.get(((IntVector) vector).get(row))));
+						} else {
+							sb.append(vector.getObject(row));
+						}
+						sb.append(',');
+					}
+					sb.append('\n');
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	public static void test_enum_columns() throws Exception {
+		try (Connection conn = DriverManager.getConnection(url(server)); Statement stmt = conn.createStatement()) {
+			assertTrue(conn.unwrap(PataConnection.class).hasCapability(Protocol.DICTIONARY));
+			stmt.execute("CREATE TYPE mood AS ENUM ('sad', 'ok', 'happy')");
+			stmt.execute("CREATE TABLE moods AS SELECT i, CASE WHEN i % 4 = 3 THEN NULL ELSE (['sad', 'ok', 'happy'])[i % 4 + 1] END::mood AS m "
+					+ "FROM range(10) t(i)");
+
+			try (ResultSet rs = stmt.executeQuery("SELECT m FROM moods ORDER BY i")) {
+				assertEquals(rs.getMetaData().getColumnTypeName(1), "VARCHAR");
+				String[] expected = { "sad", "ok", "happy", null };
+				String[] first = new String[3];
+				for (int row = 0; rs.next(); row++) {
+					String value = rs.getString(1);
+					assertEquals(value, expected[row % 4]);
+					assertEquals(rs.wasNull(), value == null);
+					assertEquals(rs.getObject(1), value);
+					if (row < 3) {
+						first[row] = value;
+					} else if (value != null) {
+						// The same value is the same String
+						assertTrue(value == first[row % 4]);
+					}
+				}
+			}
+			stmt.execute("DROP TABLE moods");
+			stmt.execute("DROP TYPE mood");
+		}
+	}
+
+	public static void test_low_cardinality_varchar() throws Exception {
+		String expected = query(local, STRING_QUERY);
+		try (Connection conn = DriverManager.getConnection(url(server)); Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery(STRING_QUERY)) {
+			Map<String, String> seen = new HashMap<String, String>();
+			StringBuilder sb = new StringBuilder();
+			while (rs.next()) {
+				for (int i = 1; i <= 4; i++) {
+					String value = rs.getString(i);
+					sb.append(value).append(',');
+				}
+				sb.append('\n');
+
+				// Repeated values of the encoded columns are shared, across batches too
+				String city = rs.getString(2);
+				String known = seen.putIfAbsent(city, city);
+				assertTrue(known == null || known == city, city);
+			}
+			assertEquals(sb.toString(), expected);
+			assertEquals(seen.size(), 50);
+		}
+	}
+
+	public static void test_stream_encoding() throws Exception {
+		String expected = query(local, STRING_QUERY);
+		List<String> encoded = new ArrayList<String>();
+
+		byte[] plain = write(STRING_QUERY, ResultEncoding.NONE);
+		assertEquals(decode(plain, encoded), expected);
+		assertEquals(encoded, List.of());
+
+		// Only the columns with few values in the first batch, the values of
+		// phase that come later are sent as deltas
+		byte[] dictionaries = write(STRING_QUERY, new ResultEncoding(null, false, true, false));
+		assertEquals(decode(dictionaries, encoded), expected);
+		assertEquals(encoded, List.of("city", "phase"));
+		assertTrue(dictionaries.length < plain.length * 3 / 4, dictionaries.length + " of " + plain.length);
+
+		byte[] compressed = write(STRING_QUERY, new ResultEncoding(Protocol.ZSTD, true, true, false));
+		assertEquals(decode(compressed, encoded), expected);
+		assertTrue(compressed.length < dictionaries.length);
+
+		// Too few rows to tell
+		String small = "SELECT 'a' || (i % 2) AS s FROM range(100) t(i)";
+		assertEquals(decode(write(small, new ResultEncoding(null, false, true, false)), encoded), query(local, small));
+		assertEquals(encoded, List.of());
+
+		// No rows at all, ENUM columns are always encoded
+		String empty = "SELECT 'x'::letter AS e WHERE false";
+		try (Statement stmt = local.createStatement()) {
+			stmt.execute("CREATE TYPE letter AS ENUM ('x', 'y')");
+		}
+		assertEquals(decode(write(empty, new ResultEncoding(null, false, true, false)), encoded), "");
+		assertEquals(encoded, List.of("e"));
+	}
+
+	public static void test_cursor_parts() throws Exception {
+		String expected = query(local, STRING_QUERY);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try (Statement stmt = local.createStatement();
+				ResultCursor cursor = new ResultCursor(UUID.randomUUID(), (DuckDBResultSet) stmt.executeQuery(STRING_QUERY),
+						new ResultEncoding(Protocol.ZSTD, false, true, false))) {
+			while (cursor.hasMore()) {
+				stream.write(cursor.next(3, () -> false));
+			}
+		}
+		List<String> encoded = new ArrayList<String>();
+		assertEquals(decode(stream.toByteArray(), encoded), expected);
+		assertEquals(encoded, List.of("city", "phase"));
+	}
+
+	public static void test_client_paths() throws Exception {
+		String expected = query(local, STRING_QUERY);
+		Properties props = new Properties();
+		props.setProperty("pata.compression", "zstd");
+		props.setProperty("pata.prefetch_batches", "2");
+		try (Connection conn = DriverManager.getConnection(url(server), props)) {
+			assertEquals(query(conn, STRING_QUERY), expected);
+
+			// Scrollable result sets keep the batches
+			try (Statement stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+					ResultSet rs = stmt.executeQuery(STRING_QUERY)) {
+				assertTrue(rs.absolute(15001));
+				assertEquals(rs.getString(3), "late 0");
+				assertTrue(rs.absolute(2));
+				assertEquals(rs.getString(2), "city 1");
+			}
+
+			// Cursors of the stream view decode as well
+			try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(STRING_QUERY)) {
+				long late = rs.unwrap(PataResultSet.class).stream().filter(row -> "late 1".equals(row.getString(3))).count();
+				assertEquals(late + ",\n", query(local, "SELECT count(*) FROM range(20000) t(i) WHERE i >= 10000 AND i % 3 = 1 AND i % 11 <> 0"));
+			}
+		}
+
+		// Turned off by the client
+		props.setProperty("pata.dictionaries", "false");
+		try (Connection conn = DriverManager.getConnection(url(server), props)) {
+			assertEquals(query(conn, STRING_QUERY), expected);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		local = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:");
+		server = startServer(new ServerConfig());
+
+		run(DictionaryTestRunner.class);
+	}
+}
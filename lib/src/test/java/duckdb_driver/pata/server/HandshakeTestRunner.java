@@ -0,0 +1,407 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.duckdb.StatementReturnType;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import duckdb_driver.pata.commands.CommandDecoder;
+import duckdb_driver.pata.commands.Connect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
+import duckdb_driver.pata.commands.PataCommand;
+import duckdb_driver.pata.commands.Ping;
+import duckdb_driver.pata.commands.Protocol;
+import duckdb_driver.pata.jdbc.PataConnection;
+import duckdb_driver.pata.responses.Connected;
+import duckdb_driver.pata.responses.ExceptionRaised;
+import duckdb_driver.pata.responses.PataResponse;
+import duckdb_driver.pata.responses.Pong;
+import duckdb_driver.pata.responses.Prepared;
+import duckdb_driver.pata.responses.ResponseDecoder;
+import duckdb_driver.pata.responses.Result;
+
+/**
+ * Tests of the Connect that keeps its socket as the socket of the session, of
+ * the fallback to a second socket and of the negotiation of the protocol.
+ * Starts its own servers, no ServerTestRunner is needed.
+ */
+public class HandshakeTestRunner {
+
+	private static final int POOL_SIZE = 4;
+
+	private static Server server;
+
+	private static void write(SocketChannel channel, int requestId, PataCommand cmd) throws Exception {
+		ByteBuffer frame = Frame.encode(requestId, cmd.encodeCommand());
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	private static PataResponse read(FrameReader reader) throws Exception {
+		return ResponseDecoder.decodeBuffer(reader.read(reader.readHeader().length));
+	}
+
+	private static void writeJson(SocketChannel channel, String json) throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	// Connects as clients did before the upgrade, the socket of the session is opened next
+	private static Connected connectTwoHop(int port) throws Exception {
+		try (SocketChannel control = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+			write(control, 0, new Connect());
+			return (Connected) read(new FrameReader(control, 1000));
+		}
+	}
+
+	public static void test_upgraded_socket() throws Exception {
+		try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			write(socket, 0, new Connect(null, false, true, Protocol.CURRENT_VERSION, Protocol.CAPABILITIES));
+			FrameReader reader = new FrameReader(socket, 1000);
+			Connected connected = (Connected) read(reader);
+			assertTrue(connected.isUpgraded());
+			assertTrue(connected.hasCapability(Protocol.UPGRADE));
+			assertTrue(connected.hasCapability(Protocol.MULTIPLEX));
+			assertTrue(server.getSessionRegistry().get(connected.connectionId) != null);
+
+			// The session answers on the same socket
+			write(socket, 1, new Ping());
+			assertTrue(read(reader) instanceof Pong);
+		}
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	public static void test_malformed_frame() throws Exception {
+		try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			write(socket, 0, new Connect(null, false, true, Protocol.CURRENT_VERSION, Protocol.CAPABILITIES));
+			FrameReader reader = new FrameReader(socket, 1000);
+			assertTrue(read(reader) instanceof Connected);
+
+			// A payload that can't be decoded is answered, the next frame is still found
+			ByteBuffer garbage = Frame.encode(1, ByteBuffer.wrap("{\"op\":".getBytes(StandardCharsets.UTF_8)));
+			while (garbage.hasRemaining()) {
+				socket.write(garbage);
+			}
+			assertTrue(read(reader) instanceof ExceptionRaised);
+			write(socket, 2, new Ping());
+			assertTrue(read(reader) instanceof Pong);
+
+			// After a malformed header the next frame can't be found, the session ends
+			writeJson(socket, String.format("%-" + Frame.headerLength + "s", "{\"session\":\"x\"}"));
+			assertTrue(read(reader) instanceof ExceptionRaised);
+			assertEquals(reader.readHeader(), null);
+		}
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	public static void test_driver_connect() throws Exception {
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < 16; i++) {
+			connections.add(DriverManager.getConnection(url(server)));
+		}
+		assertEquals(server.getSessionRegistry().size(), 16);
+		for (int i = 0; i < connections.size(); i++) {
+			assertEquals(count(connections.get(i), "SELECT " + i), (long) i);
+		}
+		for (Connection conn : connections) {
+			conn.close();
+		}
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	public static void test_two_hop_connect() throws Exception {
+		// Clients without the upgrade still get the port of the session
+		Connected connected = connectTwoHop(server.getPort());
+		assertTrue(!connected.isUpgraded());
+
+		Connection conn = new PataConnection(connected.port, false, new Properties(), server.getPort(), connected.connectionId);
+		assertEquals(count(conn, "SELECT 42"), 42L);
+		conn.close();
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	public static void test_failed_connect() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("pata.workload_class", "unknown");
+		try {
+			DriverManager.getConnection(url(server), props);
+			fail();
+		} catch (SQLException e) {
+			assertTrue(e.getMessage().contains("Unknown workload class"));
+		}
+		assertEquals(server.getSessionRegistry().size(), 0);
+	}
+
+	public static void test_negotiation() throws Exception {
+		// A newer client gets the version of the server and the capabilities both have
+		Connected connected;
+		try (SocketChannel control = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			write(control, 0, new Connect(null, false, false, Protocol.CURRENT_VERSION + 1, Arrays.asList("future", Protocol.MULTIPLEX)));
+			connected = (Connected) read(new FrameReader(control, 1000));
+		}
+		assertEquals(connected.protocolVersion, Protocol.CURRENT_VERSION);
+		assertEquals(connected.capabilities, Arrays.asList(Protocol.MULTIPLEX));
+		DbConnection session = server.getSessionRegistry().get(connected.connectionId);
+		assertEquals(session.getProtocolVersion(), Protocol.CURRENT_VERSION);
+		assertEquals(session.getCapabilities(), Arrays.asList(Protocol.MULTIPLEX));
+		session.closeConnection();
+
+		// A framed Connect without a version speaks the first one and gets no capabilities
+		connected = connectTwoHop(server.getPort());
+		assertEquals(connected.protocolVersion, Protocol.VERSION_1);
+		assertTrue(connected.capabilities.isEmpty());
+		server.getSessionRegistry().get(connected.connectionId).closeConnection();
+		await(() -> server.getSessionRegistry().size() == 0);
+
+		// The driver gets everything
+		try (Connection conn = DriverManager.getConnection(url(server))) {
+			PataConnection pata = conn.unwrap(PataConnection.class);
+			assertEquals(pata.getProtocolVersion(), Protocol.CURRENT_VERSION);
+			assertTrue(pata.hasCapability(Protocol.UPGRADE));
+			assertTrue(pata.hasCapability(Protocol.MULTIPLEX));
+		}
+		Properties props = new Properties();
+		props.setProperty("pata.multiplex", "true");
+		try (Connection conn = DriverManager.getConnection(url(server), props)) {
+			PataConnection pata = conn.unwrap(PataConnection.class);
+			assertEquals(pata.getProtocolVersion(), Protocol.CURRENT_VERSION);
+			assertTrue(pata.hasCapability(Protocol.MULTIPLEX));
+			assertEquals(count(conn, "SELECT 3"), 3L);
+		}
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	public static void test_slow_control_client() throws Exception {
+		// A client that doesn't send its command doesn't hold up the others
+		try (SocketChannel silent = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()));
+				SocketChannel partial = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			partial.write(ByteBuffer.wrap("{\"session\":\"00".getBytes("UTF-8")));
+
+			long start = System.currentTimeMillis();
+			try (Connection conn = DriverManager.getConnection(url(server))) {
+				assertEquals(count(conn, "SELECT 5"), 5L);
+			}
+			assertTrue(System.currentTimeMillis() - start < Server.CONTROL_READ_TIMEOUT_MILLIS);
+
+			// Both are closed once their time to send is over
+			silent.socket().setSoTimeout((int) Server.CONTROL_READ_TIMEOUT_MILLIS * 2);
+			assertEquals(silent.socket().getInputStream().read(), -1);
+			partial.socket().setSoTimeout((int) Server.CONTROL_READ_TIMEOUT_MILLIS * 2);
+			assertEquals(partial.socket().getInputStream().read(), -1);
+		}
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	// A bare Result, its size msg tells the length of the rest
+	private static Result readResult(FrameReader reader) throws Exception {
+		ByteBuffer sizeMsg = reader.read(Result.sizeMsgLength);
+		JsonNode sizes = new ObjectMapper().readTree(sizeMsg.array());
+		int length = Integer.parseInt(sizes.get("jsonSize").asText()) + Integer.parseInt(sizes.get("arrowSize").asText());
+		ByteBuffer response = ByteBuffer.allocate(Result.sizeMsgLength + length).put(sizeMsg).put(reader.read(length)).flip();
+		return (Result) ResponseDecoder.decodeBuffer(response);
+	}
+
+	public static void test_unframed_client() throws Exception {
+		// Drivers from before the frames send bare JSON, and are served as version 0
+		int port;
+		try (SocketChannel control = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			writeJson(control, "{\"op\":\"Connect\"}");
+			Connected connected = (Connected) ResponseDecoder.decodeBuffer(new FrameReader(control, 1000).readJson());
+			assertEquals(connected.protocolVersion, Protocol.VERSION_0);
+			assertTrue(connected.capabilities.isEmpty());
+			assertFalse(connected.isUpgraded());
+			port = connected.port;
+		}
+
+		try (SocketChannel session = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+			FrameReader reader = new FrameReader(session, 1000);
+			String statementId = UUID.randomUUID().toString();
+
+			writeJson(session, "{\"op\":\"PrepareSql\",\"sqlString\":\"SELECT i FROM range(5000) t(i)\",\"statementID\":\""
+					+ statementId + "\"}");
+			assertTrue(ResponseDecoder.decodeBuffer(reader.readJson()) instanceof Prepared);
+
+			writeJson(session, "{\"op\":\"Execute\",\"autoCommit\":true,\"parameterTypes\":[],\"parameters\":[],\"statementID\":\""
+					+ statementId + "\"}");
+			Result result = readResult(reader);
+			assertEquals(result.queryType, StatementReturnType.QUERY_RESULT);
+
+			// They read the first record batch only, it holds the whole result
+			byte[] stream = new byte[result.arrowBuffer.remaining()];
+			result.arrowBuffer.get(stream);
+			try (RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+					ArrowStreamReader arrow = new ArrowStreamReader(new ByteArrayInputStream(stream), allocator)) {
+				assertTrue(arrow.loadNextBatch());
+				BigIntVector i = (BigIntVector) arrow.getVectorSchemaRoot().getVector(0);
+				assertEquals(i.getValueCount(), 5000);
+				assertEquals(i.get(4999), 4999L);
+			}
+		}
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	public static void test_unknown_version() throws Exception {
+		ByteBuffer ping = new Ping().encodeCommand();
+		assertTrue(CommandDecoder.decodeBuffer(ping, Protocol.VERSION_1) instanceof Ping);
+		try {
+			CommandDecoder.decodeBuffer(ping, Protocol.CURRENT_VERSION + 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			ResponseDecoder.decodeBuffer(new Pong().encodeResponse(), Protocol.CURRENT_VERSION + 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public static void test_pooled_sessions() throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.sessionPoolSize = POOL_SIZE;
+		Server pooling = startServer(config);
+		SessionPool pool = pooling.getSessionPool();
+		try {
+			await(() -> pool.getIdleSessions() == POOL_SIZE);
+
+			// Waiting pooled sessions take the upgraded sockets, half of them is
+			// taken so the pool is not refilled
+			long hits = pool.getHits();
+			List<Connection> connections = new ArrayList<Connection>();
+			for (int i = 0; i < POOL_SIZE / 2; i++) {
+				connections.add(DriverManager.getConnection(url(pooling)));
+			}
+			assertEquals(pool.getHits(), hits + POOL_SIZE / 2);
+			for (Connection conn : connections) {
+				assertEquals(count(conn, "SELECT 1"), 1L);
+			}
+			long recycled = pool.getRecycled();
+			for (Connection conn : connections) {
+				conn.close();
+			}
+			await(() -> pool.getRecycled() == recycled + POOL_SIZE / 2);
+
+			// Recycled sessions are bound again for clients that connect to their port
+			for (int i = 0; i < 2 * POOL_SIZE; i++) {
+				Connected connected = connectTwoHop(pooling.getPort());
+				Connection conn = new PataConnection(connected.port, false, new Properties(), pooling.getPort(), connected.connectionId);
+				assertEquals(count(conn, "SELECT 2"), 2L);
+				conn.close();
+			}
+		} finally {
+			pooling.stopServer();
+		}
+	}
+
+	public static void test_netty_transport() throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.transport = ServerConfig.NETTY_TRANSPORT;
+		Server netty = startServer(config);
+		try {
+			List<Connection> connections = new ArrayList<Connection>();
+			for (int i = 0; i < 16; i++) {
+				connections.add(DriverManager.getConnection(url(netty)));
+			}
+			for (int i = 0; i < connections.size(); i++) {
+				try (Statement stmt = connections.get(i).createStatement();
+						ResultSet rs = stmt.executeQuery("SELECT i FROM range(100000) t(i)")) {
+					long rows = 0;
+					while (rs.next()) {
+						rows++;
+					}
+					assertEquals(rows, 100000L);
+				}
+			}
+			for (Connection conn : connections) {
+				conn.close();
+			}
+			await(() -> netty.getSessionRegistry().size() == 0);
+		} finally {
+			netty.stopServer();
+		}
+	}
+
+	public static void test_older_server() throws Exception {
+		// Answers the Connect without the upgrade, as servers did before
+		ServerSocketChannel older = ServerSocketChannel.open();
+		older.bind(new InetSocketAddress("localhost", 0));
+		Thread thread = new Thread(() -> {
+			try (SocketChannel socket = older.accept()) {
+				FrameReader reader = new FrameReader(socket, 1000);
+				Frame frame = reader.readHeader();
+				assertTrue(((Connect) CommandDecoder.decodeBuffer(reader.read(frame.length))).upgrade);
+
+				Connected connected = connectTwoHop(server.getPort());
+				ByteBuffer response = Frame.encode(frame.requestId, new Connected(connected.port, connected.connectionId).encodeResponse());
+				while (response.hasRemaining()) {
+					socket.write(response);
+				}
+				// The client closes the socket
+				assertTrue(reader.readHeader() == null);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		thread.start();
+
+		try {
+			Connection conn = DriverManager.getConnection("jdbc:duckdb-pata:" + older.socket().getLocalPort());
+			assertEquals(conn.unwrap(PataConnection.class).getProtocolVersion(), Protocol.VERSION_1);
+			assertEquals(count(conn, "SELECT 7"), 7L);
+			conn.close();
+			thread.join(5000);
+			await(() -> server.getSessionRegistry().size() == 0);
+		} finally {
+			older.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		server = startServer(new ServerConfig());
+
+		run(HandshakeTestRunner.class);
+	}
+}
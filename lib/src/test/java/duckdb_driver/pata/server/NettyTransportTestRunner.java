@@ -0,0 +1,156 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the netty transport. Starts its own servers, no ServerTestRunner is
+ * needed. The client tests pass with ServerTestRunner started with "netty" as well.
+ */
+public class NettyTransportTestRunner {
+
+	private static Server server;
+
+	private static Server startNettyServer(ServerConfig config) throws SQLException {
+		config.transport = ServerConfig.NETTY_TRANSPORT;
+		return startServer(config);
+	}
+
+	public static void test_large_result() throws Exception {
+		// Sent faster than the client reads it
+		try (Connection conn = DriverManager.getConnection(url(server));
+				Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT i, i::VARCHAR FROM range(1000000) t(i)")) {
+			long rows = 0;
+			while (rs.next()) {
+				assertEquals(rs.getLong(1), rows);
+				rows++;
+			}
+			assertEquals(rows, 1000000L);
+		}
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	public static void test_concurrent_sessions() throws Exception {
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < 64; i++) {
+			connections.add(DriverManager.getConnection(url(server)));
+		}
+		assertEquals(server.getSessionRegistry().size(), 64);
+
+		List<CompletableFuture<Long>> results = new ArrayList<CompletableFuture<Long>>();
+		for (int i = 0; i < connections.size(); i++) {
+			Connection conn = connections.get(i);
+			long expected = i;
+			results.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					long sum = 0;
+					for (int q = 0; q < 10; q++) {
+						sum += count(conn, "SELECT " + expected);
+					}
+					return sum;
+				} catch (SQLException e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals(results.get(i).get(10, TimeUnit.SECONDS), 10L * i);
+		}
+
+		// Closing the sockets ends the sessions, there is no thread that notices it
+		for (Connection conn : connections) {
+			conn.close();
+		}
+		await(() -> server.getSessionRegistry().size() == 0);
+	}
+
+	public static void test_transaction_rolled_back_on_close() throws Exception {
+		Connection setup = DriverManager.getConnection(url(server));
+		setup.createStatement().execute("CREATE TABLE netty_orders (i INTEGER)");
+
+		Connection conn = DriverManager.getConnection(url(server));
+		conn.setAutoCommit(false);
+		conn.createStatement().executeUpdate("INSERT INTO netty_orders VALUES (1)");
+		conn.close();
+		await(() -> server.getSessionRegistry().size() == 1);
+
+		assertEquals(count(setup, "SELECT count(*) FROM netty_orders"), 0L);
+		setup.close();
+	}
+
+	public static void test_idle_session_reaped() throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.sessionIdleTimeoutMillis = 300;
+		Server reaping = startNettyServer(config);
+
+		Connection conn = DriverManager.getConnection(url(reaping));
+		assertEquals(count(conn, "SELECT 1"), 1L);
+		await(() -> reaping.getSessionReaper().getReapedSessions() == 1);
+		await(() -> reaping.getSessionRegistry().size() == 0);
+		try {
+			count(conn, "SELECT 1");
+			fail();
+		} catch (SQLException e) {
+		}
+		conn.close();
+		reaping.stopServer();
+	}
+
+	public static void test_shutdown() throws Exception {
+		Server stopping = startNettyServer(new ServerConfig());
+		Connection conn = DriverManager.getConnection(url(stopping));
+		PreparedStatement stmt = conn.prepareStatement("SELECT count(*) FROM range(20000) a, range(20000) b");
+		CompletableFuture<Long> running = CompletableFuture.supplyAsync(() -> {
+			try (ResultSet rs = stmt.executeQuery()) {
+				rs.next();
+				return rs.getLong(1);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		await(() -> stopping.getSessionRegistry().countByState().get(SessionState.EXECUTING) == 1);
+
+		// The response of the running statement is sent before the socket is closed
+		ShutdownReport report = stopping.shutdown(30000);
+		assertEquals(running.get(10, TimeUnit.SECONDS), 400000000L);
+		assertEquals(report.runningStatements, 1);
+		assertTrue(report.abortedStatements.isEmpty());
+		assertEquals(stopping.getSessionRegistry().size(), 0);
+		conn.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		server = startNettyServer(new ServerConfig());
+
+		run(NettyTransportTestRunner.class);
+	}
+}
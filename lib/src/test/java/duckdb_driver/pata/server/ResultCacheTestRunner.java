@@ -0,0 +1,287 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests of the server side result cache and of shared executions of identical
+ * queries. Starts its own server with both enabled, no ServerTestRunner is
+ * needed.
+ */
+public class ResultCacheTestRunner {
+
+	private static Server server;
+
+	private static StatementParameter params(Object... values) {
+		ArrayList<String> types = new ArrayList<String>();
+		ArrayList<Object> vals = new ArrayList<Object>();
+		for (Object v : values) {
+			types.add(v.getClass().getSimpleName());
+			vals.add(v);
+		}
+		return new StatementParameter(types, vals);
+	}
+
+	// Runs the query on another thread
+	private static CompletableFuture<Long> countAsync(Statement stmt, String sql) {
+		return CompletableFuture.supplyAsync(() -> {
+			try (ResultSet rs = stmt.executeQuery(sql)) {
+				rs.next();
+				return rs.getLong(1);
+			} catch (SQLException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	// The exception the query of the future failed with
+	private static SQLException failure(CompletableFuture<Long> query) throws Exception {
+		try {
+			query.get();
+		} catch (ExecutionException e) {
+			return (SQLException) e.getCause();
+		}
+		throw new Exception("Query did not fail");
+	}
+
+	public static void test_normalize() throws Exception {
+		assertEquals(ResultCache.normalize("  SELECT  *\n\tFROM t ;  "), "SELECT * FROM t");
+		assertEquals(ResultCache.normalize("SELECT 'a  b', \"x  y\" -- comment\nFROM t"), "SELECT 'a  b', \"x  y\" FROM t");
+		assertEquals(ResultCache.normalize("SELECT /* c */ 1"), "SELECT 1");
+		assertEquals(ResultCache.normalize("SELECT 'it''s  ok'"), "SELECT 'it''s  ok'");
+
+		assertTrue(ResultCache.isReadOnly("select 1"));
+		assertTrue(ResultCache.isReadOnly(" WITH x AS (SELECT 1) SELECT * FROM x"));
+		assertTrue(ResultCache.isReadOnly("FROM t"));
+		assertFalse(ResultCache.isReadOnly("INSERT INTO t VALUES (1)"));
+		assertFalse(ResultCache.isReadOnly("INSERT INTO t VALUES (1) RETURNING *"));
+		assertFalse(ResultCache.isReadOnly("CREATE TABLE t (i INT)"));
+		assertFalse(ResultCache.isReadOnly("SET threads = 1"));
+	}
+
+	public static void test_keys() throws Exception {
+		assertEquals(ResultCache.createKey("SELECT ?", params(1)), ResultCache.createKey(" SELECT  ? ", params(1)));
+		assertFalse(ResultCache.createKey("SELECT ?", params(1)).equals(ResultCache.createKey("SELECT ?", params(2))));
+		assertFalse(ResultCache.createKey("SELECT ?", params(1)).equals(ResultCache.createKey("SELECT ?", params(1L))));
+		assertEquals(ResultCache.createKey("SELECT /*+ NO_RESULT_CACHE */ 1", params()), null);
+		assertEquals(ResultCache.createKey("DELETE FROM t", params()), null);
+	}
+
+	public static void test_lru_ttl_generation() throws Exception {
+		ResultCache cache = new ResultCache(100, 60_000);
+		ResultCache.Key a = ResultCache.createKey("SELECT 1", params());
+		ResultCache.Key b = ResultCache.createKey("SELECT 2", params());
+		ResultCache.Key c = ResultCache.createKey("SELECT 3", params());
+
+		cache.put(a, new byte[40], cache.getGeneration());
+		cache.put(b, new byte[40], cache.getGeneration());
+		assertTrue(cache.get(a) != null);
+		cache.put(c, new byte[40], cache.getGeneration());
+
+		// b was least recently used
+		assertEquals(cache.get(b), null);
+		assertTrue(cache.get(a) != null);
+		assertTrue(cache.get(c) != null);
+		assertEquals(cache.getEvictions(), 1L);
+		assertEquals(cache.getSizeBytes(), 80L);
+
+		// A result computed before a write is not stored
+		long generation = cache.getGeneration();
+		cache.invalidate();
+		assertEquals(cache.getEntryCount(), 0);
+		cache.put(a, new byte[10], generation);
+		assertEquals(cache.get(a), null);
+
+		ResultCache expiring = new ResultCache(100, 0);
+		expiring.put(a, new byte[10], expiring.getGeneration());
+		Thread.sleep(5);
+		assertEquals(expiring.get(a), null);
+		assertEquals(expiring.getSizeBytes(), 0L);
+	}
+
+	public static void test_cache_hits_and_invalidation() throws Exception {
+		ResultCache cache = server.getResultCache();
+		Connection conn = DriverManager.getConnection(url(server));
+		Connection other = DriverManager.getConnection(url(server));
+		// Sessions that wrote don't share the cache, the readers do
+		Connection writer = DriverManager.getConnection(url(server));
+
+		Statement stmt = writer.createStatement();
+		stmt.execute("CREATE TABLE cached (i INTEGER)");
+		stmt.execute("INSERT INTO cached VALUES (1), (2), (3)");
+
+		long hits = cache.getHits();
+		assertEquals(count(conn, "SELECT count(*) FROM cached"), 3L);
+		assertEquals(count(other, "SELECT  count(*)  FROM cached"), 3L);
+		assertEquals(cache.getHits(), hits + 1);
+
+		// Parameters are part of the key
+		PreparedStatement ps = conn.prepareStatement("SELECT count(*) FROM cached WHERE i > ?");
+		ps.setInt(1, 1);
+		ResultSet rs = ps.executeQuery();
+		rs.next();
+		assertEquals(rs.getLong(1), 2L);
+		ps.setInt(1, 2);
+		rs = ps.executeQuery();
+		rs.next();
+		assertEquals(rs.getLong(1), 1L);
+		ps.close();
+
+		// A write of another connection invalidates
+		stmt.execute("INSERT INTO cached VALUES (4)");
+		assertEquals(count(conn, "SELECT count(*) FROM cached"), 4L);
+
+		// Writes inside a transaction are visible to the writer and invalidate again on commit
+		writer.setAutoCommit(false);
+		stmt.execute("INSERT INTO cached VALUES (5)");
+		assertEquals(count(writer, "SELECT count(*) FROM cached"), 5L);
+		assertEquals(count(other, "SELECT count(*) FROM cached"), 4L);
+		writer.commit();
+		writer.setAutoCommit(true);
+		assertEquals(count(other, "SELECT count(*) FROM cached"), 5L);
+
+		// The hint bypasses the cache
+		hits = cache.getHits();
+		count(conn, "SELECT /*+ NO_RESULT_CACHE */ count(*) FROM cached");
+		count(conn, "SELECT /*+ NO_RESULT_CACHE */ count(*) FROM cached");
+		assertEquals(cache.getHits(), hits);
+
+		stmt.close();
+		conn.close();
+		other.close();
+		writer.close();
+	}
+
+	public static void test_session_local_state() throws Exception {
+		// Temporary tables are seen by their session only, the same query reads different ones
+		try (Connection a = DriverManager.getConnection(url(server)); Connection b = DriverManager.getConnection(url(server))) {
+			a.createStatement().execute("CREATE TEMP TABLE local_state AS SELECT 1 AS i");
+			b.createStatement().execute("CREATE TEMP TABLE local_state AS SELECT 2 AS i");
+			assertEquals(count(a, "SELECT * FROM local_state"), 1L);
+			assertEquals(count(b, "SELECT * FROM local_state"), 2L);
+		}
+	}
+
+	public static void test_single_flight_cancel_leader() throws Exception {
+		SingleFlight flight = server.getSingleFlight();
+		String sql = "SELECT count(*) FROM range(1000000) a, range(200) b WHERE a.range + b.range = -1";
+		try (Connection leader = DriverManager.getConnection(url(server)); Connection follower = DriverManager.getConnection(url(server));
+				Statement leaderStmt = leader.createStatement(); Statement followerStmt = follower.createStatement()) {
+			long executions = flight.getExecutions();
+			long joined = flight.getJoined();
+			CompletableFuture<Long> first = countAsync(leaderStmt, sql);
+			await(() -> flight.getExecutions() == executions + 1);
+			CompletableFuture<Long> second = countAsync(followerStmt, sql);
+			await(() -> flight.getJoined() == joined + 1);
+
+			// The follower doesn't get the cancel, it runs the query itself
+			leaderStmt.cancel();
+			assertEquals(failure(first).getSQLState(), "57014");
+			assertEquals(second.get(), 0L);
+			assertEquals(flight.getExecutions(), executions + 2);
+		}
+	}
+
+	public static void test_single_flight_cancel_follower() throws Exception {
+		SingleFlight flight = server.getSingleFlight();
+		String sql = "SELECT count(*) FROM range(1000000) a, range(200) b WHERE a.range + b.range = -2";
+		try (Connection leader = DriverManager.getConnection(url(server)); Connection follower = DriverManager.getConnection(url(server));
+				Statement leaderStmt = leader.createStatement(); Statement followerStmt = follower.createStatement()) {
+			long executions = flight.getExecutions();
+			long joined = flight.getJoined();
+			CompletableFuture<Long> first = countAsync(leaderStmt, sql);
+			await(() -> flight.getExecutions() == executions + 1);
+			CompletableFuture<Long> second = countAsync(followerStmt, sql);
+			await(() -> flight.getJoined() == joined + 1);
+
+			// Stops waiting right away, the leader goes on
+			followerStmt.cancel();
+			assertEquals(failure(second).getSQLState(), "57014");
+			assertFalse(first.isDone());
+			assertEquals(first.get(), 0L);
+			assertEquals(flight.getExecutions(), executions + 1);
+		}
+	}
+
+	public static void test_single_flight_follower_timeout() throws Exception {
+		SingleFlight flight = server.getSingleFlight();
+		String sql = "SELECT count(*) FROM range(1000000) a, range(300) b WHERE a.range + b.range = -3";
+		try (Connection leader = DriverManager.getConnection(url(server)); Connection follower = DriverManager.getConnection(url(server));
+				Statement leaderStmt = leader.createStatement(); Statement followerStmt = follower.createStatement()) {
+			long executions = flight.getExecutions();
+			long joined = flight.getJoined();
+			CompletableFuture<Long> first = countAsync(leaderStmt, sql);
+			await(() -> flight.getExecutions() == executions + 1);
+			followerStmt.setQueryTimeout(1);
+			long start = System.nanoTime();
+			CompletableFuture<Long> second = countAsync(followerStmt, sql);
+			await(() -> flight.getJoined() == joined + 1);
+
+			// The timeout of the follower holds while it waits for the leader
+			assertTrue(failure(second) instanceof SQLTimeoutException);
+			long elapsedMillis = (System.nanoTime() - start) / 1000000;
+			assertTrue(elapsedMillis < 3000);
+			assertFalse(first.isDone());
+			assertEquals(first.get(), 0L);
+		}
+	}
+
+	public static void test_single_flight_session_local_state() throws Exception {
+		SingleFlight flight = server.getSingleFlight();
+		String sql = "SELECT (SELECT i FROM flight_state) + count(*) FROM range(1000000) a, range(200) b WHERE a.range + b.range = -4";
+		try (Connection a = DriverManager.getConnection(url(server)); Connection b = DriverManager.getConnection(url(server));
+				Statement aStmt = a.createStatement(); Statement bStmt = b.createStatement()) {
+			aStmt.execute("CREATE TEMP TABLE flight_state AS SELECT 1 AS i");
+			bStmt.execute("CREATE TEMP TABLE flight_state AS SELECT 2 AS i");
+			long executions = flight.getExecutions();
+			long joined = flight.getJoined();
+
+			// Both run their query themselves, each reads its own table
+			CompletableFuture<Long> first = countAsync(aStmt, sql);
+			CompletableFuture<Long> second = countAsync(bStmt, sql);
+			assertEquals(first.get(), 1L);
+			assertEquals(second.get(), 2L);
+			assertEquals(flight.getExecutions(), executions);
+			assertEquals(flight.getJoined(), joined);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		ServerConfig config = new ServerConfig();
+		config.resultCacheEnabled = true;
+		config.singleFlightEnabled = true;
+		server = startServer(config);
+
+		run(ResultCacheTestRunner.class);
+	}
+}
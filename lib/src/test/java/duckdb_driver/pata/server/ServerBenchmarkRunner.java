@@ -0,0 +1,695 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.duckdb.DuckDBConnection;
+import org.duckdb.DuckDBResultSet;
+
+import duckdb_driver.pata.commands.Connect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
+import duckdb_driver.pata.jdbc.PataAsyncConnection;
+import duckdb_driver.pata.jdbc.PataConnection;
+import duckdb_driver.pata.jdbc.PataDataSource;
+import duckdb_driver.pata.responses.Connected;
+import duckdb_driver.pata.responses.ResponseDecoder;
+
+/**
+ * Benchmarks of server features. Starts its own servers, every static bench_
+ * method is run and prints its own timings.
+ */
+public class ServerBenchmarkRunner {
+
+	private static final int REPETITIONS = 3;
+
+	/**
+	 * Runs sql once on every connection, all starting at the same time.
+	 * Returns the wall clock nanoseconds until the last result was read.
+	 */
+	private static long runConcurrently(List<Connection> connections, String sql, long expected) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(connections.size());
+		CyclicBarrier barrier = new CyclicBarrier(connections.size() + 1);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+
+		for (Connection conn : connections) {
+			results.add(executor.submit(() -> {
+				try (Statement stmt = conn.createStatement()) {
+					barrier.await();
+					try (ResultSet rs = stmt.executeQuery(sql)) {
+						rs.next();
+						return rs.getLong(1);
+					}
+				}
+			}));
+		}
+
+		barrier.await();
+		long start = System.nanoTime();
+		for (Future<Long> result : results) {
+			if (result.get() != expected) {
+				throw new Exception("Wrong result " + result.get());
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		executor.shutdown();
+		return elapsed;
+	}
+
+	public static void bench_admission() throws Exception {
+		String sql = "SELECT count(*) FROM range(2000) a(i), range(2000) b(i) WHERE a.i * b.i % 7 = 1";
+
+		ServerConfig unlimited = new ServerConfig();
+		ServerConfig limited = new ServerConfig();
+		limited.maxConcurrentStatements = 4;
+
+		Server plain = startServer(unlimited);
+		Server server = startServer(limited);
+
+		// Throughput for growing bursts, it should stay flat with admission control
+		for (int clients : new int[] { 4, 32, 128 }) {
+			for (Server target : new Server[] { plain, server }) {
+				List<Connection> connections = new ArrayList<Connection>();
+				for (int i = 0; i < clients; i++) {
+					connections.add(DriverManager.getConnection(url(target)));
+				}
+
+				// Warm up
+				long expected;
+				try (Statement stmt = connections.get(0).createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+					rs.next();
+					expected = rs.getLong(1);
+				}
+
+				long best = Long.MAX_VALUE;
+				for (int i = 0; i < REPETITIONS; i++) {
+					best = Math.min(best, runConcurrently(connections, sql, expected));
+				}
+				System.out.println(String.format("  %3d concurrent heavy queries, admission limit %-2s %6.1f queries/s", clients,
+						target == server ? String.valueOf(limited.maxConcurrentStatements) : "-", clients * 1e9 / best));
+
+				for (Connection conn : connections) {
+					conn.close();
+				}
+			}
+		}
+
+		AdmissionController admission = server.getAdmissionController();
+		System.out.println(String.format("  admitted %d, total wait %d ms, max wait %d ms", admission.getAdmitted(),
+				admission.getTotalWaitMillis(), admission.getMaxWaitMillis()));
+	}
+
+	public static void bench_single_flight() throws Exception {
+		int clients = 64;
+		String sql = "SELECT count(*), sum(a.i * b.i) FROM range(3000) a(i), range(3000) b(i)";
+
+		ServerConfig plain = new ServerConfig();
+		ServerConfig deduplicating = new ServerConfig();
+		deduplicating.singleFlightEnabled = true;
+
+		Server plainServer = startServer(plain);
+		Server server = startServer(deduplicating);
+
+		for (Server target : new Server[] { plainServer, server }) {
+			List<Connection> connections = new ArrayList<Connection>();
+			for (int i = 0; i < clients; i++) {
+				connections.add(DriverManager.getConnection(url(target)));
+			}
+
+			// Warm up
+			runConcurrently(connections.subList(0, 1), sql, 9_000_000L);
+
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < REPETITIONS; i++) {
+				best = Math.min(best, runConcurrently(connections, sql, 9_000_000L));
+			}
+			System.out.println(String.format("  %d concurrent identical queries, single flight %-5s best %6d ms", clients,
+					target == server, best / 1_000_000));
+
+			for (Connection conn : connections) {
+				conn.close();
+			}
+		}
+
+		SingleFlight singleFlight = server.getSingleFlight();
+		System.out.println(String.format("  single flight executions %d, joined %d", singleFlight.getExecutions(),
+				singleFlight.getJoined()));
+	}
+
+	public static void bench_pipelined_updates() throws Exception {
+		int updates = 1000;
+		Server server = startServer(new ServerConfig());
+
+		for (int depth : new int[] { 0, 64 }) {
+			Properties props = new Properties();
+			props.setProperty("pata.pipeline_depth", String.valueOf(depth));
+			Connection conn = DriverManager.getConnection(url(server), props);
+
+			Statement stmt = conn.createStatement();
+			stmt.execute("CREATE OR REPLACE TABLE pipelined (i INTEGER, s VARCHAR)");
+			stmt.close();
+
+			conn.setAutoCommit(false);
+			PreparedStatement ps = conn.prepareStatement("INSERT INTO pipelined VALUES (?, ?)");
+
+			long best = Long.MAX_VALUE;
+			for (int r = 0; r < REPETITIONS; r++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < updates; i++) {
+					ps.setInt(1, i);
+					ps.setString(2, "row " + i);
+					ps.executeUpdate();
+				}
+				conn.commit();
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			ps.close();
+			conn.close();
+
+			System.out.println(String.format("  %d updates in one transaction, pipeline depth %-2d best %5d ms, %8.0f updates/s",
+					updates, depth, best / 1_000_000, updates * 1e9 / best));
+		}
+	}
+
+	public static void bench_async_queries() throws Exception {
+		int connectionCount = 8;
+		int queries = 400;
+		String sql = "SELECT count(*) FROM range(100000) WHERE range % ? = 0";
+		Server server = startServer(new ServerConfig());
+
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < connectionCount; i++) {
+			connections.add(DriverManager.getConnection(url(server)));
+		}
+
+		// One thread, waiting for every query before sending the next
+		long blockingBest = Long.MAX_VALUE;
+		for (int r = 0; r < REPETITIONS; r++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < queries; i++) {
+				PreparedStatement ps = connections.get(i % connectionCount).prepareStatement(sql);
+				ps.setInt(1, 7);
+				ResultSet rs = ps.executeQuery();
+				rs.next();
+				rs.close();
+				ps.close();
+			}
+			blockingBest = Math.min(blockingBest, System.nanoTime() - start);
+		}
+
+		// One thread, all queries in flight at once
+		List<PataAsyncConnection> asyncConnections = new ArrayList<PataAsyncConnection>();
+		for (Connection conn : connections) {
+			asyncConnections.add(conn.unwrap(PataAsyncConnection.class));
+		}
+		long asyncBest = Long.MAX_VALUE;
+		for (int r = 0; r < REPETITIONS; r++) {
+			long start = System.nanoTime();
+			List<CompletableFuture<ResultSet>> results = new ArrayList<CompletableFuture<ResultSet>>();
+			for (int i = 0; i < queries; i++) {
+				results.add(asyncConnections.get(i % connectionCount).executeQueryAsync(sql, 7));
+			}
+			for (CompletableFuture<ResultSet> result : results) {
+				ResultSet rs = result.get();
+				rs.next();
+				rs.close();
+			}
+			asyncBest = Math.min(asyncBest, System.nanoTime() - start);
+		}
+
+		for (Connection conn : connections) {
+			conn.close();
+		}
+		System.out.println(String.format("  %d queries on %d connections from one thread, blocking best %5d ms, %6.0f queries/s",
+				queries, connectionCount, blockingBest / 1_000_000, queries * 1e9 / blockingBest));
+		System.out.println(String.format("  %d queries on %d connections from one thread, async    best %5d ms, %6.0f queries/s",
+				queries, connectionCount, asyncBest / 1_000_000, queries * 1e9 / asyncBest));
+	}
+
+	public static void bench_multiplexed_connections() throws Exception {
+		int connectionCount = 64;
+		int queries = 640;
+		Server server = startServer(new ServerConfig());
+
+		for (String multiplex : new String[] { "false", "true" }) {
+			Properties props = new Properties();
+			props.setProperty("pata.multiplex", multiplex);
+			int threadsBefore = Thread.activeCount();
+
+			List<Connection> connections = new ArrayList<Connection>();
+			for (int i = 0; i < connectionCount; i++) {
+				connections.add(DriverManager.getConnection(url(server), props));
+			}
+
+			long best = Long.MAX_VALUE;
+			for (int r = 0; r < REPETITIONS; r++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < queries; i++) {
+					ResultSet rs = connections.get(i % connectionCount).createStatement().executeQuery("SELECT 42");
+					rs.next();
+					rs.close();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			// The server runs in this JVM
+			int threads = Thread.activeCount() - threadsBefore;
+
+			for (Connection conn : connections) {
+				conn.close();
+			}
+			System.out.println(String.format("  %d connections, multiplex %-5s: %3d server threads, %d queries best %5d ms, %6.0f queries/s",
+					connectionCount, multiplex, threads, queries, best / 1_000_000, queries * 1e9 / best));
+		}
+	}
+
+	public static void bench_shared_connection() throws Exception {
+		int threadCount = 8;
+		int queriesPerThread = 200;
+		Server server = startServer(new ServerConfig());
+
+		for (boolean shared : new boolean[] { false, true }) {
+			List<Connection> connections = new ArrayList<Connection>();
+			for (int i = 0; i < (shared ? 1 : threadCount); i++) {
+				connections.add(DriverManager.getConnection(url(server)));
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+			long best = Long.MAX_VALUE;
+			for (int r = 0; r < REPETITIONS; r++) {
+				List<Future<?>> threads = new ArrayList<Future<?>>();
+				long start = System.nanoTime();
+				for (int t = 0; t < threadCount; t++) {
+					Connection conn = connections.get(t % connections.size());
+					threads.add(executor.submit(() -> {
+						try (PreparedStatement ps = conn.prepareStatement("SELECT 42")) {
+							for (int i = 0; i < queriesPerThread; i++) {
+								try (ResultSet rs = ps.executeQuery()) {
+									rs.next();
+								}
+							}
+						}
+						return null;
+					}));
+				}
+				for (Future<?> thread : threads) {
+					thread.get();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			executor.shutdown();
+
+			for (Connection conn : connections) {
+				conn.close();
+			}
+			int queries = threadCount * queriesPerThread;
+			System.out.println(String.format("  %d threads on %d connections: %d queries best %5d ms, %6.0f queries/s",
+					threadCount, connections.size(), queries, best / 1_000_000, queries * 1e9 / best));
+		}
+	}
+
+	public static void bench_connection_storm() throws Exception {
+		int threadCount = 4;
+		int connectsPerThread = 250;
+		ServerConfig pooled = new ServerConfig();
+		pooled.sessionPoolSize = 8;
+		Server plain = startServer(new ServerConfig());
+		Server server = startServer(pooled);
+
+		for (Server target : new Server[] { plain, server }) {
+			String url = url(target);
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+			long best = Long.MAX_VALUE;
+			for (int r = 0; r < REPETITIONS; r++) {
+				List<Future<?>> threads = new ArrayList<Future<?>>();
+				long start = System.nanoTime();
+				for (int t = 0; t < threadCount; t++) {
+					threads.add(executor.submit(() -> {
+						for (int i = 0; i < connectsPerThread; i++) {
+							try (Connection conn = DriverManager.getConnection(url);
+									Statement stmt = conn.createStatement();
+									ResultSet rs = stmt.executeQuery("SELECT 1")) {
+								rs.next();
+							}
+						}
+						return null;
+					}));
+				}
+				for (Future<?> thread : threads) {
+					thread.get();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			executor.shutdown();
+
+			int connects = threadCount * connectsPerThread;
+			System.out.println(String.format("  session pool %-2s: %d connect/query/close on %d threads best %5d ms, %6.0f connects/s",
+					target == server ? String.valueOf(pooled.sessionPoolSize) : "-", connects, threadCount, best / 1_000_000,
+					connects * 1e9 / best));
+		}
+	}
+
+	public static void bench_data_source() throws Exception {
+		int threadCount = 4;
+		int connectsPerThread = 250;
+		String url = url(startServer(new ServerConfig()));
+		PataDataSource ds = new PataDataSource(url);
+		ds.setMaxIdle(threadCount);
+
+		for (boolean pooled : new boolean[] { false, true }) {
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+			long best = Long.MAX_VALUE;
+			for (int r = 0; r < REPETITIONS; r++) {
+				List<Future<?>> threads = new ArrayList<Future<?>>();
+				long start = System.nanoTime();
+				for (int t = 0; t < threadCount; t++) {
+					threads.add(executor.submit(() -> {
+						for (int i = 0; i < connectsPerThread; i++) {
+							try (Connection conn = pooled ? ds.getConnection() : DriverManager.getConnection(url);
+									PreparedStatement ps = conn.prepareStatement("SELECT ?::INTEGER")) {
+								ps.setInt(1, i);
+								ResultSet rs = ps.executeQuery();
+								rs.next();
+							}
+						}
+						return null;
+					}));
+				}
+				for (Future<?> thread : threads) {
+					thread.get();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			executor.shutdown();
+
+			int connects = threadCount * connectsPerThread;
+			System.out.println(String.format("  %-14s: %d connect/prepare/query/close on %d threads best %5d ms, %6.0f us each",
+					pooled ? "PataDataSource" : "DriverManager", connects, threadCount, best / 1_000_000,
+					best / 1000.0 * threadCount / connects));
+		}
+		ds.close();
+	}
+
+	public static void bench_transports() throws Exception {
+		ServerConfig nio = new ServerConfig();
+		ServerConfig netty = new ServerConfig();
+		netty.transport = ServerConfig.NETTY_TRANSPORT;
+		Server nioServer = startServer(nio);
+		Server nettyServer = startServer(netty);
+
+		for (int sessions : new int[] { 1, 64, 512 }) {
+			int queriesPerSession = Math.max(20, 5120 / sessions);
+			for (Server target : new Server[] { nioServer, nettyServer }) {
+				List<Connection> connections = new ArrayList<Connection>();
+				for (int i = 0; i < sessions; i++) {
+					connections.add(DriverManager.getConnection(url(target)));
+				}
+
+				ExecutorService executor = Executors.newFixedThreadPool(sessions);
+				long best = Long.MAX_VALUE;
+				for (int r = 0; r < REPETITIONS; r++) {
+					CyclicBarrier barrier = new CyclicBarrier(sessions + 1);
+					List<Future<?>> threads = new ArrayList<Future<?>>();
+					for (Connection conn : connections) {
+						threads.add(executor.submit(() -> {
+							try (PreparedStatement ps = conn.prepareStatement("SELECT 42")) {
+								barrier.await();
+								for (int i = 0; i < queriesPerSession; i++) {
+									try (ResultSet rs = ps.executeQuery()) {
+										rs.next();
+									}
+								}
+							}
+							return null;
+						}));
+					}
+					barrier.await();
+					long start = System.nanoTime();
+					for (Future<?> thread : threads) {
+						thread.get();
+					}
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				executor.shutdown();
+
+				for (Connection conn : connections) {
+					conn.close();
+				}
+				int queries = sessions * queriesPerSession;
+				System.out.println(String.format("  %-5s %3d sessions: %d queries best %5d ms, %6.0f queries/s",
+						target == nettyServer ? netty.transport : nio.transport, sessions, queries, best / 1_000_000, queries * 1e9 / best));
+			}
+		}
+	}
+
+	// Connects as clients did before the upgrade: Connect on one socket, the session on a second one
+	private static Connection connectTwoHop(int port) throws Exception {
+		Connected connected;
+		try (SocketChannel control = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+			ByteBuffer frame = Frame.encode(0, new Connect().encodeCommand());
+			while (frame.hasRemaining()) {
+				control.write(frame);
+			}
+			FrameReader reader = new FrameReader(control, 1000);
+			connected = (Connected) ResponseDecoder.decodeBuffer(reader.read(reader.readHeader().length));
+		}
+		return new PataConnection(connected.port, false, new Properties(), port, connected.connectionId);
+	}
+
+	public static void bench_handshake() throws Exception {
+		int connects = 1000;
+		ServerConfig config = new ServerConfig();
+		config.sessionPoolSize = 8;
+		Server server = startServer(config);
+		String url = url(server);
+
+		for (boolean upgrade : new boolean[] { false, true }) {
+			long best = Long.MAX_VALUE;
+			for (int r = 0; r < REPETITIONS; r++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < connects; i++) {
+					try (Connection conn = upgrade ? DriverManager.getConnection(url) : connectTwoHop(server.getPort());
+							Statement stmt = conn.createStatement();
+							ResultSet rs = stmt.executeQuery("SELECT 1")) {
+						rs.next();
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.println(String.format("  %-8s: %d connect/query/close best %5d ms, %4d us each",
+					upgrade ? "one hop" : "two hops", connects, best / 1_000_000, best / 1000 / connects));
+		}
+	}
+
+	public static void bench_compact_types() throws Exception {
+		String sql = "SELECT (i * 1.25)::DECIMAL(9,2) AS price, (i * 1000.001)::DECIMAL(18,3) AS total, "
+				+ "(i * 123456789.123)::DECIMAL(28,3) AS big, DATE '2000-01-01' + (i % 10000)::INTEGER AS day, "
+				+ "TIME '00:00:00' + to_microseconds(i * 1000) AS at FROM range(500000) t(i)";
+
+		// Bytes of the arrow stream and time to write it, measured with a local writer
+		try (DuckDBConnection local = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:")) {
+			for (boolean compactTypes : new boolean[] { false, true }) {
+				long best = Long.MAX_VALUE;
+				int size = 0;
+				for (int r = 0; r < REPETITIONS; r++) {
+					long start = System.nanoTime();
+					try (Statement stmt = local.createStatement();
+							DuckDBResultSet rs = (DuckDBResultSet) stmt.executeQuery(sql);
+							ArrowResultSet ars = new ArrowResultSet(rs, new ResultEncoding(null, false, false, compactTypes))) {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						try (ArrowStreamWriter writer = ars.getArrowStreamWriter(Channels.newChannel(out))) {
+							ars.writeBatches(writer);
+						}
+						size = out.size();
+					}
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				System.out.println(String.format("  %-13s: %6d KB, 500k rows written best %5d ms", 
+						compactTypes ? "compact types" : "plain", size / 1024, best / 1_000_000));
+			}
+		}
+
+		// Reading all values through the driver, which negotiates compact types
+		Server server = startServer(new ServerConfig());
+		long best = Long.MAX_VALUE;
+		try (Connection conn = DriverManager.getConnection(url(server))) {
+			for (int r = 0; r < REPETITIONS; r++) {
+				long start = System.nanoTime();
+				long days = 0;
+				try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+					while (rs.next()) {
+						rs.getBigDecimal(1);
+						rs.getBigDecimal(2);
+						rs.getBigDecimal(3);
+						days += rs.getDate(4).toLocalDate().getDayOfMonth();
+						rs.getTime(5);
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+				if (days == 0) {
+					throw new Exception("No dates read");
+				}
+			}
+		}
+		System.out.println(String.format("  compact types: 500k rows read best %5d ms", best / 1_000_000));
+	}
+
+	public static void bench_compression() throws Exception {
+		Server server = startServer(new ServerConfig());
+		String sql = "SELECT i, i % 100 AS category, 'customer ' || (i % 1000) AS name, (hash(i) >> 1)::BIGINT AS h "
+				+ "FROM range(200000) t(i)";
+
+		// Bytes of the arrow stream, measured with a local writer
+		try (DuckDBConnection local = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:")) {
+			for (String codec : new String[] { "none", "lz4_frame", "zstd" }) {
+				try (Statement stmt = local.createStatement();
+						DuckDBResultSet rs = (DuckDBResultSet) stmt.executeQuery(sql);
+						ArrowResultSet ars = new ArrowResultSet(rs, new ResultEncoding(codec.equals("none") ? null : codec, true, false, false))) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					try (ArrowStreamWriter writer = ars.getArrowStreamWriter(Channels.newChannel(out))) {
+						ars.writeBatches(writer);
+					}
+					System.out.println(String.format("  %-9s: %6d KB", codec, out.size() / 1024));
+				}
+			}
+		}
+
+		for (String codec : new String[] { "none", "lz4_frame", "zstd" }) {
+			for (boolean adaptive : new boolean[] { false, true }) {
+				if (codec.equals("none") && adaptive) {
+					continue;
+				}
+				Properties props = new Properties();
+				props.setProperty("pata.compression", codec);
+				props.setProperty("pata.compression_adaptive", String.valueOf(adaptive));
+				long best = Long.MAX_VALUE;
+				try (Connection conn = DriverManager.getConnection(url(server), props)) {
+					for (int r = 0; r < REPETITIONS; r++) {
+						long start = System.nanoTime();
+						long rows = 0;
+						try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+							while (rs.next()) {
+								rows++;
+							}
+						}
+						best = Math.min(best, System.nanoTime() - start);
+						if (rows != 200000) {
+							throw new Exception("Wrong row count " + rows);
+						}
+					}
+				}
+				System.out.println(String.format("  %-9s %-8s: 200k rows best %5d ms", codec, adaptive ? "adaptive" : "", 
+						best / 1_000_000));
+			}
+		}
+	}
+
+	public static void bench_dictionary() throws Exception {
+		Server server = startServer(new ServerConfig());
+		String sql = "SELECT i, 'customer ' || (i % 1000) AS name, 'country ' || (i % 20) AS country, "
+				+ "CASE WHEN i % 3 = 0 THEN 'pending' ELSE 'shipped' END AS status FROM range(500000) t(i)";
+
+		// Bytes of the arrow stream, measured with a local writer
+		try (DuckDBConnection local = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:")) {
+			for (boolean dictionaries : new boolean[] { false, true }) {
+				try (Statement stmt = local.createStatement();
+						DuckDBResultSet rs = (DuckDBResultSet) stmt.executeQuery(sql);
+						ArrowResultSet ars = new ArrowResultSet(rs, new ResultEncoding(null, false, dictionaries, false))) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					try (ArrowStreamWriter writer = ars.getArrowStreamWriter(Channels.newChannel(out))) {
+						ars.writeBatches(writer);
+					}
+					System.out.println(String.format("  %-12s: %6d KB", dictionaries ? "dictionaries" : "plain", out.size() / 1024));
+				}
+			}
+		}
+
+		// Reading all strings, the allocated bytes are those of the reading thread
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		for (boolean dictionaries : new boolean[] { false, true }) {
+			Properties props = new Properties();
+			props.setProperty("pata.dictionaries", String.valueOf(dictionaries));
+			long best = Long.MAX_VALUE;
+			long allocated = Long.MAX_VALUE;
+			try (Connection conn = DriverManager.getConnection(url(server), props)) {
+				for (int r = 0; r < REPETITIONS; r++) {
+					long start = System.nanoTime();
+					long startBytes = threads.getCurrentThreadAllocatedBytes();
+					long chars = 0;
+					try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+						while (rs.next()) {
+							chars += rs.getString(2).length() + rs.getString(3).length() + rs.getString(4).length();
+						}
+					}
+					best = Math.min(best, System.nanoTime() - start);
+					allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - startBytes);
+					if (chars == 0) {
+						throw new Exception("No strings read");
+					}
+				}
+			}
+			System.out.println(String.format("  %-12s: 500k rows best %5d ms, %5d MB allocated", 
+					dictionaries ? "dictionaries" : "plain", best / 1_000_000, allocated / 1024 / 1024));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		Method[] methods = ServerBenchmarkRunner.class.getMethods();
+		Arrays.sort(methods, new Comparator<Method>() {
+			@Override
+			public int compare(Method o1, Method o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+
+		for (Method m : methods) {
+			if (m.getName().startsWith("bench_")) {
+				System.out.println(m.getName());
+				m.invoke(null);
+			}
+		}
+		System.exit(0);
+	}
+}
@@ -39,8 +39,13 @@ public class ServerTestRunner {
 			// DB vorbereiten
 			Connection con = DriverManager.getConnection("jdbc:duckdb:");
 			
-			// Server starten
-			Server s = new Server((DuckDBConnection) con, 41442);		
+			// Server starten, optional mit dem Transport als Argument
+			ServerConfig config = new ServerConfig();
+			if (args.length > 0)
+			{
+				config.transport = args[0];
+			}
+			Server s = new Server((DuckDBConnection) con, 41442, config);		
 			s.startServer();
 		} 
 		catch (SQLException e)
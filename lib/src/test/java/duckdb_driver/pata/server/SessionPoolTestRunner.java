@@ -0,0 +1,135 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of the pool of ready sessions. Starts its own server with the pool
+ * enabled, no ServerTestRunner is needed.
+ */
+public class SessionPoolTestRunner {
+
+	private static final int POOL_SIZE = 4;
+
+	private static Server server;
+
+	public static void test_ready_sessions() throws Exception {
+		SessionPool pool = server.getSessionPool();
+		await(() -> pool.getIdleSessions() == POOL_SIZE);
+
+		long hits = pool.getHits();
+		Connection conn = DriverManager.getConnection(url(server));
+		assertEquals(count(conn, "SELECT 42"), 42L);
+		assertEquals(pool.getHits(), hits + 1);
+		assertEquals(pool.getIdleSessions(), POOL_SIZE - 1);
+
+		// The session returns after the disconnect
+		long recycled = pool.getRecycled();
+		conn.close();
+		await(() -> pool.getRecycled() == recycled + 1);
+		assertEquals(pool.getIdleSessions(), POOL_SIZE);
+
+		// Refilled in the background once more than half is taken, the last
+		// connect may take a session after the refill ended
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < POOL_SIZE; i++) {
+			connections.add(DriverManager.getConnection(url(server)));
+		}
+		await(() -> pool.getIdleSessions() >= POOL_SIZE - 1);
+		for (Connection c : connections) {
+			c.close();
+		}
+	}
+
+	public static void test_reset_on_disconnect() throws Exception {
+		SessionPool pool = server.getSessionPool();
+		Connection setup = DriverManager.getConnection(url(server));
+		setup.createStatement().execute("CREATE TABLE pooled (i INTEGER)");
+		setup.close();
+
+		// Sessions that are left with state behind
+		List<Connection> connections = new ArrayList<Connection>();
+		await(() -> pool.getIdleSessions() == POOL_SIZE);
+		for (int i = 0; i < POOL_SIZE / 2; i++) {
+			Connection conn = DriverManager.getConnection(url(server));
+			Statement stmt = conn.createStatement();
+			stmt.execute("CREATE TEMPORARY TABLE leftover (i INTEGER)");
+			conn.setAutoCommit(false);
+			stmt.executeUpdate("INSERT INTO pooled VALUES (1)");
+			stmt.execute("SET search_path = 'temp'");
+			connections.add(conn);
+		}
+
+		long recycled = pool.getRecycled();
+		for (Connection conn : connections) {
+			conn.close();
+		}
+		await(() -> pool.getRecycled() == recycled + POOL_SIZE / 2);
+
+		// Open transactions were rolled back, settings and temporary objects are gone
+		for (int i = 0; i < 2 * POOL_SIZE; i++) {
+			Connection conn = DriverManager.getConnection(url(server));
+			assertEquals(count(conn, "SELECT count(*) FROM pooled"), 0L);
+			assertEquals(count(conn, "SELECT count(*) FROM duckdb_tables() WHERE temporary"), 0L);
+			try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT current_setting('search_path')")) {
+				rs.next();
+				assertEquals(rs.getString(1), "");
+			}
+			conn.close();
+		}
+	}
+
+	public static void test_empty_pool() throws Exception {
+		SessionPool pool = server.getSessionPool();
+		long connects = pool.getHits() + pool.getMisses();
+
+		// More connections than the pool holds, sessions are created on connect if it is empty
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < 4 * POOL_SIZE; i++) {
+			connections.add(DriverManager.getConnection(url(server)));
+		}
+		for (Connection conn : connections) {
+			assertEquals(count(conn, "SELECT 1"), 1L);
+		}
+		assertEquals(pool.getHits() + pool.getMisses(), connects + 4 * POOL_SIZE);
+
+		// Sessions beyond the pool size are closed
+		for (Connection conn : connections) {
+			conn.close();
+		}
+		Thread.sleep(100);
+		assertEquals(pool.getIdleSessions(), POOL_SIZE);
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		ServerConfig config = new ServerConfig();
+		config.sessionPoolSize = POOL_SIZE;
+		server = startServer(config);
+
+		run(SessionPoolTestRunner.class);
+	}
+}
@@ -0,0 +1,120 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import duckdb_driver.pata.commands.Connect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
+import duckdb_driver.pata.responses.Connected;
+import duckdb_driver.pata.responses.ResponseDecoder;
+
+/**
+ * Tests of the cleanup of sessions whose clients are gone or idle. Starts its
+ * own server with a short idle timeout, no ServerTestRunner is needed.
+ */
+public class SessionReaperTestRunner {
+
+	private static final long IDLE_TIMEOUT_MILLIS = 300;
+
+	private static Server server;
+
+	public static void test_idle_session_reaped() throws Exception {
+		SessionReaper reaper = server.getSessionReaper();
+		long reaped = reaper.getReapedSessions();
+
+		Connection conn = DriverManager.getConnection(url(server));
+		conn.createStatement().execute("CREATE TEMPORARY TABLE idle (i INTEGER)");
+		assertEquals(count(conn, "SELECT count(*) FROM idle"), 0L);
+		assertEquals(server.getSessionRegistry().getSessions().size(), 1);
+
+		await(() -> reaper.getReapedSessions() == reaped + 1);
+		assertEquals(server.getSessionRegistry().getSessions().size(), 0);
+		try {
+			count(conn, "SELECT count(*) FROM idle");
+			fail();
+		} catch (SQLException e) {
+		}
+		conn.close();
+	}
+
+	public static void test_heartbeat_keeps_session() throws Exception {
+		SessionReaper reaper = server.getSessionReaper();
+		long reaped = reaper.getReapedSessions();
+
+		Properties props = new Properties();
+		props.setProperty("pata.heartbeat_interval", String.valueOf(IDLE_TIMEOUT_MILLIS / 3));
+		Connection conn = DriverManager.getConnection(url(server), props);
+		conn.createStatement().execute("CREATE TEMPORARY TABLE kept (i INTEGER)");
+
+		Thread.sleep(4 * IDLE_TIMEOUT_MILLIS);
+		assertEquals(count(conn, "SELECT count(*) FROM kept"), 0L);
+		assertEquals(reaper.getReapedSessions(), reaped);
+		conn.close();
+	}
+
+	public static void test_client_never_connected() throws Exception {
+		SessionReaper reaper = server.getSessionReaper();
+		long reaped = reaper.getReapedSessions();
+
+		// Connect on the control port without opening the socket of the session
+		try (SocketChannel control = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			ByteBuffer frame = Frame.encode(0, new Connect().encodeCommand());
+			while (frame.hasRemaining()) {
+				control.write(frame);
+			}
+			FrameReader reader = new FrameReader(control, 1000);
+			assertTrue(ResponseDecoder.decodeBuffer(reader.read(reader.readHeader().length)) instanceof Connected);
+		}
+		assertEquals(server.getSessionRegistry().getSessions().size(), 1);
+
+		await(() -> reaper.getReapedSessions() == reaped + 1);
+		assertEquals(server.getSessionRegistry().getSessions().size(), 0);
+	}
+
+	public static void test_closed_client_removed() throws Exception {
+		SessionReaper reaper = server.getSessionReaper();
+		long reaped = reaper.getReapedSessions();
+
+		// The socket is closed without Disconnect, as by a client that crashed
+		Connection conn = DriverManager.getConnection(url(server));
+		assertEquals(count(conn, "SELECT 1"), 1L);
+		conn.close();
+
+		await(() -> server.getSessionRegistry().getSessions().isEmpty());
+		assertEquals(reaper.getReapedSessions(), reaped);
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		ServerConfig config = new ServerConfig();
+		config.sessionIdleTimeoutMillis = IDLE_TIMEOUT_MILLIS;
+		server = startServer(config);
+
+		run(SessionReaperTestRunner.class);
+	}
+}
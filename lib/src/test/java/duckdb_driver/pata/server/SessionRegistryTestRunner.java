@@ -0,0 +1,149 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import duckdb_driver.pata.commands.Disconnect;
+import duckdb_driver.pata.commands.Frame;
+import duckdb_driver.pata.commands.FrameReader;
+import duckdb_driver.pata.commands.PataCommand;
+
+/**
+ * Tests of the session registry and its lifecycle events. Starts its own
+ * server, no ServerTestRunner is needed.
+ */
+public class SessionRegistryTestRunner {
+
+	private static Server server;
+
+	// Sends a command to the control port and returns the raw response
+	private static ByteBuffer control(PataCommand cmd) throws Exception {
+		try (SocketChannel control = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+			ByteBuffer frame = Frame.encode(0, cmd.encodeCommand());
+			while (frame.hasRemaining()) {
+				control.write(frame);
+			}
+			FrameReader reader = new FrameReader(control, 1000);
+			return reader.read(reader.readHeader().length);
+		}
+	}
+
+	public static void test_lifecycle_events() throws Exception {
+		SessionRegistry registry = server.getSessionRegistry();
+		List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		SessionListener listener = new SessionListener() {
+			@Override
+			public void sessionOpened(DbConnection session) {
+				events.add("opened " + session.getState());
+			}
+
+			@Override
+			public void stateChanged(DbConnection session, SessionState from, SessionState to) {
+				events.add(from + " " + to);
+			}
+
+			@Override
+			public void sessionClosed(DbConnection session) {
+				events.add("closed " + session.getState());
+			}
+		};
+		registry.addListener(listener);
+
+		Connection conn = DriverManager.getConnection(url(server));
+		assertEquals(count(conn, "SELECT 42"), 42L);
+		assertEquals(registry.size(), 1);
+		DbConnection session = registry.getSessions().iterator().next();
+		assertTrue(registry.get(session.getConnctionId()) == session);
+		await(() -> session.getState() == SessionState.IDLE);
+		conn.close();
+		await(() -> registry.size() == 0);
+		registry.removeListener(listener);
+
+		// The query is prepared and executed
+		assertTrue(events.equals(Arrays.asList("opened CONNECTING", "CONNECTING IDLE", "IDLE EXECUTING", "EXECUTING IDLE",
+				"IDLE EXECUTING", "EXECUTING IDLE", "IDLE CLOSING", "closed CLOSING")), events.toString());
+	}
+
+	public static void test_count_by_state() throws Exception {
+		SessionRegistry registry = server.getSessionRegistry();
+		Connection idle = DriverManager.getConnection(url(server));
+		Connection busy = DriverManager.getConnection(url(server));
+		assertEquals(count(idle, "SELECT 1"), 1L);
+
+		// Stopped by its timeout after a second
+		CompletableFuture<Void> running = CompletableFuture.runAsync(() -> {
+			try (Statement stmt = busy.createStatement()) {
+				stmt.setQueryTimeout(1);
+				stmt.executeQuery("SELECT count(*) FROM range(100000) a, range(100000) b");
+			} catch (SQLException e) {
+			}
+		});
+		await(() -> registry.countByState().get(SessionState.EXECUTING) == 1);
+		assertEquals(registry.countByState().get(SessionState.IDLE), 1);
+		running.get(10, TimeUnit.SECONDS);
+		// The session changes its state after the response was sent
+		await(() -> registry.countByState().get(SessionState.IDLE) == 2);
+
+		idle.close();
+		busy.close();
+		await(() -> registry.size() == 0);
+	}
+
+	public static void test_disconnect() throws Exception {
+		SessionRegistry registry = server.getSessionRegistry();
+
+		// Unknown sessions are ignored
+		control(new Disconnect(UUID.randomUUID()));
+
+		// The thread of the session is blocked reading the next command
+		Connection conn = DriverManager.getConnection(url(server));
+		assertEquals(count(conn, "SELECT 1"), 1L);
+		DbConnection session = registry.getSessions().iterator().next();
+		control(new Disconnect(session.getConnctionId()));
+		await(() -> registry.size() == 0);
+		try {
+			count(conn, "SELECT 1");
+			fail();
+		} catch (SQLException e) {
+		}
+		conn.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		server = startServer(new ServerConfig());
+
+		run(SessionRegistryTestRunner.class);
+	}
+}
@@ -0,0 +1,147 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+package duckdb_driver.pata.server;
+
+import static duckdb_driver.pata.server.TestSupport.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.duckdb.DuckDBConnection;
+
+/**
+ * Tests of the graceful shutdown. Each test starts a server of its own and
+ * shuts it down, no ServerTestRunner is needed.
+ */
+public class ShutdownTestRunner {
+
+	private static final String LONG_QUERY = "SELECT count(*) FROM range(100000) a, range(100000) b";
+
+	public static void test_running_statement_finishes() throws Exception {
+		Server server = startServer(new ServerConfig());
+		Connection conn = DriverManager.getConnection(url(server));
+		Properties props = new Properties();
+		props.setProperty("pata.multiplex", "true");
+		Connection muxConn = DriverManager.getConnection(url(server), props);
+		assertEquals(count(muxConn, "SELECT 1"), 1L);
+
+		// Runs for a while, but not past the deadline. Prepared before, commands
+		// sent after the shutdown began are not read anymore.
+		PreparedStatement stmt = conn.prepareStatement("SELECT count(*) FROM range(20000) a, range(20000) b");
+		CompletableFuture<Long> running = CompletableFuture.supplyAsync(() -> {
+			try {
+				return count(stmt);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		await(() -> server.getSessionRegistry().countByState().get(SessionState.EXECUTING) == 1);
+
+		ShutdownReport report = server.shutdown(30000);
+		assertEquals(running.get(10, TimeUnit.SECONDS), 400000000L);
+		assertEquals(report.sessions, 2);
+		assertEquals(report.runningStatements, 1);
+		assertTrue(report.abortedStatements.isEmpty(), report.toString());
+		assertEquals(report.unfinishedSessions, 0);
+		assertEquals(server.getSessionRegistry().size(), 0);
+
+		// Sessions are gone
+		try {
+			count(conn, "SELECT 1");
+			fail();
+		} catch (SQLException e) {
+		}
+		try {
+			count(muxConn, "SELECT 1");
+			fail();
+		} catch (SQLException e) {
+		}
+		conn.close();
+		muxConn.close();
+	}
+
+	public static void test_transaction_rolled_back() throws Exception {
+		DuckDBConnection db = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:");
+		Server server = startServer(db, new ServerConfig());
+		Connection conn = DriverManager.getConnection(url(server));
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("CREATE TABLE orders (i INTEGER)");
+			conn.setAutoCommit(false);
+			stmt.executeUpdate("INSERT INTO orders VALUES (1)");
+		}
+
+		ShutdownReport report = server.shutdown(5000);
+		assertEquals(report.rolledBackTransactions, 1);
+		assertTrue(report.abortedStatements.isEmpty(), report.toString());
+		assertEquals(count(db, "SELECT count(*) FROM orders"), 0L);
+		conn.close();
+	}
+
+	public static void test_long_statement_aborted() throws Exception {
+		Server server = startServer(new ServerConfig());
+		Connection conn = DriverManager.getConnection(url(server));
+		PreparedStatement stmt = conn.prepareStatement(LONG_QUERY);
+		CompletableFuture<String> running = CompletableFuture.supplyAsync(() -> {
+			try {
+				count(stmt);
+				return null;
+			} catch (SQLException e) {
+				return e.getMessage();
+			}
+		});
+		await(() -> server.getSessionRegistry().countByState().get(SessionState.EXECUTING) == 1);
+
+		ShutdownReport report = server.shutdown(200);
+		assertEquals(report.runningStatements, 1);
+		assertEquals(report.abortedStatements, Arrays.asList(LONG_QUERY));
+		assertEquals(report.unfinishedSessions, 0);
+
+		// The client got the Cancelled response
+		String message = running.get(10, TimeUnit.SECONDS);
+		assertTrue(message != null && message.contains("shuts down"), message);
+		conn.close();
+	}
+
+	public static void test_no_new_sessions() throws Exception {
+		Server server = startServer(new ServerConfig());
+		Connection conn = DriverManager.getConnection(url(server));
+		assertEquals(count(conn, "SELECT 1"), 1L);
+
+		ShutdownReport report = server.shutdown(5000);
+		assertEquals(report.sessions, 1);
+		assertEquals(report.runningStatements, 0);
+		try {
+			DriverManager.getConnection(url(server));
+			fail();
+		} catch (SQLException e) {
+		}
+		conn.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		registerDrivers();
+
+		run(ShutdownTestRunner.class);
+	}
+}
@@ -0,0 +1,147 @@
+/*		Pata JDBC Driver for connecting to DuckDB processes
+		Copyright (C) 2023  Jens Hofer
+
+		This program is free software: you can redistribute it and/or modify
+		it under the terms of the GNU General Public License as published by
+		the Free Software Foundation, either version 3 of the License, or
+		(at your option) any later version.
+
+		This program is distributed in the hope that it will be useful,
+		but WITHOUT ANY WARRANTY; without even the implied warranty of
+		MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+		GNU General Public License for more details.
+
+		You should have received a copy of the GNU General Public License
+		along with this program.  If not, see <https://www.gnu.org/licenses/>.*/
+
+
+package duckdb_driver.pata.server;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.BooleanSupplier;
+
+import org.duckdb.DuckDBConnection;
+
+import duckdb_driver.pata.jdbc.PataDriver;
+
+/**
+ * Assertions, servers and the main loop shared by the test runners. Servers
+ * listen on a port picked by the system, so runners never compete for ports.
+ */
+final class TestSupport {
+
+	private TestSupport() {
+	}
+
+	static void assertTrue(boolean val) throws Exception {
+		if (!val) {
+			throw new Exception();
+		}
+	}
+
+	static void assertTrue(boolean val, String message) throws Exception {
+		if (!val) {
+			throw new Exception(message);
+		}
+	}
+
+	static void assertFalse(boolean val) throws Exception {
+		assertTrue(!val);
+	}
+
+	static void assertEquals(Object a, Object b) throws Exception {
+		if (a == null ? b != null : !a.equals(b)) {
+			throw new Exception(a + " != " + b);
+		}
+	}
+
+	static void fail() throws Exception {
+		throw new Exception("Expected an exception");
+	}
+
+	static void await(BooleanSupplier condition) throws Exception {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new Exception("Timed out");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	static long count(Connection conn, String sql) throws SQLException {
+		try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+	static long count(PreparedStatement stmt) throws SQLException {
+		try (ResultSet rs = stmt.executeQuery()) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+	static void registerDrivers() throws Exception {
+		DriverManager.registerDriver(new PataDriver());
+		Class.forName("org.duckdb.DuckDBDriver");
+	}
+
+	// Serves a new in-memory database
+	static Server startServer(ServerConfig config) throws SQLException {
+		return startServer((DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:"), config);
+	}
+
+	static Server startServer(DuckDBConnection db, ServerConfig config) {
+		Server server = new Server(db, 0, config);
+		Thread serverThread = new Thread(server::startServer);
+		serverThread.setDaemon(true);
+		serverThread.start();
+		return server;
+	}
+
+	static String url(Server server) {
+		return "jdbc:duckdb-pata:" + server.getPort();
+	}
+
+	/**
+	 * Runs the public static test_ methods of the runner by name, then exits
+	 * with 1 if any failed
+	 */
+	static void run(Class<?> runner) {
+		Method[] methods = runner.getMethods();
+		Arrays.sort(methods, new Comparator<Method>() {
+			@Override
+			public int compare(Method o1, Method o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+
+		boolean anyFailed = false;
+		for (Method m : methods) {
+			if (m.getName().startsWith("test_")) {
+				System.out.print(m.getName() + " ");
+				try {
+					m.invoke(null);
+					System.out.println("success");
+				} catch (Throwable t) {
+					System.out.println("failed with " + t);
+					t.printStackTrace(System.out);
+					anyFailed = true;
+				}
+			}
+		}
+		System.out.println("OK");
+
+		System.exit(anyFailed ? 1 : 0);
+	}
+}